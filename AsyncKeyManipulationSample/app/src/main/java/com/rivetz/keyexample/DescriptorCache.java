@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.keyexample;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetKeyDescriptor;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A bounded cache of key descriptors
+ *
+ * Each descriptor costs an IPC round trip to the Rivet, so a screen that shows several keys
+ * would otherwise wait on one call per key every time it is drawn. Descriptors are kept in
+ * least recently used order up to a fixed count. A key's entry must be invalidated when the key
+ * is created or deleted, since the name may then refer to a different key.
+ *
+ * After the key names are listed, {@code prefetch()} reads the descriptors in the background,
+ * with only a few calls outstanding at once so the Rivet isn't flooded.
+ */
+final class DescriptorCache {
+
+    private final int maxEntries;
+
+    // Guarded by this, in least recently used order
+    private final LinkedHashMap<String, RivetKeyDescriptor> descriptors;
+
+    // Reads in progress, shared by everyone asking for the same key. Guarded by this.
+    private final Map<String, CompletableFuture<RivetKeyDescriptor>> pending = new HashMap<>();
+
+    // The number of reads of each key that haven't completed, including ones that no longer
+    // share a pending entry because the key was invalidated. Guarded by this.
+    private final Map<String, Integer> reading = new HashMap<>();
+
+    // Set when a key is invalidated while it's being read, so a read that started before isn't
+    // stored. A key's entry is dropped once its last read completes, since no read can then
+    // hold an older generation. Guarded by this.
+    private final Map<String, Long> generations = new HashMap<>();
+    private long generation = 0;
+
+    /**
+     * @param maxEntries the most descriptors to keep
+     */
+    DescriptorCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.descriptors = new LinkedHashMap<String, RivetKeyDescriptor>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RivetKeyDescriptor> eldest) {
+                return size() > DescriptorCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param keyName the key name
+     * @return the cached descriptor, or null if it isn't cached
+     */
+    @AnyThread
+    synchronized @Nullable RivetKeyDescriptor peek(@NonNull String keyName) {
+        return descriptors.get(keyName);
+    }
+
+    /**
+     * Get a descriptor from the cache, or read it from the Rivet
+     *
+     * A failed read isn't cached, so the next call asks the Rivet again.
+     *
+     * @param crypto the paired crypto interface
+     * @param keyName the key name
+     * @return a future with the descriptor
+     */
+    @AnyThread
+    @NonNull CompletableFuture<RivetKeyDescriptor> get(@NonNull RivetCrypto crypto, @NonNull String keyName) {
+        CompletableFuture<RivetKeyDescriptor> read;
+        long started;
+        synchronized (this) {
+            RivetKeyDescriptor cached = descriptors.get(keyName);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+
+            read = pending.get(keyName);
+            if (read != null) {
+                return read;
+            }
+
+            read = new CompletableFuture<>();
+            pending.put(keyName, read);
+            reading.merge(keyName, 1, Integer::sum);
+            started = generationOf(keyName);
+        }
+
+        CompletableFuture<RivetKeyDescriptor> result = read;
+        crypto.getKeyDescriptor(keyName).whenComplete((descriptor, th) -> {
+            synchronized (this) {
+                if (pending.get(keyName) == result) {
+                    pending.remove(keyName);
+                }
+                if (descriptor != null && generationOf(keyName) == started) {
+                    descriptors.put(keyName, descriptor);
+                }
+                if (reading.merge(keyName, -1, Integer::sum) == 0) {
+                    reading.remove(keyName);
+                    generations.remove(keyName);
+                }
+            }
+
+            if (th != null) {
+                result.completeExceptionally(th);
+            }
+            else {
+                result.complete(descriptor);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Read the descriptors of keys that aren't cached, a few at a time
+     *
+     * Keys that can't be described are skipped.
+     *
+     * @param crypto the paired crypto interface
+     * @param keyNames the key names, usually from {@code getKeyNamesOf()}
+     * @param maxConcurrent the most reads to have outstanding at once
+     * @return a future that completes when every descriptor has been read or failed
+     */
+    @AnyThread
+    @NonNull CompletableFuture<Void> prefetch(@NonNull RivetCrypto crypto, @NonNull List<String> keyNames,
+                                              int maxConcurrent) {
+        Queue<String> remaining = new ArrayDeque<>();
+        synchronized (this) {
+            for (String keyName : keyNames) {
+                if (!descriptors.containsKey(keyName)) {
+                    remaining.add(keyName);
+                }
+            }
+        }
+
+        CompletableFuture<?>[] workers = new CompletableFuture<?>[Math.max(1, maxConcurrent)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = prefetchNext(crypto, remaining);
+        }
+        return CompletableFuture.allOf(workers);
+    }
+
+    /**
+     * Forget the descriptor of a key, after it is created or deleted
+     */
+    @AnyThread
+    synchronized void invalidate(@NonNull String keyName) {
+        descriptors.remove(keyName);
+        pending.remove(keyName);
+        if (reading.containsKey(keyName)) {
+            generations.put(keyName, ++generation);
+        }
+    }
+
+    /**
+     * @return the number of entries kept to track reads in progress, which is zero once every
+     * read has completed
+     */
+    @AnyThread
+    synchronized int getTrackedCount() {
+        return reading.size() + generations.size();
+    }
+
+    // Each worker reads one descriptor at a time, then takes the next name from the queue
+    private @NonNull CompletableFuture<Void> prefetchNext(@NonNull RivetCrypto crypto, @NonNull Queue<String> remaining) {
+        String keyName;
+        synchronized (remaining) {
+            keyName = remaining.poll();
+        }
+        if (keyName == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return get(crypto, keyName)
+                .handle((descriptor, th) -> null)
+                .thenCompose(ignored -> prefetchNext(crypto, remaining));
+    }
+
+    private long generationOf(@NonNull String keyName) {
+        Long keyGeneration = generations.get(keyName);
+        return keyGeneration != null ? keyGeneration : 0;
+    }
+}
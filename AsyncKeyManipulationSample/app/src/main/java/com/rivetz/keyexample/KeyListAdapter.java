@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.keyexample;
+
+import android.support.annotation.NonNull;
+import android.support.v7.recyclerview.extensions.ListAdapter;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.rivetz.api.RivetKeyDescriptor;
+
+/**
+ * Shows key names in a {@code RecyclerView}
+ *
+ * Only the rows on screen have views, so the number of keys doesn't matter to the UI. Each new
+ * list of names is compared with the last on a background thread, and only the rows that
+ * changed are redrawn. A row shows the key type once its descriptor is in the cache.
+ */
+final class KeyListAdapter extends ListAdapter<String, KeyListAdapter.KeyViewHolder> {
+
+    private static final DiffUtil.ItemCallback<String> DIFF = new DiffUtil.ItemCallback<String>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull String oldName, @NonNull String newName) {
+            return oldName.equals(newName);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull String oldName, @NonNull String newName) {
+            return oldName.equals(newName);
+        }
+    };
+
+    static final class KeyViewHolder extends RecyclerView.ViewHolder {
+        private final TextView name;
+
+        KeyViewHolder(@NonNull View itemView) {
+            super(itemView);
+            name = itemView.findViewById(R.id.keyName);
+        }
+    }
+
+    private final DescriptorCache descriptors;
+
+    /**
+     * @param descriptors the cached descriptors, which are shown without asking the Rivet
+     */
+    KeyListAdapter(@NonNull DescriptorCache descriptors) {
+        super(DIFF);
+        this.descriptors = descriptors;
+    }
+
+    @Override
+    public @NonNull KeyViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.key_list_item, parent, false);
+        return new KeyViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull KeyViewHolder holder, int position) {
+        String keyName = getItem(position);
+        RivetKeyDescriptor descriptor = descriptors.peek(keyName);
+
+        if (descriptor != null) {
+            holder.name.setText(holder.itemView.getContext()
+                    .getString(R.string.key_name_and_type, keyName, descriptor.getKeyType()));
+        }
+        else {
+            holder.name.setText(keyName);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.keyexample;
+
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Pages through a key listing
+ *
+ * {@code getKeyNamesOf()} returns every key of a type at once, which may be thousands of names.
+ * The pager filters and sorts the names on a background thread, then hands them to the list a
+ * page at a time as the user scrolls, so the UI thread only ever handles what is on screen and
+ * the next page.
+ *
+ * All of the methods are called on the UI thread, and the listener is called on it too. A
+ * query that is overtaken by a newer one is dropped when it completes.
+ */
+final class KeyPager {
+
+    /**
+     * Told when the names to show change
+     */
+    interface Listener {
+        /**
+         * @param visible the names loaded so far, in order. The list isn't changed afterwards.
+         * @param matching the number of names that match the filter
+         */
+        @MainThread
+        void onPageLoaded(@NonNull List<String> visible, int matching);
+    }
+
+    private final Executor background;
+    private final Executor ui;
+    private final int pageSize;
+    private final Listener listener;
+
+    private List<String> keyNames = Collections.emptyList();
+    private String filter = "";
+    private List<String> matching = Collections.emptyList();
+    private int visibleCount = 0;
+    private int generation = 0;
+
+    /**
+     * @param background filters and sorts the names
+     * @param ui runs tasks on the UI thread
+     * @param pageSize the number of names to add each time more are loaded
+     * @param listener told when the names to show change
+     */
+    KeyPager(@NonNull Executor background, @NonNull Executor ui, int pageSize, @NonNull Listener listener) {
+        this.background = background;
+        this.ui = ui;
+        this.pageSize = pageSize;
+        this.listener = listener;
+    }
+
+    /**
+     * Replace the names, for example with a new listing. The first page is shown again.
+     */
+    @MainThread
+    void setKeyNames(@NonNull List<String> keyNames) {
+        this.keyNames = new ArrayList<>(keyNames);
+        query();
+    }
+
+    /**
+     * Show only the names containing some text, ignoring case. The first page is shown again.
+     */
+    @MainThread
+    void setFilter(@NonNull String filter) {
+        this.filter = filter.trim().toLowerCase(Locale.ROOT);
+        query();
+    }
+
+    /**
+     * Add the next page to the names shown, if there is one
+     */
+    @MainThread
+    void loadMore() {
+        if (visibleCount < matching.size()) {
+            visibleCount = Math.min(visibleCount + pageSize, matching.size());
+            publish();
+        }
+    }
+
+    /**
+     * @return true if not every matching name is shown yet
+     */
+    @MainThread
+    boolean hasMore() {
+        return visibleCount < matching.size();
+    }
+
+    private void query() {
+        int queryGeneration = ++generation;
+        List<String> source = keyNames;
+        String text = filter;
+
+        background.execute(() -> {
+            List<String> result = filterAndSort(source, text);
+            ui.execute(() -> {
+                if (queryGeneration == generation) {
+                    matching = result;
+                    visibleCount = Math.min(pageSize, result.size());
+                    publish();
+                }
+            });
+        });
+    }
+
+    // The sub list is a new list each time, which the list adapter needs to see a change
+    private void publish() {
+        listener.onPageLoaded(matching.subList(0, visibleCount), matching.size());
+    }
+
+    @WorkerThread
+    private static @NonNull List<String> filterAndSort(@NonNull List<String> keyNames, @NonNull String filter) {
+        List<String> result = new ArrayList<>();
+        for (String name : keyNames) {
+            if (filter.isEmpty() || name.toLowerCase(Locale.ROOT).contains(filter)) {
+                result.add(name);
+            }
+        }
+        Collections.sort(result, String.CASE_INSENSITIVE_ORDER);
+        return Collections.unmodifiableList(result);
+    }
+}
@@ -35,8 +35,13 @@ import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AlertDialog;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.View;
 import android.widget.Button;
+import android.widget.EditText;
 
 import com.rivetz.api.RivetCrypto;
 import com.rivetz.api.RivetErrors;
@@ -47,9 +52,18 @@ import com.rivetz.api.RivetRuntimeException;
 import com.rivetz.api.SPID;
 import com.rivetz.bridge.DevicePropertyIds;
 import com.rivetz.bridge.RivetApiActivity;
+import com.rivetz.keys.KeyInventory;
+import com.rivetz.keys.KeyProvisioner;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.rivetz.api.RivetRules.REQUIRE_DUAL_ROOT;
 
@@ -74,6 +88,37 @@ public class MainActivity extends RivetApiActivity {
     private static boolean drtSupported = false; /** true if Dual Root of Trust is supported */
     private static boolean hasKey = false; /** true if the activity key exists */
 
+    // The keys in the Rivet, kept current as this activity creates and deletes its key. Shared
+    // by every instance of the activity, so a restarted activity finds the key without a listing.
+    private static final KeyInventory KEYS = new KeyInventory();
+
+    // The Provision keys button creates this many keys, a few at a time
+    private static final String PROVISIONED_KEY_PREFIX = "Provisioned-";
+    private static final int PROVISIONED_KEYS = 20;
+    private static final int PROVISION_IN_FLIGHT = 4;
+
+
+    // Pairs and lists the keys off the UI thread. One thread serves every instance of the activity.
+    private static final ExecutorService STARTUP_EXECUTOR =
+            Executors.newSingleThreadExecutor(task -> new Thread(task, "rivet-startup"));
+
+    // Cancelled in onDestroy()
+    private Future<?> startup = null;
+
+    // Filters and sorts the key listing off the UI thread
+    private static final ExecutorService KEY_LIST_EXECUTOR =
+            Executors.newSingleThreadExecutor(task -> new Thread(task, "key-list"));
+    private static final int KEY_PAGE_SIZE = 50;
+
+    // Descriptors of the listed keys, read ahead so describing a key doesn't wait on the Rivet.
+    // Shared by every instance of the activity, like the key state above. It holds three pages,
+    // so the page on screen, the one before it and the one being prefetched don't evict each
+    // other.
+    private static final DescriptorCache DESCRIPTORS = new DescriptorCache(3 * KEY_PAGE_SIZE);
+    private static final int PREFETCH_CONCURRENCY = 4;
+
+    private KeyPager keyPager;
+    private KeyListAdapter keyListAdapter;
 
     @Override
     public void onCreate(@NonNull Bundle savedInstanceState) {
@@ -88,6 +133,9 @@ public class MainActivity extends RivetApiActivity {
         // Disable all of the UI elements that require the Rivet
         setUiDisabled();
 
+        // The key listing is shown a page at a time
+        setupKeyList();
+
         // If the Rivetz app is not installed, when you call pairDevice(), the user
         // will be sent to the PlayStore to download it
         if (!isRivetInstalled()) {
@@ -97,8 +145,18 @@ public class MainActivity extends RivetApiActivity {
         // Now there will be a delay running the startup in the background. Entertain the user...
         findViewById(R.id.loading).setVisibility(View.VISIBLE);
 
-        // Put all of the high latency, asynchronous work on a background thread
-        new Thread(this::doStartup).start();
+        // Pair and list the keys on the startup thread, so the UI thread never blocks on the Rivet
+        startup = STARTUP_EXECUTOR.submit(this::doStartup);
+    }
+
+    @Override
+    public void onDestroy() {
+        // Interrupt a startup still blocked on pairing, or drop it if it hasn't started, so it
+        // doesn't hold up the startup of the activity that replaces this one
+        if (startup != null) {
+            startup.cancel(true);
+        }
+        super.onDestroy();
     }
 
     /**
@@ -115,6 +173,7 @@ public class MainActivity extends RivetApiActivity {
      * {@code hasKey} is set true if the key name defined in the activity exists
      */
     private void doStartup() {
+        CompletableFuture<KeyInventory> keysListed = null;
         Exception reason = null;
 
         // Pair with the SPID, block until it completes
@@ -128,6 +187,11 @@ public class MainActivity extends RivetApiActivity {
             reason = ex;
         }
 
+        // Interrupted by onDestroy(), leave the rest to the startup of the new activity
+        if (isDestroyed()) {
+            return;
+        }
+
         if (reason != null) {
 
             // If the error is that the Rivet isn't installed, the user was sent to the PlayStore,
@@ -152,7 +216,11 @@ public class MainActivity extends RivetApiActivity {
             // The Rivet is paired, get an instance of the crypto interface
             // NOTE: This method could throw a RivetRuntimeException(), but only
             // for not being paired, so it doesn't need a try/catch
-            crypto = getRivetCrypto();
+            crypto = KEYS.track(getRivetCrypto());
+
+            // Start listing the keys now. It only depends on pairing, so it can run
+            // while DRT support is being checked
+            keysListed = KEYS.refresh(crypto, RivetKeyTypes.NISTP256);
 
             try {
                 // Check if DRT is supported, block until it completes
@@ -171,13 +239,15 @@ public class MainActivity extends RivetApiActivity {
             }
         }
 
-        // If we have the crypto instance, check for the key
-        if (crypto != null) {
+        // If the key listing was started, check for the key
+        if (keysListed != null) {
             try {
-                List<String> keyNames = crypto.getKeyNamesOf(RivetKeyTypes.NISTP256).get();
-                if (keyNames.contains(KEY_NAME)) {
-                    hasKey = true;
-                }
+                keysListed.get();
+                hasKey = KEYS.contains(RivetKeyTypes.NISTP256, KEY_NAME);
+
+                // Show the keys. The descriptors of each page are read as it is shown.
+                List<String> keyNames = KEYS.namesOf(RivetKeyTypes.NISTP256);
+                runOnUiThread(() -> keyPager.setKeyNames(keyNames));
             }
             catch (ExecutionException ex) {
                 reason = ex;
@@ -191,7 +261,9 @@ public class MainActivity extends RivetApiActivity {
         }
 
         // Now update the UI with the results
-        runOnUiThread(this::startupComplete);
+        if (!isDestroyed()) {
+            runOnUiThread(this::startupComplete);
+        }
     }
 
     /**
@@ -247,6 +319,9 @@ public class MainActivity extends RivetApiActivity {
      * @param thrown null for success, or the error exception.
      */
     private void createKeyComplete(Void v, @Nullable Throwable thrown){
+        // Whether or not it was created, the cached descriptor may not match the key now
+        DESCRIPTORS.invalidate(KEY_NAME);
+
         if (thrown == null){
             // No exception means the key has been created
             hasKey = true;
@@ -273,6 +348,7 @@ public class MainActivity extends RivetApiActivity {
         // This operation completes with an inline lambda, with only a few
         // lines of code needed.
         crypto.deleteKey(KEY_NAME).whenComplete((wasDeleted, ex) -> {
+            DESCRIPTORS.invalidate(KEY_NAME);
 
             if (ex != null) {
                 // Should show the user something more friendly, ok only for development
@@ -299,8 +375,9 @@ public class MainActivity extends RivetApiActivity {
         // Disable all the UI for a bit
         setUiDisabled();
 
-        // Use a method for completion
-        crypto.getKeyDescriptor(KEY_NAME).whenComplete(this::describeComplete);
+        // Usually the descriptor was prefetched, so this completes immediately. Otherwise it is
+        // read from the Rivet and cached. Use a method for completion.
+        DESCRIPTORS.get(crypto, KEY_NAME).whenComplete(this::describeComplete);
     }
 
     /**
@@ -323,6 +400,47 @@ public class MainActivity extends RivetApiActivity {
         });
     }
 
+    /**
+     * Create a batch of keys, a few at a time. Keys that exist already are skipped, so after a
+     * partial failure the button can be pressed again to create the rest.
+     *
+     * @param v the Android View
+     */
+    public void provisionKeys(@NonNull View v) {
+        // Disable all the UI for a bit
+        setUiDisabled();
+
+        RivetRules rules[] = drtSupported ? new RivetRules[]{REQUIRE_DUAL_ROOT} : new RivetRules[0];
+        List<KeyProvisioner.KeySpec> specs = new ArrayList<>(PROVISIONED_KEYS);
+        for (int i = 0; i < PROVISIONED_KEYS; i++) {
+            specs.add(new KeyProvisioner.KeySpec(PROVISIONED_KEY_PREFIX + i, RivetKeyTypes.NISTP256, rules));
+        }
+
+        new KeyProvisioner(crypto, KEYS, PROVISION_IN_FLIGHT).provision(specs, null)
+                .thenAccept(this::provisionKeysComplete);
+    }
+
+    /**
+     * Report the keys that couldn't be created, and show the new keys in the list
+     *
+     * @param result what happened to each key
+     */
+    private void provisionKeysComplete(@NonNull KeyProvisioner.Result result) {
+        StringBuilder message = new StringBuilder()
+                .append(result.count(KeyProvisioner.Outcome.CREATED)).append(" keys created, ")
+                .append(result.count(KeyProvisioner.Outcome.ALREADY_EXISTED)).append(" already existed");
+        for (Map.Entry<KeyProvisioner.KeySpec, Throwable> failure : result.getFailures().entrySet()) {
+            message.append('\n').append(failure.getKey().getName()).append(": ").append(failure.getValue().getMessage());
+        }
+        alertFromBgThread(message.toString());
+
+        List<String> keyNames = KEYS.namesOf(RivetKeyTypes.NISTP256);
+        runOnUiThread(() -> {
+            keyPager.setKeyNames(keyNames);
+            setUiHasKeyState();
+        });
+    }
+
     // Restores the Key asynchronously after it was exported and deleted
     public void getKeyNames(@NonNull View v) {
         // Disable all the UI for a bit
@@ -335,9 +453,11 @@ public class MainActivity extends RivetApiActivity {
     private void getKeyNamesComplete(@Nullable List<String > keys, @Nullable Throwable thrown) {
         if (thrown == null) {
 
-            for(int i=0; i<keys.size(); i++) {
-                alertFromBgThread(keys.get(i));
-            }
+            // Another app may have changed the keys since startup, bring the inventory up to date
+            KEYS.load(Collections.singletonMap(RivetKeyTypes.NISTP256, keys));
+
+            // Show the keys in the list, there may be too many for one alert each
+            runOnUiThread(() -> keyPager.setKeyNames(keys));
 
         } else {
             alertFromBgThread(thrown.getMessage());
@@ -349,6 +469,66 @@ public class MainActivity extends RivetApiActivity {
         });
     }
 
+    /**
+     * Connect the key list to the pager
+     *
+     * The list holds only the pages loaded so far. When the user scrolls near the end, the next
+     * page is loaded, and its descriptors are read in the background so each row can show its
+     * key type.
+     */
+    private void setupKeyList() {
+        keyListAdapter = new KeyListAdapter(DESCRIPTORS);
+        keyPager = new KeyPager(KEY_LIST_EXECUTOR, this::runOnUiThread, KEY_PAGE_SIZE, (visible, matching) -> {
+            keyListAdapter.submitList(visible);
+
+            // The last page is the one just loaded. Descriptors that are cached aren't read again.
+            if (crypto != null && !visible.isEmpty()) {
+                prefetchDescriptors(visible.subList(Math.max(0, visible.size() - KEY_PAGE_SIZE), visible.size()));
+            }
+        });
+
+        RecyclerView keyList = findViewById(R.id.keyList);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        keyList.setLayoutManager(layoutManager);
+        keyList.setAdapter(keyListAdapter);
+        keyList.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                int last = layoutManager.findLastVisibleItemPosition();
+                if (keyPager.hasMore() && last >= keyListAdapter.getItemCount() - KEY_PAGE_SIZE / 2) {
+                    keyPager.loadMore();
+                }
+            }
+        });
+
+        EditText keyFilter = findViewById(R.id.keyFilter);
+        keyFilter.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                keyPager.setFilter(s.toString());
+            }
+        });
+    }
+
+    /**
+     * Read the descriptors of a page of keys, then redraw the rows so they show the key types.
+     * Only the rows on screen are bound again.
+     *
+     * @param keyNames the keys on the page
+     */
+    private void prefetchDescriptors(@NonNull List<String> keyNames) {
+        DESCRIPTORS.prefetch(crypto, keyNames, PREFETCH_CONCURRENCY).thenRun(() -> runOnUiThread(() ->
+                keyListAdapter.notifyItemRangeChanged(0, keyListAdapter.getItemCount())));
+    }
+
     /**
      * Generate a UI alert from a background thread
      *
@@ -359,7 +539,10 @@ public class MainActivity extends RivetApiActivity {
      */
     private void alertFromBgThread(@NonNull String text) {
         runOnUiThread(()->{
-            alertFromUiThread(text);
+            // Showing a dialog on a destroyed activity would crash
+            if (!isDestroyed()) {
+                alertFromUiThread(text);
+            }
         });
     }
 
@@ -383,6 +566,7 @@ public class MainActivity extends RivetApiActivity {
         makeUnclickable(findViewById(R.id.describe));
         makeUnclickable(findViewById(R.id.delete));
         makeUnclickable(findViewById(R.id.getKeyNames));
+        makeUnclickable(findViewById(R.id.provisionKeys));
     }
 
     /**
@@ -393,7 +577,8 @@ public class MainActivity extends RivetApiActivity {
      * If the key does exist, allow the user to delete, and query.
      */
     private void setUiHasKeyState() {
-        // Ready to set the UI state now
+        // Ready to set the UI state now. Keys can be provisioned either way.
+        makeClickable(findViewById(R.id.provisionKeys));
         if (hasKey) {
             makeClickable(findViewById(R.id.getKeyNames));
             makeClickable(findViewById(R.id.delete));
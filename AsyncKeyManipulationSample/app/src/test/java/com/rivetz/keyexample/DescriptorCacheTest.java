@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.keyexample;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetKeyDescriptor;
+import com.rivetz.api.RivetKeyTypes;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DescriptorCacheTest {
+
+    // The reads the cache has started, completed by each test in the order it wants
+    private final Queue<CompletableFuture<RivetKeyDescriptor>> reads = new ArrayDeque<>();
+    private RivetCrypto crypto;
+
+    @Before
+    public void setUp() {
+        crypto = (RivetCrypto) Proxy.newProxyInstance(RivetCrypto.class.getClassLoader(),
+                new Class<?>[] { RivetCrypto.class }, (proxy, method, args) -> {
+                    if (!method.getName().equals("getKeyDescriptor")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    CompletableFuture<RivetKeyDescriptor> read = new CompletableFuture<>();
+                    reads.add(read);
+                    return read;
+                });
+    }
+
+    private static RivetKeyDescriptor descriptor(String keyName) {
+        return new RivetKeyDescriptor(keyName, RivetKeyTypes.NISTP256);
+    }
+
+    @Test
+    public void concurrentGetsShareOneRead() {
+        DescriptorCache cache = new DescriptorCache(10);
+        CompletableFuture<RivetKeyDescriptor> first = cache.get(crypto, "key");
+        CompletableFuture<RivetKeyDescriptor> second = cache.get(crypto, "key");
+        assertSame(first, second);
+        assertEquals(1, reads.size());
+
+        RivetKeyDescriptor described = descriptor("key");
+        reads.remove().complete(described);
+        assertSame(described, first.join());
+        assertSame(described, cache.peek("key"));
+        assertEquals(0, cache.getTrackedCount());
+    }
+
+    @Test
+    public void readStartedBeforeInvalidateIsNotStored() {
+        DescriptorCache cache = new DescriptorCache(10);
+        cache.get(crypto, "key");
+        CompletableFuture<RivetKeyDescriptor> stale = reads.remove();
+
+        cache.invalidate("key");
+        cache.get(crypto, "key");
+        CompletableFuture<RivetKeyDescriptor> fresh = reads.remove();
+
+        // The newer read completes first, and the older one mustn't overwrite it
+        RivetKeyDescriptor current = descriptor("key");
+        fresh.complete(current);
+        assertSame(current, cache.peek("key"));
+        stale.complete(descriptor("key"));
+        assertSame(current, cache.peek("key"));
+        assertEquals(0, cache.getTrackedCount());
+    }
+
+    @Test
+    public void readStartedBeforeInvalidateIsNotStoredWhenItCompletesFirst() {
+        DescriptorCache cache = new DescriptorCache(10);
+        cache.get(crypto, "key");
+        CompletableFuture<RivetKeyDescriptor> stale = reads.remove();
+
+        cache.invalidate("key");
+        cache.get(crypto, "key");
+        CompletableFuture<RivetKeyDescriptor> fresh = reads.remove();
+
+        stale.complete(descriptor("key"));
+        assertNull(cache.peek("key"));
+        assertEquals(2, cache.getTrackedCount());
+
+        RivetKeyDescriptor current = descriptor("key");
+        fresh.complete(current);
+        assertSame(current, cache.peek("key"));
+        assertEquals(0, cache.getTrackedCount());
+    }
+
+    @Test
+    public void invalidateWithoutReadsKeepsNothing() {
+        DescriptorCache cache = new DescriptorCache(10);
+        for (int i = 0; i < 100; i++) {
+            cache.invalidate("key" + i);
+        }
+        assertEquals(0, cache.getTrackedCount());
+    }
+
+    @Test
+    public void failedReadIsNotCached() {
+        DescriptorCache cache = new DescriptorCache(10);
+        CompletableFuture<RivetKeyDescriptor> failed = cache.get(crypto, "key");
+        reads.remove().completeExceptionally(new IllegalArgumentException("No such key"));
+        assertTrue(failed.isCompletedExceptionally());
+        assertNull(cache.peek("key"));
+        assertEquals(0, cache.getTrackedCount());
+
+        cache.get(crypto, "key");
+        assertEquals(1, reads.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        DescriptorCache cache = new DescriptorCache(2);
+        for (String keyName : Arrays.asList("a", "b")) {
+            cache.get(crypto, keyName);
+            reads.remove().complete(descriptor(keyName));
+        }
+        cache.peek("a");
+        cache.get(crypto, "c");
+        reads.remove().complete(descriptor("c"));
+
+        assertNotNull(cache.peek("a"));
+        assertNull(cache.peek("b"));
+        assertNotNull(cache.peek("c"));
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.encryptdecryptsample;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.DestroyFailedException;
+
+/**
+ * Holds unwrapped data keys for a limited time
+ *
+ * Each key is stored under its wrapped form. When a key hasn't been used for the time to live,
+ * or the cache is closed, its key spec is destroyed and dropped so the plain key doesn't linger
+ * in the heap any longer than the garbage collector keeps it. A key is leased while a batch of
+ * records is using it, and doesn't expire until every lease is released.
+ */
+final class DataKeyCache {
+
+    static final int GCM_TAG_BITS = 128;
+
+    // Cipher.getInstance walks the providers, so each thread keeps one cipher and re-inits it
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<>();
+
+    /**
+     * A plain data key. The key spec is only read while holding the lock, so a key can't
+     * be wiped while a cipher is being initialized with it.
+     */
+    static final class DataKey {
+        private final byte[] wrapped;
+        private @Nullable SecretKeySpec spec;
+
+        // Guarded by the cache
+        private int leases = 0;
+        private long lastUsedNanos = System.nanoTime();
+
+        /**
+         * @param wrapped the key wrapped by the Rivet
+         * @param key the plain key, which is copied into a key spec once and then zeroed
+         */
+        DataKey(@NonNull byte[] wrapped, @NonNull byte[] key) {
+            this.wrapped = wrapped;
+            this.spec = new SecretKeySpec(key, "AES");
+            Arrays.fill(key, (byte) 0);
+        }
+
+        /**
+         * @return the key wrapped by the Rivet
+         */
+        @NonNull byte[] getWrapped() {
+            return wrapped;
+        }
+
+        /**
+         * Initialize this thread's AES-GCM cipher with this key
+         *
+         * @return the cipher, which is only valid until this thread calls this method again
+         * @throws GeneralSecurityException if the key has been wiped, which only happens to a
+         * leased key when the cache is closed
+         */
+        synchronized @NonNull Cipher cipher(int mode, @NonNull byte[] iv, @NonNull byte[] aad)
+                throws GeneralSecurityException {
+            if (spec == null) {
+                throw new GeneralSecurityException("The data key has been wiped");
+            }
+
+            Cipher cipher = CIPHERS.get();
+            if (cipher == null) {
+                cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                CIPHERS.set(cipher);
+            }
+            cipher.init(mode, spec, new GCMParameterSpec(GCM_TAG_BITS, iv));
+            cipher.updateAAD(aad);
+            return cipher;
+        }
+
+        synchronized void wipe() {
+            if (spec == null) {
+                return;
+            }
+            try {
+                spec.destroy();
+            }
+            catch (DestroyFailedException ex) {
+                // SecretKeySpec can't always zero its copy, so dropping it is the best we can do
+            }
+            spec = null;
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final long ttlMillis;
+    private final Map<ByteBuffer, DataKey> keys = new HashMap<>();
+    private boolean closed = false;
+
+    /**
+     * @param scheduler runs the expiry of each key
+     * @param ttlMillis how long a key is kept after its last use
+     */
+    DataKeyCache(@NonNull ScheduledExecutorService scheduler, long ttlMillis) {
+        this.scheduler = scheduler;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Lease a cached key
+     *
+     * @param wrapped the wrapped form of the key
+     * @return the leased key, or null if it isn't cached
+     */
+    @AnyThread
+    synchronized @Nullable DataKey acquire(@NonNull byte[] wrapped) {
+        DataKey key = keys.get(ByteBuffer.wrap(wrapped));
+        if (key != null) {
+            key.leases++;
+        }
+        return key;
+    }
+
+    /**
+     * Lease a key again
+     *
+     * @param key a key returned by this cache
+     * @return true if the key is leased, false if it has expired
+     */
+    @AnyThread
+    synchronized boolean acquire(@NonNull DataKey key) {
+        if (keys.get(ByteBuffer.wrap(key.getWrapped())) != key) {
+            return false;
+        }
+        key.leases++;
+        return true;
+    }
+
+    /**
+     * Add a key and lease it
+     *
+     * @param key the key
+     * @return the leased key, which is the cached one if another thread added the same key first.
+     * If the cache has been closed, the key is wiped and not stored.
+     */
+    @AnyThread
+    synchronized @NonNull DataKey put(@NonNull DataKey key) {
+        if (closed) {
+            key.wipe();
+            return key;
+        }
+
+        DataKey existing = keys.get(ByteBuffer.wrap(key.getWrapped()));
+        if (existing != null) {
+            key.wipe();
+            existing.leases++;
+            return existing;
+        }
+
+        key.leases++;
+        keys.put(ByteBuffer.wrap(key.getWrapped()), key);
+        scheduleExpiry(key, ttlMillis);
+        return key;
+    }
+
+    /**
+     * Release a lease. The time to live starts again from now.
+     */
+    @AnyThread
+    synchronized void release(@NonNull DataKey key) {
+        key.leases--;
+        key.lastUsedNanos = System.nanoTime();
+    }
+
+    /**
+     * Wipe every key, including leased ones. Keys added afterwards are wiped immediately.
+     */
+    @AnyThread
+    synchronized void close() {
+        closed = true;
+        for (DataKey key : keys.values()) {
+            key.wipe();
+        }
+        keys.clear();
+    }
+
+    // Releasing a key only records the time, so the expiry task checks whether the key is in
+    // use or was used since it was scheduled and, if so, schedules itself again
+    private void scheduleExpiry(@NonNull DataKey key, long delayMillis) {
+        scheduler.schedule(() -> expire(key), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void expire(@NonNull DataKey key) {
+        if (keys.get(ByteBuffer.wrap(key.getWrapped())) != key) {
+            return;
+        }
+
+        long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - key.lastUsedNanos);
+        if (key.leases > 0) {
+            scheduleExpiry(key, ttlMillis);
+        }
+        else if (idleMillis < ttlMillis) {
+            scheduleExpiry(key, ttlMillis - idleMillis);
+        }
+        else {
+            keys.remove(ByteBuffer.wrap(key.getWrapped()));
+            key.wipe();
+        }
+    }
+}
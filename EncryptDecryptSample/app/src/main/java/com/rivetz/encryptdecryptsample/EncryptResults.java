@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.encryptdecryptsample;
+
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.EncryptResult;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts an {@code EncryptResult} to and from bytes, so a key wrapped by the Rivet can be
+ * stored next to the data it protects.
+ *
+ * The layout is the IV length in one byte, the IV, then the cipher text.
+ */
+final class EncryptResults {
+
+    private EncryptResults() {
+    }
+
+    static @NonNull byte[] toBytes(@NonNull EncryptResult result) {
+        byte[] iv = result.getIV();
+        byte[] cipherText = result.getCipherText();
+
+        return ByteBuffer.allocate(1 + iv.length + cipherText.length)
+                .put((byte) iv.length)
+                .put(iv)
+                .put(cipherText)
+                .array();
+    }
+
+    static @NonNull EncryptResult fromBytes(@NonNull byte[] bytes) {
+        if (bytes.length < 1 || bytes.length < 1 + (bytes[0] & 0xFF)) {
+            throw new IllegalArgumentException("Truncated wrapped key");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        byte[] iv = new byte[buffer.get() & 0xFF];
+        buffer.get(iv);
+        byte[] cipherText = new byte[buffer.remaining()];
+        buffer.get(cipherText);
+        return new EncryptResult(cipherText, iv);
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.encryptdecryptsample;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.RivetCrypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.crypto.Cipher;
+
+/**
+ * Envelope encryption with a riveted AES key
+ *
+ * Sending every record to the Rivet costs an IPC and TEE round trip per record. Instead, a
+ * random data key is generated here, wrapped with the riveted key by the Rivet, and the
+ * records are encrypted in process with the data key. The wrapped data key is stored in
+ * each sealed record, so opening a record needs the Rivet only to unwrap its data key, and
+ * only the first time that key is seen while it is cached.
+ *
+ * The riveted key never leaves the TEE, so the data keys, and the records, can't be read
+ * without it. Unwrapped data keys are held in a {@code DataKeyCache} and wiped when they
+ * expire or {@code close()} is called.
+ *
+ * A sealed record is laid out as:
+ * <pre>
+ * version (1) | wrapped key length (2) | wrapped key | IV (12) | cipher text and tag
+ * </pre>
+ * The version and wrapped key are authenticated as additional data, so a record can't be
+ * moved to another data key.
+ */
+public final class EnvelopeCrypto {
+    private static final byte VERSION = 1;
+    private static final int DATA_KEY_BYTES = 32;
+    private static final int IV_BYTES = 12;
+
+    // Random IVs are safe for 2^32 messages per key. Stay far below that.
+    private static final int MAX_RECORDS_PER_KEY = 1 << 20;
+
+    private final RivetCrypto crypto;
+    private final String keyName;
+    private final ScheduledExecutorService executor;
+    private final DataKeyCache cache;
+    private final SecureRandom random = new SecureRandom();
+
+    // The data key new records are sealed with, and how many records it has sealed
+    private CompletableFuture<DataKeyCache.DataKey> currentKey = null;
+    private int currentKeyRecords = 0;
+    private boolean closed = false;
+
+    /**
+     * @param crypto the Rivet
+     * @param keyName the name of the riveted {@code AES256_CGM} key that wraps the data keys
+     * @param executor runs the in-process encryption and the data key expiry
+     * @param keyTtlMillis how long an unused data key is kept
+     */
+    public EnvelopeCrypto(@NonNull RivetCrypto crypto, @NonNull String keyName,
+                          @NonNull ScheduledExecutorService executor, long keyTtlMillis) {
+        this.crypto = crypto;
+        this.keyName = keyName;
+        this.executor = executor;
+        this.cache = new DataKeyCache(executor, keyTtlMillis);
+    }
+
+    /**
+     * Seal a record
+     *
+     * @param plainText the record
+     * @return a future for the sealed record
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<byte[]> seal(@NonNull byte[] plainText) {
+        return sealAll(Collections.singletonList(plainText)).thenApply(sealed -> sealed.get(0));
+    }
+
+    /**
+     * Seal a set of records. Only a new data key needs the Rivet, so most calls don't wait
+     * on it at all.
+     *
+     * @param plainTexts the records
+     * @return a future for the sealed records, in the same order
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<List<byte[]>> sealAll(@NonNull List<byte[]> plainTexts) {
+        CompletableFuture<DataKeyCache.DataKey> dataKey = dataKeyFor(plainTexts.size());
+        return dataKey.thenComposeAsync(key -> {
+            if (!cache.acquire(key)) {
+                // The key expired before this batch could lease it, start again with a new one
+                clearCurrentKey(dataKey);
+                return sealAll(plainTexts);
+            }
+
+            try {
+                List<byte[]> sealed = new ArrayList<>(plainTexts.size());
+                for (byte[] plainText : plainTexts) {
+                    sealed.add(seal(key, plainText));
+                }
+                return CompletableFuture.completedFuture(sealed);
+            }
+            finally {
+                cache.release(key);
+            }
+        }, executor);
+    }
+
+    /**
+     * Open a sealed record
+     *
+     * @param sealed the sealed record
+     * @return a future for the record
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<byte[]> open(@NonNull byte[] sealed) {
+        return openAll(Collections.singletonList(sealed)).thenApply(opened -> opened.get(0));
+    }
+
+    /**
+     * Open a set of sealed records. Each distinct data key is unwrapped once, and the data keys
+     * that aren't cached are unwrapped in parallel.
+     *
+     * @param sealed the sealed records
+     * @return a future for the records, in the same order. It fails with an
+     * {@code IllegalArgumentException} if any record isn't a sealed record, and then no data
+     * key is unwrapped.
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<List<byte[]>> openAll(@NonNull List<byte[]> sealed) {
+        // Parse every record before unwrapping any key, so a malformed record can't leave
+        // keys leased with nothing to release them
+        List<byte[]> wrappedKeys = new ArrayList<>(sealed.size());
+        try {
+            for (byte[] record : sealed) {
+                wrappedKeys.add(wrappedKeyOf(record));
+            }
+        }
+        catch (IllegalArgumentException ex) {
+            CompletableFuture<List<byte[]>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+
+        Map<ByteBuffer, CompletableFuture<DataKeyCache.DataKey>> keys = new HashMap<>();
+        List<CompletableFuture<DataKeyCache.DataKey>> recordKeys = new ArrayList<>(sealed.size());
+        for (byte[] wrapped : wrappedKeys) {
+            recordKeys.add(keys.computeIfAbsent(ByteBuffer.wrap(wrapped), w -> unwrap(wrapped)));
+        }
+
+        return CompletableFuture.allOf(keys.values().toArray(new CompletableFuture<?>[0]))
+                .handleAsync((done, thrown) -> {
+                    try {
+                        if (thrown != null) {
+                            throw thrown instanceof CompletionException
+                                    ? (CompletionException) thrown : new CompletionException(thrown);
+                        }
+
+                        List<byte[]> opened = new ArrayList<>(sealed.size());
+                        for (int i = 0; i < sealed.size(); i++) {
+                            opened.add(open(recordKeys.get(i).join(), sealed.get(i)));
+                        }
+                        return opened;
+                    }
+                    finally {
+                        for (CompletableFuture<DataKeyCache.DataKey> key : keys.values()) {
+                            if (!key.isCompletedExceptionally()) {
+                                cache.release(key.join());
+                            }
+                        }
+                    }
+                }, executor);
+    }
+
+    /**
+     * Wipe all of the cached data keys. Don't use this instance afterwards, data keys that are
+     * still being unwrapped are wiped as they arrive.
+     */
+    @AnyThread
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            currentKey = null;
+        }
+        cache.close();
+    }
+
+    // Get the data key for the next records, creating one if there isn't one or it has been
+    // used too much. The caller still has to lease the key, which fails if it has expired.
+    private synchronized @NonNull CompletableFuture<DataKeyCache.DataKey> dataKeyFor(int records) {
+        if (closed) {
+            CompletableFuture<DataKeyCache.DataKey> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("EnvelopeCrypto has been closed"));
+            return failed;
+        }
+
+        CompletableFuture<DataKeyCache.DataKey> key = currentKey;
+        if (key == null || currentKeyRecords + records > MAX_RECORDS_PER_KEY) {
+            CompletableFuture<DataKeyCache.DataKey> newKey = newDataKey();
+            key = newKey;
+            currentKey = newKey;
+            currentKeyRecords = 0;
+            newKey.whenComplete((k, thrown) -> {
+                // Don't keep a failed key, so the next call tries again
+                if (thrown != null) {
+                    clearCurrentKey(newKey);
+                }
+            });
+        }
+        currentKeyRecords += records;
+        return key;
+    }
+
+    private synchronized void clearCurrentKey(@NonNull CompletableFuture<DataKeyCache.DataKey> key) {
+        if (currentKey == key) {
+            currentKey = null;
+        }
+    }
+
+    private @NonNull CompletableFuture<DataKeyCache.DataKey> newDataKey() {
+        byte[] key = new byte[DATA_KEY_BYTES];
+        random.nextBytes(key);
+
+        return crypto.encrypt(keyName, key).handle((wrapped, thrown) -> {
+            if (thrown != null) {
+                Arrays.fill(key, (byte) 0);
+                throw thrown instanceof CompletionException
+                        ? (CompletionException) thrown : new CompletionException(thrown);
+            }
+            // Each batch leases the current key for itself
+            DataKeyCache.DataKey dataKey = cache.put(new DataKeyCache.DataKey(EncryptResults.toBytes(wrapped), key));
+            cache.release(dataKey);
+            return dataKey;
+        });
+    }
+
+    // Unwrap a data key, returning it leased
+    private @NonNull CompletableFuture<DataKeyCache.DataKey> unwrap(@NonNull byte[] wrapped) {
+        DataKeyCache.DataKey cached = cache.acquire(wrapped);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return crypto.decrypt(keyName, EncryptResults.fromBytes(wrapped))
+                .thenApply(key -> cache.put(new DataKeyCache.DataKey(wrapped, key)));
+    }
+
+    private @NonNull byte[] seal(@NonNull DataKeyCache.DataKey key, @NonNull byte[] plainText) {
+        byte[] wrapped = key.getWrapped();
+        byte[] iv = new byte[IV_BYTES];
+        random.nextBytes(iv);
+
+        int headerLength = 1 + 2 + wrapped.length;
+        ByteBuffer out = ByteBuffer.allocate(headerLength + IV_BYTES + plainText.length + DataKeyCache.GCM_TAG_BITS / 8);
+        out.put(VERSION).putShort((short) wrapped.length).put(wrapped).put(iv);
+
+        try {
+            Cipher cipher = key.cipher(Cipher.ENCRYPT_MODE, iv, header(out.array(), headerLength));
+            cipher.doFinal(ByteBuffer.wrap(plainText), out);
+        }
+        catch (GeneralSecurityException ex) {
+            throw new CompletionException(ex);
+        }
+        return out.array();
+    }
+
+    private @NonNull byte[] open(@NonNull DataKeyCache.DataKey key, @NonNull byte[] sealed) {
+        int headerLength = 1 + 2 + key.getWrapped().length;
+        byte[] iv = Arrays.copyOfRange(sealed, headerLength, headerLength + IV_BYTES);
+
+        try {
+            Cipher cipher = key.cipher(Cipher.DECRYPT_MODE, iv, header(sealed, headerLength));
+            int offset = headerLength + IV_BYTES;
+            return cipher.doFinal(sealed, offset, sealed.length - offset);
+        }
+        catch (GeneralSecurityException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    private static @NonNull byte[] header(@NonNull byte[] record, int headerLength) {
+        return Arrays.copyOf(record, headerLength);
+    }
+
+    private static @NonNull byte[] wrappedKeyOf(@NonNull byte[] sealed) {
+        ByteBuffer in = ByteBuffer.wrap(sealed);
+        if (sealed.length < 3 || in.get() != VERSION) {
+            throw new IllegalArgumentException("Not a sealed record");
+        }
+
+        int length = in.getShort() & 0xFFFF;
+        if (in.remaining() < length + IV_BYTES + DataKeyCache.GCM_TAG_BITS / 8) {
+            throw new IllegalArgumentException("Truncated sealed record");
+        }
+
+        byte[] wrapped = new byte[length];
+        in.get(wrapped);
+        return wrapped;
+    }
+}
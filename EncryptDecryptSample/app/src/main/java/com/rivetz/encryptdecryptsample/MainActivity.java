@@ -31,8 +31,21 @@
 
 package com.rivetz.encryptdecryptsample;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import android.os.Bundle;
 import android.support.v7.app.AlertDialog;
@@ -40,6 +53,7 @@ import android.util.Log;
 import android.view.View;
 import android.widget.EditText;
 import android.widget.Button;
+import android.support.v7.widget.SwitchCompat;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import com.rivetz.api.EncryptResult;
@@ -51,6 +65,9 @@ import com.rivetz.api.RivetRuntimeException;
 import com.rivetz.api.SPID;
 import com.rivetz.bridge.DevicePropertyIds;
 import com.rivetz.bridge.RivetApiActivity;
+import com.rivetz.keys.KeyInventory;
+import com.rivetz.keys.KeyRotationEngine;
+import com.rivetz.codec.HexCodec;
 import static com.rivetz.api.RivetRules.REQUIRE_DUAL_ROOT;
 
 /**
@@ -75,7 +92,47 @@ public class MainActivity extends RivetApiActivity {
     private Exception reason = null;
     private static boolean drtSupported = false; /** true if Dual Root of Trust is supported */
     private static boolean hasKey = false; /** true if the activity key exists */
-    private EncryptResult encryptedText = null; /** The encrypted text that will be generated in this sample */
+
+    // Which keys exist. Creating the key through the tracked crypto interface adds it, so the
+    // startup check is a lookup rather than a scan of the key names.
+    private static final KeyInventory KEYS = new KeyInventory();
+    private String keyName = KEY_NAME; /** The key new records are encrypted with. Rotating the key changes it. */
+    private StoredRecords records = null; /** The encrypted records, kept across launches so rotating the key has data to move */
+    private String encryptedRecordId = null; /** The record holding the encrypted text that will be generated in this sample */
+    private KeyRotationEngine rotations = null; /** Moves the records to a new key */
+    private KeyRotationEngine.Rotation rotation = null; /** The rotation in progress, if any */
+    private EnvelopeCrypto envelope = null; /** Encrypts in process with data keys wrapped by the riveted key */
+    private byte[] sealedText = null; /** The text sealed in envelope mode */
+    private StreamingCrypto streaming = null; /** Encrypts files in segments with file keys wrapped by the riveted key */
+
+    // How many records the bulk button seals, and how long an unwrapped data key is kept
+    private static final int BULK_RECORDS = 1000;
+    private static final long DATA_KEY_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    // The size of the file the file button encrypts
+    private static final int SAMPLE_FILE_BYTES = 16 * 1024 * 1024;
+
+    // Runs doStartup(), one activity at a time
+    private static final ExecutorService STARTUP_EXECUTOR =
+            Executors.newSingleThreadExecutor(task -> new Thread(task, "rivet-startup"));
+
+    // Cancelled when the activity is destroyed
+    private Future<?> startup = null;
+
+    // Runs the in-process envelope encryption and expires the data keys
+    private static final ScheduledExecutorService ENVELOPE_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(task -> new Thread(task, "rivet-envelope"));
+
+    // Runs the file encryption, which blocks on file I/O
+    private static final ExecutorService FILE_EXECUTOR =
+            Executors.newSingleThreadExecutor(task -> new Thread(task, "rivet-file"));
+
+    // Reads and writes the stored records, and paces the rotation batches so the Rivet stays
+    // responsive while records move to the new key
+    private static final ScheduledExecutorService RECORDS_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(task -> new Thread(task, "rivet-records"));
+    private static final int ROTATION_BATCH = 20;
+    private static final long ROTATION_PAUSE_MILLIS = 100;
 
     @Override
     public void onCreate(@NonNull Bundle savedInstanceState) {
@@ -86,6 +143,7 @@ public class MainActivity extends RivetApiActivity {
 
         // Standard Android startup
         setContentView(R.layout.activity_main);
+        records = new StoredRecords(getApplicationContext());
 
         // Disable all of the UI elements that require the Rivet
         setUiDisabled();
@@ -99,8 +157,22 @@ public class MainActivity extends RivetApiActivity {
         // Now there will be a delay running the startup in the background. Entertain the user...
         findViewById(R.id.loading).setVisibility(View.VISIBLE);
 
-        // Put all of the high latency, asynchronous work on a background thread
-        new Thread(this::doStartup).start();
+        // Pairing can wait on the user for a long time, keep it off the UI thread
+        startup = STARTUP_EXECUTOR.submit(this::doStartup);
+    }
+
+    @Override
+    public void onDestroy() {
+        // A startup for this instance is of no use any more, and would delay the next one
+        if (startup != null) {
+            startup.cancel(true);
+        }
+
+        // Wipe the unwrapped data keys, they are only needed while the activity is in use
+        if (envelope != null) {
+            envelope.close();
+        }
+        super.onDestroy();
     }
 
     /**
@@ -117,6 +189,8 @@ public class MainActivity extends RivetApiActivity {
      * {@code hasKey} is set true if the key name defined in the activity exists
      */
     private void doStartup() {
+        CompletableFuture<KeyInventory> keysListed = null;
+
         // Pair with the SPID, block until it completes
         try {
             pairSuccess = pairDevice(SPID.DEVELOPER_TOOLS_SPID).get();
@@ -128,6 +202,11 @@ public class MainActivity extends RivetApiActivity {
             reason = ex;
         }
 
+        // Stop here if onDestroy() cancelled the startup
+        if (isDestroyed()) {
+            return;
+        }
+
         if (reason != null) {
 
             // If the error is that the Rivet isn't installed, the user was sent to the PlayStore,
@@ -152,7 +231,16 @@ public class MainActivity extends RivetApiActivity {
             // The Rivet is paired, get an instance of the crypto interface
             // NOTE: This method could throw a RivetRuntimeException(), but only
             // for not being paired, so it doesn't need a try/catch
-            crypto = getRivetCrypto();
+            crypto = KEYS.track(getRivetCrypto());
+
+            // The key may have been rotated on an earlier launch
+            keyName = records.getCurrentKeyName(KEY_NAME);
+            rotations = new KeyRotationEngine(crypto, KEYS, records, records, RECORDS_EXECUTOR, RECORDS_EXECUTOR,
+                    ROTATION_BATCH, ROTATION_PAUSE_MILLIS);
+
+            // Start listing the keys now. It only depends on pairing, so it can run
+            // while DRT support is being checked
+            keysListed = KEYS.refresh(crypto, RivetKeyTypes.AES256_CGM);
 
             try {
                 // Check if DRT is supported, block until it completes
@@ -171,13 +259,11 @@ public class MainActivity extends RivetApiActivity {
             }
         }
 
-        // If we have the crypto instance, check for the key
-        if (crypto != null) {
+        // If the key listing was started, check for the key
+        if (keysListed != null) {
             try {
-                List<String> keyNames = crypto.getKeyNamesOf(RivetKeyTypes.AES256_CGM).get();
-                if (keyNames.contains(KEY_NAME)) {
-                    hasKey = true;
-                }
+                keysListed.get();
+                hasKey = KEYS.contains(RivetKeyTypes.AES256_CGM, keyName);
             }
             catch (ExecutionException ex) {
                 reason = ex;
@@ -191,7 +277,9 @@ public class MainActivity extends RivetApiActivity {
         }
 
         // Now update the UI with the results
-        runOnUiThread(this::startupComplete);
+        if (!isDestroyed()) {
+            runOnUiThread(this::startupComplete);
+        }
     }
 
     /**
@@ -210,6 +298,9 @@ public class MainActivity extends RivetApiActivity {
             System.exit(1);
         } else {
 
+            envelope = new EnvelopeCrypto(crypto, keyName, ENVELOPE_EXECUTOR, DATA_KEY_TTL_MILLIS);
+            streaming = new StreamingCrypto(crypto, keyName);
+
             if (drtSupported) {
                 alertFromBgThread("DRT supported");
             } else {
@@ -217,6 +308,9 @@ public class MainActivity extends RivetApiActivity {
             }
 
             sethasKeyUI();
+
+            // Finish a rotation that was interrupted when the app last stopped
+            resumeRotation();
         }
     }
 
@@ -238,7 +332,7 @@ public class MainActivity extends RivetApiActivity {
 
         // This operation completes and calls a method on the class. This helps break
         // up the code if handling the result requires more than a few lines to process
-        crypto.createKey(KEY_NAME, RivetKeyTypes.AES256_CGM, rules).whenComplete(this::createKeyComplete);
+        crypto.createKey(keyName, RivetKeyTypes.AES256_CGM, rules).whenComplete(this::createKeyComplete);
     }
 
     /**
@@ -272,12 +366,29 @@ public class MainActivity extends RivetApiActivity {
         // Disable all the UI for a bit
         setUiDisabled();
 
-        // Find the text to encrypt and encrypt it
+        // Find the text to encrypt and encrypt it. In envelope mode the Rivet only wraps the
+        // data key, the text is encrypted in process.
         EditText payload = findViewById(R.id.payload);
-        crypto.encrypt(KEY_NAME, payload.getText().toString().getBytes()).whenComplete(this::encryptComplete);
+        byte[] plainText = payload.getText().toString().getBytes();
+        SwitchCompat envelopeMode = findViewById(R.id.envelopeMode);
+        if (envelopeMode.isChecked()) {
+            envelope.seal(plainText).whenComplete(this::sealComplete);
+        }
+        else {
+            // Store the result, so it can still be decrypted after the key is rotated
+            String encryptingKey = keyName;
+            crypto.encrypt(encryptingKey, plainText)
+                    .thenApplyAsync(e -> {
+                        encryptedRecordId = records.add(new KeyRotationEngine.StoredRecord(encryptingKey, e));
+                        return e;
+                    }, RECORDS_EXECUTOR)
+                    .whenComplete(this::encryptComplete);
+        }
 
         // Disable the encryption button
         makeUnclickable(findViewById(R.id.encrypt));
+        makeUnclickable(findViewById(R.id.sealRecords));
+        makeUnclickable(findViewById(R.id.encryptFile));
     }
 
     /**
@@ -288,10 +399,10 @@ public class MainActivity extends RivetApiActivity {
      */
     private void encryptComplete(@Nullable EncryptResult e, @Nullable Throwable thrown){
         if(e != null){
-            // Save the result of the encryption
-            encryptedText = e;
+            // The result was stored as a record
+            sealedText = null;
             // Notify the user
-            alertFromBgThread("Your text has been encrypted to " + bytesToHex(e.getCipherText()));
+            alertFromBgThread("Your text has been encrypted to " + HexCodec.encode(e.getCipherText()));
             //Allow decryption
             runOnUiThread(() -> makeClickable(findViewById(R.id.decrypt)));
         }
@@ -300,6 +411,24 @@ public class MainActivity extends RivetApiActivity {
         }
     }
 
+    /**
+     * Handle completion of envelope encryption
+     *
+     * @param sealed the sealed text, which includes the wrapped data key
+     * @param thrown null for success, or the error exception.
+     */
+    private void sealComplete(@Nullable byte[] sealed, @Nullable Throwable thrown) {
+        if (sealed != null) {
+            sealedText = sealed;
+            encryptedRecordId = null;
+            alertFromBgThread("Your text has been sealed to " + HexCodec.encode(sealed));
+            runOnUiThread(() -> makeClickable(findViewById(R.id.decrypt)));
+        }
+        else if (thrown != null) {
+            alertFromBgThread(thrown.getMessage());
+        }
+    }
+
     /**
      * Decrypt the data previously encrypted
      *
@@ -309,7 +438,16 @@ public class MainActivity extends RivetApiActivity {
         // Disable all the UI for a bit
         setUiDisabled();
 
-        crypto.decrypt(KEY_NAME, encryptedText).whenComplete(this::decryptComplete);
+        if (sealedText != null) {
+            envelope.open(sealedText).whenComplete(this::decryptComplete);
+        }
+        else {
+            // The record names the key it is under, which changes if the key is rotated
+            String id = encryptedRecordId;
+            CompletableFuture.supplyAsync(() -> records.read(id), RECORDS_EXECUTOR)
+                    .thenCompose(record -> crypto.decrypt(record.getKeyName(), record.getValue()))
+                    .whenComplete(this::decryptComplete);
+        }
 
         // Disable the decryption button
         makeUnclickable(findViewById(R.id.decrypt));
@@ -332,6 +470,199 @@ public class MainActivity extends RivetApiActivity {
         }
     }
 
+    /**
+     * Seal and open a batch of records in envelope mode. The Rivet is called at most twice,
+     * to wrap a new data key and to unwrap it if it has expired, however many records there are.
+     *
+     * @param v The Android View.
+     */
+    public void sealRecords(@NonNull View v) {
+        setUiDisabled();
+
+        List<byte[]> records = new ArrayList<>(BULK_RECORDS);
+        for (int i = 0; i < BULK_RECORDS; i++) {
+            records.add(("Record " + i).getBytes());
+        }
+
+        long start = System.nanoTime();
+        envelope.sealAll(records)
+                .thenCompose(envelope::openAll)
+                .whenComplete((opened, thrown) -> {
+                    if (thrown != null) {
+                        alertFromBgThread(thrown.getMessage());
+                    }
+                    else {
+                        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                        alertFromBgThread("Sealed and opened " + opened.size() + " records in " + millis + " ms");
+                    }
+                    runOnUiThread(this::sethasKeyUI);
+                });
+    }
+
+    /**
+     * Replace the riveted key with a new one, and move the stored records to it. The records
+     * move a batch at a time, and the old key is deleted once they all have. If the app stops
+     * before then, the rotation carries on at the next launch.
+     *
+     * @param v The Android View.
+     */
+    public void rotateKey(@NonNull View v) {
+        setUiDisabled();
+
+        // A rotation that failed part way is finished rather than replaced by a new one
+        rotations.resumeAll().whenComplete((resumed, thrown) -> runOnUiThread(() -> {
+            if (thrown != null) {
+                alertFromUiThread(thrown.getMessage());
+                sethasKeyUI();
+            }
+            else if (!resumed.isEmpty()) {
+                followRotation(resumed.get(0));
+            }
+            else {
+                RivetRules rules[] = drtSupported ? new RivetRules[]{REQUIRE_DUAL_ROOT} : new RivetRules[0];
+                followRotation(rotations.rotate(keyName, KEY_NAME + "-" + System.currentTimeMillis(),
+                        RivetKeyTypes.AES256_CGM, rules));
+            }
+        }));
+    }
+
+    /**
+     * Resume a rotation left unfinished by an earlier launch, if there is one
+     */
+    private void resumeRotation() {
+        rotations.resumeAll().thenAccept(resumed -> {
+            if (!resumed.isEmpty()) {
+                runOnUiThread(() -> followRotation(resumed.get(0)));
+            }
+        });
+    }
+
+    /**
+     * Keep the UI disabled while a rotation runs, then switch to the new key
+     *
+     * @param started the rotation
+     */
+    private void followRotation(@NonNull KeyRotationEngine.Rotation started) {
+        rotation = started;
+        setUiDisabled();
+        makeUnclickable(findViewById(R.id.sealRecords));
+        makeUnclickable(findViewById(R.id.encryptFile));
+
+        started.getCompletion().whenCompleteAsync((ignored, thrown) -> {
+            if (thrown == null) {
+                records.setCurrentKeyName(started.getNewKeyName());
+            }
+            runOnUiThread(() -> rotationComplete(started, thrown));
+        }, RECORDS_EXECUTOR);
+    }
+
+    /**
+     * Handle the end of a rotation
+     *
+     * @param finished the rotation
+     * @param thrown null for success, or the error exception. The old key is kept on error.
+     */
+    private void rotationComplete(@NonNull KeyRotationEngine.Rotation finished, @Nullable Throwable thrown) {
+        rotation = null;
+        if (isDestroyed()) {
+            return;
+        }
+
+        if (thrown != null) {
+            alertFromUiThread(thrown.getMessage());
+        }
+        else {
+            keyName = finished.getNewKeyName();
+
+            // The data keys of the envelopes were wrapped by the old key, which is gone now
+            envelope.close();
+            envelope = new EnvelopeCrypto(crypto, keyName, ENVELOPE_EXECUTOR, DATA_KEY_TTL_MILLIS);
+            streaming = new StreamingCrypto(crypto, keyName);
+            sealedText = null;
+
+            alertFromUiThread("Moved " + finished.getMigrated() + " records to the key " + keyName);
+
+            // The stored text moved with the other records, show that it still decrypts
+            if (encryptedRecordId != null) {
+                makeClickable(findViewById(R.id.decrypt));
+            }
+        }
+        sethasKeyUI();
+    }
+
+    /**
+     * Encrypt a large file in segments, read one segment back on its own, then decrypt the
+     * whole file. Only one segment is in memory at a time, however large the file is.
+     *
+     * @param v The Android View.
+     */
+    public void encryptFile(@NonNull View v) {
+        setUiDisabled();
+
+        File plain = new File(getCacheDir(), "sample.bin");
+        File encrypted = new File(getCacheDir(), "sample.rvs");
+        File decrypted = new File(getCacheDir(), "sample.out");
+
+        FILE_EXECUTOR.execute(() -> {
+            try {
+                writeSampleFile(plain);
+
+                long start = System.nanoTime();
+                try (FileInputStream in = new FileInputStream(plain);
+                     FileOutputStream out = new FileOutputStream(encrypted)) {
+                    streaming.encrypt(in.getChannel(), out.getChannel());
+                }
+                long encryptMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+                // Any segment can be decrypted without reading the ones before it
+                long segments;
+                try (FileInputStream in = new FileInputStream(encrypted);
+                     SegmentedFile file = streaming.open(in.getChannel()).get()) {
+                    segments = file.getSegmentCount();
+                    file.readSegment(segments / 2);
+                }
+
+                start = System.nanoTime();
+                try (FileInputStream in = new FileInputStream(encrypted);
+                     FileOutputStream out = new FileOutputStream(decrypted)) {
+                    streaming.decrypt(in.getChannel(), out.getChannel());
+                }
+                long decryptMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+                alertFromBgThread("Encrypted " + plain.length() + " bytes in " + segments + " segments in "
+                        + encryptMillis + " ms, decrypted in " + decryptMillis + " ms");
+            }
+            catch (IOException | ExecutionException ex) {
+                alertFromBgThread(ex.getMessage());
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                plain.delete();
+                encrypted.delete();
+                decrypted.delete();
+                runOnUiThread(this::sethasKeyUI);
+            }
+        });
+    }
+
+    /**
+     * Write a file of random data, a chunk at a time
+     *
+     * @param file the file to write
+     */
+    private static void writeSampleFile(@NonNull File file) throws IOException {
+        Random random = new Random();
+        byte[] chunk = new byte[64 * 1024];
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (int written = 0; written < SAMPLE_FILE_BYTES; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk);
+            }
+        }
+    }
+
     /**
      * Disable all Rivet related controls while pairing
      *
@@ -341,12 +672,21 @@ public class MainActivity extends RivetApiActivity {
         makeUnclickable(findViewById(R.id.createKey));
         makeUnclickable(findViewById(R.id.decrypt));
         makeUnclickable(findViewById(R.id.encrypt));
+        makeUnclickable(findViewById(R.id.rotateKey));
     }
 
 
     private void sethasKeyUI(){
+        // The key is being replaced, the rotation re-enables the UI when it is done
+        if (rotation != null) {
+            return;
+        }
+
         if(hasKey){
+            makeClickable(findViewById(R.id.rotateKey));
             makeClickable(findViewById(R.id.encrypt));
+            makeClickable(findViewById(R.id.sealRecords));
+            makeClickable(findViewById(R.id.encryptFile));
             makeUnclickable(findViewById(R.id.createKey));
         }
         else {
@@ -365,7 +705,12 @@ public class MainActivity extends RivetApiActivity {
      * @param text the message to be shown to the user
      */
     private void alertFromBgThread(@NonNull String text) {
-        runOnUiThread(()-> alertFromUiThread(text));
+        runOnUiThread(()->{
+            // Too late to alert once the activity is destroyed
+            if (!isDestroyed()) {
+                alertFromUiThread(text);
+            }
+        });
     }
 
     /**
@@ -402,17 +747,4 @@ public class MainActivity extends RivetApiActivity {
         button.setAlpha(1f);
         button.setClickable(true);
     }
-
-
-    /**
-     *Convert a byte array to hexadecimals
-     */
-    public static @NonNull String bytesToHex(@NonNull byte[] in) {
-        final StringBuilder sb = new StringBuilder(in.length * 2);
-        for (byte b : in) {
-            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
-            sb.append(Character.forDigit(b & 0xF, 16));
-        }
-        return sb.toString();
-    }
 }
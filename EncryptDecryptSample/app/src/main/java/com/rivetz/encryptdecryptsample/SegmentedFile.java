@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.encryptdecryptsample;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random access to a file in the segmented format
+ *
+ * Any segment can be read and decrypted on its own, without reading the segments before it.
+ * Segments can be read from several threads at once, since each thread uses its own cipher and
+ * positional reads of the channel.
+ */
+public final class SegmentedFile implements Closeable {
+    // Reads run on any thread, so each thread keeps a cipher to re-init for every segment
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<>();
+
+    private final FileChannel channel;
+    private final SegmentedFormat.Header header;
+    private final long segmentCount;
+    private final long plainSize;
+    // Null once the file is closed
+    private volatile SecretKeySpec fileKey;
+
+    SegmentedFile(@NonNull FileChannel channel, @NonNull byte[] fileKey, @NonNull SegmentedFormat.Header header)
+            throws IOException {
+        this.channel = channel;
+        this.header = header;
+
+        long encryptedSize = channel.size() - header.length();
+        int full = header.encryptedSegmentSize();
+        segmentCount = (encryptedSize + full - 1) / full;
+        if (segmentCount == 0 || encryptedSize - (segmentCount - 1) * full < SegmentedFormat.TAG_BYTES) {
+            throw new IOException("Truncated segmented file");
+        }
+        plainSize = encryptedSize - segmentCount * SegmentedFormat.TAG_BYTES;
+        this.fileKey = SegmentedFormat.fileKeySpec(fileKey);
+    }
+
+    /**
+     * @return the number of segments
+     */
+    public long getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * @return the size of a segment's plain text, the last segment may be smaller
+     */
+    public int getSegmentSize() {
+        return header.segmentSize;
+    }
+
+    /**
+     * @return the size of the plain text of the whole file
+     */
+    public long getPlainSize() {
+        return plainSize;
+    }
+
+    /**
+     * Read and decrypt one segment
+     *
+     * @param index the segment index, from 0 to {@code getSegmentCount() - 1}
+     * @return the plain text of the segment
+     * @throws IOException if the segment can't be read or fails authentication
+     */
+    @WorkerThread
+    public @NonNull byte[] readSegment(long index) throws IOException {
+        if (index < 0 || index >= segmentCount) {
+            throw new IndexOutOfBoundsException("Segment " + index + " of " + segmentCount);
+        }
+
+        SecretKeySpec key = fileKey;
+        if (key == null) {
+            throw new IOException("File closed");
+        }
+
+        int full = header.encryptedSegmentSize();
+        long start = header.length() + index * full;
+        ByteBuffer encrypted = ByteBuffer.allocate((int) Math.min(full, channel.size() - start));
+        while (encrypted.hasRemaining()) {
+            if (channel.read(encrypted, start + encrypted.position()) < 0) {
+                throw new EOFException("Truncated segment " + index);
+            }
+        }
+
+        try {
+            Cipher cipher = CIPHERS.get();
+            if (cipher == null) {
+                cipher = SegmentedFormat.newCipher();
+                CIPHERS.set(cipher);
+            }
+            SegmentedFormat.initSegment(cipher, Cipher.DECRYPT_MODE, key, header, index, index == segmentCount - 1);
+            return cipher.doFinal(encrypted.array());
+        }
+        catch (GeneralSecurityException ex) {
+            throw new IOException("Segment " + index + " failed authentication", ex);
+        }
+    }
+
+    /**
+     * Wipe the file key, so later reads fail. The channel belongs to the caller and is left open.
+     */
+    @Override
+    public void close() {
+        SegmentedFormat.destroy(fileKey);
+        fileKey = null;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.encryptdecryptsample;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.DestroyFailedException;
+
+/**
+ * The segmented file format used by {@code StreamingCrypto}
+ *
+ * A file is a header followed by segments. Each segment is up to {@code segmentSize} bytes of
+ * plain text encrypted with AES-GCM under the file key, so it carries its own 16 byte tag.
+ * Every segment but the last is full, so segment {@code i} starts at
+ * {@code headerLength + i * (segmentSize + 16)} and any segment can be found and decrypted
+ * without reading the others.
+ *
+ * <pre>
+ * header:  magic "RVS1" (4) | segment size (4) | nonce prefix (7) | wrapped key length (2) | wrapped key
+ * segment: cipher text | tag (16)
+ * </pre>
+ *
+ * The IV of each segment is the nonce prefix, the segment index (4) and a final flag (1), and
+ * the header is the additional data of every segment. So segments can't be reordered, moved
+ * between files, or dropped from the end without failing authentication.
+ */
+final class SegmentedFormat {
+
+    static final int TAG_BYTES = 16;
+    static final int MIN_SEGMENT_SIZE = 1024;
+    // Both streams hold a segment in memory, so a corrupt header mustn't ask for gigabytes
+    static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    private static final byte[] MAGIC = { 'R', 'V', 'S', '1' };
+    private static final int NONCE_PREFIX_BYTES = 7;
+    private static final int FIXED_HEADER_BYTES = MAGIC.length + 4 + NONCE_PREFIX_BYTES + 2;
+    private static final long MAX_SEGMENTS = 0xFFFFFFFFL;
+
+    /**
+     * A parsed header
+     */
+    static final class Header {
+        final int segmentSize;
+        final byte[] noncePrefix;
+        final byte[] wrappedKey;
+        final byte[] encoded;
+
+        Header(int segmentSize, @NonNull byte[] noncePrefix, @NonNull byte[] wrappedKey) {
+            this.segmentSize = segmentSize;
+            this.noncePrefix = noncePrefix;
+            this.wrappedKey = wrappedKey;
+            this.encoded = ByteBuffer.allocate(FIXED_HEADER_BYTES + wrappedKey.length)
+                    .put(MAGIC)
+                    .putInt(segmentSize)
+                    .put(noncePrefix)
+                    .putShort((short) wrappedKey.length)
+                    .put(wrappedKey)
+                    .array();
+        }
+
+        int length() {
+            return encoded.length;
+        }
+
+        /**
+         * @return the size of a full segment in the file
+         */
+        int encryptedSegmentSize() {
+            return segmentSize + TAG_BYTES;
+        }
+    }
+
+    /**
+     * Reads a header in two steps, the fixed part then the wrapped key
+     */
+    interface HeaderSource {
+        void readFully(@NonNull byte[] into) throws IOException;
+    }
+
+    private SegmentedFormat() {
+    }
+
+    static @NonNull Header newHeader(int segmentSize, @NonNull byte[] noncePrefix, @NonNull byte[] wrappedKey) {
+        if (segmentSize < MIN_SEGMENT_SIZE || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segments must be from " + MIN_SEGMENT_SIZE + " to "
+                    + MAX_SEGMENT_SIZE + " bytes");
+        }
+        if (noncePrefix.length != NONCE_PREFIX_BYTES || wrappedKey.length > 0xFFFF) {
+            throw new IllegalArgumentException("Bad nonce prefix or wrapped key");
+        }
+        return new Header(segmentSize, noncePrefix, wrappedKey);
+    }
+
+    static @NonNull byte[] newNoncePrefix(@NonNull SecureRandom random) {
+        byte[] prefix = new byte[NONCE_PREFIX_BYTES];
+        random.nextBytes(prefix);
+        return prefix;
+    }
+
+    static @NonNull Header readHeader(@NonNull HeaderSource source) throws IOException {
+        byte[] fixed = new byte[FIXED_HEADER_BYTES];
+        source.readFully(fixed);
+
+        ByteBuffer in = ByteBuffer.wrap(fixed);
+        byte[] magic = new byte[MAGIC.length];
+        in.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a segmented file");
+        }
+
+        int segmentSize = in.getInt();
+        if (segmentSize < MIN_SEGMENT_SIZE || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IOException("Bad segment size " + segmentSize);
+        }
+
+        byte[] noncePrefix = new byte[NONCE_PREFIX_BYTES];
+        in.get(noncePrefix);
+        byte[] wrappedKey = new byte[in.getShort() & 0xFFFF];
+        source.readFully(wrappedKey);
+        return new Header(segmentSize, noncePrefix, wrappedKey);
+    }
+
+    /**
+     * Make the key spec every segment of a file is encrypted with
+     *
+     * @param fileKey the file key, zeroed once it's copied into the spec
+     */
+    static @NonNull SecretKeySpec fileKeySpec(@NonNull byte[] fileKey) {
+        SecretKeySpec spec = new SecretKeySpec(fileKey, "AES");
+        Arrays.fill(fileKey, (byte) 0);
+        return spec;
+    }
+
+    /**
+     * Destroy a file key spec if the provider allows it. The caller drops it either way.
+     */
+    static void destroy(@Nullable SecretKeySpec fileKey) {
+        if (fileKey == null) {
+            return;
+        }
+        try {
+            fileKey.destroy();
+        }
+        catch (DestroyFailedException ex) {
+            // Not every SecretKeySpec can zero its copy, it's left to the garbage collector
+        }
+    }
+
+    static @NonNull Cipher newCipher() throws GeneralSecurityException {
+        return Cipher.getInstance("AES/GCM/NoPadding");
+    }
+
+    /**
+     * Initialize a cipher for one segment. A cipher can be initialized again for each segment,
+     * which is much cheaper than getting a new one from the providers.
+     *
+     * @param cipher a cipher from {@code newCipher()}
+     * @param mode {@code Cipher.ENCRYPT_MODE} or {@code Cipher.DECRYPT_MODE}
+     * @param fileKey the file key spec
+     * @param header the file header
+     * @param index the segment index
+     * @param last true for the final segment
+     */
+    static void initSegment(@NonNull Cipher cipher, int mode, @NonNull SecretKeySpec fileKey,
+                            @NonNull Header header, long index, boolean last) throws GeneralSecurityException {
+        if (index < 0 || index > MAX_SEGMENTS) {
+            throw new GeneralSecurityException("Too many segments");
+        }
+
+        byte[] iv = ByteBuffer.allocate(NONCE_PREFIX_BYTES + 4 + 1)
+                .put(header.noncePrefix)
+                .putInt((int) index)
+                .put((byte) (last ? 1 : 0))
+                .array();
+
+        cipher.init(mode, fileKey, new GCMParameterSpec(TAG_BYTES * 8, iv));
+        cipher.updateAAD(header.encoded);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.encryptdecryptsample;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decrypts a stream in the segmented format, holding one segment in memory at a time
+ *
+ * Each segment is authenticated before any of its plain text is returned. A segment is the
+ * last one when the stream ends after it, so one byte past each segment is read ahead to find
+ * out. A stream that was cut short fails with an {@code IOException} rather than ending early.
+ */
+final class SegmentedInputStream extends InputStream {
+    private final InputStream in;
+    // Null once the stream is closed
+    private SecretKeySpec fileKey;
+    // Made for the first segment and re-initialized for the others
+    private Cipher cipher = null;
+    private final SegmentedFormat.Header header;
+    private final byte[] encrypted;
+    private final byte[] segment;
+    private int encryptedLength = 0;
+    private int position = 0;
+    private int length = 0;
+    private long index = 0;
+    private boolean lastRead = false;
+    private boolean closed = false;
+
+    /**
+     * @param in the stream, positioned after the header, closed when this stream is closed
+     * @param fileKey the file key, zeroed once its key spec is made
+     * @param header the header that was read from the stream
+     */
+    SegmentedInputStream(@NonNull InputStream in, @NonNull byte[] fileKey, @NonNull SegmentedFormat.Header header) {
+        this.in = in;
+        this.fileKey = SegmentedFormat.fileKeySpec(fileKey);
+        this.header = header;
+        this.encrypted = new byte[header.encryptedSegmentSize() + 1];
+        this.segment = new byte[header.segmentSize];
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int count = read(b, 0, 1);
+        return count < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        // The last segment can be empty, so keep reading until there is plain text or the end
+        while (position == length) {
+            if (lastRead) {
+                return -1;
+            }
+            readSegment();
+        }
+
+        int count = Math.min(len, length - position);
+        System.arraycopy(segment, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        SegmentedFormat.destroy(fileKey);
+        fileKey = null;
+        Arrays.fill(segment, (byte) 0);
+        in.close();
+    }
+
+    private void readSegment() throws IOException {
+        int full = header.encryptedSegmentSize();
+        while (encryptedLength < encrypted.length) {
+            int count = in.read(encrypted, encryptedLength, encrypted.length - encryptedLength);
+            if (count < 0) {
+                break;
+            }
+            encryptedLength += count;
+        }
+
+        boolean last = encryptedLength <= full;
+        int segmentLength = last ? encryptedLength : full;
+        if (segmentLength < SegmentedFormat.TAG_BYTES) {
+            throw new IOException("Truncated segment " + index);
+        }
+
+        try {
+            if (cipher == null) {
+                cipher = SegmentedFormat.newCipher();
+            }
+            SegmentedFormat.initSegment(cipher, Cipher.DECRYPT_MODE, fileKey, header, index, last);
+            length = cipher.doFinal(encrypted, 0, segmentLength, segment, 0);
+            position = 0;
+        }
+        catch (GeneralSecurityException ex) {
+            throw new IOException("Segment " + index + " failed authentication", ex);
+        }
+
+        if (last) {
+            lastRead = true;
+        }
+        else {
+            // Keep the byte read ahead, it's the start of the next segment
+            encrypted[0] = encrypted[full];
+            encryptedLength = 1;
+        }
+        index++;
+    }
+}
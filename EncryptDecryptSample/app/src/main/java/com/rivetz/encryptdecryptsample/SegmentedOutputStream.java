@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.encryptdecryptsample;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts a stream into the segmented format, holding one segment in memory at a time
+ *
+ * The last segment is only known when the stream is closed, so a full segment is held until
+ * more data arrives. {@code flush()} flushes the underlying stream, but can't flush a partial
+ * segment. The file is only complete, and readable, once the stream is closed.
+ */
+final class SegmentedOutputStream extends OutputStream {
+    private final OutputStream out;
+    // Null once the stream is closed
+    private SecretKeySpec fileKey;
+    // Made for the first segment and re-initialized for the others
+    private Cipher cipher = null;
+    private final SegmentedFormat.Header header;
+    private final byte[] segment;
+    private final byte[] encrypted;
+    private int buffered = 0;
+    private long index = 0;
+    private boolean headerWritten = false;
+    private boolean closed = false;
+
+    /**
+     * @param out the stream the file is written to, closed when this stream is closed
+     * @param fileKey the file key, zeroed once its key spec is made
+     * @param header the header, written before the first segment
+     */
+    SegmentedOutputStream(@NonNull OutputStream out, @NonNull byte[] fileKey, @NonNull SegmentedFormat.Header header) {
+        this.out = out;
+        this.fileKey = SegmentedFormat.fileKeySpec(fileKey);
+        this.header = header;
+        this.segment = new byte[header.segmentSize];
+        this.encrypted = new byte[header.encryptedSegmentSize()];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        while (len > 0) {
+            // Only write a full segment once there is more data, so it isn't the last one
+            if (buffered == segment.length) {
+                writeSegment(false);
+            }
+
+            int count = Math.min(len, segment.length - buffered);
+            System.arraycopy(b, off, segment, buffered, count);
+            buffered += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Write the last segment and close the underlying stream
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            writeSegment(true);
+            out.close();
+        }
+        finally {
+            SegmentedFormat.destroy(fileKey);
+            fileKey = null;
+            Arrays.fill(segment, (byte) 0);
+        }
+    }
+
+    private void writeSegment(boolean last) throws IOException {
+        if (!headerWritten) {
+            out.write(header.encoded);
+            headerWritten = true;
+        }
+
+        try {
+            if (cipher == null) {
+                cipher = SegmentedFormat.newCipher();
+            }
+            SegmentedFormat.initSegment(cipher, Cipher.ENCRYPT_MODE, fileKey, header, index, last);
+            int length = cipher.doFinal(segment, 0, buffered, encrypted, 0);
+            out.write(encrypted, 0, length);
+        }
+        catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+
+        index++;
+        buffered = 0;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.encryptdecryptsample;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import com.rivetz.api.RivetKeyTypes;
+import com.rivetz.api.RivetRules;
+import com.rivetz.codec.HexCodec;
+import com.rivetz.keys.KeyRotationEngine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The records this sample encrypts with its riveted key, kept in the app's private storage,
+ * and the checkpoints of the rotations that move them to a new key
+ *
+ * A record is stored as the name of the key it is under and its {@code EncryptResult}. Ids
+ * are assigned in increasing order, so records added during a rotation sort after the ones it
+ * has already moved. Every write is committed before the method returns, as the rotation
+ * engine requires.
+ */
+public final class StoredRecords implements KeyRotationEngine.RecordStore, KeyRotationEngine.CheckpointStore {
+    private static final String RECORDS_NAME = "encrypted_records";
+    private static final String ROTATIONS_NAME = "key_rotations";
+    private static final String NEXT_ID_KEY = "next_id";
+    private static final String CURRENT_KEY_KEY = "current_key";
+
+    // The record ids are this prefix and a zero-padded number, so they sort in order
+    private static final String RECORD_PREFIX = "record.";
+    private static final String CHECKPOINT_PREFIX = "checkpoint.";
+
+    private final SharedPreferences records;
+    private final SharedPreferences rotations;
+
+    /**
+     * @param context the application context
+     */
+    public StoredRecords(@NonNull Context context) {
+        records = context.getSharedPreferences(RECORDS_NAME, Context.MODE_PRIVATE);
+        rotations = context.getSharedPreferences(ROTATIONS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param initial the key name to use when no key has been rotated yet
+     * @return the name of the key new records are encrypted with
+     */
+    @WorkerThread
+    public @NonNull String getCurrentKeyName(@NonNull String initial) {
+        return rotations.getString(CURRENT_KEY_KEY, initial);
+    }
+
+    /**
+     * @param keyName the name of the key new records are encrypted with from now on
+     */
+    @WorkerThread
+    public void setCurrentKeyName(@NonNull String keyName) {
+        rotations.edit().putString(CURRENT_KEY_KEY, keyName).commit();
+    }
+
+    /**
+     * Store a new record
+     *
+     * @param record the record
+     * @return its id
+     */
+    @WorkerThread
+    public synchronized @NonNull String add(@NonNull KeyRotationEngine.StoredRecord record) {
+        long next = records.getLong(NEXT_ID_KEY, 0);
+        String id = String.format(Locale.US, "%019d", next);
+        records.edit()
+                .putLong(NEXT_ID_KEY, next + 1)
+                .putString(RECORD_PREFIX + id, encode(record))
+                .commit();
+        return id;
+    }
+
+    @Override
+    @WorkerThread
+    public synchronized @NonNull List<String> idsAfter(@Nullable String afterId, int limit) {
+        TreeSet<String> ids = new TreeSet<>();
+        for (String key : records.getAll().keySet()) {
+            if (key.startsWith(RECORD_PREFIX)) {
+                ids.add(key.substring(RECORD_PREFIX.length()));
+            }
+        }
+
+        List<String> page = new ArrayList<>(limit);
+        for (String id : afterId == null ? ids : ids.tailSet(afterId, false)) {
+            if (page.size() == limit) {
+                break;
+            }
+            page.add(id);
+        }
+        return page;
+    }
+
+    @Override
+    @WorkerThread
+    public synchronized @Nullable KeyRotationEngine.StoredRecord read(@NonNull String id) {
+        String value = records.getString(RECORD_PREFIX + id, null);
+        return value != null ? decode(value) : null;
+    }
+
+    @Override
+    @WorkerThread
+    public synchronized boolean replace(@NonNull String id, @NonNull String expectedKeyName,
+                                        @NonNull KeyRotationEngine.StoredRecord record) {
+        KeyRotationEngine.StoredRecord current = read(id);
+        if (current == null || !current.getKeyName().equals(expectedKeyName)) {
+            return false;
+        }
+        records.edit().putString(RECORD_PREFIX + id, encode(record)).commit();
+        return true;
+    }
+
+    @Override
+    @WorkerThread
+    public @NonNull List<KeyRotationEngine.Checkpoint> loadAll() {
+        List<KeyRotationEngine.Checkpoint> checkpoints = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : rotations.getAll().entrySet()) {
+            if (entry.getKey().startsWith(CHECKPOINT_PREFIX) && entry.getValue() instanceof String) {
+                checkpoints.add(decodeCheckpoint((String) entry.getValue()));
+            }
+        }
+        return checkpoints;
+    }
+
+    @Override
+    @WorkerThread
+    public void save(@NonNull KeyRotationEngine.Checkpoint checkpoint) {
+        rotations.edit().putString(CHECKPOINT_PREFIX + checkpoint.getOldKeyName(), encode(checkpoint)).commit();
+    }
+
+    @Override
+    @WorkerThread
+    public void clear(@NonNull String oldKeyName) {
+        rotations.edit().remove(CHECKPOINT_PREFIX + oldKeyName).commit();
+    }
+
+    // The key name, a space, then the EncryptResult in hex. Key names here have no spaces.
+    private static @NonNull String encode(@NonNull KeyRotationEngine.StoredRecord record) {
+        return record.getKeyName() + " " + HexCodec.encode(EncryptResults.toBytes(record.getValue()));
+    }
+
+    private static @NonNull KeyRotationEngine.StoredRecord decode(@NonNull String value) {
+        int split = value.lastIndexOf(' ');
+        return new KeyRotationEngine.StoredRecord(value.substring(0, split),
+                EncryptResults.fromBytes(HexCodec.decode(value.substring(split + 1))));
+    }
+
+    // One field per line: old key, new key, type, rules, phase, last id, records migrated
+    private static @NonNull String encode(@NonNull KeyRotationEngine.Checkpoint checkpoint) {
+        StringBuilder rules = new StringBuilder();
+        for (RivetRules rule : checkpoint.getRules()) {
+            rules.append(rules.length() > 0 ? "," : "").append(rule.name());
+        }
+        String lastId = checkpoint.getLastId();
+        return checkpoint.getOldKeyName() + "\n" + checkpoint.getNewKeyName() + "\n" + checkpoint.getType().name()
+                + "\n" + rules + "\n" + checkpoint.getPhase().name() + "\n" + (lastId != null ? lastId : "")
+                + "\n" + checkpoint.getMigrated();
+    }
+
+    private static @NonNull KeyRotationEngine.Checkpoint decodeCheckpoint(@NonNull String value) {
+        String[] fields = value.split("\n", -1);
+        List<RivetRules> rules = new ArrayList<>();
+        for (String rule : fields[3].split(",")) {
+            if (!rule.isEmpty()) {
+                rules.add(RivetRules.valueOf(rule));
+            }
+        }
+        return new KeyRotationEngine.Checkpoint(fields[0], fields[1], RivetKeyTypes.valueOf(fields[2]),
+                rules.toArray(new RivetRules[0]), KeyRotationEngine.Phase.valueOf(fields[4]),
+                fields[5].isEmpty() ? null : fields[5], Long.parseLong(fields[6]));
+    }
+}
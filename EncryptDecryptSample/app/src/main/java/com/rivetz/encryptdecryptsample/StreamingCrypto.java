@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.encryptdecryptsample;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import com.rivetz.api.RivetCrypto;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Encrypts files of any size with a riveted AES key, in constant memory
+ *
+ * {@code crypto.encrypt()} takes the whole payload as one array, so a large file has to fit in
+ * the heap and in a binder transaction. Here each file gets its own random file key, which
+ * the Rivet wraps with the riveted key, and the file is encrypted in process in segments. The
+ * Rivet is called once per file, whatever its size. See {@code SegmentedFormat} for the layout.
+ *
+ * The streams and {@code SegmentedFile} copy the file key into a key spec, zero the array, and
+ * destroy the spec when they are closed.
+ */
+public final class StreamingCrypto {
+    private static final int FILE_KEY_BYTES = 32;
+    private static final int COPY_BUFFER_BYTES = 64 * 1024;
+
+    private final RivetCrypto crypto;
+    private final String keyName;
+    private final int segmentSize;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param crypto the Rivet
+     * @param keyName the name of the riveted {@code AES256_CGM} key that wraps the file keys
+     */
+    public StreamingCrypto(@NonNull RivetCrypto crypto, @NonNull String keyName) {
+        this(crypto, keyName, SegmentedFormat.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param crypto the Rivet
+     * @param keyName the name of the riveted {@code AES256_CGM} key that wraps the file keys
+     * @param segmentSize the plain text bytes in each segment of new files, from 1 KiB to 16 MiB
+     */
+    public StreamingCrypto(@NonNull RivetCrypto crypto, @NonNull String keyName, int segmentSize) {
+        if (segmentSize < SegmentedFormat.MIN_SEGMENT_SIZE || segmentSize > SegmentedFormat.MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segments must be from " + SegmentedFormat.MIN_SEGMENT_SIZE
+                    + " to " + SegmentedFormat.MAX_SEGMENT_SIZE + " bytes");
+        }
+        this.crypto = crypto;
+        this.keyName = keyName;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Start encrypting a new file
+     *
+     * @param out where the file is written
+     * @return a future for the stream to write the plain text to. The file is complete once
+     * the stream is closed.
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<OutputStream> newEncryptingStream(@NonNull OutputStream out) {
+        byte[] fileKey = new byte[FILE_KEY_BYTES];
+        random.nextBytes(fileKey);
+        byte[] noncePrefix = SegmentedFormat.newNoncePrefix(random);
+
+        return crypto.encrypt(keyName, fileKey).handle((wrapped, thrown) -> {
+            if (thrown != null) {
+                Arrays.fill(fileKey, (byte) 0);
+                throw thrown instanceof RuntimeException ? (RuntimeException) thrown : new RuntimeException(thrown);
+            }
+            SegmentedFormat.Header header = SegmentedFormat.newHeader(segmentSize, noncePrefix,
+                    EncryptResults.toBytes(wrapped));
+            return new SegmentedOutputStream(out, fileKey, header);
+        });
+    }
+
+    /**
+     * Start decrypting a file. The header is read on the calling thread.
+     *
+     * @param in the file
+     * @return a future for the stream of plain text
+     * @throws IOException if the header can't be read
+     */
+    @WorkerThread
+    public @NonNull CompletableFuture<InputStream> newDecryptingStream(@NonNull InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        SegmentedFormat.Header header = SegmentedFormat.readHeader(data::readFully);
+        return unwrap(header).thenApply(fileKey -> new SegmentedInputStream(in, fileKey, header));
+    }
+
+    /**
+     * Open a file for random access to its segments. The header is read on the calling thread.
+     *
+     * @param channel the file, which starts at position 0. It is read with positional reads, so
+     *                its position isn't changed.
+     * @return a future for the opened file
+     * @throws IOException if the header can't be read
+     */
+    @WorkerThread
+    public @NonNull CompletableFuture<SegmentedFile> open(@NonNull FileChannel channel) throws IOException {
+        long[] position = { 0 };
+        SegmentedFormat.Header header = SegmentedFormat.readHeader(into -> {
+            ByteBuffer buffer = ByteBuffer.wrap(into);
+            while (buffer.hasRemaining()) {
+                int count = channel.read(buffer, position[0]);
+                if (count < 0) {
+                    throw new EOFException("Truncated header");
+                }
+                position[0] += count;
+            }
+        });
+
+        return unwrap(header).thenApply(fileKey -> {
+            try {
+                return new SegmentedFile(channel, fileKey, header);
+            }
+            catch (IOException ex) {
+                Arrays.fill(fileKey, (byte) 0);
+                throw new RuntimeException(ex);
+            }
+        });
+    }
+
+    /**
+     * Encrypt one file into another, blocking until it is done
+     *
+     * @param source the plain text, read from its current position
+     * @param target where the encrypted file is written, from its current position. Neither
+     *               channel is closed.
+     * @return the number of plain text bytes encrypted
+     * @throws IOException if a file can't be read or written, or the Rivet fails
+     */
+    @WorkerThread
+    public long encrypt(@NonNull FileChannel source, @NonNull FileChannel target) throws IOException {
+        try (OutputStream out = await(newEncryptingStream(unclosableOutput(target)))) {
+            return copy(Channels.newInputStream(source), out);
+        }
+    }
+
+    /**
+     * Decrypt one file into another, blocking until it is done
+     *
+     * @param source the encrypted file, read from its current position
+     * @param target where the plain text is written, from its current position. Neither
+     *               channel is closed.
+     * @return the number of plain text bytes decrypted
+     * @throws IOException if a file can't be read or written, fails authentication, or the
+     * Rivet fails
+     */
+    @WorkerThread
+    public long decrypt(@NonNull FileChannel source, @NonNull FileChannel target) throws IOException {
+        try (InputStream in = await(newDecryptingStream(unclosableInput(source)))) {
+            return copy(in, Channels.newOutputStream(target));
+        }
+    }
+
+    private @NonNull CompletableFuture<byte[]> unwrap(@NonNull SegmentedFormat.Header header) {
+        return crypto.decrypt(keyName, EncryptResults.fromBytes(header.wrappedKey));
+    }
+
+    private static long copy(@NonNull InputStream in, @NonNull OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_BYTES];
+        long total = 0;
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, count);
+            total += count;
+        }
+        return total;
+    }
+
+    // The streams from Channels close their channel, but these channels belong to the caller
+    private static @NonNull OutputStream unclosableOutput(@NonNull FileChannel channel) {
+        OutputStream out = Channels.newOutputStream(channel);
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    private static @NonNull InputStream unclosableInput(@NonNull FileChannel channel) {
+        InputStream in = Channels.newInputStream(channel);
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return in.read();
+            }
+
+            @Override
+            public int read(@NonNull byte[] b, int off, int len) throws IOException {
+                return in.read(b, off, len);
+            }
+        };
+    }
+
+    // Wait for a stream, reporting a failure of the Rivet as an IOException
+    private static @NonNull <T> T await(@NonNull CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.encryptdecryptsample;
+
+import com.rivetz.api.RivetCrypto;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EnvelopeCryptoTest {
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void malformedRecordFailsBeforeAnyKeyIsUnwrapped() {
+        AtomicInteger calls = new AtomicInteger();
+        RivetCrypto crypto = (RivetCrypto) Proxy.newProxyInstance(RivetCrypto.class.getClassLoader(),
+                new Class<?>[] { RivetCrypto.class }, (proxy, method, args) -> {
+                    calls.incrementAndGet();
+                    return new CompletableFuture<>();
+                });
+        EnvelopeCrypto envelope = new EnvelopeCrypto(crypto, "key", executor, 60_000);
+
+        // A record that parses, version 1 with a 4 byte wrapped key, IV and tag, then one that
+        // doesn't
+        byte[] parses = new byte[3 + 4 + 12 + 16];
+        parses[0] = 1;
+        parses[2] = 4;
+        byte[] truncated = Arrays.copyOf(parses, parses.length - 1);
+
+        CompletableFuture<?> opened = envelope.openAll(Arrays.asList(parses, truncated));
+        try {
+            opened.join();
+            fail("Opened a truncated record");
+        }
+        catch (CompletionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalArgumentException);
+        }
+        assertEquals(0, calls.get());
+        envelope.close();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.encryptdecryptsample;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SegmentedFormatTest {
+
+    private static final int SEGMENT = SegmentedFormat.MIN_SEGMENT_SIZE;
+    private static final int FULL = SEGMENT + SegmentedFormat.TAG_BYTES;
+
+    private final SecureRandom random = new SecureRandom();
+    private final byte[] fileKey = new byte[32];
+    private final SegmentedFormat.Header header;
+    private File file = null;
+    private RandomAccessFile opened = null;
+
+    public SegmentedFormatTest() {
+        random.nextBytes(fileKey);
+        header = SegmentedFormat.newHeader(SEGMENT, SegmentedFormat.newNoncePrefix(random), new byte[] { 1, 2, 3 });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (opened != null) {
+            opened.close();
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    private static byte[] plain(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private byte[] encrypt(byte[] plain) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream stream = new SegmentedOutputStream(out, fileKey.clone(), header)) {
+            stream.write(plain);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] encrypted) throws IOException {
+        InputStream in = new ByteArrayInputStream(encrypted);
+        SegmentedFormat.Header read = SegmentedFormat.readHeader(new DataInputStream(in)::readFully);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream stream = new SegmentedInputStream(in, fileKey.clone(), read)) {
+            byte[] buffer = new byte[700];
+            for (int count = stream.read(buffer); count >= 0; count = stream.read(buffer)) {
+                out.write(buffer, 0, count);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void assertRejected(byte[] encrypted) {
+        try {
+            decrypt(encrypted);
+            fail("Decrypted a damaged file");
+        }
+        catch (IOException expected) {
+            // Damaged files fail as I/O errors
+        }
+    }
+
+    private SegmentedFile open(byte[] encrypted) throws IOException {
+        file = File.createTempFile("segmented", ".bin");
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.write(encrypted);
+        }
+        opened = new RandomAccessFile(file, "r");
+        return new SegmentedFile(opened.getChannel(), fileKey.clone(), header);
+    }
+
+    @Test
+    public void roundTripsEverySize() throws IOException {
+        for (int length : new int[] { 0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 3 * SEGMENT, 3 * SEGMENT + 17 }) {
+            byte[] plain = plain(length);
+            assertArrayEquals("length " + length, plain, decrypt(encrypt(plain)));
+        }
+    }
+
+    @Test
+    public void segmentsReadInAnyOrder() throws IOException {
+        byte[] plain = plain(3 * SEGMENT + 17);
+        try (SegmentedFile segmented = open(encrypt(plain))) {
+            assertEquals(4, segmented.getSegmentCount());
+            assertEquals(plain.length, segmented.getPlainSize());
+            for (long index = 3; index >= 0; index--) {
+                int start = (int) index * SEGMENT;
+                assertArrayEquals(Arrays.copyOfRange(plain, start, Math.min(plain.length, start + SEGMENT)),
+                        segmented.readSegment(index));
+            }
+        }
+    }
+
+    @Test
+    public void truncatedFileIsRejected() throws IOException {
+        byte[] encrypted = encrypt(plain(3 * SEGMENT + 17));
+
+        // Whole segments dropped from the end, cut inside a segment, cut inside the header
+        assertRejected(Arrays.copyOf(encrypted, header.length() + 3 * FULL));
+        assertRejected(Arrays.copyOf(encrypted, header.length() + FULL));
+        assertRejected(Arrays.copyOf(encrypted, header.length() + FULL + 100));
+        assertRejected(Arrays.copyOf(encrypted, header.length() - 1));
+    }
+
+    @Test
+    public void truncatedFileFailsRandomAccess() throws IOException {
+        byte[] encrypted = encrypt(plain(3 * SEGMENT));
+        try (SegmentedFile segmented = open(Arrays.copyOf(encrypted, header.length() + 2 * FULL))) {
+            segmented.readSegment(1);
+            fail("A full segment passed as the last one");
+        }
+        catch (IOException expected) {
+            // The final flag of the IV doesn't match
+        }
+    }
+
+    @Test
+    public void reorderedSegmentsAreRejected() throws IOException {
+        byte[] encrypted = encrypt(plain(3 * SEGMENT + 17));
+        int first = header.length();
+        byte[] swapped = encrypted.clone();
+        System.arraycopy(encrypted, first + FULL, swapped, first, FULL);
+        System.arraycopy(encrypted, first, swapped, first + FULL, FULL);
+        assertRejected(swapped);
+    }
+
+    @Test
+    public void tamperedBytesAreRejected() throws IOException {
+        byte[] encrypted = encrypt(plain(2 * SEGMENT + 17));
+
+        // A byte of cipher text, of a tag, and of the nonce prefix in the header
+        for (int offset : new int[] { header.length() + FULL + 5, header.length() + FULL - 1, 9 }) {
+            byte[] tampered = encrypted.clone();
+            tampered[offset] ^= 1;
+            assertRejected(tampered);
+        }
+    }
+
+    @Test
+    public void segmentFromAnotherFileIsRejected() throws IOException {
+        byte[] plain = plain(2 * SEGMENT);
+        byte[] encrypted = encrypt(plain);
+        SegmentedFormat.Header other = SegmentedFormat.newHeader(SEGMENT, SegmentedFormat.newNoncePrefix(random),
+                header.wrappedKey);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream stream = new SegmentedOutputStream(out, fileKey.clone(), other)) {
+            stream.write(plain);
+        }
+
+        byte[] mixed = encrypted.clone();
+        System.arraycopy(out.toByteArray(), header.length(), mixed, header.length(), FULL);
+        assertRejected(mixed);
+    }
+
+    @Test
+    public void oversizedSegmentSizeIsRejectedBeforeAllocating() {
+        for (int size : new int[] { SegmentedFormat.MAX_SEGMENT_SIZE + 1, Integer.MAX_VALUE, -1 }) {
+            byte[] encoded = header.encoded.clone();
+            ByteBuffer.wrap(encoded).putInt(4, size);
+            try {
+                SegmentedFormat.readHeader(new DataInputStream(new ByteArrayInputStream(encoded))::readFully);
+                fail("Accepted segment size " + size);
+            }
+            catch (IOException expected) {
+                // The size is checked before the wrapped key is read
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oversizedSegmentSizeCannotBeWritten() {
+        SegmentedFormat.newHeader(SegmentedFormat.MAX_SEGMENT_SIZE + 1, SegmentedFormat.newNoncePrefix(random),
+                new byte[0]);
+    }
+}
@@ -31,24 +31,38 @@
 
 package com.rivetz.hashsample;
 
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.support.v7.app.AlertDialog;
 import android.view.View;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.Button;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
 
 import com.rivetz.api.RivetErrors;
 import com.rivetz.api.RivetHashTypes;
 import com.rivetz.api.RivetCrypto;
 import com.rivetz.api.RivetRuntimeException;
 import com.rivetz.api.SPID;
-import com.rivetz.api.internal.Utilities;
 import com.rivetz.bridge.DevicePropertyIds;
 import com.rivetz.bridge.RivetApiActivity;
+import com.rivetz.codec.HexCodec;
+import com.rivetz.singleton_rivet.core.HashRouter;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * An example of extending the {@code RivetApiActivity}
@@ -66,6 +80,27 @@ public class MainActivity extends RivetApiActivity {
     private static boolean pairSuccess = false; /** true if the Rivet is paired */
     private static boolean drtSupported = false; /** true if Dual Root of Trust is supported */
 
+    // A background thread for the startup, so pairing never blocks the UI thread
+    private static final ExecutorService STARTUP_EXECUTOR =
+            Executors.newSingleThreadExecutor(task -> new Thread(task, "rivet-startup"));
+
+    // The startup submitted by onCreate()
+    private Future<?> startup = null;
+
+    // Hashes the chunks of a file, one thread per core
+    private static final int HASH_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService HASH_EXECUTOR =
+            Executors.newFixedThreadPool(HASH_THREADS, task -> new Thread(task, "tree-hash"));
+
+    // Text that isn't sensitive gains nothing from the Rivet, so it's hashed in process. A large
+    // text is hashed on the tree hash threads, which are idle unless a file is being hashed.
+    private static final String HASH_TEXT_SITE = "hash-text";
+    private static final HashRouter HASH_ROUTER = new HashRouter.Builder()
+            .executor(HASH_EXECUTOR)
+            .build();
+
+    private static final int PICK_FILE_REQUEST = 1;
+
     @Override
     public void onCreate(@NonNull Bundle savedInstanceState) {
 
@@ -88,8 +123,17 @@ public class MainActivity extends RivetApiActivity {
         // Now there will be a delay running the startup in the background. Entertain the user...
         findViewById(R.id.loading).setVisibility(View.VISIBLE);
 
-        // Put all of the high latency, asynchronous work on a background thread
-        new Thread(this::doStartup).start();
+        // Pair and check for DRT in the background
+        startup = STARTUP_EXECUTOR.submit(this::doStartup);
+    }
+
+    @Override
+    public void onDestroy() {
+        // The startup thread is shared, so stop this instance's startup before the next one needs it
+        if (startup != null) {
+            startup.cancel(true);
+        }
+        super.onDestroy();
     }
 
     /**
@@ -118,6 +162,11 @@ public class MainActivity extends RivetApiActivity {
             reason = ex;
         }
 
+        // onDestroy() cancelled the startup, there is no UI left to update
+        if (isDestroyed()) {
+            return;
+        }
+
         if (reason != null) {
 
             // If the error is that the Rivet isn't installed, the user was sent to the PlayStore,
@@ -163,7 +212,9 @@ public class MainActivity extends RivetApiActivity {
 
 
         // Now update the UI with the results
-        runOnUiThread(this::startupComplete);
+        if (!isDestroyed()) {
+            runOnUiThread(this::startupComplete);
+        }
     }
 
     /**
@@ -195,17 +246,27 @@ public class MainActivity extends RivetApiActivity {
     /**
      * Hash the given data using SHA256 and display it to the user
      *
+     * Sensitive text is hashed by the Rivet, other text in process. Both give the same hash.
+     *
      * @param v The Android View.
      */
     public void hash(@NonNull View v) {
         // Disable the UI for a while
         setUiDisabled();
         EditText dataToBeHashed = findViewById(R.id.dataForHash);
+        CheckBox sensitive = findViewById(R.id.sensitive);
+
+        byte[] data = dataToBeHashed.getText().toString().getBytes(StandardCharsets.UTF_8);
+        HashRouter.DataClass dataClass = sensitive.isChecked()
+                ? HashRouter.DataClass.SENSITIVE : HashRouter.DataClass.PUBLIC;
+        HashRouter.Route route = HASH_ROUTER.route(HASH_TEXT_SITE, dataClass, RivetHashTypes.SHA256, data.length);
+        String where = route == HashRouter.Route.TEE ? "by the Rivet" : "in process";
 
-        crypto.hash(RivetHashTypes.SHA256, dataToBeHashed.getText().toString().getBytes(StandardCharsets.UTF_8))
+        HASH_ROUTER.hash(crypto, HASH_TEXT_SITE, dataClass, RivetHashTypes.SHA256, data)
                 .whenComplete((result, ex) -> {
                     if (result != null) {
-                        alertFromBgThread("This String has been hashed using SHA256: " + Utilities.bytesToHex(result));
+                        alertFromBgThread("This String has been hashed " + where + " using SHA256: "
+                                + HexCodec.encode(result));
                     } else {
                      alertFromBgThread("Hash failed");
                     }
@@ -214,6 +275,107 @@ public class MainActivity extends RivetApiActivity {
         setUI();
     }
 
+    /**
+     * Pick a file to tree hash
+     *
+     * @param v The Android View.
+     */
+    public void hashFile(@NonNull View v) {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT)
+                .addCategory(Intent.CATEGORY_OPENABLE)
+                .setType("*/*");
+        startActivityForResult(intent, PICK_FILE_REQUEST);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == PICK_FILE_REQUEST && resultCode == RESULT_OK && data != null && data.getData() != null) {
+            treeHash(data.getData());
+        }
+    }
+
+    /**
+     * Hash a file as a tree of chunks and display the root to the user
+     *
+     * The file is read a chunk at a time, so it can be far larger than the memory of the app.
+     * Once it's hashed, a random chunk is read again and checked against the root with just its
+     * audit path, the way a peer holding only the root would check a chunk it was sent.
+     *
+     * @param uri the file
+     */
+    private void treeHash(@NonNull Uri uri) {
+        FileInputStream in;
+        try {
+            ParcelFileDescriptor fd = getContentResolver().openFileDescriptor(uri, "r");
+            if (fd == null) {
+                alertFromUiThread("The file can't be opened");
+                return;
+            }
+            // A provider can hand back a pipe rather than a file. It has no size and can't be
+            // read at a position, so it would hash as an empty file.
+            if (fd.getStatSize() < 0) {
+                fd.close();
+                alertFromUiThread("The file can't be tree hashed, it isn't a regular file");
+                return;
+            }
+            in = new ParcelFileDescriptor.AutoCloseInputStream(fd);
+        }
+        catch (IOException ex) {
+            alertFromUiThread("The file can't be opened: " + ex.getMessage());
+            return;
+        }
+
+        setUiDisabled();
+        FileChannel channel = in.getChannel();
+        long start = System.nanoTime();
+
+        TreeHasher.hash(channel, TreeHasher.DEFAULT_CHUNK_BYTES, HASH_THREADS, HASH_EXECUTOR)
+                .whenComplete((tree, ex) -> {
+                    long millis = (System.nanoTime() - start) / 1_000_000;
+                    String check = tree != null ? checkChunk(channel, tree) : null;
+                    try {
+                        in.close();
+                    }
+                    catch (IOException ignored) {
+                        // Nothing is written, so the file is intact
+                    }
+
+                    if (tree != null) {
+                        alertFromBgThread("Tree hash root: " + HexCodec.encode(tree.getRoot())
+                                + "\n" + tree.getLength() + " bytes in " + tree.getChunkCount()
+                                + " chunks of " + tree.getChunkBytes() + ", " + millis + " ms"
+                                + (check != null ? "\n" + check : ""));
+                    } else {
+                        alertFromBgThread("Tree hash failed: " + ex.getMessage());
+                    }
+                    runOnUiThread(this::setUI);
+                });
+    }
+
+    /**
+     * Check a random chunk of a hashed file against the root
+     *
+     * @param channel the file, still open
+     * @param tree the tree of the file
+     * @return what the check found, or null for an empty file
+     */
+    @WorkerThread
+    private static @Nullable String checkChunk(@NonNull FileChannel channel, @NonNull TreeHasher.Tree tree) {
+        if (tree.getLength() == 0) {
+            return null;
+        }
+        int index = ThreadLocalRandom.current().nextInt(tree.getChunkCount());
+        byte[][] path = tree.auditPath(index);
+        try {
+            boolean ok = TreeHasher.verifyChunk(channel, index, tree.getChunkBytes(), path, tree.getRoot());
+            return "Chunk " + index + " checked with " + path.length + " hashes: " + (ok ? "ok" : "mismatch");
+        }
+        catch (IOException ex) {
+            return "Chunk " + index + " couldn't be read again: " + ex.getMessage();
+        }
+    }
+
     /**
      * Disable all Rivet related controls while pairing
      *
@@ -221,11 +383,13 @@ public class MainActivity extends RivetApiActivity {
 
     private void setUiDisabled() {
         makeUnclickable(findViewById(R.id.hash));
+        makeUnclickable(findViewById(R.id.hashFile));
     }
 
 
     private void setUI(){
         makeClickable(findViewById(R.id.hash));
+        makeClickable(findViewById(R.id.hashFile));
     }
 
     // Helper functions used in all sample apps
@@ -240,7 +404,10 @@ public class MainActivity extends RivetApiActivity {
      */
     private void alertFromBgThread(@NonNull String text) {
         runOnUiThread(()->{
-            alertFromUiThread(text);
+            // A destroyed activity can't show a dialog
+            if (!isDestroyed()) {
+                alertFromUiThread(text);
+            }
         });
     }
 
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.hashsample;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import com.rivetz.merkle.MerkleTree;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashes a file as a Merkle tree of fixed size chunks
+ *
+ * The file is split into chunks of {@code chunkBytes}, the last one may be shorter, and each
+ * chunk is a leaf of a {@code MerkleTree}, which is hashed as in RFC 6962. An empty file has no
+ * chunks and its root is {@code SHA-256()}. The root depends on the chunk size, so the chunk
+ * size has to be given along with the root.
+ *
+ * Each chunk is hashed on its own, by as many workers as there are cores. A worker reads its
+ * chunks with positional reads into one direct buffer that it reuses, so the memory used
+ * doesn't grow with the file beyond the 32 byte hash of each chunk, and nothing is left for the
+ * garbage collector to unmap. A single chunk can be checked against the root with its audit
+ * path, without reading the rest.
+ */
+final class TreeHasher {
+    static final int DEFAULT_CHUNK_BYTES = 1 << 20;
+
+    private TreeHasher() {
+    }
+
+    /**
+     * The hashes of a file's chunks and the nodes above them
+     */
+    static final class Tree {
+        private final long length;
+        private final int chunkBytes;
+        private final MerkleTree tree;
+
+        Tree(long length, int chunkBytes, @NonNull byte[][] leaves) {
+            this.length = length;
+            this.chunkBytes = chunkBytes;
+            this.tree = new MerkleTree(leaves);
+        }
+
+        /** @return the length of the file */
+        long getLength() {
+            return length;
+        }
+
+        int getChunkBytes() {
+            return chunkBytes;
+        }
+
+        int getChunkCount() {
+            return tree.size();
+        }
+
+        @NonNull byte[] getRoot() {
+            return tree.root();
+        }
+
+        /**
+         * @param index the chunk index
+         * @return the sibling hashes from the chunk up to the root
+         */
+        @NonNull byte[][] auditPath(int index) {
+            return tree.auditPath(index);
+        }
+    }
+
+    /**
+     * Hash a file
+     *
+     * The channel has to stay open until the returned future completes, and the file shouldn't
+     * change meanwhile.
+     *
+     * @param channel the file
+     * @param chunkBytes the size of each chunk
+     * @param parallelism the number of chunks hashed at once
+     * @param executor runs the workers, it should have a thread for each
+     * @return a future with the tree, or the I/O error that stopped it
+     */
+    @AnyThread
+    static @NonNull CompletableFuture<Tree> hash(@NonNull FileChannel channel, int chunkBytes,
+                                                 int parallelism, @NonNull Executor executor) {
+        if (chunkBytes < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("chunkBytes and parallelism must be at least 1");
+        }
+
+        CompletableFuture<Tree> result = new CompletableFuture<>();
+        long length;
+        try {
+            length = channel.size();
+        }
+        catch (IOException ex) {
+            result.completeExceptionally(ex);
+            return result;
+        }
+
+        int count = chunkCount(length, chunkBytes);
+        byte[][] leaves = new byte[count][];
+        AtomicInteger next = new AtomicInteger();
+        int workers = Math.max(1, Math.min(parallelism, count));
+        AtomicInteger running = new AtomicInteger(workers);
+
+        // Each worker takes the next chunk until there are none left, and the last one to
+        // finish builds the tree
+        Runnable worker = () -> {
+            MessageDigest digest = MerkleTree.sha256();
+            try {
+                ByteBuffer chunk = null;
+                for (int index = next.getAndIncrement(); index < count && !result.isDone();
+                     index = next.getAndIncrement()) {
+                    if (chunk == null) {
+                        chunk = ByteBuffer.allocateDirect((int) Math.min(chunkBytes, length));
+                    }
+                    readChunk(channel, index, chunkBytes, length, chunk);
+                    leaves[index] = MerkleTree.leafHash(digest, chunk);
+                }
+            }
+            catch (IOException | RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+
+            if (running.decrementAndGet() == 0 && !result.isDone()) {
+                result.complete(new Tree(length, chunkBytes, leaves));
+            }
+        };
+
+        for (int i = 0; i < workers; i++) {
+            executor.execute(worker);
+        }
+        return result;
+    }
+
+    /**
+     * Check one chunk of a file against the root of its tree
+     *
+     * @param channel the file
+     * @param index the chunk index
+     * @param chunkBytes the chunk size the tree was hashed with
+     * @param path the audit path of the chunk
+     * @param root the root
+     * @return true if the chunk is in the tree with that root
+     * @throws IOException if the chunk can't be read
+     */
+    @WorkerThread
+    static boolean verifyChunk(@NonNull FileChannel channel, int index, int chunkBytes,
+                               @NonNull byte[][] path, @NonNull byte[] root) throws IOException {
+        long length = channel.size();
+        if (index < 0 || index >= chunkCount(length, chunkBytes)) {
+            return false;
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(chunkBytes, length));
+        readChunk(channel, index, chunkBytes, length, chunk);
+        byte[] computed = rootFromPath(chunk, index, chunkCount(length, chunkBytes), path);
+        return computed != null && MessageDigest.isEqual(computed, root);
+    }
+
+    /**
+     * Compute the root from a chunk and its audit path
+     *
+     * @return the root, or null if the path doesn't fit the index and chunk count
+     */
+    static @Nullable byte[] rootFromPath(@NonNull ByteBuffer chunk, long index, long chunkCount,
+                                         @NonNull byte[][] path) {
+        byte[] leafHash = MerkleTree.leafHash(MerkleTree.sha256(), chunk);
+        return MerkleTree.rootFromPath(leafHash, index, chunkCount, path);
+    }
+
+    // Read a whole chunk into the buffer, ready to hash. Positional reads don't move the
+    // channel's position, so the workers can share the channel.
+    private static void readChunk(@NonNull FileChannel channel, int index, int chunkBytes, long length,
+                                  @NonNull ByteBuffer chunk) throws IOException {
+        long position = (long) index * chunkBytes;
+        chunk.clear();
+        chunk.limit((int) Math.min(chunkBytes, length - position));
+        while (chunk.hasRemaining()) {
+            if (channel.read(chunk, position + chunk.position()) < 0) {
+                throw new EOFException("The file got shorter while it was hashed");
+            }
+        }
+        chunk.flip();
+    }
+
+    private static int chunkCount(long length, int chunkBytes) {
+        long count = (length + chunkBytes - 1) / chunkBytes;
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many chunks, use a larger chunk size");
+        }
+        return (int) count;
+    }
+}
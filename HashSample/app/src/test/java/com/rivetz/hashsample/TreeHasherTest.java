@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.hashsample;
+
+import com.rivetz.merkle.MerkleTree;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TreeHasherTest {
+
+    private static final int CHUNK_BYTES = 1000;
+
+    private ExecutorService executor;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(4);
+        file = File.createTempFile("tree", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        assertTrue(file.delete());
+    }
+
+    private byte[] write(int length) throws IOException {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(0);
+            out.write(data);
+        }
+        return data;
+    }
+
+    // The root of the same chunks, hashed in memory
+    private static byte[] expectedRoot(byte[] data) {
+        List<byte[]> chunks = new ArrayList<>();
+        for (int position = 0; position < data.length; position += CHUNK_BYTES) {
+            chunks.add(Arrays.copyOfRange(data, position, Math.min(data.length, position + CHUNK_BYTES)));
+        }
+        return MerkleTree.of(chunks).root();
+    }
+
+    private TreeHasher.Tree hash(int parallelism) throws Exception {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return TreeHasher.hash(in.getChannel(), CHUNK_BYTES, parallelism, executor).get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void rootMatchesTreeOfChunks() throws Exception {
+        for (int length : new int[] { 1, CHUNK_BYTES - 1, CHUNK_BYTES, CHUNK_BYTES + 1, 7 * CHUNK_BYTES + 13 }) {
+            byte[] data = write(length);
+            for (int parallelism : new int[] { 1, 3, 16 }) {
+                TreeHasher.Tree tree = hash(parallelism);
+                assertEquals(length, tree.getLength());
+                assertEquals((length + CHUNK_BYTES - 1) / CHUNK_BYTES, tree.getChunkCount());
+                assertArrayEquals("length " + length, expectedRoot(data), tree.getRoot());
+            }
+        }
+    }
+
+    @Test
+    public void emptyFileHasEmptyHashAsRoot() throws Exception {
+        write(0);
+        TreeHasher.Tree tree = hash(4);
+        assertEquals(0, tree.getChunkCount());
+        assertArrayEquals(MerkleTree.sha256().digest(), tree.getRoot());
+    }
+
+    @Test
+    public void everyChunkVerifies() throws Exception {
+        write(5 * CHUNK_BYTES + 1);
+        TreeHasher.Tree tree = hash(4);
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            FileChannel channel = in.getChannel();
+            for (int index = 0; index < tree.getChunkCount(); index++) {
+                assertTrue(TreeHasher.verifyChunk(channel, index, CHUNK_BYTES, tree.auditPath(index), tree.getRoot()));
+            }
+            assertFalse(TreeHasher.verifyChunk(channel, tree.getChunkCount(), CHUNK_BYTES,
+                    tree.auditPath(0), tree.getRoot()));
+        }
+    }
+
+    @Test
+    public void changedChunkFailsToVerify() throws Exception {
+        write(4 * CHUNK_BYTES);
+        TreeHasher.Tree tree = hash(4);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(2 * CHUNK_BYTES + 10);
+            out.write(out.read() ^ 1);
+            FileChannel channel = out.getChannel();
+            assertFalse(TreeHasher.verifyChunk(channel, 2, CHUNK_BYTES, tree.auditPath(2), tree.getRoot()));
+            assertTrue(TreeHasher.verifyChunk(channel, 1, CHUNK_BYTES, tree.auditPath(1), tree.getRoot()));
+        }
+    }
+
+    @Test
+    public void closedChannelFails() throws Exception {
+        write(3 * CHUNK_BYTES);
+        FileChannel channel;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            channel = in.getChannel();
+        }
+        try {
+            TreeHasher.hash(channel, CHUNK_BYTES, 2, executor).get(10, TimeUnit.SECONDS);
+            fail();
+        }
+        catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.codec;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Table driven Base58 encoding and decoding, with the Bitcoin alphabet
+ *
+ * Each leading zero byte is encoded as a {@code 1}. Base58 treats the whole input as one
+ * number, so the time grows with the square of the length and there is no streaming form.
+ * It suits short values such as key names and public key ids. The array forms use the
+ * caller's output array as their working space and allocate nothing.
+ */
+public final class Base58Codec {
+
+    private static final char[] DIGITS = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz".toCharArray();
+
+    // The value of each ASCII character, or -1 if it isn't in the alphabet
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < DIGITS.length; i++) {
+            VALUES[DIGITS[i]] = (byte) i;
+        }
+    }
+
+    private Base58Codec() {
+    }
+
+    /**
+     * @param bytes a number of bytes
+     * @return the most characters they can encode to, which is the room {@code encode} needs
+     */
+    public static int maxEncodedLength(int bytes) {
+        // log(256) / log(58) is less than 1.38
+        return bytes * 138 / 100 + 1;
+    }
+
+    /**
+     * @param chars a number of characters
+     * @return the most bytes they can decode to, which is the room {@code decode} needs
+     */
+    public static int maxDecodedLength(int chars) {
+        return chars + 1;
+    }
+
+    /**
+     * @param in the bytes
+     * @return the bytes in Base58
+     */
+    public static @NonNull String encode(@NonNull byte[] in) {
+        char[] out = new char[maxEncodedLength(in.length)];
+        return new String(out, 0, encode(in, 0, in.length, out, 0));
+    }
+
+    /**
+     * Encode bytes into a character array
+     *
+     * @param in the bytes
+     * @param offset the first byte to encode
+     * @param length the number of bytes to encode
+     * @param out receives the characters, it needs {@code maxEncodedLength(length)} of room
+     * @param outOffset where the first character goes
+     * @return the number of characters written
+     */
+    public static int encode(@NonNull byte[] in, int offset, int length, @NonNull char[] out, int outOffset) {
+        HexCodec.checkRange(in.length, offset, length);
+        HexCodec.checkRange(out.length, outOffset, maxEncodedLength(length));
+
+        int zeros = 0;
+        while (zeros < length && in[offset + zeros] == 0) {
+            zeros++;
+        }
+
+        // The base 58 digits are worked out in place, most significant first, after the room
+        // for the leading 1s
+        int base = outOffset + zeros;
+        int size = (length - zeros) * 138 / 100 + 1;
+        Arrays.fill(out, base, base + size, (char) 0);
+
+        int used = 0;
+        for (int i = offset + zeros; i < offset + length; i++) {
+            int carry = in[i] & 0xFF;
+            int j = base + size - 1;
+            int n = 0;
+            for (; (carry != 0 || n < used) && j >= base; j--, n++) {
+                carry += out[j] << 8;
+                out[j] = (char) (carry % 58);
+                carry /= 58;
+            }
+            used = n;
+        }
+
+        int o = outOffset;
+        for (int i = 0; i < zeros; i++) {
+            out[o++] = DIGITS[0];
+        }
+        for (int j = base + size - used; j < base + size; j++) {
+            out[o++] = DIGITS[out[j]];
+        }
+        return o - outOffset;
+    }
+
+    /**
+     * @param in the Base58
+     * @return the bytes
+     * @throws IllegalArgumentException if it isn't Base58
+     */
+    public static @NonNull byte[] decode(@NonNull CharSequence in) {
+        byte[] out = new byte[maxDecodedLength(in.length())];
+        return Arrays.copyOf(out, decode(in, 0, in.length(), out, 0));
+    }
+
+    /**
+     * Decode Base58 into a byte array
+     *
+     * @param in the Base58
+     * @param start the first character to decode
+     * @param end after the last character to decode
+     * @param out receives the bytes, it needs {@code maxDecodedLength(end - start)} of room
+     * @param outOffset where the first byte goes
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if it isn't Base58
+     */
+    public static int decode(@NonNull CharSequence in, int start, int end, @NonNull byte[] out, int outOffset) {
+        HexCodec.checkRange(in.length(), start, end - start);
+        HexCodec.checkRange(out.length, outOffset, maxDecodedLength(end - start));
+
+        int zeros = 0;
+        while (start + zeros < end && in.charAt(start + zeros) == DIGITS[0]) {
+            zeros++;
+        }
+
+        // The bytes are worked out in place, most significant first, after the leading zeros
+        int base = outOffset + zeros;
+        int size = (end - start - zeros) * 733 / 1000 + 1;
+        Arrays.fill(out, outOffset, base + size, (byte) 0);
+
+        int used = 0;
+        for (int i = start + zeros; i < end; i++) {
+            char c = in.charAt(i);
+            int carry = c < 128 ? VALUES[c] : -1;
+            if (carry < 0) {
+                throw new IllegalArgumentException("Not a Base58 digit at " + i);
+            }
+
+            int j = base + size - 1;
+            int n = 0;
+            for (; (carry != 0 || n < used) && j >= base; j--, n++) {
+                carry += (out[j] & 0xFF) * 58;
+                out[j] = (byte) carry;
+                carry >>>= 8;
+            }
+            used = n;
+        }
+
+        System.arraycopy(out, base + size - used, out, base, used);
+        return zeros + used;
+    }
+}
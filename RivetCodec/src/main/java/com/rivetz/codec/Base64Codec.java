@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.codec;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Table driven Base64 encoding and decoding, as in RFC 4648
+ *
+ * Encoding always pads the last group with {@code =}, and decoding requires the padding and
+ * rejects line breaks and other characters outside the alphabet. As with {@code HexCodec},
+ * each direction can write into an array the caller owns, or stream between buffers.
+ */
+public final class Base64Codec {
+
+    /** The standard alphabet, ending with {@code +} and {@code /} */
+    public static final Base64Codec STANDARD = new Base64Codec('+', '/');
+
+    /** The URL and file name safe alphabet, ending with {@code -} and {@code _} */
+    public static final Base64Codec URL_SAFE = new Base64Codec('-', '_');
+
+    private static final char PAD = '=';
+
+    private final char[] digits = new char[64];
+
+    // The value of each ASCII character, or -1 if it isn't in the alphabet
+    private final byte[] values = new byte[128];
+
+    private Base64Codec(char digit62, char digit63) {
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".getChars(0, 62, digits, 0);
+        digits[62] = digit62;
+        digits[63] = digit63;
+
+        Arrays.fill(values, (byte) -1);
+        for (int i = 0; i < 64; i++) {
+            values[digits[i]] = (byte) i;
+        }
+    }
+
+    /**
+     * @param bytes a number of bytes
+     * @return the number of characters they encode to
+     */
+    public static int encodedLength(int bytes) {
+        return (bytes + 2) / 3 * 4;
+    }
+
+    /**
+     * @param in the Base64 to decode
+     * @param start the first character
+     * @param end after the last character
+     * @return the number of bytes it decodes to
+     */
+    public static int decodedLength(@NonNull CharSequence in, int start, int end) {
+        int length = (end - start) / 4 * 3;
+        if (end - start >= 4) {
+            length -= in.charAt(end - 1) == PAD ? (in.charAt(end - 2) == PAD ? 2 : 1) : 0;
+        }
+        return length;
+    }
+
+    /**
+     * @param in the bytes
+     * @return the bytes in Base64
+     */
+    public @NonNull String encode(@NonNull byte[] in) {
+        char[] out = new char[encodedLength(in.length)];
+        encode(in, 0, in.length, out, 0);
+        return new String(out);
+    }
+
+    /**
+     * Encode bytes into a character array
+     *
+     * @param in the bytes
+     * @param offset the first byte to encode
+     * @param length the number of bytes to encode
+     * @param out receives the characters
+     * @param outOffset where the first character goes
+     * @return the number of characters written
+     */
+    public int encode(@NonNull byte[] in, int offset, int length, @NonNull char[] out, int outOffset) {
+        HexCodec.checkRange(in.length, offset, length);
+        HexCodec.checkRange(out.length, outOffset, encodedLength(length));
+
+        char[] digits = this.digits;
+        int o = outOffset;
+        int end = offset + length;
+        int i = offset;
+        for (int whole = end - length % 3; i < whole; i += 3) {
+            int group = (in[i] & 0xFF) << 16 | (in[i + 1] & 0xFF) << 8 | (in[i + 2] & 0xFF);
+            out[o] = digits[group >>> 18];
+            out[o + 1] = digits[(group >>> 12) & 0x3F];
+            out[o + 2] = digits[(group >>> 6) & 0x3F];
+            out[o + 3] = digits[group & 0x3F];
+            o += 4;
+        }
+
+        if (i < end) {
+            int group = (in[i] & 0xFF) << 16 | (i + 1 < end ? (in[i + 1] & 0xFF) << 8 : 0);
+            out[o++] = digits[group >>> 18];
+            out[o++] = digits[(group >>> 12) & 0x3F];
+            out[o++] = i + 1 < end ? digits[(group >>> 6) & 0x3F] : PAD;
+            out[o++] = PAD;
+        }
+        return o - outOffset;
+    }
+
+    /**
+     * Encode as much of a buffer as fits into another, as ASCII characters
+     *
+     * Only whole groups of three bytes are encoded until the end of the input, so the bytes
+     * left over stay in the input, to be encoded with the next piece. Call again with more
+     * input or more room until the input is used up.
+     *
+     * @param in the bytes, its position is moved past those encoded
+     * @param out receives the characters, its position is moved past those written
+     * @param endOfInput true if there is no more input after this
+     */
+    public void encode(@NonNull ByteBuffer in, @NonNull ByteBuffer out, boolean endOfInput) {
+        while (in.remaining() >= 3 && out.remaining() >= 4) {
+            int group = (in.get() & 0xFF) << 16 | (in.get() & 0xFF) << 8 | (in.get() & 0xFF);
+            out.put((byte) digits[group >>> 18]);
+            out.put((byte) digits[(group >>> 12) & 0x3F]);
+            out.put((byte) digits[(group >>> 6) & 0x3F]);
+            out.put((byte) digits[group & 0x3F]);
+        }
+
+        int left = in.remaining();
+        if (endOfInput && left > 0 && left < 3 && out.remaining() >= 4) {
+            int group = (in.get() & 0xFF) << 16 | (left == 2 ? (in.get() & 0xFF) << 8 : 0);
+            out.put((byte) digits[group >>> 18]);
+            out.put((byte) digits[(group >>> 12) & 0x3F]);
+            out.put((byte) (left == 2 ? digits[(group >>> 6) & 0x3F] : PAD));
+            out.put((byte) PAD);
+        }
+    }
+
+    /**
+     * @param in the Base64
+     * @return the bytes
+     * @throws IllegalArgumentException if it isn't padded Base64 in this alphabet
+     */
+    public @NonNull byte[] decode(@NonNull CharSequence in) {
+        checkLength(in.length());
+        byte[] out = new byte[decodedLength(in, 0, in.length())];
+        decode(in, 0, in.length(), out, 0);
+        return out;
+    }
+
+    /**
+     * Decode Base64 into a byte array
+     *
+     * @param in the Base64
+     * @param start the first character to decode
+     * @param end after the last character to decode
+     * @param out receives the bytes
+     * @param outOffset where the first byte goes
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if it isn't padded Base64 in this alphabet
+     */
+    public int decode(@NonNull CharSequence in, int start, int end, @NonNull byte[] out, int outOffset) {
+        HexCodec.checkRange(in.length(), start, end - start);
+        checkLength(end - start);
+        HexCodec.checkRange(out.length, outOffset, decodedLength(in, start, end));
+
+        int o = outOffset;
+        for (int i = start; i < end; i += 4) {
+            int pads = padsOf(in.charAt(i + 2), in.charAt(i + 3), i, i + 4 == end);
+            int group = valueOf(in.charAt(i), i) << 18
+                    | valueOf(in.charAt(i + 1), i + 1) << 12
+                    | (pads < 2 ? valueOf(in.charAt(i + 2), i + 2) << 6 : 0)
+                    | (pads < 1 ? valueOf(in.charAt(i + 3), i + 3) : 0);
+
+            out[o++] = (byte) (group >>> 16);
+            if (pads < 2) {
+                out[o++] = (byte) (group >>> 8);
+            }
+            if (pads < 1) {
+                out[o++] = (byte) group;
+            }
+        }
+        return o - outOffset;
+    }
+
+    /**
+     * Decode as much of a buffer of ASCII Base64 as fits into another
+     *
+     * Only whole groups of four characters are decoded, so the characters left over stay in
+     * the input, to be decoded with the next piece. Call again with more input or more room
+     * until the input is used up.
+     *
+     * @param in the Base64, its position is moved past the characters decoded
+     * @param out receives the bytes, its position is moved past those written
+     * @param endOfInput true if there is no more input after this
+     * @throws IllegalArgumentException if it isn't padded Base64 in this alphabet
+     */
+    public void decode(@NonNull ByteBuffer in, @NonNull ByteBuffer out, boolean endOfInput) {
+        while (in.remaining() >= 4) {
+            int i = in.position();
+            int pads = padsOf((char) in.get(i + 2), (char) in.get(i + 3), i, endOfInput && in.remaining() == 4);
+            if (out.remaining() < 3 - pads) {
+                return;
+            }
+
+            int group = valueOf((char) in.get(i), i) << 18
+                    | valueOf((char) in.get(i + 1), i + 1) << 12
+                    | (pads < 2 ? valueOf((char) in.get(i + 2), i + 2) << 6 : 0)
+                    | (pads < 1 ? valueOf((char) in.get(i + 3), i + 3) : 0);
+            in.position(i + 4);
+
+            out.put((byte) (group >>> 16));
+            if (pads < 2) {
+                out.put((byte) (group >>> 8));
+            }
+            if (pads < 1) {
+                out.put((byte) group);
+            }
+        }
+
+        if (endOfInput && in.hasRemaining()) {
+            throw new IllegalArgumentException("Base64 isn't a whole number of groups");
+        }
+    }
+
+    // The padding at the end of a group, which is only allowed in the last one
+    private static int padsOf(char third, char fourth, int index, boolean last) {
+        int pads = fourth == PAD ? (third == PAD ? 2 : 1) : 0;
+        if (third == PAD && fourth != PAD) {
+            throw new IllegalArgumentException("Misplaced Base64 padding at " + (index + 2));
+        }
+        if (pads > 0 && !last) {
+            throw new IllegalArgumentException("Base64 padding before the end at " + (index + 4 - pads));
+        }
+        return pads;
+    }
+
+    private static void checkLength(int length) {
+        if (length % 4 != 0) {
+            throw new IllegalArgumentException("Base64 isn't a whole number of groups");
+        }
+    }
+
+    private int valueOf(char c, int index) {
+        int value = c < 128 ? values[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("Not a Base64 digit at " + index);
+        }
+        return value;
+    }
+}
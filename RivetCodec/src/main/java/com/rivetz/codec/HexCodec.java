@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.codec;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Table driven hex encoding and decoding
+ *
+ * Encoding writes lower case digits, decoding accepts either case. Besides the methods that
+ * return a new {@code String} or array, each direction can write into an array the caller
+ * owns, and can stream between buffers a piece at a time, so rendering a large ciphertext
+ * doesn't have to hold all of it as text.
+ */
+public final class HexCodec {
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    // The two digits of each byte value, so encoding takes one lookup per digit
+    private static final char[] HIGH = new char[256];
+    private static final char[] LOW = new char[256];
+
+    // The value of each ASCII character, or -1 if it isn't a hex digit
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            HIGH[i] = DIGITS[i >>> 4];
+            LOW[i] = DIGITS[i & 0xF];
+        }
+
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            VALUES[DIGITS[i]] = (byte) i;
+            VALUES[Character.toUpperCase(DIGITS[i])] = (byte) i;
+        }
+    }
+
+    private HexCodec() {
+    }
+
+    /**
+     * @param bytes a number of bytes
+     * @return the number of characters they encode to
+     */
+    public static int encodedLength(int bytes) {
+        return bytes * 2;
+    }
+
+    /**
+     * @param in the bytes
+     * @return the bytes in hex
+     */
+    public static @NonNull String encode(@NonNull byte[] in) {
+        char[] out = new char[encodedLength(in.length)];
+        encode(in, 0, in.length, out, 0);
+        return new String(out);
+    }
+
+    /**
+     * Encode bytes into a character array
+     *
+     * @param in the bytes
+     * @param offset the first byte to encode
+     * @param length the number of bytes to encode
+     * @param out receives the characters
+     * @param outOffset where the first character goes
+     * @return the number of characters written
+     */
+    public static int encode(@NonNull byte[] in, int offset, int length, @NonNull char[] out, int outOffset) {
+        checkRange(in.length, offset, length);
+        checkRange(out.length, outOffset, encodedLength(length));
+
+        char[] high = HIGH;
+        char[] low = LOW;
+        int o = outOffset;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int b = in[i] & 0xFF;
+            out[o] = high[b];
+            out[o + 1] = low[b];
+            o += 2;
+        }
+        return o - outOffset;
+    }
+
+    /**
+     * Encode as much of a buffer as fits into another, as ASCII characters
+     *
+     * Call again with more input or more room until the input is used up.
+     *
+     * @param in the bytes, its position is moved past those encoded
+     * @param out receives the characters, its position is moved past those written
+     */
+    public static void encode(@NonNull ByteBuffer in, @NonNull ByteBuffer out) {
+        while (in.hasRemaining() && out.remaining() >= 2) {
+            int b = in.get() & 0xFF;
+            out.put((byte) HIGH[b]);
+            out.put((byte) LOW[b]);
+        }
+    }
+
+    /**
+     * @param in the hex
+     * @return the bytes
+     * @throws IllegalArgumentException if it isn't hex
+     */
+    public static @NonNull byte[] decode(@NonNull CharSequence in) {
+        if (in.length() % 2 != 0) {
+            throw new IllegalArgumentException("Hex has an odd number of characters");
+        }
+        byte[] out = new byte[in.length() / 2];
+        decode(in, 0, in.length(), out, 0);
+        return out;
+    }
+
+    /**
+     * Decode hex into a byte array
+     *
+     * @param in the hex
+     * @param start the first character to decode
+     * @param end after the last character to decode
+     * @param out receives the bytes
+     * @param outOffset where the first byte goes
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if it isn't hex
+     */
+    public static int decode(@NonNull CharSequence in, int start, int end, @NonNull byte[] out, int outOffset) {
+        checkRange(in.length(), start, end - start);
+        if ((end - start) % 2 != 0) {
+            throw new IllegalArgumentException("Hex has an odd number of characters");
+        }
+        checkRange(out.length, outOffset, (end - start) / 2);
+
+        int o = outOffset;
+        for (int i = start; i < end; i += 2) {
+            out[o++] = (byte) (valueOf(in.charAt(i), i) << 4 | valueOf(in.charAt(i + 1), i + 1));
+        }
+        return o - outOffset;
+    }
+
+    /**
+     * Decode as much of a buffer of ASCII hex as fits into another
+     *
+     * Call again with more input or more room until the input is used up. A digit left over
+     * at the end of the input stays in it, to be decoded with the next piece.
+     *
+     * @param in the hex, its position is moved past the characters decoded
+     * @param out receives the bytes, its position is moved past those written
+     * @param endOfInput true if there is no more input after this
+     * @throws IllegalArgumentException if it isn't hex, or the end of the input leaves an odd
+     * digit
+     */
+    public static void decode(@NonNull ByteBuffer in, @NonNull ByteBuffer out, boolean endOfInput) {
+        while (in.remaining() >= 2 && out.hasRemaining()) {
+            int position = in.position();
+            out.put((byte) (valueOf((char) in.get(), position) << 4 | valueOf((char) in.get(), position + 1)));
+        }
+        if (endOfInput && in.remaining() == 1) {
+            throw new IllegalArgumentException("Hex has an odd number of characters");
+        }
+    }
+
+    private static int valueOf(char c, int index) {
+        int value = c < 128 ? VALUES[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("Not a hex digit at " + index);
+        }
+        return value;
+    }
+
+    static void checkRange(int size, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > size - length) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " of " + size);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.codec;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class Base58CodecTest {
+
+    private static final String ALPHABET = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz";
+    private static final BigInteger BASE = BigInteger.valueOf(58);
+
+    // Base58 as the definition says: the input as one number, and a 1 for each leading zero
+    private static String reference(byte[] in) {
+        StringBuilder text = new StringBuilder();
+        for (BigInteger n = new BigInteger(1, in); n.signum() > 0; n = n.divide(BASE)) {
+            text.append(ALPHABET.charAt(n.mod(BASE).intValue()));
+        }
+        for (int i = 0; i < in.length && in[i] == 0; i++) {
+            text.append('1');
+        }
+        return text.reverse().toString();
+    }
+
+    @Test
+    public void matchesTheReferenceAndRoundTrips() {
+        Random random = new Random(1);
+        for (int round = 0; round < 5_000; round++) {
+            byte[] in = new byte[random.nextInt(70)];
+            random.nextBytes(in);
+            // Leading zeros are encoded on their own, so make sure there are some
+            for (int i = 0; i < Math.min(in.length, random.nextInt(4)); i++) {
+                in[i] = 0;
+            }
+
+            String text = Base58Codec.encode(in);
+
+            assertEquals(reference(in), text);
+            assertArrayEquals(in, Base58Codec.decode(text));
+        }
+    }
+
+    @Test
+    public void encodesTheKnownVectors() {
+        assertEquals("", Base58Codec.encode(new byte[0]));
+        assertEquals("11", Base58Codec.encode(new byte[2]));
+        assertEquals("2NEpo7TZRRrLZSi2U", Base58Codec.encode("Hello World!".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void rejectsCharactersOutsideTheAlphabet() {
+        for (String bad : new String[] { "0", "O", "I", "l", "abc+" }) {
+            try {
+                Base58Codec.decode(bad);
+                fail("Decoded " + bad);
+            }
+            catch (IllegalArgumentException expected) {
+                // The character isn't in the alphabet
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.codec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class Base64CodecTest {
+
+    private static final int ROUNDS = 5_000;
+
+    @Test
+    public void matchesTheJdkAndRoundTrips() {
+        Random random = new Random(1);
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[] in = new byte[random.nextInt(70)];
+            random.nextBytes(in);
+
+            String standard = Base64Codec.STANDARD.encode(in);
+            String urlSafe = Base64Codec.URL_SAFE.encode(in);
+
+            assertEquals(Base64.getEncoder().encodeToString(in), standard);
+            assertEquals(Base64.getUrlEncoder().encodeToString(in), urlSafe);
+            assertArrayEquals(in, Base64Codec.STANDARD.decode(standard));
+            assertArrayEquals(in, Base64Codec.URL_SAFE.decode(urlSafe));
+        }
+    }
+
+    @Test
+    public void streamsInPiecesOfAnySize() {
+        Random random = new Random(2);
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[] in = new byte[random.nextInt(70)];
+            random.nextBytes(in);
+
+            // Encode from input that arrives a few bytes at a time, into small buffers
+            ByteBuffer text = ByteBuffer.allocate(Base64Codec.encodedLength(in.length));
+            ByteBuffer staged = ByteBuffer.allocate(in.length);
+            staged.flip();
+            int fed = 0;
+            do {
+                int count = Math.min(in.length - fed, random.nextInt(5));
+                staged.compact();
+                staged.put(in, fed, count);
+                staged.flip();
+                fed += count;
+
+                ByteBuffer piece = ByteBuffer.allocate(random.nextInt(9));
+                Base64Codec.STANDARD.encode(staged, piece, fed == in.length);
+                piece.flip();
+                text.put(piece);
+            } while (fed < in.length || staged.hasRemaining());
+            assertEquals(Base64.getEncoder().encodeToString(in), new String(text.array(), StandardCharsets.US_ASCII));
+
+            // Decode from pieces of the text, into small buffers
+            text.flip();
+            ByteBuffer out = ByteBuffer.allocate(in.length);
+            while (text.hasRemaining()) {
+                ByteBuffer piece = text.duplicate();
+                piece.limit(Math.min(text.limit(), text.position() + random.nextInt(9)));
+                ByteBuffer room = ByteBuffer.allocate(Math.min(out.remaining(), random.nextInt(5)));
+                Base64Codec.STANDARD.decode(piece, room, piece.limit() == text.limit());
+                text.position(piece.position());
+                room.flip();
+                out.put(room);
+            }
+            assertArrayEquals(in, out.array());
+        }
+    }
+
+    @Test
+    public void rejectsWhatIsNotPaddedBase64() {
+        for (String bad : new String[] { "abc", "ab=c", "a===", "ab==ab==", "ab*d", "ab\ncd==" }) {
+            try {
+                Base64Codec.STANDARD.decode(bad);
+                fail("Decoded " + bad);
+            }
+            catch (IllegalArgumentException expected) {
+                // The input isn't padded Base64
+            }
+        }
+    }
+}
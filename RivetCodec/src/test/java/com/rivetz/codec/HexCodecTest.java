@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.codec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HexCodecTest {
+
+    private static final int ROUNDS = 5_000;
+
+    private static String reference(byte[] in) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : in) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    @Test
+    public void matchesTheReferenceAndRoundTrips() {
+        Random random = new Random(1);
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[] in = new byte[random.nextInt(70)];
+            random.nextBytes(in);
+
+            String hex = HexCodec.encode(in);
+
+            assertEquals(reference(in), hex);
+            assertArrayEquals(in, HexCodec.decode(hex));
+            assertArrayEquals(in, HexCodec.decode(hex.toUpperCase()));
+        }
+    }
+
+    @Test
+    public void streamsInPiecesOfAnySize() {
+        Random random = new Random(2);
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[] in = new byte[random.nextInt(70)];
+            random.nextBytes(in);
+
+            ByteBuffer bytes = ByteBuffer.wrap(in);
+            ByteBuffer hex = ByteBuffer.allocate(HexCodec.encodedLength(in.length));
+            while (bytes.hasRemaining()) {
+                ByteBuffer piece = ByteBuffer.allocate(random.nextInt(7));
+                HexCodec.encode(bytes, piece);
+                piece.flip();
+                hex.put(piece);
+            }
+            assertEquals(HexCodec.encode(in), new String(hex.array(), StandardCharsets.US_ASCII));
+
+            hex.flip();
+            ByteBuffer out = ByteBuffer.allocate(in.length);
+            while (hex.hasRemaining()) {
+                ByteBuffer piece = hex.duplicate();
+                piece.limit(Math.min(hex.limit(), hex.position() + random.nextInt(9)));
+                HexCodec.decode(piece, out, piece.limit() == hex.limit());
+                hex.position(piece.position());
+            }
+            assertArrayEquals(in, out.array());
+        }
+    }
+
+    @Test
+    public void rejectsWhatIsNotHex() {
+        for (String bad : new String[] { "abc", "g0", "0x", "\u00e90" }) {
+            try {
+                HexCodec.decode(bad);
+                fail("Decoded " + bad);
+            }
+            catch (IllegalArgumentException expected) {
+                // The input isn't hex
+            }
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.keys;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetKeyTypes;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An index of the keys in the Rivet
+ *
+ * Checking for a key by listing the names of its type and scanning the list costs an IPC round
+ * trip and a linear search every time. The inventory lists the key types once, in parallel,
+ * then is kept current as keys are created and deleted through a crypto interface wrapped with
+ * {@code track()}. The keys are held in one sorted map, so an existence check is a logarithmic
+ * lookup and a prefix query a range of it, and both stay fast with thousands of keys.
+ *
+ * Keys created or deleted by anything other than a tracked interface aren't seen until the
+ * next {@code refresh()}.
+ */
+public final class KeyInventory {
+
+    // Every key, by name
+    private final ConcurrentSkipListMap<String, RivetKeyTypes> keys = new ConcurrentSkipListMap<>();
+
+    // When each name was last created or deleted, so a listing that started earlier doesn't
+    // undo the change. Entries are dropped once no listing older than them is running.
+    private final Map<String, Long> changedAt = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final List<Long> refreshesRunning = new ArrayList<>();
+
+    // Told when a key is created or deleted, for example to drop a persisted copy of the names
+    private volatile Runnable changeListener = null;
+
+    /**
+     * @param listener run after each key that is created or deleted through a tracked
+     *                 interface, or recorded with {@code onKeyCreated()} or
+     *                 {@code onKeyDeleted()}. Listings don't call it. Null for none.
+     */
+    @AnyThread
+    public void setChangeListener(@Nullable Runnable listener) {
+        this.changeListener = listener;
+    }
+
+    /**
+     * Wrap a crypto interface so the keys it creates and deletes are added to and removed from
+     * this inventory
+     *
+     * @param crypto the crypto interface
+     * @return a crypto interface that passes every call on and tracks the key changes
+     */
+    @AnyThread
+    public @NonNull RivetCrypto track(@NonNull RivetCrypto crypto) {
+        return (RivetCrypto) Proxy.newProxyInstance(RivetCrypto.class.getClassLoader(),
+                new Class<?>[] { RivetCrypto.class }, new Tracker(crypto));
+    }
+
+    /**
+     * List the keys of some types, in parallel, and replace the keys of those types in the
+     * inventory
+     *
+     * A type that can't be listed, for example because the device doesn't support it, keeps
+     * the keys it had.
+     *
+     * @param crypto the paired crypto interface
+     * @param types the types to list, every type if none are given
+     * @return a future that completes when every type has been listed or failed. It doesn't
+     * complete exceptionally.
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<KeyInventory> refresh(@NonNull RivetCrypto crypto, @NonNull RivetKeyTypes... types) {
+        long start = sequence.incrementAndGet();
+        synchronized (refreshesRunning) {
+            refreshesRunning.add(start);
+        }
+
+        RivetKeyTypes[] listed = types.length > 0 ? types : RivetKeyTypes.values();
+        CompletableFuture<?>[] listings = new CompletableFuture<?>[listed.length];
+        for (int i = 0; i < listed.length; i++) {
+            RivetKeyTypes type = listed[i];
+            CompletableFuture<List<String>> names;
+            try {
+                names = crypto.getKeyNamesOf(type);
+            }
+            catch (RuntimeException ex) {
+                names = new CompletableFuture<>();
+                names.completeExceptionally(ex);
+            }
+            listings[i] = names.thenAccept(list -> replaceType(type, list, start)).exceptionally(th -> null);
+        }
+
+        return CompletableFuture.allOf(listings).thenApply(ignored -> {
+            finishRefresh(start);
+            return this;
+        });
+    }
+
+    /**
+     * Replace the contents of the inventory with a known set of keys, for example from a cache
+     *
+     * @param keyNames the key names of each type. Types that are left out keep the keys they had.
+     */
+    @AnyThread
+    public void load(@NonNull Map<RivetKeyTypes, List<String>> keyNames) {
+        long start = sequence.incrementAndGet();
+        for (Map.Entry<RivetKeyTypes, List<String>> entry : keyNames.entrySet()) {
+            replaceType(entry.getKey(), entry.getValue(), start);
+        }
+    }
+
+    /**
+     * Record a key that was created
+     */
+    @AnyThread
+    public void onKeyCreated(@NonNull String name, @NonNull RivetKeyTypes type) {
+        changedAt.put(name, sequence.incrementAndGet());
+        keys.put(name, type);
+        notifyChanged();
+    }
+
+    /**
+     * Record a key that was deleted
+     */
+    @AnyThread
+    public void onKeyDeleted(@NonNull String name) {
+        changedAt.put(name, sequence.incrementAndGet());
+        keys.remove(name);
+        notifyChanged();
+    }
+
+    /**
+     * @param name the key name
+     * @return true if a key with the name exists
+     */
+    @AnyThread
+    public boolean contains(@NonNull String name) {
+        return keys.containsKey(name);
+    }
+
+    /**
+     * @param type the key type
+     * @param name the key name
+     * @return true if a key of the type exists with the name
+     */
+    @AnyThread
+    public boolean contains(@NonNull RivetKeyTypes type, @NonNull String name) {
+        return keys.get(name) == type;
+    }
+
+    /**
+     * @param name the key name
+     * @return the type of the key, or null if it doesn't exist
+     */
+    @AnyThread
+    public @Nullable RivetKeyTypes typeOf(@NonNull String name) {
+        return keys.get(name);
+    }
+
+    /**
+     * Find the keys whose names start with a prefix, such as the keys of one user
+     *
+     * @param prefix the name prefix
+     * @return the names in order, and their types
+     */
+    @AnyThread
+    public @NonNull Map<String, RivetKeyTypes> withPrefix(@NonNull String prefix) {
+        if (prefix.isEmpty()) {
+            return Collections.unmodifiableMap(keys);
+        }
+        return Collections.unmodifiableMap(keys.subMap(prefix, true, prefixEnd(prefix), false));
+    }
+
+    /**
+     * @param type a key type
+     * @return the names of the keys of the type, in order
+     */
+    @AnyThread
+    public @NonNull List<String> namesOf(@NonNull RivetKeyTypes type) {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, RivetKeyTypes> entry : keys.entrySet()) {
+            if (entry.getValue() == type) {
+                names.add(entry.getKey());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return the number of keys. Counting takes time in proportion to the number.
+     */
+    @AnyThread
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * @return the sorted key names of each type, for example to store in a cache
+     */
+    @AnyThread
+    public @NonNull Map<RivetKeyTypes, List<String>> snapshot() {
+        Map<RivetKeyTypes, List<String>> keyNames = new EnumMap<>(RivetKeyTypes.class);
+        for (RivetKeyTypes type : RivetKeyTypes.values()) {
+            keyNames.put(type, new ArrayList<>());
+        }
+        for (Map.Entry<String, RivetKeyTypes> entry : keys.entrySet()) {
+            keyNames.get(entry.getValue()).add(entry.getKey());
+        }
+        return keyNames;
+    }
+
+    // Make the keys of a type match a listing, except for names changed after it started
+    private void replaceType(@NonNull RivetKeyTypes type, @NonNull List<String> names, long start) {
+        Set<String> listed = new HashSet<>(names);
+        for (String name : names) {
+            if (!changedSince(name, start)) {
+                keys.put(name, type);
+            }
+        }
+
+        for (Map.Entry<String, RivetKeyTypes> entry : keys.entrySet()) {
+            String name = entry.getKey();
+            if (entry.getValue() == type && !listed.contains(name) && !changedSince(name, start)) {
+                keys.remove(name, type);
+            }
+        }
+    }
+
+    private void notifyChanged() {
+        Runnable listener = changeListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private boolean changedSince(@NonNull String name, long start) {
+        Long changed = changedAt.get(name);
+        return changed != null && changed > start;
+    }
+
+    // Forget the changes that no running listing could undo
+    private void finishRefresh(long start) {
+        long oldest;
+        synchronized (refreshesRunning) {
+            refreshesRunning.remove(start);
+            oldest = refreshesRunning.isEmpty() ? Long.MAX_VALUE : Collections.min(refreshesRunning);
+        }
+        for (Map.Entry<String, Long> entry : changedAt.entrySet()) {
+            if (entry.getValue() < oldest) {
+                changedAt.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    // The smallest string greater than every string starting with the prefix
+    private static @NonNull String prefixEnd(@NonNull String prefix) {
+        char last = prefix.charAt(prefix.length() - 1);
+        if (last == Character.MAX_VALUE) {
+            return prefix + Character.MAX_VALUE;
+        }
+        return prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+    }
+
+    /**
+     * Passes every call on, and updates the inventory when a create or delete succeeds
+     */
+    private final class Tracker implements InvocationHandler {
+        private final RivetCrypto crypto;
+
+        Tracker(@NonNull RivetCrypto crypto) {
+            this.crypto = crypto;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "Tracked(" + crypto + ")";
+                }
+            }
+
+            Object result;
+            try {
+                result = method.invoke(crypto, args);
+            }
+            catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+
+            // The caller gets a future that completes after the inventory is updated, so
+            // whatever it chains on the result already sees the change
+            if (result instanceof CompletableFuture && args != null && args.length > 0 && args[0] instanceof String) {
+                String name = (String) args[0];
+                if (method.getName().equals("createKey") && args.length > 1 && args[1] instanceof RivetKeyTypes) {
+                    RivetKeyTypes type = (RivetKeyTypes) args[1];
+                    return ((CompletableFuture<?>) result).thenApply(value -> {
+                        onKeyCreated(name, type);
+                        return value;
+                    });
+                }
+                else if (method.getName().equals("deleteKey")) {
+                    return ((CompletableFuture<?>) result).thenApply(value -> {
+                        onKeyDeleted(name);
+                        return value;
+                    });
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.keys;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetKeyTypes;
+import com.rivetz.api.RivetRules;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Creates many keys at once
+ *
+ * Creating keys one after another costs a full round trip to the TEE per key. The provisioner
+ * keeps a fixed number of creations in flight, so the total time depends on how many the Rivet
+ * can handle in parallel rather than on the number of keys. Keys that already exist are
+ * skipped, so provisioning can be run again after a partial failure.
+ *
+ * The existing keys are found by refreshing a {@code KeyInventory} for the types being
+ * provisioned, and each key created is added to it.
+ */
+public final class KeyProvisioner {
+
+    /**
+     * A key to create
+     */
+    public static final class KeySpec {
+        private final String name;
+        private final RivetKeyTypes type;
+        private final RivetRules[] rules;
+
+        /**
+         * @param name the key name
+         * @param type the key type
+         * @param rules the usage rules of the key, if any
+         */
+        public KeySpec(@NonNull String name, @NonNull RivetKeyTypes type, @NonNull RivetRules... rules) {
+            this.name = name;
+            this.type = type;
+            this.rules = rules.clone();
+        }
+
+        public @NonNull String getName() {
+            return name;
+        }
+
+        public @NonNull RivetKeyTypes getType() {
+            return type;
+        }
+
+        public @NonNull RivetRules[] getRules() {
+            return rules.clone();
+        }
+
+        @Override
+        public @NonNull String toString() {
+            return name + " (" + type + ")";
+        }
+    }
+
+    /**
+     * What happened to one key
+     */
+    public enum Outcome {
+        CREATED,
+        ALREADY_EXISTED,
+        FAILED
+    }
+
+    /**
+     * Told as each key is finished, on the thread that completed it
+     */
+    public interface Listener {
+        /**
+         * @param spec the key
+         * @param outcome what happened to it
+         * @param error why it failed, or null
+         * @param finished the number of keys finished so far, including this one
+         * @param total the number of keys being provisioned
+         */
+        @AnyThread
+        void onKeyFinished(@NonNull KeySpec spec, @NonNull Outcome outcome, @Nullable Throwable error,
+                           int finished, int total);
+    }
+
+    /**
+     * The outcome of provisioning
+     */
+    public static final class Result {
+        private final Map<KeySpec, Outcome> outcomes;
+        private final Map<KeySpec, Throwable> failures;
+
+        Result(@NonNull Map<KeySpec, Outcome> outcomes, @NonNull Map<KeySpec, Throwable> failures) {
+            this.outcomes = Collections.unmodifiableMap(outcomes);
+            this.failures = Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * @return what happened to each key, in the order they were given
+         */
+        public @NonNull Map<KeySpec, Outcome> getOutcomes() {
+            return outcomes;
+        }
+
+        /**
+         * @return the keys that failed, and why
+         */
+        public @NonNull Map<KeySpec, Throwable> getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return true if every key exists now
+         */
+        public boolean isComplete() {
+            return failures.isEmpty();
+        }
+
+        /**
+         * @param outcome an outcome
+         * @return the number of keys with the outcome
+         */
+        public int count(@NonNull Outcome outcome) {
+            return Collections.frequency(outcomes.values(), outcome);
+        }
+    }
+
+    private final RivetCrypto crypto;
+    private final KeyInventory inventory;
+    private final int maxInFlight;
+
+    /**
+     * @param crypto the paired crypto interface. It may be tracked by the inventory.
+     * @param inventory the key inventory, refreshed before each provisioning
+     * @param maxInFlight the most key creations to have outstanding at once
+     */
+    public KeyProvisioner(@NonNull RivetCrypto crypto, @NonNull KeyInventory inventory, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.crypto = crypto;
+        this.inventory = inventory;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Create every key that doesn't exist yet
+     *
+     * A key that can't be created doesn't stop the others. A name that exists with a different
+     * key type is reported as a failure, and the existing key is left alone.
+     *
+     * @param specs the keys. A name should appear only once.
+     * @param listener told as each key is finished, or null
+     * @return a future with the outcome of every key. It doesn't complete exceptionally.
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<Result> provision(@NonNull List<KeySpec> specs, @Nullable Listener listener) {
+        Run run = new Run(specs, listener);
+        if (specs.isEmpty()) {
+            return run.start();
+        }
+
+        EnumSet<RivetKeyTypes> types = EnumSet.noneOf(RivetKeyTypes.class);
+        for (KeySpec spec : specs) {
+            types.add(spec.getType());
+        }
+        return inventory.refresh(crypto, types.toArray(new RivetKeyTypes[0])).thenCompose(ignored -> run.start());
+    }
+
+    /**
+     * One call to provision, with the keys still to be created shared by the workers
+     */
+    private final class Run {
+        private final Listener listener;
+        private final int total;
+
+        // Guarded by this
+        private final Queue<KeySpec> remaining;
+        private final Map<KeySpec, Outcome> outcomes = new LinkedHashMap<>();
+        private final Map<KeySpec, Throwable> failures = new LinkedHashMap<>();
+        private int finished = 0;
+
+        Run(@NonNull List<KeySpec> specs, @Nullable Listener listener) {
+            this.listener = listener;
+            this.total = specs.size();
+            this.remaining = new ArrayDeque<>(specs);
+
+            // Keep the outcomes in the order of the specs
+            for (KeySpec spec : specs) {
+                outcomes.put(spec, null);
+            }
+        }
+
+        @NonNull CompletableFuture<Result> start() {
+            List<CompletableFuture<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < maxInFlight; i++) {
+                workers.add(next());
+            }
+            return CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+                synchronized (this) {
+                    return new Result(new LinkedHashMap<>(outcomes), new LinkedHashMap<>(failures));
+                }
+            });
+        }
+
+        // Each worker creates one key at a time, and takes the next spec when it completes.
+        // Existing keys are skipped without a round trip. A creation that completes before
+        // createKey() returns, as a failure on a disconnected service does, is followed in the
+        // loop rather than by a nested call, so a long run of them doesn't grow the stack.
+        private @NonNull CompletableFuture<Void> next() {
+            while (true) {
+                KeySpec spec;
+                synchronized (this) {
+                    spec = remaining.poll();
+                }
+                if (spec == null) {
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                RivetKeyTypes existing = inventory.typeOf(spec.getName());
+                if (existing == spec.getType()) {
+                    finish(spec, Outcome.ALREADY_EXISTED, null);
+                }
+                else if (existing != null) {
+                    finish(spec, Outcome.FAILED, new IllegalStateException(
+                            "The key " + spec.getName() + " already exists with the type " + existing));
+                }
+                else {
+                    CompletableFuture<Void> creation = create(spec);
+                    if (!creation.isDone()) {
+                        return creation.thenCompose(ignored -> next());
+                    }
+                }
+            }
+        }
+
+        private @NonNull CompletableFuture<Void> create(@NonNull KeySpec spec) {
+            CompletableFuture<Void> creation;
+            try {
+                creation = crypto.createKey(spec.getName(), spec.getType(), spec.rules);
+            }
+            catch (RuntimeException ex) {
+                finish(spec, Outcome.FAILED, ex);
+                return CompletableFuture.completedFuture(null);
+            }
+
+            return creation.handle((ignored, th) -> {
+                if (th == null) {
+                    inventory.onKeyCreated(spec.getName(), spec.getType());
+                    finish(spec, Outcome.CREATED, null);
+                }
+                else {
+                    finish(spec, Outcome.FAILED, th);
+                }
+                return null;
+            });
+        }
+
+        private void finish(@NonNull KeySpec spec, @NonNull Outcome outcome, @Nullable Throwable error) {
+            int count;
+            synchronized (this) {
+                outcomes.put(spec, outcome);
+                if (error != null) {
+                    failures.put(spec, error);
+                }
+                count = ++finished;
+            }
+            if (listener != null) {
+                listener.onKeyFinished(spec, outcome, error, count, total);
+            }
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.keys;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import com.rivetz.api.EncryptResult;
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetKeyTypes;
+import com.rivetz.api.RivetRules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replaces a Rivet key with a successor, and moves the data encrypted under it to the new key
+ *
+ * A rotation runs in three phases, each recorded in a checkpoint before it starts:
+ *
+ * <ol>
+ *     <li>{@code CREATING} creates the successor key, unless it already exists.</li>
+ *     <li>{@code MIGRATING} decrypts the stored records with the old key and encrypts them with
+ *     the new one, a batch at a time, pausing between batches so the Rivet stays available to
+ *     the rest of the app. The checkpoint holds the last record migrated.</li>
+ *     <li>{@code RETIRING} deletes the old key, once every record has moved.</li>
+ * </ol>
+ *
+ * If the app exits or the rotation is paused, {@code resumeAll()} carries on from the last
+ * checkpoint. Migrating a record is skipped if it is already under the new key, so repeating
+ * part of a batch is harmless.
+ *
+ * Once a rotation has started, the app should encrypt new records with the new key. Records
+ * are replaced only if they are still under the old key, so a record the app rewrites during
+ * the migration isn't overwritten.
+ *
+ * Whether the keys exist is looked up in a {@code KeyInventory}, refreshed for the key type
+ * before the successor is created and before the old key is deleted.
+ */
+public final class KeyRotationEngine {
+
+    /**
+     * The phase of a rotation
+     */
+    public enum Phase {
+        CREATING,
+        MIGRATING,
+        RETIRING
+    }
+
+    /**
+     * An encrypted record, and the name of the key it was encrypted with
+     */
+    public static final class StoredRecord {
+        private final String keyName;
+        private final EncryptResult value;
+
+        public StoredRecord(@NonNull String keyName, @NonNull EncryptResult value) {
+            this.keyName = keyName;
+            this.value = value;
+        }
+
+        public @NonNull String getKeyName() {
+            return keyName;
+        }
+
+        public @NonNull EncryptResult getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * Where the app keeps its encrypted records. The methods are called on the executor given
+     * to the engine, so they may block.
+     */
+    public interface RecordStore {
+        /**
+         * @param afterId the last id returned by the previous call, or null to start at the first
+         * @param limit the most ids to return
+         * @return the ids that sort after {@code afterId}, in order. An empty list ends the scan.
+         */
+        @WorkerThread
+        @NonNull List<String> idsAfter(@Nullable String afterId, int limit);
+
+        /**
+         * @return the record, or null if it has been removed
+         */
+        @WorkerThread
+        @Nullable StoredRecord read(@NonNull String id);
+
+        /**
+         * Replace a record, unless it has changed keys since it was read
+         *
+         * @param id the record id
+         * @param expectedKeyName the key the record must still be under
+         * @param record the new record
+         * @return true if it was replaced
+         */
+        @WorkerThread
+        boolean replace(@NonNull String id, @NonNull String expectedKeyName, @NonNull StoredRecord record);
+    }
+
+    /**
+     * The state of a rotation, as stored between launches
+     */
+    public static final class Checkpoint {
+        private final String oldKeyName;
+        private final String newKeyName;
+        private final RivetKeyTypes type;
+        private final RivetRules[] rules;
+        private final Phase phase;
+        private final String lastId;
+        private final long migrated;
+
+        public Checkpoint(@NonNull String oldKeyName, @NonNull String newKeyName, @NonNull RivetKeyTypes type,
+                          @NonNull RivetRules[] rules, @NonNull Phase phase, @Nullable String lastId, long migrated) {
+            this.oldKeyName = oldKeyName;
+            this.newKeyName = newKeyName;
+            this.type = type;
+            this.rules = rules.clone();
+            this.phase = phase;
+            this.lastId = lastId;
+            this.migrated = migrated;
+        }
+
+        public @NonNull String getOldKeyName() {
+            return oldKeyName;
+        }
+
+        public @NonNull String getNewKeyName() {
+            return newKeyName;
+        }
+
+        public @NonNull RivetKeyTypes getType() {
+            return type;
+        }
+
+        public @NonNull RivetRules[] getRules() {
+            return rules.clone();
+        }
+
+        public @NonNull Phase getPhase() {
+            return phase;
+        }
+
+        /** @return the id of the last record migrated, or null if none have been */
+        public @Nullable String getLastId() {
+            return lastId;
+        }
+
+        /** @return the number of records moved to the new key */
+        public long getMigrated() {
+            return migrated;
+        }
+
+        @NonNull Checkpoint withPhase(@NonNull Phase phase) {
+            return new Checkpoint(oldKeyName, newKeyName, type, rules, phase, lastId, migrated);
+        }
+
+        @NonNull Checkpoint withProgress(@NonNull String lastId, long migrated) {
+            return new Checkpoint(oldKeyName, newKeyName, type, rules, phase, lastId, migrated);
+        }
+    }
+
+    /**
+     * Durable storage for checkpoints, keyed by the old key name. The methods are called on
+     * the executor given to the engine, so they may block, but a save must be durable when it
+     * returns.
+     */
+    public interface CheckpointStore {
+        @WorkerThread
+        @NonNull List<Checkpoint> loadAll();
+
+        @WorkerThread
+        void save(@NonNull Checkpoint checkpoint);
+
+        @WorkerThread
+        void clear(@NonNull String oldKeyName);
+    }
+
+    /**
+     * A rotation in progress
+     */
+    public final class Rotation {
+        private final CompletableFuture<Void> completion = new CompletableFuture<>();
+        private volatile Checkpoint checkpoint;
+        private volatile boolean paused = false;
+
+        Rotation(@NonNull Checkpoint checkpoint) {
+            this.checkpoint = checkpoint;
+        }
+
+        public @NonNull String getOldKeyName() {
+            return checkpoint.getOldKeyName();
+        }
+
+        public @NonNull String getNewKeyName() {
+            return checkpoint.getNewKeyName();
+        }
+
+        public @NonNull Phase getPhase() {
+            return checkpoint.getPhase();
+        }
+
+        /** @return the number of records moved to the new key so far */
+        public long getMigrated() {
+            return checkpoint.getMigrated();
+        }
+
+        /**
+         * @return a future that completes when the old key has been deleted. It is cancelled
+         * if the rotation is paused, and fails if a record can't be migrated. Either way the
+         * checkpoint is kept, and the old key isn't deleted.
+         */
+        public @NonNull CompletableFuture<Void> getCompletion() {
+            return completion;
+        }
+
+        /**
+         * Stop after the current batch. The rotation can be resumed later.
+         */
+        @AnyThread
+        public void pause() {
+            paused = true;
+        }
+    }
+
+    private final RivetCrypto crypto;
+    private final KeyInventory inventory;
+    private final RecordStore records;
+    private final CheckpointStore checkpoints;
+    private final Executor bulk;
+    private final ScheduledExecutorService scheduler;
+    private final int batchSize;
+    private final long pauseMillis;
+
+    // Running rotations by old key name
+    private final Map<String, Rotation> running = new ConcurrentHashMap<>();
+
+    /**
+     * @param crypto the paired crypto interface. It may be tracked by the inventory.
+     * @param inventory the key inventory, which the successor is added to and the old key
+     *                  removed from
+     * @param records the encrypted records
+     * @param checkpoints where the progress of each rotation is kept
+     * @param bulk runs the store access. It should be a background executor that can block
+     *             without holding up the UI or other Rivet calls.
+     * @param scheduler delays each batch
+     * @param batchSize the most records to migrate at once, which is also the most Rivet calls
+     *                  in flight
+     * @param pauseMillis the pause between batches
+     */
+    public KeyRotationEngine(@NonNull RivetCrypto crypto, @NonNull KeyInventory inventory,
+                             @NonNull RecordStore records, @NonNull CheckpointStore checkpoints,
+                             @NonNull Executor bulk, @NonNull ScheduledExecutorService scheduler,
+                             int batchSize, long pauseMillis) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        this.crypto = crypto;
+        this.inventory = inventory;
+        this.records = records;
+        this.checkpoints = checkpoints;
+        this.bulk = bulk;
+        this.scheduler = scheduler;
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+    }
+
+    /**
+     * Start rotating a key, or resume the rotation if it was started before
+     *
+     * @param oldKeyName the key being replaced
+     * @param newKeyName the successor key, which must not be used for anything else
+     * @param type the type of both keys
+     * @param rules the usage rules of the successor
+     * @return the rotation
+     */
+    @AnyThread
+    public @NonNull Rotation rotate(@NonNull String oldKeyName, @NonNull String newKeyName,
+                                    @NonNull RivetKeyTypes type, @NonNull RivetRules... rules) {
+        return start(new Checkpoint(oldKeyName, newKeyName, type, rules, Phase.CREATING, null, 0), true);
+    }
+
+    /**
+     * Resume every rotation that has a checkpoint, for example at startup
+     *
+     * @return a future with the resumed rotations
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<List<Rotation>> resumeAll() {
+        return CompletableFuture.supplyAsync(() -> {
+            List<Rotation> resumed = new ArrayList<>();
+            for (Checkpoint checkpoint : checkpoints.loadAll()) {
+                resumed.add(start(checkpoint, false));
+            }
+            return resumed;
+        }, bulk);
+    }
+
+    /**
+     * @param oldKeyName the key being replaced
+     * @return the running rotation of the key, or null
+     */
+    @AnyThread
+    public @Nullable Rotation getRotation(@NonNull String oldKeyName) {
+        return running.get(oldKeyName);
+    }
+
+    private @NonNull Rotation start(@NonNull Checkpoint initial, boolean lookForCheckpoint) {
+        Rotation rotation = new Rotation(initial);
+        Rotation existing = running.putIfAbsent(initial.getOldKeyName(), rotation);
+        if (existing != null) {
+            return existing;
+        }
+
+        rotation.completion.whenComplete((ignored, th) -> running.remove(initial.getOldKeyName(), rotation));
+        bulk.execute(() -> {
+            try {
+                if (lookForCheckpoint) {
+                    for (Checkpoint saved : checkpoints.loadAll()) {
+                        if (saved.getOldKeyName().equals(initial.getOldKeyName())) {
+                            if (!saved.getNewKeyName().equals(initial.getNewKeyName())) {
+                                throw new IllegalStateException("The key " + initial.getOldKeyName()
+                                        + " is already being rotated to " + saved.getNewKeyName());
+                            }
+                            rotation.checkpoint = saved;
+                        }
+                    }
+                }
+                checkpoints.save(rotation.checkpoint);
+                step(rotation);
+            }
+            catch (RuntimeException ex) {
+                rotation.completion.completeExceptionally(ex);
+            }
+        });
+        return rotation;
+    }
+
+    // Run the current phase of a rotation. Each phase ends by saving the next checkpoint and
+    // calling this again, on the bulk executor.
+    @WorkerThread
+    private void step(@NonNull Rotation rotation) {
+        if (rotation.paused) {
+            rotation.completion.completeExceptionally(new CancellationException("Paused"));
+            return;
+        }
+
+        Checkpoint checkpoint = rotation.checkpoint;
+        CompletableFuture<?> phase;
+        switch (checkpoint.getPhase()) {
+            case CREATING:
+                phase = createSuccessor(rotation);
+                break;
+            case MIGRATING:
+                phase = migrateBatch(rotation);
+                break;
+            default:
+                phase = retire(rotation);
+                break;
+        }
+
+        phase.whenComplete((ignored, th) -> {
+            if (th != null) {
+                rotation.completion.completeExceptionally(th);
+            }
+            else if (!rotation.completion.isDone()) {
+                bulk.execute(() -> step(rotation));
+            }
+        });
+    }
+
+    private @NonNull CompletableFuture<Void> createSuccessor(@NonNull Rotation rotation) {
+        Checkpoint checkpoint = rotation.checkpoint;
+
+        // A rotation that stopped after creating the key finds it already there
+        String newKeyName = checkpoint.getNewKeyName();
+        RivetKeyTypes type = checkpoint.getType();
+        return inventory.refresh(crypto, type)
+                .thenCompose(keys -> keys.contains(type, newKeyName)
+                        ? CompletableFuture.<Void>completedFuture(null)
+                        : crypto.createKey(newKeyName, type, checkpoint.getRules())
+                                .thenRun(() -> inventory.onKeyCreated(newKeyName, type)))
+                .thenRunAsync(() -> save(rotation, checkpoint.withPhase(Phase.MIGRATING)), bulk);
+    }
+
+    // Move one batch of records, then wait before the next. All of the batch is decrypted and
+    // encrypted at once, and the checkpoint is saved once the batch has been written.
+    @WorkerThread
+    private @NonNull CompletableFuture<Void> migrateBatch(@NonNull Rotation rotation) {
+        Checkpoint checkpoint = rotation.checkpoint;
+        String oldKeyName = checkpoint.getOldKeyName();
+        String newKeyName = checkpoint.getNewKeyName();
+
+        List<String> ids = records.idsAfter(checkpoint.getLastId(), batchSize);
+        if (ids.isEmpty()) {
+            save(rotation, checkpoint.withPhase(Phase.RETIRING));
+            return CompletableFuture.completedFuture(null);
+        }
+
+        List<String> moved = new ArrayList<>();
+        List<CompletableFuture<EncryptResult>> reencrypted = new ArrayList<>();
+        for (String id : ids) {
+            StoredRecord record = records.read(id);
+            if (record == null || !record.getKeyName().equals(oldKeyName)) {
+                continue;
+            }
+            moved.add(id);
+            reencrypted.add(crypto.decrypt(oldKeyName, record.getValue()).thenCompose(plain ->
+                    crypto.encrypt(newKeyName, plain).whenComplete((value, th) -> Arrays.fill(plain, (byte) 0))));
+        }
+
+        String lastId = ids.get(ids.size() - 1);
+        return CompletableFuture.allOf(reencrypted.toArray(new CompletableFuture<?>[0]))
+                .thenRunAsync(() -> {
+                    long migrated = checkpoint.getMigrated();
+                    for (int i = 0; i < moved.size(); i++) {
+                        if (records.replace(moved.get(i), oldKeyName, new StoredRecord(newKeyName, reencrypted.get(i).join()))) {
+                            migrated++;
+                        }
+                    }
+                    save(rotation, checkpoint.withProgress(lastId, migrated));
+                }, bulk)
+                .thenCompose(ignored -> delay());
+    }
+
+    private @NonNull CompletableFuture<Void> retire(@NonNull Rotation rotation) {
+        Checkpoint checkpoint = rotation.checkpoint;
+
+        // A rotation that stopped after deleting the key doesn't find it
+        String oldKeyName = checkpoint.getOldKeyName();
+        return inventory.refresh(crypto, checkpoint.getType())
+                .thenCompose(keys -> keys.contains(checkpoint.getType(), oldKeyName)
+                        ? crypto.deleteKey(oldKeyName).thenRun(() -> inventory.onKeyDeleted(oldKeyName))
+                        : CompletableFuture.<Void>completedFuture(null))
+                .thenRunAsync(() -> {
+                    checkpoints.clear(oldKeyName);
+                    rotation.completion.complete(null);
+                }, bulk);
+    }
+
+    @WorkerThread
+    private void save(@NonNull Rotation rotation, @NonNull Checkpoint checkpoint) {
+        checkpoints.save(checkpoint);
+        rotation.checkpoint = checkpoint;
+    }
+
+    private @NonNull CompletableFuture<Void> delay() {
+        CompletableFuture<Void> delay = new CompletableFuture<>();
+        scheduler.schedule(() -> delay.complete(null), pauseMillis, TimeUnit.MILLISECONDS);
+        return delay;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.keys;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetKeyTypes;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyInventoryTest {
+
+    @Test
+    public void createdKeyIsListedBeforeCallerContinues() throws Exception {
+        KeyInventory inventory = new KeyInventory();
+        CompletableFuture<Void> created = new CompletableFuture<>();
+        RivetCrypto crypto = inventory.track(TestCrypto.answering("createKey", args -> created));
+
+        CompletableFuture<Boolean> seen = crypto.createKey("key", RivetKeyTypes.NISTP256)
+                .thenApply(ignored -> inventory.contains(RivetKeyTypes.NISTP256, "key"));
+        created.complete(null);
+
+        assertTrue(seen.get());
+    }
+
+    @Test
+    public void deletedKeyIsGoneBeforeCallerContinues() throws Exception {
+        KeyInventory inventory = new KeyInventory();
+        inventory.onKeyCreated("key", RivetKeyTypes.NISTP256);
+        CompletableFuture<Void> deleted = new CompletableFuture<>();
+        RivetCrypto crypto = inventory.track(TestCrypto.answering("deleteKey", args -> deleted));
+
+        CompletableFuture<Boolean> seen = crypto.deleteKey("key")
+                .thenApply(ignored -> inventory.contains("key"));
+        deleted.complete(null);
+
+        assertFalse(seen.get());
+    }
+
+    @Test
+    public void failedCreateIsNotListed() {
+        KeyInventory inventory = new KeyInventory();
+        CompletableFuture<Void> created = new CompletableFuture<>();
+        RivetCrypto crypto = inventory.track(TestCrypto.answering("createKey", args -> created));
+
+        CompletableFuture<Void> result = crypto.createKey("key", RivetKeyTypes.NISTP256);
+        created.completeExceptionally(new IllegalStateException("disconnected"));
+
+        assertTrue(result.isCompletedExceptionally());
+        assertFalse(inventory.contains("key"));
+        assertEquals(0, inventory.size());
+    }
+
+    @Test
+    public void listenerHearsTrackedChangesOnly() {
+        KeyInventory inventory = new KeyInventory();
+        AtomicInteger changes = new AtomicInteger();
+        inventory.setChangeListener(changes::incrementAndGet);
+
+        RivetCrypto creating = inventory.track(TestCrypto.answering("createKey",
+                args -> CompletableFuture.completedFuture(null)));
+        creating.createKey("key", RivetKeyTypes.NISTP256).join();
+        assertEquals(1, changes.get());
+
+        inventory.load(Collections.singletonMap(RivetKeyTypes.ECDH, Collections.singletonList("other")));
+        assertEquals(1, changes.get());
+
+        RivetCrypto deleting = inventory.track(TestCrypto.answering("deleteKey",
+                args -> CompletableFuture.completedFuture(null)));
+        deleting.deleteKey("key").join();
+        assertEquals(2, changes.get());
+    }
+
+    @Test
+    public void refreshReplacesOnlyTheListedTypes() throws Exception {
+        KeyInventory inventory = new KeyInventory();
+        inventory.onKeyCreated("gone", RivetKeyTypes.NISTP256);
+        inventory.onKeyCreated("kept", RivetKeyTypes.ECDH);
+        RivetCrypto crypto = TestCrypto.answering("getKeyNamesOf",
+                args -> CompletableFuture.completedFuture(Arrays.asList("b", "a")));
+
+        inventory.refresh(crypto, RivetKeyTypes.NISTP256).get();
+
+        assertEquals(Arrays.asList("a", "b"), inventory.namesOf(RivetKeyTypes.NISTP256));
+        assertTrue(inventory.contains(RivetKeyTypes.ECDH, "kept"));
+        assertFalse(inventory.contains("gone"));
+    }
+}
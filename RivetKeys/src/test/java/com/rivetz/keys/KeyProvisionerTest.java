@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.keys;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetKeyTypes;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyProvisionerTest {
+
+    @Test
+    public void keepsAtMostMaxInFlightCreations() throws Exception {
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger mostInFlight = new AtomicInteger();
+        RivetCrypto crypto = crypto(Collections.emptyList(), args -> {
+            mostInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            CompletableFuture<Void> created = new CompletableFuture<>();
+            synchronized (pending) {
+                pending.add(created);
+            }
+            return created.whenComplete((ignored, th) -> inFlight.decrementAndGet());
+        });
+        KeyProvisioner provisioner = new KeyProvisioner(crypto, new KeyInventory(), 3);
+
+        CompletableFuture<KeyProvisioner.Result> result = provisioner.provision(specs(10), null);
+
+        // Complete the creations one at a time, oldest first, as the Rivet would
+        for (int done = 0; !result.isDone(); done++) {
+            CompletableFuture<Void> created;
+            synchronized (pending) {
+                assertTrue(pending.size() - done <= 3);
+                created = pending.get(done);
+            }
+            created.complete(null);
+        }
+
+        assertEquals(3, mostInFlight.get());
+        assertEquals(10, pending.size());
+        assertEquals(10, result.get().count(KeyProvisioner.Outcome.CREATED));
+    }
+
+    @Test
+    public void reportsEachFailureAndCreatesTheRest() throws Exception {
+        KeyInventory inventory = new KeyInventory();
+        RivetCrypto crypto = crypto(Collections.singletonList("key-1"), args -> {
+            CompletableFuture<Void> created = new CompletableFuture<>();
+            if (args[0].equals("key-3")) {
+                created.completeExceptionally(new IllegalStateException("no space"));
+            }
+            else {
+                created.complete(null);
+            }
+            return created;
+        });
+        List<String> heard = new ArrayList<>();
+        KeyProvisioner provisioner = new KeyProvisioner(crypto, inventory, 2);
+
+        KeyProvisioner.Result result = provisioner.provision(specs(5),
+                (spec, outcome, error, finished, total) -> heard.add(spec.getName() + " " + outcome)).get();
+
+        assertFalse(result.isComplete());
+        assertEquals(1, result.getFailures().size());
+        KeyProvisioner.KeySpec failed = result.getFailures().keySet().iterator().next();
+        assertEquals("key-3", failed.getName());
+        assertEquals("no space", result.getFailures().get(failed).getMessage());
+        assertEquals(3, result.count(KeyProvisioner.Outcome.CREATED));
+        assertEquals(1, result.count(KeyProvisioner.Outcome.ALREADY_EXISTED));
+        assertEquals(5, heard.size());
+        assertTrue(heard.contains("key-3 FAILED"));
+
+        // The keys that were created are in the inventory, the failed one isn't
+        assertTrue(inventory.contains(RivetKeyTypes.NISTP256, "key-4"));
+        assertFalse(inventory.contains("key-3"));
+    }
+
+    @Test
+    public void inlineFailuresDoNotNest() throws Exception {
+        RivetCrypto crypto = crypto(Collections.emptyList(), args -> {
+            CompletableFuture<Void> created = new CompletableFuture<>();
+            created.completeExceptionally(new IllegalStateException("disconnected"));
+            return created;
+        });
+        KeyProvisioner provisioner = new KeyProvisioner(crypto, new KeyInventory(), 1);
+
+        KeyProvisioner.Result result = provisioner.provision(specs(20000), null).get();
+
+        assertEquals(20000, result.getFailures().size());
+    }
+
+    private static List<KeyProvisioner.KeySpec> specs(int count) {
+        List<KeyProvisioner.KeySpec> specs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            specs.add(new KeyProvisioner.KeySpec("key-" + i, RivetKeyTypes.NISTP256));
+        }
+        return specs;
+    }
+
+    // Lists the existing keys as NISTP256 and answers each createKey
+    private static RivetCrypto crypto(List<String> existing, Function<Object[], Object> createKey) {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getKeyNamesOf", args -> CompletableFuture.completedFuture(
+                args[0] == RivetKeyTypes.NISTP256 ? existing : Collections.<String>emptyList()));
+        answers.put("createKey", createKey);
+        return TestCrypto.answering(answers);
+    }
+}
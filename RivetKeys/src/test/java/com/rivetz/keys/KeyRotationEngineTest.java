@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.keys;
+
+import com.rivetz.api.EncryptResult;
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetKeyTypes;
+import com.rivetz.api.RivetRules;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyRotationEngineTest {
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Rivet rivet = new Rivet();
+    private final Records records = new Records();
+    private final Checkpoints checkpoints = new Checkpoints();
+
+    @After
+    public void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void resumesFromTheLastBatchSaved() throws Exception {
+        rivet.keys.put("old", RivetKeyTypes.AES256_CGM);
+        for (int i = 0; i < 5; i++) {
+            records.put("r" + i, "old", "record " + i);
+        }
+
+        // Pause once the first batch of two has been saved
+        KeyRotationEngine first = engine();
+        checkpoints.onSave = checkpoint -> {
+            if (checkpoint.getMigrated() == 2) {
+                first.getRotation("old").pause();
+            }
+        };
+        KeyRotationEngine.Rotation paused = first.rotate("old", "new", RivetKeyTypes.AES256_CGM);
+        try {
+            paused.getCompletion().get(5, TimeUnit.SECONDS);
+            fail("The rotation wasn't paused");
+        }
+        catch (CancellationException expected) {
+            // Paused rotations are cancelled
+        }
+        assertEquals(KeyRotationEngine.Phase.MIGRATING, checkpoints.saved.get("old").getPhase());
+        assertEquals("r1", checkpoints.saved.get("old").getLastId());
+        assertEquals("old", records.read("r2").getKeyName());
+
+        // A new engine, as after a restart, carries on with the third record
+        checkpoints.onSave = checkpoint -> { };
+        List<KeyRotationEngine.Rotation> resumed = engine().resumeAll().get(5, TimeUnit.SECONDS);
+        assertEquals(1, resumed.size());
+        resumed.get(0).getCompletion().get(5, TimeUnit.SECONDS);
+
+        assertEquals(5, rivet.decrypts.get());
+        assertEquals(5, resumed.get(0).getMigrated());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("new", records.read("r" + i).getKeyName());
+            assertEquals("record " + i, rivet.plainText(records.read("r" + i)));
+        }
+        assertTrue(checkpoints.saved.isEmpty());
+        assertFalse(rivet.keys.containsKey("old"));
+    }
+
+    @Test
+    public void retiresTheOldKeyOnceEveryRecordHasMoved() throws Exception {
+        rivet.keys.put("old", RivetKeyTypes.AES256_CGM);
+        records.put("r0", "old", "record");
+        KeyInventory inventory = new KeyInventory();
+
+        engine(inventory).rotate("old", "new", RivetKeyTypes.AES256_CGM, RivetRules.REQUIRE_DUAL_ROOT)
+                .getCompletion().get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, rivet.deletes.get());
+        assertFalse(rivet.keys.containsKey("old"));
+        assertTrue(inventory.contains(RivetKeyTypes.AES256_CGM, "new"));
+        assertFalse(inventory.contains("old"));
+        assertTrue(checkpoints.saved.isEmpty());
+    }
+
+    @Test
+    public void resumedRetireSkipsAKeyAlreadyDeleted() throws Exception {
+        // The app stopped after deleting the old key but before clearing the checkpoint
+        rivet.keys.put("new", RivetKeyTypes.AES256_CGM);
+        checkpoints.saved.put("old", new KeyRotationEngine.Checkpoint("old", "new", RivetKeyTypes.AES256_CGM,
+                new RivetRules[0], KeyRotationEngine.Phase.RETIRING, "r9", 10));
+
+        List<KeyRotationEngine.Rotation> resumed = engine().resumeAll().get(5, TimeUnit.SECONDS);
+        resumed.get(0).getCompletion().get(5, TimeUnit.SECONDS);
+
+        assertEquals(0, rivet.deletes.get());
+        assertEquals(0, rivet.decrypts.get());
+        assertTrue(checkpoints.saved.isEmpty());
+        assertNull(engine().getRotation("old"));
+    }
+
+    private KeyRotationEngine engine() {
+        return engine(new KeyInventory());
+    }
+
+    private KeyRotationEngine engine(KeyInventory inventory) {
+        return new KeyRotationEngine(rivet.crypto(), inventory, records, checkpoints, executor, executor, 2, 0);
+    }
+
+    /**
+     * Keys, and an "encryption" that records the key name in the cipher text
+     */
+    private static final class Rivet {
+        final Map<String, RivetKeyTypes> keys = new ConcurrentHashMap<>();
+        final AtomicInteger decrypts = new AtomicInteger();
+        final AtomicInteger deletes = new AtomicInteger();
+
+        RivetCrypto crypto() {
+            Map<String, Function<Object[], Object>> answers = new HashMap<>();
+            answers.put("getKeyNamesOf", args -> {
+                List<String> names = new ArrayList<>();
+                for (Map.Entry<String, RivetKeyTypes> key : keys.entrySet()) {
+                    if (key.getValue() == args[0]) {
+                        names.add(key.getKey());
+                    }
+                }
+                return CompletableFuture.completedFuture(names);
+            });
+            answers.put("createKey", args -> {
+                keys.put((String) args[0], (RivetKeyTypes) args[1]);
+                return CompletableFuture.completedFuture(null);
+            });
+            answers.put("deleteKey", args -> {
+                deletes.incrementAndGet();
+                keys.remove(args[0]);
+                return CompletableFuture.completedFuture(null);
+            });
+            answers.put("encrypt", args -> CompletableFuture.completedFuture(encrypt((String) args[0], (byte[]) args[1])));
+            answers.put("decrypt", args -> {
+                decrypts.incrementAndGet();
+                EncryptResult value = (EncryptResult) args[1];
+                if (!keys.containsKey(args[0]) || !args[0].equals(new String(value.getIV(), StandardCharsets.UTF_8))) {
+                    throw new IllegalArgumentException("Not encrypted with " + args[0]);
+                }
+                return CompletableFuture.completedFuture(value.getCipherText().clone());
+            });
+            return TestCrypto.answering(answers);
+        }
+
+        static EncryptResult encrypt(String keyName, byte[] plainText) {
+            return new EncryptResult(plainText.clone(), keyName.getBytes(StandardCharsets.UTF_8));
+        }
+
+        String plainText(KeyRotationEngine.StoredRecord record) {
+            assertEquals(record.getKeyName(), new String(record.getValue().getIV(), StandardCharsets.UTF_8));
+            return new String(record.getValue().getCipherText(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class Records implements KeyRotationEngine.RecordStore {
+        private final TreeMap<String, KeyRotationEngine.StoredRecord> records = new TreeMap<>();
+
+        synchronized void put(String id, String keyName, String plainText) {
+            records.put(id, new KeyRotationEngine.StoredRecord(keyName,
+                    Rivet.encrypt(keyName, plainText.getBytes(StandardCharsets.UTF_8))));
+        }
+
+        @Override
+        public synchronized List<String> idsAfter(String afterId, int limit) {
+            Set<String> ids = afterId == null ? records.keySet() : records.tailMap(afterId, false).keySet();
+            List<String> page = new ArrayList<>(ids);
+            return page.subList(0, Math.min(limit, page.size()));
+        }
+
+        @Override
+        public synchronized KeyRotationEngine.StoredRecord read(String id) {
+            return records.get(id);
+        }
+
+        @Override
+        public synchronized boolean replace(String id, String expectedKeyName, KeyRotationEngine.StoredRecord record) {
+            KeyRotationEngine.StoredRecord current = records.get(id);
+            if (current == null || !current.getKeyName().equals(expectedKeyName)) {
+                return false;
+            }
+            records.put(id, record);
+            return true;
+        }
+    }
+
+    private static final class Checkpoints implements KeyRotationEngine.CheckpointStore {
+        final Map<String, KeyRotationEngine.Checkpoint> saved = new ConcurrentHashMap<>();
+        volatile Consumer<KeyRotationEngine.Checkpoint> onSave = checkpoint -> { };
+
+        @Override
+        public List<KeyRotationEngine.Checkpoint> loadAll() {
+            return new ArrayList<>(saved.values());
+        }
+
+        @Override
+        public void save(KeyRotationEngine.Checkpoint checkpoint) {
+            saved.put(checkpoint.getOldKeyName(), checkpoint);
+            onSave.accept(checkpoint);
+        }
+
+        @Override
+        public void clear(String oldKeyName) {
+            saved.remove(oldKeyName);
+        }
+    }
+}
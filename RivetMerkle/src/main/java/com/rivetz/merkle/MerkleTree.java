@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.merkle;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Merkle tree hashed as in RFC 6962
+ *
+ * A leaf is {@code SHA-256(0x00 || data)} and a node is {@code SHA-256(0x01 || left || right)}.
+ * The different prefixes keep a leaf from being passed off as a node. When a level has an odd
+ * number of nodes the last one moves up unchanged, which gives the same tree as RFC 6962. A tree
+ * without leaves has {@code SHA-256()} as its root.
+ *
+ * The tree keeps every level, so the audit path of any leaf can be read off it. A path is
+ * checked with {@code rootFromPath}, which needs only the leaf, its index and the tree size.
+ */
+public final class MerkleTree {
+    public static final int HASH_BYTES = 32;
+
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+
+    private final int size;
+
+    // levels.get(0) holds the leaf hashes, the last level holds the root
+    private final List<byte[][]> levels = new ArrayList<>();
+
+    /**
+     * @param leafHashes the hashes of the leaves, from {@code leafHash}
+     */
+    public MerkleTree(@NonNull byte[][] leafHashes) {
+        this.size = leafHashes.length;
+
+        MessageDigest digest = sha256();
+        byte[][] level = leafHashes.length > 0 ? leafHashes.clone() : new byte[][] { digest.digest() };
+        levels.add(level);
+
+        while (level.length > 1) {
+            byte[][] parent = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parent.length; i++) {
+                int left = i * 2;
+                parent[i] = left + 1 < level.length
+                        ? nodeHash(digest, level[left], level[left + 1])
+                        : level[left];
+            }
+            levels.add(parent);
+            level = parent;
+        }
+    }
+
+    /**
+     * @param leaves the data of the leaves
+     * @return the tree over them
+     */
+    public static @NonNull MerkleTree of(@NonNull List<byte[]> leaves) {
+        MessageDigest digest = sha256();
+        byte[][] hashes = new byte[leaves.size()][];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = leafHash(digest, leaves.get(i));
+        }
+        return new MerkleTree(hashes);
+    }
+
+    /** @return the number of leaves */
+    public int size() {
+        return size;
+    }
+
+    public @NonNull byte[] root() {
+        return levels.get(levels.size() - 1)[0].clone();
+    }
+
+    /**
+     * @param index the leaf index
+     * @return the sibling hashes from the leaf up to the root
+     */
+    public @NonNull byte[][] auditPath(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Leaf " + index + " of " + size);
+        }
+
+        List<byte[]> path = new ArrayList<>();
+        for (int level = 0; level < levels.size() - 1; level++) {
+            byte[][] nodes = levels.get(level);
+            int sibling = index ^ 1;
+            if (sibling < nodes.length) {
+                path.add(nodes[sibling]);
+            }
+            index /= 2;
+        }
+        return path.toArray(new byte[0][]);
+    }
+
+    /**
+     * Compute the root from a leaf and its audit path, as in RFC 9162 section 2.1.3.2
+     *
+     * @param leafHash the hash of the leaf, from {@code leafHash}
+     * @param index the leaf index
+     * @param treeSize the number of leaves in the tree
+     * @param path the audit path of the leaf
+     * @return the root, or null if the path doesn't fit the index and tree size
+     */
+    public static @Nullable byte[] rootFromPath(@NonNull byte[] leafHash, long index, long treeSize,
+                                                @NonNull byte[][] path) {
+        if (index < 0 || index >= treeSize) {
+            return null;
+        }
+
+        MessageDigest digest = sha256();
+        byte[] hash = leafHash;
+        long fn = index;
+        long sn = treeSize - 1;
+        for (byte[] sibling : path) {
+            if (sn == 0 || sibling.length != HASH_BYTES) {
+                return null;
+            }
+            if ((fn & 1) == 1 || fn == sn) {
+                hash = nodeHash(digest, sibling, hash);
+                while ((fn & 1) == 0 && fn != 0) {
+                    fn >>= 1;
+                    sn >>= 1;
+                }
+            }
+            else {
+                hash = nodeHash(digest, hash, sibling);
+            }
+            fn >>= 1;
+            sn >>= 1;
+        }
+        return sn == 0 ? hash : null;
+    }
+
+    /**
+     * @param digest a SHA-256 digest, which is reset
+     * @param data the data of a leaf
+     * @return the hash of the leaf
+     */
+    public static @NonNull byte[] leafHash(@NonNull MessageDigest digest, @NonNull byte[] data) {
+        digest.update(LEAF_PREFIX);
+        return digest.digest(data);
+    }
+
+    /**
+     * @param digest a SHA-256 digest, which is reset
+     * @param data the data of a leaf, which is consumed
+     * @return the hash of the leaf
+     */
+    public static @NonNull byte[] leafHash(@NonNull MessageDigest digest, @NonNull ByteBuffer data) {
+        digest.update(LEAF_PREFIX);
+        digest.update(data);
+        return digest.digest();
+    }
+
+    public static @NonNull MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            // Every Android and Java platform has SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static @NonNull byte[] nodeHash(@NonNull MessageDigest digest, @NonNull byte[] left, @NonNull byte[] right) {
+        digest.update(NODE_PREFIX);
+        digest.update(left);
+        return digest.digest(right);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.merkle;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class MerkleTreeTest {
+
+    // The leaves and tree roots of the RFC 6962 reference tests
+    private static final String[] LEAVES = {
+            "", "00", "10", "2021", "3031", "40414243", "5051525354555657",
+            "606162636465666768696a6b6c6d6e6f"
+    };
+    private static final String[] ROOTS = {
+            "6e340b9cffb37a989ca544e6bb780a2c78901d3fb33738768511a30617afa01d",
+            "fac54203e7cc696cf0dfcb42c92a1d9dbaf70ad9e621f4bd8d98662f00e3c125",
+            "aeb6bcfe274b70a14fb067a5e5578264db0fa9b51af5e0ba159158f329e06e77",
+            "d37ee418976dd95753c1c73862b9398fa2a2cf9b4ff0fdfe8b30cd95209614b7",
+            "4e3bbb1f7b478dcfe71fb631631519a3bca12c9aefca1612bfce4c13a86264d4",
+            "76e67dadbcdf1e10e1b74ddc608abd2f98dfb16fbce75277b5232a127f2087ef",
+            "ddb89be403809e325750d3d263cd78929c2942b7942a34b77e122c9594a74c8c",
+            "5dc9da79a70659a9ad559cb701ded9a2ab9d823aad2f4960cfe370eff4604328"
+    };
+    private static final String EMPTY_ROOT = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static List<byte[]> leaves(int count) {
+        List<byte[]> leaves = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            leaves.add(hex(LEAVES[i]));
+        }
+        return leaves;
+    }
+
+    private static byte[] leafHash(String leaf) {
+        return MerkleTree.leafHash(MerkleTree.sha256(), hex(leaf));
+    }
+
+    @Test
+    public void rootsMatchReferenceVectors() {
+        for (int size = 1; size <= LEAVES.length; size++) {
+            assertArrayEquals("size " + size, hex(ROOTS[size - 1]), MerkleTree.of(leaves(size)).root());
+        }
+    }
+
+    @Test
+    public void emptyTreeHasEmptyHashAsRoot() {
+        MerkleTree tree = MerkleTree.of(Collections.<byte[]>emptyList());
+        assertEquals(0, tree.size());
+        assertArrayEquals(hex(EMPTY_ROOT), tree.root());
+    }
+
+    @Test
+    public void bufferAndArrayLeavesHashTheSame() {
+        MessageDigest digest = MerkleTree.sha256();
+        for (String leaf : LEAVES) {
+            assertArrayEquals(MerkleTree.leafHash(digest, hex(leaf)),
+                    MerkleTree.leafHash(digest, ByteBuffer.wrap(hex(leaf))));
+        }
+    }
+
+    @Test
+    public void everyPathLeadsToTheRoot() {
+        for (int size = 1; size <= LEAVES.length; size++) {
+            MerkleTree tree = MerkleTree.of(leaves(size));
+            for (int index = 0; index < size; index++) {
+                assertArrayEquals("leaf " + index + " of " + size, hex(ROOTS[size - 1]),
+                        MerkleTree.rootFromPath(leafHash(LEAVES[index]), index, size, tree.auditPath(index)));
+            }
+        }
+    }
+
+    @Test
+    public void pathForAnotherLeafFails() {
+        MerkleTree tree = MerkleTree.of(leaves(LEAVES.length));
+        byte[] root = MerkleTree.rootFromPath(leafHash(LEAVES[3]), 2, LEAVES.length, tree.auditPath(2));
+        assertFalse(Arrays.equals(tree.root(), root));
+    }
+
+    @Test
+    public void malformedPathsAreRejected() {
+        MerkleTree tree = MerkleTree.of(leaves(7));
+        byte[][] path = tree.auditPath(6);
+        byte[] leaf = leafHash(LEAVES[6]);
+
+        // Index outside the tree, path too short, path too long, sibling of the wrong length
+        assertNull(MerkleTree.rootFromPath(leaf, 7, 7, path));
+        assertNull(MerkleTree.rootFromPath(leaf, 6, 7, Arrays.copyOf(path, path.length - 1)));
+        byte[][] longer = Arrays.copyOf(path, path.length + 1);
+        longer[path.length] = new byte[MerkleTree.HASH_BYTES];
+        assertNull(MerkleTree.rootFromPath(leaf, 6, 7, longer));
+        byte[][] shortSibling = path.clone();
+        shortSibling[0] = new byte[MerkleTree.HASH_BYTES - 1];
+        assertNull(MerkleTree.rootFromPath(leaf, 6, 7, shortSibling));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void auditPathOutsideTreeIsRejected() {
+        MerkleTree.of(leaves(3)).auditPath(3);
+    }
+}
@@ -49,6 +49,9 @@ import com.rivetz.bridge.RivetApiActivity;
 
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.rivetz.api.RivetRules.REQUIRE_DUAL_ROOT;
 
@@ -71,6 +74,13 @@ public class MainActivity extends RivetApiActivity {
     private static boolean pairSuccess = false; /** true if the Rivet is paired */
     private static boolean drtSupported = false; /** true if Dual Root of Trust is supported */
 
+    // Runs the startup of each activity instance in turn, on one named background thread
+    private static final ExecutorService STARTUP_EXECUTOR =
+            Executors.newSingleThreadExecutor(task -> new Thread(task, "rivet-startup"));
+
+    // Held so the startup can be cancelled when the activity is destroyed
+    private Future<?> startup = null;
+
     @Override
     public void onCreate(@NonNull Bundle savedInstanceState) {
 
@@ -94,7 +104,16 @@ public class MainActivity extends RivetApiActivity {
         findViewById(R.id.loading).setVisibility(View.VISIBLE);
 
         // Put all of the high latency, asynchronous work on a background thread
-        new Thread(this::doStartup).start();
+        startup = STARTUP_EXECUTOR.submit(this::doStartup);
+    }
+
+    @Override
+    public void onDestroy() {
+        // Cancel the startup if it is still queued or running, for example after a rotation
+        if (startup != null) {
+            startup.cancel(true);
+        }
+        super.onDestroy();
     }
 
     /**
@@ -123,6 +142,11 @@ public class MainActivity extends RivetApiActivity {
             reason = ex;
         }
 
+        // Nothing to update if the activity is gone
+        if (isDestroyed()) {
+            return;
+        }
+
         if (reason != null) {
 
             // If the error is that the Rivet isn't installed, the user was sent to the PlayStore,
@@ -168,7 +192,9 @@ public class MainActivity extends RivetApiActivity {
 
 
         // Now update the UI with the results
-        runOnUiThread(this::startupComplete);
+        if (!isDestroyed()) {
+            runOnUiThread(this::startupComplete);
+        }
     }
 
     /**
@@ -224,7 +250,10 @@ public class MainActivity extends RivetApiActivity {
      */
     private void alertFromBgThread(@NonNull String text) {
         runOnUiThread(()->{
-            alertFromUiThread(text);
+            // The window is gone once the activity is destroyed
+            if (!isDestroyed()) {
+                alertFromUiThread(text);
+            }
         });
     }
 
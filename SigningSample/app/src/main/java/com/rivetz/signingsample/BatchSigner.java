@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.signingsample;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetHashTypes;
+import com.rivetz.merkle.MerkleTree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signs messages in batches, with one Rivet signature per batch
+ *
+ * Messages are collected until the batch is full or the oldest message has waited for the
+ * batch window. The batch is then hashed into a Merkle tree in process, and only the tree head
+ * is signed with the riveted NISTP256 key. Each message gets a receipt holding the signed tree
+ * head and a proof that the message is in the tree, which {@code BatchVerifier} checks.
+ *
+ * So signing n messages costs one IPC and TEE round trip instead of n, at the cost of up to
+ * one window of latency per message.
+ */
+public final class BatchSigner {
+
+    // A message waiting for its batch to be signed
+    private static final class Pending {
+        final byte[] message;
+        final CompletableFuture<BatchReceipt> receipt = new CompletableFuture<>();
+
+        Pending(@NonNull byte[] message) {
+            this.message = message;
+        }
+    }
+
+    private final RivetCrypto crypto;
+    private final String keyName;
+    private final ScheduledExecutorService executor;
+    private final int maxBatchSize;
+    private final long windowMillis;
+    private final AtomicLong signatures = new AtomicLong();
+
+    private List<Pending> pending = new ArrayList<>();
+    private ScheduledFuture<?> windowTimer = null;
+
+    /**
+     * @param crypto the Rivet
+     * @param keyName the name of the riveted {@code NISTP256} key
+     * @param executor builds the trees and runs the batch window timer
+     * @param maxBatchSize a batch is signed as soon as it has this many messages
+     * @param windowMillis a batch is signed this long after its first message at the latest
+     */
+    public BatchSigner(@NonNull RivetCrypto crypto, @NonNull String keyName,
+                       @NonNull ScheduledExecutorService executor, int maxBatchSize, long windowMillis) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.crypto = crypto;
+        this.keyName = keyName;
+        this.executor = executor;
+        this.maxBatchSize = maxBatchSize;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Add a message to the current batch
+     *
+     * @param message the message
+     * @return a future for the receipt, completed when the batch is signed
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<BatchReceipt> sign(@NonNull byte[] message) {
+        Pending entry = new Pending(message.clone());
+        List<Pending> full = null;
+
+        synchronized (this) {
+            pending.add(entry);
+            if (pending.size() >= maxBatchSize) {
+                full = takeBatch();
+            }
+            else if (windowTimer == null) {
+                windowTimer = executor.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (full != null) {
+            List<Pending> batch = full;
+            executor.execute(() -> signBatch(batch));
+        }
+        return entry.receipt;
+    }
+
+    /**
+     * Sign the current batch now, without waiting for it to fill or for its window
+     */
+    @AnyThread
+    public void flush() {
+        List<Pending> batch;
+        synchronized (this) {
+            batch = takeBatch();
+        }
+        if (!batch.isEmpty()) {
+            executor.execute(() -> signBatch(batch));
+        }
+    }
+
+    /**
+     * @return the number of batches signed by the Rivet so far
+     */
+    @AnyThread
+    public long getSignatureCount() {
+        return signatures.get();
+    }
+
+    private @NonNull List<Pending> takeBatch() {
+        List<Pending> batch = pending;
+        pending = new ArrayList<>();
+        if (windowTimer != null) {
+            windowTimer.cancel(false);
+            windowTimer = null;
+        }
+        return batch;
+    }
+
+    private void signBatch(@NonNull List<Pending> batch) {
+        List<byte[]> messages = new ArrayList<>(batch.size());
+        for (Pending entry : batch) {
+            messages.add(entry.message);
+        }
+
+        MerkleTree tree;
+        try {
+            tree = MerkleTree.of(messages);
+        }
+        catch (RuntimeException ex) {
+            for (Pending entry : batch) {
+                entry.receipt.completeExceptionally(ex);
+            }
+            return;
+        }
+
+        byte[] root = tree.root();
+        signatures.incrementAndGet();
+        crypto.sign(keyName, SignedTreeHead.signedBytes(tree.size(), root), RivetHashTypes.SHA256)
+                .whenComplete((signature, thrown) -> {
+                    if (thrown != null) {
+                        for (Pending entry : batch) {
+                            entry.receipt.completeExceptionally(thrown);
+                        }
+                        return;
+                    }
+
+                    SignedTreeHead treeHead = new SignedTreeHead(tree.size(), root, signature);
+                    for (int i = 0; i < batch.size(); i++) {
+                        InclusionProof proof = new InclusionProof(i, tree.size(), tree.auditPath(i));
+                        batch.get(i).receipt.complete(new BatchReceipt(treeHead, proof));
+                    }
+                });
+    }
+}
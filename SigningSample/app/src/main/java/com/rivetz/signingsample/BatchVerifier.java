@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.signingsample;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.RivetHashTypes;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Verifies messages signed by a {@code BatchSigner}
+ *
+ * The inclusion proof is checked in process. The signature over the tree head is checked once
+ * per batch by a {@code LocalVerifier}: the check of each recent tree head and signature is
+ * shared, so the other messages of the same batch only need the proof checked, even when they
+ * are verified before the first check completes.
+ */
+public final class BatchVerifier {
+    private static final int VERIFIED_HEADS = 64;
+
+    private final LocalVerifier verifier;
+    private final String keyName;
+
+    // The checks of recent tree heads, keyed by the signed bytes followed by the signature,
+    // least recently used first. A check that fails or finds the signature invalid is removed,
+    // so a forged receipt can't make the real one fail. A check is only valid for the key it was
+    // made with, so they are all dropped when the key is replaced.
+    private final Map<ByteBuffer, CompletableFuture<Boolean>> checks = Collections.synchronizedMap(
+            new LinkedHashMap<ByteBuffer, CompletableFuture<Boolean>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, CompletableFuture<Boolean>> eldest) {
+                    return size() > VERIFIED_HEADS;
+                }
+            });
+
+    /**
+     * @param verifier verifies the tree head signatures
+     * @param keyName the name of the riveted {@code NISTP256} key the batches were signed with
+     */
+    public BatchVerifier(@NonNull LocalVerifier verifier, @NonNull String keyName) {
+        this.verifier = verifier;
+        this.keyName = keyName;
+    }
+
+    /**
+     * Verify a message
+     *
+     * @param message the message
+     * @param receipt the receipt the signer returned for the message
+     * @return a future for true if the message is in the batch and the batch was signed with
+     * the key
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<Boolean> verify(@NonNull byte[] message, @NonNull BatchReceipt receipt) {
+        SignedTreeHead treeHead = receipt.getTreeHead();
+        InclusionProof proof = receipt.getProof();
+
+        byte[] root = proof.rootFor(message);
+        if (root == null || proof.getTreeSize() != treeHead.getTreeSize()
+                || !MessageDigest.isEqual(root, treeHead.getRoot())) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        byte[] signed = treeHead.signedBytes();
+        byte[] signature = treeHead.getSignature().getBytes();
+        ByteBuffer key = ByteBuffer.allocate(signed.length + signature.length).put(signed).put(signature);
+        key.flip();
+
+        CompletableFuture<Boolean> check = checks.computeIfAbsent(key,
+                k -> verifier.verify(keyName, signed, RivetHashTypes.SHA256, treeHead.getSignature()));
+        check.whenComplete((valid, th) -> {
+            if (th != null || !valid) {
+                checks.remove(key, check);
+            }
+        });
+        // Each caller gets its own future, so cancelling one doesn't cancel the shared check
+        return check.thenApply(valid -> valid);
+    }
+
+    /**
+     * Forget the checked tree heads. Call this when the key is deleted or created, after the
+     * {@code PublicKeyCache} of the verifier has forgotten the key, so no check made with the
+     * old public key is kept. A check in flight still completes for its callers.
+     */
+    @AnyThread
+    public void invalidate() {
+        checks.clear();
+    }
+}
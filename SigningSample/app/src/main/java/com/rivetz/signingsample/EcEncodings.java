@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.signingsample;
+
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetHashTypes;
+import com.rivetz.api.Signature;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Converts between the Rivet's key and signature encodings and the {@code java.security} ones
+ *
+ * A NISTP256 public key may be exported either as an X.509 SubjectPublicKeyInfo or as a bare
+ * uncompressed point, and a signature either as DER or as the 64 byte r || s. Both forms are
+ * accepted, so only this class changes if the Rivet's encoding does.
+ */
+final class EcEncodings {
+
+    // The SubjectPublicKeyInfo header for a P-256 key, followed by the 65 byte uncompressed point
+    private static final byte[] P256_SPKI_HEADER = {
+            0x30, 0x59, 0x30, 0x13, 0x06, 0x07, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x02, 0x01,
+            0x06, 0x08, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x03, 0x01, 0x07, 0x03, 0x42, 0x00
+    };
+    private static final int P256_POINT_BYTES = 65;
+    private static final int P256_RAW_SIGNATURE_BYTES = 64;
+
+    private EcEncodings() {
+    }
+
+    /**
+     * Export the public half of a riveted key
+     */
+    static @NonNull CompletableFuture<PublicKey> exportPublicKey(@NonNull RivetCrypto crypto, @NonNull String keyName) {
+        return crypto.getPublicKey(keyName).thenApply(encoded -> {
+            try {
+                return publicKey(encoded);
+            }
+            catch (GeneralSecurityException ex) {
+                throw new IllegalStateException("Unreadable public key for " + keyName, ex);
+            }
+        });
+    }
+
+    static @NonNull PublicKey publicKey(@NonNull byte[] encoded) throws GeneralSecurityException {
+        byte[] spki = encoded;
+        if (encoded.length == P256_POINT_BYTES && encoded[0] == 0x04) {
+            spki = Arrays.copyOf(P256_SPKI_HEADER, P256_SPKI_HEADER.length + encoded.length);
+            System.arraycopy(encoded, 0, spki, P256_SPKI_HEADER.length, encoded.length);
+        }
+        return KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(spki));
+    }
+
+    /**
+     * @return the signature as DER, which {@code java.security.Signature} expects
+     */
+    static @NonNull byte[] derSignature(@NonNull Signature signature) {
+        return derSignature(signature.getBytes());
+    }
+
+    /**
+     * @param bytes a signature, either DER or the raw 64 bytes of r and s
+     * @return the signature as DER
+     */
+    static @NonNull byte[] derSignature(@NonNull byte[] bytes) {
+        if (isDerSignature(bytes) || bytes.length != P256_RAW_SIGNATURE_BYTES) {
+            return bytes;
+        }
+
+        byte[] r = new BigInteger(1, Arrays.copyOfRange(bytes, 0, 32)).toByteArray();
+        byte[] s = new BigInteger(1, Arrays.copyOfRange(bytes, 32, 64)).toByteArray();
+        ByteArrayOutputStream der = new ByteArrayOutputStream(72);
+        der.write(0x30);
+        der.write(2 + r.length + 2 + s.length);
+        der.write(0x02);
+        der.write(r.length);
+        der.write(r, 0, r.length);
+        der.write(0x02);
+        der.write(s.length);
+        der.write(s, 0, s.length);
+        return der.toByteArray();
+    }
+
+    /**
+     * @return true if the bytes are a DER SEQUENCE of two INTEGERs whose lengths add up to
+     * exactly the whole
+     */
+    static boolean isDerSignature(@NonNull byte[] bytes) {
+        if (bytes.length < 8 || bytes[0] != 0x30) {
+            return false;
+        }
+
+        // The sequence length is one byte, or 0x81 and one byte for lengths of 128 and up
+        int position = 1;
+        int length = bytes[position++] & 0xFF;
+        if (length == 0x81) {
+            length = bytes[position++] & 0xFF;
+            if (length < 0x80) {
+                return false;
+            }
+        }
+        else if (length >= 0x80) {
+            return false;
+        }
+        if (position + length != bytes.length) {
+            return false;
+        }
+
+        for (int integer = 0; integer < 2; integer++) {
+            if (position + 2 > bytes.length || bytes[position] != 0x02) {
+                return false;
+            }
+            int integerLength = bytes[position + 1] & 0xFF;
+            if (integerLength == 0 || integerLength >= 0x80) {
+                return false;
+            }
+            position += 2 + integerLength;
+        }
+        return position == bytes.length;
+    }
+
+    /**
+     * @return the {@code java.security} algorithm name for ECDSA with a Rivet hash type, such as
+     * SHA256withECDSA
+     */
+    static @NonNull String signatureAlgorithm(@NonNull RivetHashTypes hashType) {
+        return hashType.name().replace("-", "").replace("_", "") + "withECDSA";
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.signingsample;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.rivetz.merkle.MerkleTree;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Proves that a message is in a signed batch
+ *
+ * The proof is the message's leaf index, the size of the tree and the hashes of the siblings
+ * on the way to the root, so it grows with the log of the batch size: 32 bytes per level,
+ * about 340 bytes for a batch of a thousand.
+ */
+public final class InclusionProof {
+    private final long leafIndex;
+    private final long treeSize;
+    private final byte[][] path;
+
+    InclusionProof(long leafIndex, long treeSize, @NonNull byte[][] path) {
+        this.leafIndex = leafIndex;
+        this.treeSize = treeSize;
+        this.path = path;
+    }
+
+    public long getLeafIndex() {
+        return leafIndex;
+    }
+
+    public long getTreeSize() {
+        return treeSize;
+    }
+
+    /**
+     * Compute the root of the tree the message is in
+     *
+     * @param message the message
+     * @return the root, or null if the proof is malformed
+     */
+    @Nullable byte[] rootFor(@NonNull byte[] message) {
+        byte[] leafHash = MerkleTree.leafHash(MerkleTree.sha256(), message);
+        return MerkleTree.rootFromPath(leafHash, leafIndex, treeSize, path);
+    }
+
+    /**
+     * @return the proof in its compact form: index (8), tree size (8), path length (1), path
+     */
+    public @NonNull byte[] toBytes() {
+        ByteBuffer out = ByteBuffer.allocate(8 + 8 + 1 + path.length * MerkleTree.HASH_BYTES)
+                .putLong(leafIndex)
+                .putLong(treeSize)
+                .put((byte) path.length);
+        for (byte[] hash : path) {
+            out.put(hash);
+        }
+        return out.array();
+    }
+
+    /**
+     * @param bytes a proof from {@code toBytes()}
+     * @return the proof
+     * @throws IllegalArgumentException if the bytes aren't a proof
+     */
+    public static @NonNull InclusionProof fromBytes(@NonNull byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (in.remaining() < 17) {
+            throw new IllegalArgumentException("Truncated inclusion proof");
+        }
+
+        long leafIndex = in.getLong();
+        long treeSize = in.getLong();
+        int length = in.get() & 0xFF;
+        if (in.remaining() != length * MerkleTree.HASH_BYTES) {
+            throw new IllegalArgumentException("Bad inclusion proof length");
+        }
+
+        byte[][] path = new byte[length][MerkleTree.HASH_BYTES];
+        for (byte[] hash : path) {
+            in.get(hash);
+        }
+        return new InclusionProof(leafIndex, treeSize, path);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof InclusionProof)) {
+            return false;
+        }
+        InclusionProof proof = (InclusionProof) other;
+        return leafIndex == proof.leafIndex && treeSize == proof.treeSize && Arrays.deepEquals(path, proof.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(leafIndex) + Arrays.deepHashCode(path);
+    }
+}
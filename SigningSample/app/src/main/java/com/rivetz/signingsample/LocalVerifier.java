@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.signingsample;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetHashTypes;
+import com.rivetz.api.Signature;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Verifies signatures made with riveted NISTP256 keys in process
+ *
+ * Verifying only needs the public key, so there is no need to send every verification through
+ * the Rivet. The public key is exported once and cached in a {@code PublicKeyCache}, then
+ * signatures are checked with {@code java.security}. If a key can't be exported, verification
+ * falls back to {@code crypto.verify()}.
+ */
+public final class LocalVerifier {
+
+    /**
+     * A signed message to verify
+     */
+    public static final class Signed {
+        final byte[] data;
+        final Signature signature;
+
+        public Signed(@NonNull byte[] data, @NonNull Signature signature) {
+            this.data = data;
+            this.signature = signature;
+        }
+    }
+
+    private final RivetCrypto crypto;
+    private final PublicKeyCache publicKeys;
+    private final Executor executor;
+    private final int parallelism;
+
+    /**
+     * @param crypto the Rivet, for exporting keys and the fallback
+     * @param publicKeys the public key cache
+     * @param executor runs the verifications
+     * @param parallelism how many parts a batch is split into, usually the number of cores
+     */
+    public LocalVerifier(@NonNull RivetCrypto crypto, @NonNull PublicKeyCache publicKeys,
+                         @NonNull Executor executor, int parallelism) {
+        this.crypto = crypto;
+        this.publicKeys = publicKeys;
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Verify a signature
+     *
+     * @param keyName the riveted key name
+     * @param data the signed data
+     * @param hashType the hash the signature was made with
+     * @param signature the signature
+     * @return a future for true if the signature is valid
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<Boolean> verify(@NonNull String keyName, @NonNull byte[] data,
+                                                     @NonNull RivetHashTypes hashType, @NonNull Signature signature) {
+        return publicKeys.get(keyName).handle((publicKey, thrown) -> publicKey)
+                .thenComposeAsync(publicKey -> {
+                    if (publicKey == null) {
+                        return crypto.verify(keyName, data, hashType, signature);
+                    }
+                    return CompletableFuture.completedFuture(verify(publicKey, hashType, data, signature));
+                }, executor);
+    }
+
+    /**
+     * Verify a batch of signatures, split across {@code parallelism} tasks on the executor
+     *
+     * @param keyName the riveted key name
+     * @param hashType the hash the signatures were made with
+     * @param batch the signed messages
+     * @return a future for whether each signature is valid, in the same order
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<boolean[]> verifyAll(@NonNull String keyName, @NonNull RivetHashTypes hashType,
+                                                           @NonNull List<Signed> batch) {
+        return publicKeys.get(keyName).handle((publicKey, thrown) -> publicKey)
+                .thenCompose(publicKey -> publicKey == null
+                        ? verifyAllWithRivet(keyName, hashType, batch)
+                        : verifyAllLocally(publicKey, hashType, batch));
+    }
+
+    private @NonNull CompletableFuture<boolean[]> verifyAllLocally(@NonNull PublicKey publicKey,
+                                                                   @NonNull RivetHashTypes hashType,
+                                                                   @NonNull List<Signed> batch) {
+        boolean[] results = new boolean[batch.size()];
+        int parts = Math.min(parallelism, Math.max(1, batch.size()));
+        List<CompletableFuture<Void>> tasks = new ArrayList<>(parts);
+
+        for (int part = 0; part < parts; part++) {
+            int from = (int) ((long) batch.size() * part / parts);
+            int to = (int) ((long) batch.size() * (part + 1) / parts);
+            tasks.add(CompletableFuture.runAsync(() -> {
+                // Each part has its own Signature instance, they aren't thread safe
+                java.security.Signature verifier = newVerifier(hashType);
+                for (int i = from; i < to; i++) {
+                    Signed signed = batch.get(i);
+                    results[i] = verify(verifier, publicKey, signed.data, signed.signature);
+                }
+            }, executor));
+        }
+
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).thenApply(done -> results);
+    }
+
+    private @NonNull CompletableFuture<boolean[]> verifyAllWithRivet(@NonNull String keyName,
+                                                                     @NonNull RivetHashTypes hashType,
+                                                                     @NonNull List<Signed> batch) {
+        List<CompletableFuture<Boolean>> checks = new ArrayList<>(batch.size());
+        for (Signed signed : batch) {
+            checks.add(crypto.verify(keyName, signed.data, hashType, signed.signature));
+        }
+
+        return CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            boolean[] results = new boolean[checks.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = checks.get(i).join();
+            }
+            return results;
+        });
+    }
+
+    private static boolean verify(@NonNull PublicKey publicKey, @NonNull RivetHashTypes hashType,
+                                  @NonNull byte[] data, @NonNull Signature signature) {
+        return verify(newVerifier(hashType), publicKey, data, signature);
+    }
+
+    private static boolean verify(@NonNull java.security.Signature verifier, @NonNull PublicKey publicKey,
+                                  @NonNull byte[] data, @NonNull Signature signature) {
+        try {
+            verifier.initVerify(publicKey);
+            verifier.update(data);
+            return verifier.verify(EcEncodings.derSignature(signature));
+        }
+        catch (GeneralSecurityException ex) {
+            // A malformed signature doesn't verify
+            return false;
+        }
+    }
+
+    private static @NonNull java.security.Signature newVerifier(@NonNull RivetHashTypes hashType) {
+        try {
+            return java.security.Signature.getInstance(EcEncodings.signatureAlgorithm(hashType));
+        }
+        catch (GeneralSecurityException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+}
@@ -48,10 +48,18 @@ import com.rivetz.api.RivetCrypto;
 import com.rivetz.api.Signature;
 import com.rivetz.bridge.DevicePropertyIds;
 import com.rivetz.bridge.RivetApiActivity;
+import com.rivetz.keys.KeyInventory;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static com.rivetz.api.RivetRules.REQUIRE_DUAL_ROOT;
 
@@ -67,8 +75,36 @@ public class MainActivity extends RivetApiActivity {
     private static boolean pairSuccess = false; /** true if the Rivet is paired */
     private static boolean drtSupported = false; /** true if Dual Root of Trust is supported */
     private static boolean hasKey = false; /** true if the activity key exists */
+
+    // Index of the signing keys, updated by the tracked crypto interface as keys come and go
+    private static final KeyInventory KEYS = new KeyInventory();
     private Signature signature = null; /** The signature that will be generated by this sample */
     private String message = null; /** The message that will be signed in this sample */
+    private BatchSigner batchSigner = null; /** Signs events in batches, one Rivet signature per batch */
+    private BatchVerifier batchVerifier = null; /** Verifies the events signed in batches */
+    private PublicKeyCache publicKeys = null; /** The exported public keys, used to verify in process */
+    private LocalVerifier verifier = null; /** Verifies signatures in process */
+
+    // The number of events the batch button signs, and the batch size and window
+    private static final int BATCH_EVENTS = 1000;
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long BATCH_WINDOW_MILLIS = 50;
+
+    // The single thread the startup runs on, kept for the life of the process
+    private static final ExecutorService STARTUP_EXECUTOR =
+            Executors.newSingleThreadExecutor(task -> new Thread(task, "rivet-startup"));
+
+    // This activity's startup, so onDestroy() can cancel it
+    private Future<?> startup = null;
+
+    // Builds the Merkle trees and runs the batch windows
+    private static final ScheduledExecutorService BATCH_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(task -> new Thread(task, "rivet-batch"));
+
+    // Verifies signatures in process, one thread per core
+    private static final int VERIFY_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService VERIFY_EXECUTOR =
+            Executors.newFixedThreadPool(VERIFY_THREADS, task -> new Thread(task, "rivet-verify"));
 
     @Override
     public void onCreate(@NonNull Bundle savedInstanceState) {
@@ -92,8 +128,18 @@ public class MainActivity extends RivetApiActivity {
         // Now there will be a delay running the startup in the background. Entertain the user...
         findViewById(R.id.loading).setVisibility(View.VISIBLE);
 
-        // Put all of the high latency, asynchronous work on a background thread
-        new Thread(this::doStartup).start();
+        // Block on pairing and the key checks on the startup thread rather than the UI thread
+        startup = STARTUP_EXECUTOR.submit(this::doStartup);
+    }
+
+    @Override
+    public void onDestroy() {
+        // After a rotation the new activity queues its startup on the same thread. Cancel this
+        // one so a pairing prompt it is waiting on doesn't delay the new one.
+        if (startup != null) {
+            startup.cancel(true);
+        }
+        super.onDestroy();
     }
 
     /**
@@ -110,6 +156,7 @@ public class MainActivity extends RivetApiActivity {
      * {@code hasKey} is set true if the key name defined in the activity exists
      */
     private void doStartup() {
+        CompletableFuture<KeyInventory> keysListed = null;
         Exception reason = null;
 
         // Pair with the SPID, block until it completes
@@ -123,6 +170,11 @@ public class MainActivity extends RivetApiActivity {
             reason = ex;
         }
 
+        // The activity was destroyed, perhaps by a rotation. Its replacement does its own startup.
+        if (isDestroyed()) {
+            return;
+        }
+
         if (reason != null) {
 
             // If the error is that the Rivet isn't installed, the user was sent to the PlayStore,
@@ -147,7 +199,11 @@ public class MainActivity extends RivetApiActivity {
             // The Rivet is paired, get an instance of the crypto interface
             // NOTE: This method could throw a RivetRuntimeException(), but only
             // for not being paired, so it doesn't need a try/catch
-            crypto = getRivetCrypto();
+            crypto = KEYS.track(getRivetCrypto());
+
+            // Start listing the keys now. It only depends on pairing, so it can run
+            // while DRT support is being checked
+            keysListed = KEYS.refresh(crypto, RivetKeyTypes.NISTP256);
 
             try {
                 // Check if DRT is supported, block until it completes
@@ -166,13 +222,11 @@ public class MainActivity extends RivetApiActivity {
             }
         }
 
-        // If we have the crypto instance, check for the key
-        if (crypto != null) {
+        // If the key listing was started, check for the key
+        if (keysListed != null) {
             try {
-                List<String> keyNames = crypto.getKeyNamesOf(RivetKeyTypes.NISTP256).get();
-                if (keyNames.contains(KEY_NAME)) {
-                    hasKey = true;
-                }
+                keysListed.get();
+                hasKey = KEYS.contains(RivetKeyTypes.NISTP256, KEY_NAME);
             }
             catch (ExecutionException ex) {
                 reason = ex;
@@ -186,7 +240,9 @@ public class MainActivity extends RivetApiActivity {
         }
 
         // Now update the UI with the results
-        runOnUiThread(this::startupComplete);
+        if (!isDestroyed()) {
+            runOnUiThread(this::startupComplete);
+        }
     }
 
     /**
@@ -204,6 +260,11 @@ public class MainActivity extends RivetApiActivity {
             System.exit(1);
         } else {
 
+            publicKeys = new PublicKeyCache(crypto);
+            verifier = new LocalVerifier(crypto, publicKeys, VERIFY_EXECUTOR, VERIFY_THREADS);
+            batchSigner = new BatchSigner(crypto, KEY_NAME, BATCH_EXECUTOR, MAX_BATCH_SIZE, BATCH_WINDOW_MILLIS);
+            batchVerifier = new BatchVerifier(verifier, KEY_NAME);
+
             if (drtSupported) {
                 alertFromBgThread("DRT supported");
             } else {
@@ -244,8 +305,11 @@ public class MainActivity extends RivetApiActivity {
      */
     private void createKeyComplete(Void v, @Nullable Throwable thrown){
         if (thrown == null){
-            // No exception means the key has been created
+            // No exception means the key has been created. A key with this name may have
+            // existed before, so forget its public key and the batches it verified.
             hasKey = true;
+            publicKeys.invalidate(KEY_NAME);
+            batchVerifier.invalidate();
         }
         else {
             alertFromBgThread(thrown.getMessage());
@@ -272,6 +336,7 @@ public class MainActivity extends RivetApiActivity {
         crypto.sign(KEY_NAME, message.getBytes(StandardCharsets.UTF_8), RivetHashTypes.SHA256).whenComplete(this::signComplete);
         // Disable signing
         makeUnclickable(findViewById(R.id.sign));
+        makeUnclickable(findViewById(R.id.signEvents));
     }
 
 
@@ -303,7 +368,8 @@ public class MainActivity extends RivetApiActivity {
             alertFromUiThread("Both messages are fake!");
         }
         else {
-            crypto.verify(KEY_NAME, message.getBytes(), RivetHashTypes.SHA256, signature).whenComplete(this::verifyComplete);
+            // Verification only needs the public key, so it doesn't go through the Rivet
+            verifier.verify(KEY_NAME, message.getBytes(), RivetHashTypes.SHA256, signature).whenComplete(this::verifyComplete);
         }
     }
 
@@ -328,6 +394,49 @@ public class MainActivity extends RivetApiActivity {
         sethasKeyUI();
     }
 
+    /**
+     * Sign a stream of events in batches, then verify every one. Each batch costs one Rivet
+     * signature, and each verification after the first of a batch only checks a Merkle proof.
+     *
+     * @param v The Android View.
+     */
+    public void signEvents(@NonNull View v) {
+        setUiDisabled();
+
+        long start = System.nanoTime();
+        long signaturesBefore = batchSigner.getSignatureCount();
+        List<byte[]> events = new ArrayList<>(BATCH_EVENTS);
+        List<CompletableFuture<BatchReceipt>> receipts = new ArrayList<>(BATCH_EVENTS);
+        for (int i = 0; i < BATCH_EVENTS; i++) {
+            byte[] event = ("Event " + i).getBytes(StandardCharsets.UTF_8);
+            events.add(event);
+            receipts.add(batchSigner.sign(event));
+        }
+        batchSigner.flush();
+
+        CompletableFuture.allOf(receipts.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(signed -> {
+                    List<CompletableFuture<Boolean>> checks = new ArrayList<>(BATCH_EVENTS);
+                    for (int i = 0; i < BATCH_EVENTS; i++) {
+                        checks.add(batchVerifier.verify(events.get(i), receipts.get(i).join()));
+                    }
+                    return CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0]))
+                            .thenApply(verified -> checks.stream().filter(CompletableFuture::join).count());
+                })
+                .whenComplete((valid, thrown) -> {
+                    if (thrown != null) {
+                        alertFromBgThread(thrown.getMessage());
+                    }
+                    else {
+                        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                        alertFromBgThread("Signed " + BATCH_EVENTS + " events with "
+                                + (batchSigner.getSignatureCount() - signaturesBefore) + " Rivet signatures, "
+                                + valid + " verified, in " + millis + " ms");
+                    }
+                    runOnUiThread(this::sethasKeyUI);
+                });
+    }
+
     /**
      * Disable all Rivet related controls while pairing
      *
@@ -342,6 +451,7 @@ public class MainActivity extends RivetApiActivity {
         if(hasKey){
             makeClickable(findViewById(R.id.sign));
             makeClickable(findViewById(R.id.checkAuthenticity));
+            makeClickable(findViewById(R.id.signEvents));
             makeUnclickable(findViewById(R.id.createKey));
         }
         else {
@@ -361,7 +471,10 @@ public class MainActivity extends RivetApiActivity {
      */
     private void alertFromBgThread(@NonNull String text) {
         runOnUiThread(()->{
-            alertFromUiThread(text);
+            // Drop the alert if the activity went away meanwhile
+            if (!isDestroyed()) {
+                alertFromUiThread(text);
+            }
         });
     }
 
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.signingsample;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.RivetCrypto;
+
+import java.security.PublicKey;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the public half of riveted NISTP256 keys, by key name
+ *
+ * The first request for a key exports it from the Rivet, and requests made while that export
+ * is in flight share it. A failed export, for example of a key that doesn't exist, is cached
+ * too, but only for a while, so a burst of verifications against a missing key makes one
+ * export rather than one each. The cache must be told when a key is deleted or created, since
+ * a new key with the same name has a different public key.
+ */
+public final class PublicKeyCache {
+    /** How long a failed export is remembered by default */
+    public static final long DEFAULT_FAILURE_TTL_MILLIS = 30_000;
+
+    /**
+     * The export of one key. A failed export can be tried again once its time is up.
+     */
+    private static final class Entry {
+        final CompletableFuture<PublicKey> key = new CompletableFuture<>();
+        // Set before the future fails
+        volatile long retryAtNanos = 0;
+
+        boolean isExpired() {
+            return key.isCompletedExceptionally() && System.nanoTime() - retryAtNanos >= 0;
+        }
+    }
+
+    private final RivetCrypto crypto;
+    private final long failureTtlNanos;
+    private final Map<String, Entry> keys = new ConcurrentHashMap<>();
+
+    /**
+     * @param crypto the Rivet
+     */
+    public PublicKeyCache(@NonNull RivetCrypto crypto) {
+        this(crypto, DEFAULT_FAILURE_TTL_MILLIS);
+    }
+
+    /**
+     * @param crypto the Rivet
+     * @param failureTtlMillis how long a failed export is remembered
+     */
+    public PublicKeyCache(@NonNull RivetCrypto crypto, long failureTtlMillis) {
+        this.crypto = crypto;
+        this.failureTtlNanos = TimeUnit.MILLISECONDS.toNanos(failureTtlMillis);
+    }
+
+    /**
+     * @param keyName the riveted key name
+     * @return a future for the public key
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<PublicKey> get(@NonNull String keyName) {
+        while (true) {
+            Entry entry = keys.get(keyName);
+            if (entry != null) {
+                if (!entry.isExpired()) {
+                    return entry.key;
+                }
+                keys.remove(keyName, entry);
+                continue;
+            }
+
+            Entry export = new Entry();
+            if (keys.putIfAbsent(keyName, export) != null) {
+                continue;
+            }
+
+            EcEncodings.exportPublicKey(crypto, keyName).whenComplete((publicKey, thrown) -> {
+                if (thrown != null) {
+                    export.retryAtNanos = System.nanoTime() + failureTtlNanos;
+                    export.key.completeExceptionally(thrown);
+                }
+                else {
+                    export.key.complete(publicKey);
+                }
+            });
+            return export.key;
+        }
+    }
+
+    /**
+     * Forget a key. Call this when the key is deleted or created. An export in flight is
+     * still completed for its callers, but isn't cached.
+     *
+     * @param keyName the riveted key name
+     */
+    @AnyThread
+    public void invalidate(@NonNull String keyName) {
+        keys.remove(keyName);
+    }
+
+    /**
+     * Forget every key
+     */
+    @AnyThread
+    public void invalidateAll() {
+        keys.clear();
+    }
+}
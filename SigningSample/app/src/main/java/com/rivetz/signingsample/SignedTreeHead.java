@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.signingsample;
+
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.Signature;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The signed head of a batch: the tree size and root, and the Rivet's signature over them
+ *
+ * Every message in a batch shares one {@code SignedTreeHead}, so it only needs to be stored or
+ * sent once per batch.
+ */
+public final class SignedTreeHead {
+    private static final byte[] DOMAIN = { 'R', 'V', 'M', 'B' };
+
+    private final long treeSize;
+    private final byte[] root;
+    private final Signature signature;
+
+    SignedTreeHead(long treeSize, @NonNull byte[] root, @NonNull Signature signature) {
+        this.treeSize = treeSize;
+        this.root = root;
+        this.signature = signature;
+    }
+
+    public long getTreeSize() {
+        return treeSize;
+    }
+
+    public @NonNull byte[] getRoot() {
+        return root.clone();
+    }
+
+    public @NonNull Signature getSignature() {
+        return signature;
+    }
+
+    /**
+     * The bytes the Rivet signs. The tree size is included so a proof can't claim a different
+     * shape of tree with the same root.
+     *
+     * @return {@code "RVMB" || tree size (8) || root (32)}
+     */
+    static @NonNull byte[] signedBytes(long treeSize, @NonNull byte[] root) {
+        return ByteBuffer.allocate(DOMAIN.length + 8 + root.length)
+                .put(DOMAIN)
+                .putLong(treeSize)
+                .put(root)
+                .array();
+    }
+
+    @NonNull byte[] signedBytes() {
+        return signedBytes(treeSize, root);
+    }
+}
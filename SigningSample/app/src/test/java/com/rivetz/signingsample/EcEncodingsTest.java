@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.signingsample;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EcEncodingsTest {
+
+    private static final byte[] DATA = { 1, 2, 3, 4 };
+
+    // The raw r and s of a DER signature, each as 32 bytes
+    private static byte[] raw(byte[] der) {
+        int rLength = der[3];
+        int sLength = der[5 + rLength];
+        byte[] raw = new byte[64];
+        unsigned(Arrays.copyOfRange(der, 4, 4 + rLength), raw, 0);
+        unsigned(Arrays.copyOfRange(der, 6 + rLength, 6 + rLength + sLength), raw, 32);
+        return raw;
+    }
+
+    private static void unsigned(byte[] integer, byte[] into, int offset) {
+        byte[] bytes = new BigInteger(1, integer).toByteArray();
+        int length = Math.min(32, bytes.length);
+        System.arraycopy(bytes, bytes.length - length, into, offset + 32 - length, length);
+    }
+
+    // A DER signature of exactly 64 bytes, with a 29 byte r and s
+    private static byte[] shortDer() {
+        byte[] der = new byte[64];
+        der[0] = 0x30;
+        der[1] = 62;
+        der[2] = 0x02;
+        der[3] = 29;
+        der[4] = 0x11;
+        der[33] = 0x02;
+        der[34] = 29;
+        der[35] = 0x22;
+        return der;
+    }
+
+    @Test
+    public void rawSignatureVerifiesAsDer() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair pair = generator.generateKeyPair();
+
+        for (int i = 0; i < 20; i++) {
+            Signature signer = Signature.getInstance("SHA256withECDSA");
+            signer.initSign(pair.getPrivate());
+            signer.update(DATA);
+            byte[] der = signer.sign();
+            assertTrue(EcEncodings.isDerSignature(der));
+            assertArrayEquals(der, EcEncodings.derSignature(der));
+
+            byte[] raw = raw(der);
+            assertFalse(EcEncodings.isDerSignature(raw));
+            Signature verifier = Signature.getInstance("SHA256withECDSA");
+            verifier.initVerify(pair.getPublic());
+            verifier.update(DATA);
+            assertTrue(verifier.verify(EcEncodings.derSignature(raw)));
+        }
+    }
+
+    @Test
+    public void derOfRawLengthIsLeftAlone() {
+        byte[] der = shortDer();
+        assertTrue(EcEncodings.isDerSignature(der));
+        assertArrayEquals(der, EcEncodings.derSignature(der));
+    }
+
+    @Test
+    public void rawStartingWithSequenceTagIsConverted() {
+        byte[] raw = new byte[64];
+        Arrays.fill(raw, (byte) 0x30);
+        assertFalse(EcEncodings.isDerSignature(raw));
+        byte[] der = EcEncodings.derSignature(raw);
+        assertTrue(EcEncodings.isDerSignature(der));
+    }
+
+    @Test
+    public void inconsistentLengthsAreNotDer() {
+        byte[] der = shortDer();
+
+        byte[] sequence = der.clone();
+        sequence[1] = 61;
+        assertFalse(EcEncodings.isDerSignature(sequence));
+
+        byte[] integer = der.clone();
+        integer[3] = 30;
+        assertFalse(EcEncodings.isDerSignature(integer));
+
+        byte[] tag = der.clone();
+        tag[33] = 0x04;
+        assertFalse(EcEncodings.isDerSignature(tag));
+
+        assertFalse(EcEncodings.isDerSignature(Arrays.copyOf(der, 63)));
+    }
+}
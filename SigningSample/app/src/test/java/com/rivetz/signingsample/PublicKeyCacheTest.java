@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.signingsample;
+
+import com.rivetz.api.RivetCrypto;
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.security.PublicKey;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PublicKeyCacheTest {
+
+    // A Rivet whose exports all fail, as they do for a key that doesn't exist
+    private static RivetCrypto failing(AtomicInteger exports) {
+        return (RivetCrypto) Proxy.newProxyInstance(RivetCrypto.class.getClassLoader(),
+                new Class<?>[] { RivetCrypto.class }, (proxy, method, args) -> {
+                    if (!method.getName().equals("getPublicKey")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    exports.incrementAndGet();
+                    CompletableFuture<byte[]> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(new IllegalArgumentException("No such key"));
+                    return failed;
+                });
+    }
+
+    @Test
+    public void failedExportIsCachedUntilItExpires() throws Exception {
+        AtomicInteger exports = new AtomicInteger();
+        PublicKeyCache cache = new PublicKeyCache(failing(exports), 50);
+
+        for (int i = 0; i < 100; i++) {
+            CompletableFuture<PublicKey> key = cache.get("missing");
+            assertTrue(key.isCompletedExceptionally());
+        }
+        assertEquals(1, exports.get());
+
+        Thread.sleep(100);
+        assertTrue(cache.get("missing").isCompletedExceptionally());
+        assertEquals(2, exports.get());
+    }
+
+    @Test
+    public void invalidateForgetsFailure() {
+        AtomicInteger exports = new AtomicInteger();
+        PublicKeyCache cache = new PublicKeyCache(failing(exports));
+
+        cache.get("missing");
+        cache.invalidate("missing");
+        cache.get("missing");
+        assertEquals(2, exports.get());
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.singleton_rivet;
+
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetHashTypes;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Measures a hash in the Rivet against the same hash in process, on a paired device
+ *
+ * This is what a {@code HashRouter.Policy} should be tuned with: the JMH benchmark runs on a
+ * simulated Rivet and can't tell what the TEE round trip costs on a real one. For each hash
+ * type and payload size, the median time of each route is written to the log under the
+ * {@code HashCalibration} tag. The test checks that both routes give the same bytes, and is
+ * skipped if the device can't pair.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HashRoutingCalibrationTest {
+    private static final String TAG = "HashCalibration";
+
+    private static final RivetHashTypes[] HASH_TYPES = {
+            RivetHashTypes.SHA256, RivetHashTypes.SHA512, RivetHashTypes.SHA1
+    };
+    // Kept well under the 1 MB binder transaction limit
+    private static final int[] PAYLOAD_SIZES = { 64, 4096, 65536, 262144 };
+    private static final int WARMUP = 5;
+    private static final int RUNS = 21;
+
+    private RivetedApplication app;
+    private RivetCrypto crypto;
+
+    @Before
+    public void acquire() {
+        app = (RivetedApplication) InstrumentationRegistry.getTargetContext().getApplicationContext();
+        try {
+            crypto = app.acquireSession().get(2, TimeUnit.MINUTES);
+        }
+        catch (Exception ex) {
+            app.releaseSession();
+            Assume.assumeNoException("The device can't pair", ex);
+        }
+    }
+
+    @After
+    public void release() {
+        if (crypto != null) {
+            app.releaseSession();
+        }
+    }
+
+    @Test
+    public void calibrate() throws Exception {
+        Log.i(TAG, "type size rivetMicros inProcessMicros");
+        for (RivetHashTypes hashType : HASH_TYPES) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-" + hashType.name().substring(3));
+            for (int size : PAYLOAD_SIZES) {
+                byte[] payload = new byte[size];
+                new Random(size).nextBytes(payload);
+
+                assertArrayEquals(hashType + " differs between the Rivet and in process",
+                        digest.digest(payload), crypto.hash(hashType, payload).get(30, TimeUnit.SECONDS));
+
+                long rivet = medianMicros(() -> crypto.hash(hashType, payload).get(30, TimeUnit.SECONDS));
+                long inProcess = medianMicros(() -> digest.digest(payload));
+                Log.i(TAG, hashType + " " + size + " " + rivet + " " + inProcess);
+            }
+        }
+    }
+
+    private interface Call {
+        void run() throws Exception;
+    }
+
+    // The median of the runs after a warm up, one call at a time
+    private static long medianMicros(@NonNull Call call) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            call.run();
+        }
+
+        long[] micros = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            call.run();
+            micros[i] = (System.nanoTime() - start) / 1000;
+        }
+        Arrays.sort(micros);
+        return micros[RUNS / 2];
+    }
+}
@@ -32,6 +32,7 @@
 package com.rivetz.singleton_rivet;
 
 import android.os.Bundle;
+import android.support.annotation.AnyThread;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.UiThread;
@@ -44,7 +45,9 @@ import android.widget.Button;
 
 import com.rivetz.api.RivetHashTypes;
 import com.rivetz.api.RivetCrypto;
-import com.rivetz.api.internal.Utilities;
+import com.rivetz.codec.HexCodec;
+import com.rivetz.singleton_rivet.core.HashRouter;
+import com.rivetz.singleton_rivet.core.OperationScope;
 
 import java.nio.charset.StandardCharsets;
 
@@ -53,6 +56,9 @@ public class MainActivity extends AppCompatActivity {
 
     private RivetedApplication ourApp = null;
     private RivetCrypto crypto = null;
+
+    // The Rivet calls of this activity, cancelled when it is destroyed
+    private final OperationScope scope = new OperationScope();
     private Button hashButton;
 
     @UiThread
@@ -69,13 +75,48 @@ public class MainActivity extends AppCompatActivity {
         // Get a reference to our app class to access the Rivet features
         ourApp = (RivetedApplication)getApplication();
 
-        // The startup is complete, so this is safe in a UI thread
-        crypto = ourApp.getRivetCrypto();
+        // Hold the Rivet session while this activity exists. The startup is complete, so
+        // this completes right away unless the session was torn down while idle.
+        scope.track(ourApp.acquireSession()).whenComplete(this::sessionAcquired);
+    }
 
-        // Make sure the Rivet is available before allow it to be used in the UI
-        if (crypto != null) {
-            makeClickable(hashButton);
-        }
+    @UiThread
+    @Override
+    protected void onDestroy() {
+        // Cancel the calls that haven't been made yet, and drop the callbacks into this
+        // activity, which is also destroyed when it is rotated
+        scope.close();
+
+        // Let the session go, it is torn down if nothing else acquires it
+        ourApp.releaseSession();
+
+        super.onDestroy();
+    }
+
+    /**
+     * Enable the UI when the Rivet session is available
+     *
+     * @param result the crypto interface, or null on error
+     * @param th null for success, or the error exception
+     */
+    @AnyThread
+    private void sessionAcquired(@Nullable RivetCrypto result, @Nullable Throwable th) {
+        runOnUiThread(() -> {
+            // The text typed in may be anything, so it is hashed by the Rivet. Hashing the same
+            // text again is answered from the hash cache. The scope is outside the router, so
+            // closing it never cancels a cached call that another activity shares.
+            crypto = result != null
+                    ? scope.wrap(ourApp.getHashRouter().wrap(result, "main-hash", HashRouter.DataClass.SENSITIVE))
+                    : null;
+
+            // Make sure the Rivet is available before allow it to be used in the UI
+            if (crypto != null) {
+                makeClickable(hashButton);
+            }
+            else {
+                alert("The Rivet is not available: " + th.getMessage());
+            }
+        });
     }
 
     // Takes the given text and hashes it using SHA256
@@ -100,7 +141,7 @@ public class MainActivity extends AppCompatActivity {
     public void hashComplete(@Nullable byte[] result, @Nullable Throwable th) {
          if (result != null) {
              // Process the result while still on the background thread
-             String hashStr = Utilities.bytesToHex(result);
+             String hashStr = HexCodec.encode(result);
 
             runOnUiThread(() -> {
                 // The request is complete, allow another go at it
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.support.v4.content.pm.PackageInfoCompat;
+import android.util.Log;
+
+import com.rivetz.api.RivetKeyTypes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent cache of the device properties and key names
+ *
+ * The device properties and the key names rarely change, but reading them from the Rivet costs
+ * a round trip to the service on every launch. This cache keeps the values from the last launch
+ * in the app's private storage, so a warm start can use them right away and refresh them in
+ * the background.
+ *
+ * The cache is tied to the SPID, the device build and the installed Rivet app. If any of these
+ * change, or the cache format version changes, the cached values are discarded. The key names
+ * must also be invalidated when a key is created or deleted.
+ */
+public class RivetStateCache {
+    private final String TAG = RivetStateCache.class.getSimpleName();
+
+    // Bump when the stored format changes, so old values are discarded
+    private static final int CACHE_VERSION = 1;
+
+    // The package of the Rivet app, its updates invalidate the cache
+    private static final String RIVET_PACKAGE = "com.rivetz.adminapp";
+
+    private static final String PREFS_NAME = "rivet_state_cache";
+    private static final String STAMP_KEY = "stamp";
+    private static final String PROPERTIES_VALID_KEY = "properties.valid";
+    private static final String PROPERTY_PREFIX = "property.";
+    private static final String KEYS_VALID_KEY = "keys.valid";
+    private static final String KEYS_PREFIX = "keys.";
+
+    private final SharedPreferences prefs;
+
+    /**
+     * Open the cache, discarding the stored values if they were written for a different
+     * SPID, device build, Rivet app version or cache version.
+     *
+     * @param context the application context
+     * @param spid the SPID the app pairs with
+     */
+    @WorkerThread
+    public RivetStateCache(@NonNull Context context, @NonNull String spid) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        String stamp = CACHE_VERSION + "|" + spid + "|" + Build.FINGERPRINT + "|" + rivetVersion(context);
+
+        if (!stamp.equals(prefs.getString(STAMP_KEY, null))) {
+            Log.i(TAG, "Cache discarded, the Rivet, device or cache version changed");
+            prefs.edit().clear().putString(STAMP_KEY, stamp).apply();
+        }
+    }
+
+    /**
+     * Get the cached device properties
+     *
+     * @return the property values by {@code DevicePropertyIds} name, or null if not cached
+     */
+    @WorkerThread
+    public @Nullable Map<String, String> getDeviceProperties() {
+        if (!prefs.getBoolean(PROPERTIES_VALID_KEY, false)) {
+            return null;
+        }
+
+        Map<String, String> properties = new HashMap<>();
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (entry.getKey().startsWith(PROPERTY_PREFIX) && entry.getValue() instanceof String) {
+                properties.put(entry.getKey().substring(PROPERTY_PREFIX.length()), (String) entry.getValue());
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Store the device properties, replacing any cached values
+     *
+     * @param properties the property values by {@code DevicePropertyIds} name
+     */
+    @WorkerThread
+    public void putDeviceProperties(@NonNull Map<String, String> properties) {
+        SharedPreferences.Editor editor = prefs.edit();
+        removeWithPrefix(editor, PROPERTY_PREFIX);
+
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            editor.putString(PROPERTY_PREFIX + entry.getKey(), entry.getValue());
+        }
+        editor.putBoolean(PROPERTIES_VALID_KEY, true).apply();
+    }
+
+    /**
+     * Get the cached key names
+     *
+     * @return the key names of each type that could be listed, or null if not cached
+     */
+    @WorkerThread
+    public @Nullable Map<RivetKeyTypes, List<String>> getKeyNames() {
+        if (!prefs.getBoolean(KEYS_VALID_KEY, false)) {
+            return null;
+        }
+
+        Map<RivetKeyTypes, List<String>> keyNames = new EnumMap<>(RivetKeyTypes.class);
+        for (RivetKeyTypes type : RivetKeyTypes.values()) {
+            Set<String> names = prefs.getStringSet(KEYS_PREFIX + type.name(), null);
+            if (names != null) {
+                List<String> sorted = new ArrayList<>(names);
+                Collections.sort(sorted);
+                keyNames.put(type, sorted);
+            }
+        }
+        return keyNames;
+    }
+
+    /**
+     * Store the key names, replacing any cached values
+     *
+     * @param keyNames the key names of each type that could be listed
+     */
+    @WorkerThread
+    public void putKeyNames(@NonNull Map<RivetKeyTypes, List<String>> keyNames) {
+        SharedPreferences.Editor editor = prefs.edit();
+        removeWithPrefix(editor, KEYS_PREFIX);
+
+        for (Map.Entry<RivetKeyTypes, List<String>> entry : keyNames.entrySet()) {
+            editor.putStringSet(KEYS_PREFIX + entry.getKey().name(), new HashSet<>(entry.getValue()));
+        }
+        editor.putBoolean(KEYS_VALID_KEY, true).apply();
+    }
+
+    /**
+     * Discard the cached key names. Call this when a key is created or deleted.
+     */
+    public void invalidateKeyNames() {
+        prefs.edit().putBoolean(KEYS_VALID_KEY, false).apply();
+    }
+
+    /**
+     * Discard all of the cached values
+     */
+    public void invalidate() {
+        prefs.edit()
+                .putBoolean(PROPERTIES_VALID_KEY, false)
+                .putBoolean(KEYS_VALID_KEY, false)
+                .apply();
+    }
+
+    // Remove all the values with a key that starts with the prefix
+    private void removeWithPrefix(@NonNull SharedPreferences.Editor editor, @NonNull String prefix) {
+        for (String key : prefs.getAll().keySet()) {
+            if (key.startsWith(prefix)) {
+                editor.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Identify the installed Rivet app version
+     *
+     * @return the version and update time of the Rivet app, or "none" if it isn't installed
+     */
+    private static @NonNull String rivetVersion(@NonNull Context context) {
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(RIVET_PACKAGE, 0);
+            return PackageInfoCompat.getLongVersionCode(info) + "@" + info.lastUpdateTime;
+        }
+        catch (PackageManager.NameNotFoundException ex) {
+            return "none";
+        }
+    }
+}
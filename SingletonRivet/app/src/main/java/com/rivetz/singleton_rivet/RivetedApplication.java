@@ -40,12 +40,29 @@ import android.util.Log;
 
 import com.rivetz.api.RivetCrypto;
 import com.rivetz.api.RivetErrors;
+import com.rivetz.api.RivetKeyTypes;
 import com.rivetz.api.RivetRuntimeException;
 import com.rivetz.api.SPID;
 import com.rivetz.bridge.DevicePropertyIds;
 import com.rivetz.bridge.RivetSupportAndroidImpl;
+import com.rivetz.keys.KeyInventory;
+import com.rivetz.singleton_rivet.core.AdaptiveLimiter;
+import com.rivetz.singleton_rivet.core.CryptoMetrics;
+import com.rivetz.singleton_rivet.core.HashRouter;
+import com.rivetz.singleton_rivet.core.InstrumentedRivetCrypto;
+import com.rivetz.singleton_rivet.core.MemoizingHasher;
+import com.rivetz.singleton_rivet.core.PriorityDispatcher;
+import com.rivetz.singleton_rivet.core.RivetSchedulers;
+import com.rivetz.singleton_rivet.core.RivetSessionManager;
+import com.rivetz.singleton_rivet.core.StartupGraph;
+import com.rivetz.singleton_rivet.core.StartupResult;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 
 
@@ -60,16 +77,59 @@ import java.util.concurrent.ExecutionException;
  * as soon as possible within the app. Your application may want to start pairing at a later time,
  * or as the result of some user interaction. In that case, you would create a startup method that
  * calls the doStartup() on a background thread, as is done in the onCreate() here.
+ *
+ * The startup steps are described as a {@code StartupGraph}. Everything after pairing only
+ * depends on pairing, so the DRT query and the key listing run at the same time instead of one
+ * after another. The device properties and key names from the previous launch are kept in a
+ * {@code RivetStateCache}, so a warm start uses them right away. Reading every device property
+ * for the cache isn't needed to start, so it's done on the bulk pool once startup is complete.
  */
 public class RivetedApplication extends MultiDexApplication {
     private final String TAG = RivetedApplication.class.getSimpleName();
 
+    // The startup tasks, and the values they produce
+    private static final StartupGraph.Key<RivetCrypto> PAIR = StartupGraph.key("pair");
+    private static final StartupGraph.Key<Boolean> DRT_SUPPORTED = StartupGraph.key("drtSupported");
+    private static final StartupGraph.Key<Map<RivetKeyTypes, List<String>>> KEY_NAMES = StartupGraph.key("keyNames");
+
+    // How long the Rivet session is kept after the last screen releases it
+    private static final long SESSION_IDLE_TIMEOUT_MS = 30_000L;
+
+    private RivetSchedulers schedulers;
+    private final CryptoMetrics cryptoMetrics = new CryptoMetrics();
+    private final KeyInventory keyInventory = new KeyInventory();
+
+    // The number of calls in flight adapts to how many the TEE of this device can serve
+    // without queueing
+    private final AdaptiveLimiter limiter = new AdaptiveLimiter.Builder()
+            .initialLimit(4)
+            .maxLimit(32)
+            .build();
+
+    // Calls the user is waiting on go ahead of background work. Bulk work can only take some
+    // of the slots, and one slot of whatever the limiter allows is always kept for interactive
+    // calls, so a tap never waits for a whole batch to finish.
+    private final PriorityDispatcher dispatcher = new PriorityDispatcher.Builder()
+            .maxInFlight(32)
+            .maxInFlight(PriorityDispatcher.Priority.BULK, 16)
+            .interactiveReserve(1)
+            .agingMillis(500)
+            .limiter(limiter)
+            .build();
+
+    // Hashes of public data are computed in process, sensitive data is hashed by the Rivet.
+    // Created with the pools, which run the in process hashes.
+    private HashRouter hashRouter;
+
+    // Repeated hashes that go to the Rivet are answered from memory. Entries are keyed by a
+    // fingerprint, so the typed text that MainActivity hashes isn't kept.
+    private final MemoizingHasher hashMemo = new MemoizingHasher(256 * 1024);
     private RivetSupportAndroidImpl rivetSupport;
+    private RivetSessionManager sessionManager;
+    private volatile RivetStateCache stateCache = null;
     private CompletableFuture<Boolean> pairResult = new CompletableFuture<>();
-    private boolean pairSuccess = false;
-    private boolean drtSupported = false;
-    private RivetRuntimeException failReason = null;
-    private RivetCrypto crypto = null;
+    private CompletableFuture<StartupResult> startupResult = new CompletableFuture<>();
+    private volatile StartupResult result = null;
 
 
     @Override
@@ -77,6 +137,17 @@ public class RivetedApplication extends MultiDexApplication {
     public void onCreate() {
         super.onCreate();
 
+        // All background work runs on the shared pools, escaped exceptions are logged
+        schedulers = new RivetSchedulers((thread, th) ->
+                Log.e(TAG, "Uncaught exception in " + thread.getName(), th));
+        hashRouter = new HashRouter.Builder()
+                .executor(schedulers.interactive())
+                .memo(hashMemo)
+                .build();
+
+        // Keys created or deleted through the Rivet make the cached key names stale
+        keyInventory.setChangeListener(this::onKeysChanged);
+
         // Construct the Android support object
         rivetSupport = new RivetSupportAndroidImpl();
 
@@ -85,9 +156,80 @@ public class RivetedApplication extends MultiDexApplication {
         // call the redirect method.
         rivetSupport.setAutoRedirect(false);
 
+        // The session manager keeps the pairing alive while any activity uses it
+        sessionManager = new RivetSessionManager(new RivetSessionManager.Binding() {
+            @Override
+            public @NonNull CompletableFuture<Boolean> pair() {
+                return rivetSupport.pairDevice(getApplicationContext(), SPID.DEVELOPER_TOOLS_SPID);
+            }
+
+            @Override
+            public @NonNull RivetCrypto getRivetCrypto() {
+                // Measure every call made through the session, and keep the key inventory
+                // current as keys are created and deleted
+                return keyInventory.track(InstrumentedRivetCrypto.wrap(rivetSupport.getRivetCrypto(), cryptoMetrics));
+            }
+
+            @Override
+            public void unpair() {
+                rivetSupport.unpairDevice();
+            }
+        }, schedulers.scheduler(), SESSION_IDLE_TIMEOUT_MS);
+
         // Do all of the startup on a background thread. Expose the result with
         // the completeable future, which can trigger an exit from a splash screen.
-        new Thread(this::doStartup).start();
+        schedulers.startup().execute(this::doStartup);
+    }
+
+    /**
+     * Get the application wide thread pools
+     *
+     * @return the pools for startup, interactive and bulk work
+     */
+    @AnyThread
+    public @NonNull RivetSchedulers getSchedulers() {
+        return schedulers;
+    }
+
+    /**
+     * Get the latency, payload size and error counts of the Rivet calls made so far
+     *
+     * @return a snapshot of the metrics of each operation
+     */
+    @AnyThread
+    public @NonNull CryptoMetrics.Snapshot getCryptoMetrics() {
+        return cryptoMetrics.snapshot();
+    }
+
+    /**
+     * Get the number of Rivet calls currently allowed in flight, which adapts to the latency
+     * of the device
+     *
+     * @return the limit
+     */
+    @AnyThread
+    public int getConcurrencyLimit() {
+        return limiter.getLimit();
+    }
+
+    /**
+     * Log the Rivet metrics when the app goes to the background, so they can be collected
+     * from the device log.
+     */
+    @Override
+    @MainThread
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        if (level == TRIM_MEMORY_UI_HIDDEN) {
+            Log.i(TAG, "Rivet metrics:\n" + cryptoMetrics.snapshot());
+            Log.i(TAG, "Rivet concurrency: " + limiter);
+            Log.i(TAG, "Rivet hash cache: " + hashMemo.getStats());
+            Log.i(TAG, "Thread pools: " + Arrays.toString(schedulers.getStats()));
+        }
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            hashMemo.clear();
+        }
     }
 
     /**
@@ -108,32 +250,76 @@ public class RivetedApplication extends MultiDexApplication {
         return pairResult;
     }
 
+    /**
+     * The complete startup result
+     *
+     * @return a future that completes with the startup result when startup is done. It never
+     * completes exceptionally, a failed startup is described by the result.
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<StartupResult> getStartupResult() {
+        return startupResult;
+    }
+
     /**
      * Get a Rivet instance with the crypto interface
      *
-     * @return a crypto rivet, or null if not paired
+     * This doesn't keep the session alive, an activity that uses the Rivet should call
+     * {@code acquireSession()} instead.
+     *
+     * @return a crypto rivet, or null if not paired. Its calls have interactive priority.
      */
     @AnyThread
     public @Nullable RivetCrypto getRivetCrypto() {
+        return getRivetCrypto(PriorityDispatcher.Priority.INTERACTIVE);
+    }
 
-        try {
-            return rivetSupport.getRivetCrypto();
-        }
-        catch (RivetRuntimeException ex) {
-            failReason = ex;
-        }
+    /**
+     * Get a Rivet instance whose calls are dispatched with a priority. Background work, such as
+     * provisioning keys or re-encrypting data, should use {@code BULK} so it doesn't delay the
+     * calls a user is waiting on.
+     *
+     * @param priority the priority of the calls
+     * @return a crypto rivet, or null if not paired
+     */
+    @AnyThread
+    public @Nullable RivetCrypto getRivetCrypto(@NonNull PriorityDispatcher.Priority priority) {
+        RivetCrypto crypto = sessionManager.getRivetCrypto();
+        return crypto != null ? dispatcher.wrap(crypto, priority) : null;
+    }
+
+    /**
+     * Acquire the Rivet session, keeping it paired until it is released. Each activity that
+     * uses the Rivet acquires the session when it is created, and releases it when it is
+     * destroyed, so moving between activities doesn't pair again.
+     *
+     * @return a future with the crypto interface, or an exception if pairing failed. The
+     * session is paired again if it was torn down while idle. Its calls have interactive
+     * priority.
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<RivetCrypto> acquireSession() {
+        return sessionManager.acquire()
+                .thenApply(crypto -> dispatcher.wrap(crypto, PriorityDispatcher.Priority.INTERACTIVE));
+    }
 
-        return null;
+    /**
+     * Release the Rivet session acquired with {@code acquireSession()}
+     */
+    @AnyThread
+    public void releaseSession() {
+        sessionManager.release();
     }
 
     /**
      * Get the reason pairing failed
      *
-     * @return the exception thrown during pairing, or null if pairing was successful.
+     * @return the exception thrown during pairing, or null if pairing was successful or
+     * hasn't completed.
      */
     @AnyThread
     public @Nullable RivetRuntimeException getFailReason() {
-        return failReason;
+        return result != null ? result.getFailReason() : null;
     }
 
     /**
@@ -143,99 +329,195 @@ public class RivetedApplication extends MultiDexApplication {
      */
     @AnyThread
     public boolean isDrtSupported() {
-        return drtSupported;
+        return result != null && result.isDrtSupported();
+    }
+
+    /**
+     * Get the index of the keys in the Rivet. It is filled in by startup, and kept current
+     * for keys created and deleted through the session.
+     *
+     * @return the key inventory
+     */
+    @AnyThread
+    public @NonNull KeyInventory getKeyInventory() {
+        return keyInventory;
     }
 
     /**
-     * This needs to be called when exiting the app to clean up the service connection
+     * Get the router that decides whether a hash is computed by the Rivet or in process.
+     * Wrap a crypto interface with it for each call site that hashes. Repeated hashes that go to
+     * the Rivet are answered from the hash cache.
+     *
+     * @return the hash router
+     */
+    @AnyThread
+    public @NonNull HashRouter getHashRouter() {
+        return hashRouter;
+    }
+
+    /**
+     * Discard the cached key names, so the next launch lists the keys again. The key inventory
+     * calls this when a key is created or deleted through the Rivet.
+     */
+    @AnyThread
+    public void onKeysChanged() {
+        RivetStateCache cache = stateCache;
+        if (cache != null) {
+            cache.invalidateKeyNames();
+        }
+    }
+
+    /**
+     * This needs to be called when exiting the app to clean up the service connection. It
+     * tears the session down even if an activity still holds it.
      */
     public void onExit() {
-        rivetSupport.unpairDevice();
+        sessionManager.shutdown();
     }
 
     /**
-     * Perform all of the startup actions needed on a background thread. This allows us
-     * to block on all async calls, making the flow easier to follow. The downside is
-     * handling exceptions. If the error handling for any failure is the same, a single
-     * try/catch can wrap the entire startup.
+     * Perform all of the startup actions needed on a background thread. The steps are run
+     * by a {@code StartupGraph}, and this thread blocks until all of them are complete. If the
+     * error handling for any failure is the same, a single try/catch can wrap the entire startup.
      *
-     * This method will set the state of the variables described below:
+     * When complete, the {@code StartupResult} describes the outcome:
      *
-     * {@code pairingSuccess} is true if the user accepted pairing.
-     * {@code crypto} is an instance of the Rivet crypto interface, or null on error
-     * {@code drtSupported} is true if Dual Root of Trust is enabled
-     * {@code hasKey} is set true if the key name defined in the activity exists
+     * {@code isPaired()} is true if the user accepted pairing.
+     * {@code getCrypto()} is an instance of the Rivet crypto interface, or null on error
+     * {@code isDrtSupported()} is true if Dual Root of Trust is enabled
+     * {@code getKeyNames()} lists the keys of each type that exist
      */
     @WorkerThread
     private void doStartup() {
         Log.i(TAG, "App startup, call pairDevice()");
 
-        // Pair with the SPID, block until it completes. All exceptions are mapped into one of the
+        // Values from the last launch, or null if they need to be read from the Rivet
+        stateCache = new RivetStateCache(getApplicationContext(), String.valueOf(SPID.DEVELOPER_TOOLS_SPID));
+        Map<String, String> cachedProperties = stateCache.getDeviceProperties();
+        Map<RivetKeyTypes, List<String>> cachedKeyNames = stateCache.getKeyNames();
+        if (cachedKeyNames != null) {
+            keyInventory.load(cachedKeyNames);
+        }
+
+        StartupGraph graph = new StartupGraph(schedulers.startup())
+                // Pair with the SPID. A declined pairing is reported as a user cancel. The
+                // session stays paired for the activities that acquire it.
+                .add(PAIR, results -> sessionManager.pair())
+
+                // Check if DRT is supported, from the last launch's properties if there are any
+                .add(DRT_SUPPORTED, results -> {
+                    String drt = cachedProperties != null
+                            ? cachedProperties.get(DevicePropertyIds.DRT_SUPPORTED.toString()) : null;
+                    return drt != null
+                            ? CompletableFuture.completedFuture(drt.equals("true"))
+                            : results.get(PAIR).getDeviceProperty(DevicePropertyIds.DRT_SUPPORTED.toString())
+                                    .thenApply("true"::equals);
+                }, PAIR)
+
+                // List the existing keys
+                .add(KEY_NAMES, results -> cachedKeyNames != null
+                        ? CompletableFuture.completedFuture(cachedKeyNames)
+                        : keyInventory.refresh(results.get(PAIR)).thenApply(KeyInventory::snapshot), PAIR);
+
+        RivetRuntimeException failReason = null;
+
+        // Block until every task completes. All exceptions are mapped into one of the
         // RivetErrors, so decoding is easier than dealing with different exception types.
         try {
-            pairSuccess = rivetSupport.pairDevice(getApplicationContext(), SPID.DEVELOPER_TOOLS_SPID).get();
+            graph.start().get();
         }
         catch (ExecutionException eEx) {
-            // The system may throw a runtime exception or a bug may cause an
-            // excpetion other than one generated in the Rivet. Re-throw to handle
-            // both cases
-            try { throw eEx.getCause(); }
-            catch (RivetRuntimeException rrEx) {
-                failReason = rrEx;
-            }
-            catch (Throwable th) {
-                failReason = new RivetRuntimeException(RivetErrors.UNEXPECTED_EXCEPTION);
-            }
-        }
-        catch (RivetRuntimeException rrEx) {
-            failReason = rrEx;
+            failReason = toRivetException(eEx);
         }
         catch (InterruptedException intEx) {
             failReason = new RivetRuntimeException(RivetErrors.INTERRUPTED_EXCEPTION);
         }
 
-        // Terminate early on error, with failReason holding the  first cause
+        Log.i(TAG, "Startup phases: " + graph.getTimings());
+
+        // Terminate early on error, with failReason holding the first cause
         if (failReason != null) {
-            Log.i(TAG, "Failed to pair: " + failReason.getMessage());
+            Log.i(TAG, "Failed to start: " + failReason.getMessage());
 
+            result = StartupResult.failure(failReason, graph.getTimings());
+            startupResult.complete(result);
             pairResult.completeExceptionally(failReason);
             return;
         }
 
-        // Terminate early on error, with failReason holding the  first cause,
-        // which is because of the user in this case, not an actual error
-        if (!pairSuccess) {
-            failReason = new RivetRuntimeException(RivetErrors.USER_CANCELED);
-            pairResult.completeExceptionally(failReason);
-            return;
-        }
+        // Pairing and startup complete
+        RivetCrypto crypto = graph.resultOrNull(PAIR);
+        result = StartupResult.success(crypto, graph.resultOrNull(DRT_SUPPORTED),
+                graph.resultOrNull(KEY_NAMES), graph.getTimings());
+        startupResult.complete(result);
+        pairResult.complete(true);
 
-        // The Rivet is paired, get an instance of the crypto interface
-        //
-        // NOTE: This method could throw a RivetRuntimeException(), but only
-        // for not being paired, so it doesn't need a try/catch
-        crypto = getRivetCrypto();
+        // Store what was read from the Rivet, and refresh anything that came from the cache
+        // for the next launch. The writes go to storage on the bulk pool, so neither the
+        // startup thread nor the Rivet's callback threads wait on them. The property queries
+        // are bulk calls, so a screen's first calls go ahead of them.
+        RivetCrypto bulkCrypto = dispatcher.wrap(crypto, PriorityDispatcher.Priority.BULK);
+        schedulers.bulk().execute(() -> fetchDeviceProperties(bulkCrypto)
+                .thenAcceptAsync(stateCache::putDeviceProperties, schedulers.bulk()));
 
-        try {
-            // Check if DRT is supported, block until it completes
-            drtSupported = crypto.getDeviceProperty(DevicePropertyIds.DRT_SUPPORTED.toString()).get().equals("true");
+        if (cachedKeyNames == null) {
+            schedulers.bulk().execute(() -> stateCache.putKeyNames(graph.resultOrNull(KEY_NAMES)));
         }
-        catch (RivetRuntimeException rrEx) {
-            failReason = rrEx;
+        else {
+            keyInventory.refresh(crypto).thenAcceptAsync(inventory -> stateCache.putKeyNames(inventory.snapshot()),
+                    schedulers.bulk());
         }
-        catch (Throwable ex) {
-            // Anything that hasn't been mapped into a Rivet exception is a runtime excption such
-            // as out of memory.
-            failReason = new RivetRuntimeException(RivetErrors.UNEXPECTED_EXCEPTION);
+    }
+
+    /**
+     * Get the value of every device property at once
+     *
+     * A property that can't be read is left out of the result.
+     *
+     * @param crypto the paired crypto interface
+     * @return a future with the property values by {@code DevicePropertyIds} name
+     */
+    @AnyThread
+    private @NonNull CompletableFuture<Map<String, String>> fetchDeviceProperties(@NonNull RivetCrypto crypto) {
+        Map<String, String> properties = new HashMap<>();
+        DevicePropertyIds[] ids = DevicePropertyIds.values();
+        CompletableFuture<?>[] queries = new CompletableFuture<?>[ids.length];
+
+        for (int i = 0; i < ids.length; i++) {
+            String id = ids[i].toString();
+            queries[i] = crypto.getDeviceProperty(id).whenComplete((value, th) -> {
+                if (value != null) {
+                    synchronized (properties) {
+                        properties.put(id, value);
+                    }
+                }
+            }).exceptionally(th -> null);
         }
 
-        // Terminate early on error, getting DRT support can't fail with the Rivet is working properly
-        if (failReason != null) {
-            pairResult.completeExceptionally(failReason);
-            return;
+        return CompletableFuture.allOf(queries).thenApply(ignored -> {
+            synchronized (properties) {
+                return new HashMap<>(properties);
+            }
+        });
+    }
+
+    /**
+     * Map a startup failure into a Rivet exception
+     *
+     * @param th the exception thrown by a startup task, possibly wrapped by the futures
+     * @return the Rivet exception that caused the failure
+     */
+    private static @NonNull RivetRuntimeException toRivetException(@NonNull Throwable th) {
+        while ((th instanceof ExecutionException || th instanceof CompletionException) && th.getCause() != null) {
+            th = th.getCause();
         }
 
-        // Pairing and startup complete
-        pairResult.complete(true);
+        if (th instanceof RivetRuntimeException) {
+            return (RivetRuntimeException) th;
+        }
+
+        // The system may throw a runtime exception or a bug may cause an
+        // exception other than one generated in the Rivet
+        return new RivetRuntimeException(RivetErrors.UNEXPECTED_EXCEPTION);
     }
 }
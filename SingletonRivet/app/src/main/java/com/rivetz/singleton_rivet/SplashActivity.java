@@ -141,8 +141,8 @@ public class SplashActivity extends AppCompatActivity {
             prefEditor.putBoolean(FIRST_RUN_KEY, false);
             prefEditor.apply();
 
-            // Release any Rivet resources
-            ourApp.onExit();
+            // Keep the Rivet session, the main activity acquires it before the idle
+            // timeout tears it down, so it doesn't have to pair again
 
             // Now start the main activity
             Intent intent = new Intent(this, MainActivity.class);
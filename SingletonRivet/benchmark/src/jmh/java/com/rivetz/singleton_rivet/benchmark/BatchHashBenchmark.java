@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.benchmark;
+
+import com.rivetz.api.RivetHashTypes;
+import com.rivetz.singleton_rivet.core.BatchHasher;
+import com.rivetz.singleton_rivet.core.PriorityDispatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Hashing a set of small records, one call at a time and through a {@code BatchHasher} whose
+ * dispatcher keeps {@code concurrency} calls in flight
+ */
+public class BatchHashBenchmark extends CryptoState {
+
+    @Param({"1000"})
+    public int recordCount;
+
+    /** The share of records that repeat an earlier one, in percent */
+    @Param({"0", "50"})
+    public int duplicatePercent;
+
+    private List<byte[]> records;
+
+    @Setup
+    public void setUpRecords() {
+        Random random = new Random(7L);
+        records = new ArrayList<>(recordCount);
+        for (int i = 0; i < recordCount; i++) {
+            if (i > 0 && random.nextInt(100) < duplicatePercent) {
+                records.add(records.get(random.nextInt(i)).clone());
+            }
+            else {
+                byte[] record = new byte[32];
+                random.nextBytes(record);
+                records.add(record);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<byte[]> oneAtATime() {
+        List<byte[]> hashes = new ArrayList<>(records.size());
+        for (byte[] record : records) {
+            hashes.add(crypto.hash(RivetHashTypes.SHA256, record).join());
+        }
+        return hashes;
+    }
+
+    @Benchmark
+    public List<byte[]> batchHasher() {
+        PriorityDispatcher dispatcher = new PriorityDispatcher.Builder()
+                .maxInFlight(concurrency)
+                .interactiveReserve(0)
+                .build();
+        return new BatchHasher(crypto, dispatcher, PriorityDispatcher.Priority.BULK)
+                .hashAll(RivetHashTypes.SHA256, records).join();
+    }
+}
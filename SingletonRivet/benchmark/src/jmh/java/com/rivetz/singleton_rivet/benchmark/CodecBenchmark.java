@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.benchmark;
+
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.internal.Utilities;
+import com.rivetz.codec.Base58Codec;
+import com.rivetz.codec.Base64Codec;
+import com.rivetz.codec.HexCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * The shared codecs against the helpers the samples used before
+ *
+ * The {@code Into} variants write into buffers kept between calls, which is how a caller
+ * rendering many values avoids the garbage. Base58 is measured on a 32 byte id only, since its
+ * cost grows with the square of the length.
+ */
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    @Param({"32", "1024", "65536"})
+    public int payloadSize;
+
+    private byte[] payload;
+    private byte[] id;
+    private char[] chars;
+    private ByteBuffer in;
+    private ByteBuffer out;
+    private String hex;
+    private String base64;
+
+    @Setup
+    public void setUpPayload() {
+        Random random = new Random(7L);
+        payload = new byte[payloadSize];
+        random.nextBytes(payload);
+        id = new byte[32];
+        random.nextBytes(id);
+
+        chars = new char[Math.max(HexCodec.encodedLength(payloadSize), Base64Codec.encodedLength(payloadSize))];
+        in = ByteBuffer.wrap(payload);
+        out = ByteBuffer.allocateDirect(4096);
+        hex = HexCodec.encode(payload);
+        base64 = Base64Codec.STANDARD.encode(payload);
+    }
+
+    // The helper copied into EncryptDecryptSample and UsageRuleTUISample
+    private static @NonNull String bytesToHex(@NonNull byte[] in) {
+        final StringBuilder sb = new StringBuilder(in.length * 2);
+        for (byte b : in) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public String hexStringBuilder() {
+        return bytesToHex(payload);
+    }
+
+    @Benchmark
+    public String hexUtilities() {
+        return Utilities.bytesToHex(payload);
+    }
+
+    @Benchmark
+    public String hexCodec() {
+        return HexCodec.encode(payload);
+    }
+
+    @Benchmark
+    public char[] hexCodecInto() {
+        HexCodec.encode(payload, 0, payload.length, chars, 0);
+        return chars;
+    }
+
+    /** Streams the hex a buffer at a time, as when writing a large ciphertext to a log */
+    @Benchmark
+    public int hexCodecStream() {
+        int written = 0;
+        in.clear();
+        while (in.hasRemaining()) {
+            out.clear();
+            HexCodec.encode(in, out);
+            written += out.position();
+        }
+        return written;
+    }
+
+    @Benchmark
+    public byte[] hexDecode() {
+        return HexCodec.decode(hex);
+    }
+
+    @Benchmark
+    public String base64Jdk() {
+        return Base64.getEncoder().encodeToString(payload);
+    }
+
+    @Benchmark
+    public String base64Codec() {
+        return Base64Codec.STANDARD.encode(payload);
+    }
+
+    @Benchmark
+    public char[] base64CodecInto() {
+        Base64Codec.STANDARD.encode(payload, 0, payload.length, chars, 0);
+        return chars;
+    }
+
+    @Benchmark
+    public byte[] base64JdkDecode() {
+        return Base64.getDecoder().decode(base64);
+    }
+
+    @Benchmark
+    public byte[] base64CodecDecode() {
+        return Base64Codec.STANDARD.decode(base64);
+    }
+
+    @Benchmark
+    public String base58Id() {
+        return Base58Codec.encode(id);
+    }
+}
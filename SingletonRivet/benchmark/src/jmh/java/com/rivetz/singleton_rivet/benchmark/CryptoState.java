@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.benchmark;
+
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.singleton_rivet.core.CryptoMetrics;
+import com.rivetz.singleton_rivet.core.InstrumentedRivetCrypto;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Supplier;
+
+/**
+ * The fake Rivet shared by the benchmarks
+ *
+ * Each benchmark is run against a fake with no latency, which measures only the client side
+ * overhead, and with a latency like a real device, which shows how well the calls overlap.
+ * Each is also run with and without the {@code InstrumentedRivetCrypto} wrapper, so the cost
+ * of the metrics shows up as its own number.
+ */
+@State(Scope.Benchmark)
+public class CryptoState {
+
+    /** The simulated latency: none, or a long tailed IPC and TEE round trip */
+    @Param({"none", "device"})
+    public String latency;
+
+    /** Whether the calls go through {@code InstrumentedRivetCrypto} */
+    @Param({"false", "true"})
+    public boolean instrumented;
+
+    /** How many calls are in flight at once */
+    @Param({"1", "8"})
+    public int concurrency;
+
+    protected RivetCrypto crypto;
+    protected CryptoMetrics metrics;
+    private ScheduledExecutorService scheduler;
+
+    @Setup(Level.Trial)
+    public void setUpCrypto() {
+        scheduler = Executors.newScheduledThreadPool(2, task -> {
+            Thread thread = new Thread(task, "fake-rivet");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        FakeRivetCrypto.Builder builder = new FakeRivetCrypto.Builder(scheduler).seed(42L);
+        if ("device".equals(latency)) {
+            builder.latency(LatencyModel.logNormal(800, 0.5))
+                    .latency(CryptoMetrics.Operation.SIGN, LatencyModel.logNormal(4000, 0.5))
+                    .latency(CryptoMetrics.Operation.CREATE_KEY, LatencyModel.logNormal(20000, 0.5));
+        }
+        crypto = builder.build();
+
+        metrics = new CryptoMetrics();
+        if (instrumented) {
+            crypto = InstrumentedRivetCrypto.wrap(crypto, metrics);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownCrypto() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Start {@code concurrency} calls and wait for all of them
+     *
+     * @param call starts one call
+     * @return the results, so the work can't be eliminated
+     */
+    protected @NonNull <T> List<T> fanOut(@NonNull Supplier<CompletableFuture<T>> call) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            futures.add(call.get());
+        }
+
+        List<T> results = new ArrayList<>(concurrency);
+        for (CompletableFuture<T> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+}
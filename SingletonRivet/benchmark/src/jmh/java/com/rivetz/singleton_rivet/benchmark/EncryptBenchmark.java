@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.benchmark;
+
+import com.rivetz.api.EncryptResult;
+import com.rivetz.api.RivetKeyTypes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Encryption and decryption with an AES key at different payload sizes
+ */
+public class EncryptBenchmark extends CryptoState {
+
+    private static final String KEY_NAME = "bench-aes";
+
+    @Param({"64", "4096", "65536", "1048576"})
+    public int payloadSize;
+
+    private byte[] payload;
+    private EncryptResult encrypted;
+
+    @Setup
+    public void setUpKey() {
+        crypto.createKey(KEY_NAME, RivetKeyTypes.AES256_CGM).join();
+
+        payload = new byte[payloadSize];
+        new Random(7L).nextBytes(payload);
+        encrypted = crypto.encrypt(KEY_NAME, payload).join();
+    }
+
+    @Benchmark
+    public List<EncryptResult> encrypt() {
+        return fanOut(() -> crypto.encrypt(KEY_NAME, payload));
+    }
+
+    @Benchmark
+    public List<byte[]> decrypt() {
+        return fanOut(() -> crypto.decrypt(KEY_NAME, encrypted));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.benchmark;
+
+import com.rivetz.api.RivetHashTypes;
+import com.rivetz.singleton_rivet.core.HashRouter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The cost of hashing in the Rivet against hashing in process, for each hash type and payload
+ * size
+ *
+ * The difference between {@code tee} and {@code inProcess} at a size is what routing a hash in
+ * process saves there, which is what a {@code HashRouter.Policy} weighs against the sensitivity
+ * of the data. The setup checks that both routes give the same bytes.
+ *
+ * This doesn't calibrate a policy. The {@code tee} route here runs on {@code FakeRivetCrypto},
+ * which is {@code MessageDigest} plus the simulated latency, so it only measures the router
+ * and the latency model. The cost of a hash in a real Rivet comes from
+ * {@code HashRoutingCalibrationTest}, an instrumented test of the app that runs on a paired
+ * device.
+ */
+public class HashRoutingBenchmark extends CryptoState {
+
+    @Param({"SHA256", "SHA512", "SHA1"})
+    public RivetHashTypes hashType;
+
+    @Param({"64", "4096", "65536", "1048576"})
+    public int payloadSize;
+
+    private static final String SITE = "benchmark";
+
+    private HashRouter teeRouter;
+    private HashRouter inProcessRouter;
+    private byte[] payload;
+
+    @Setup
+    public void setUpRouters() {
+        payload = new byte[payloadSize];
+        new Random(7L).nextBytes(payload);
+
+        teeRouter = new HashRouter.Builder().route(SITE, HashRouter.Route.TEE).build();
+        inProcessRouter = new HashRouter.Builder().route(SITE, HashRouter.Route.IN_PROCESS).build();
+
+        byte[] tee = teeRouter.hash(crypto, SITE, HashRouter.DataClass.PUBLIC, hashType, payload).join();
+        byte[] inProcess = inProcessRouter.hash(crypto, SITE, HashRouter.DataClass.PUBLIC, hashType, payload).join();
+        if (!Arrays.equals(tee, inProcess)) {
+            throw new IllegalStateException(hashType + " differs between the TEE and in process");
+        }
+    }
+
+    @Benchmark
+    public List<byte[]> tee() {
+        return fanOut(() -> teeRouter.hash(crypto, SITE, HashRouter.DataClass.PUBLIC, hashType, payload));
+    }
+
+    @Benchmark
+    public List<byte[]> inProcess() {
+        return fanOut(() -> inProcessRouter.hash(crypto, SITE, HashRouter.DataClass.PUBLIC, hashType, payload));
+    }
+}
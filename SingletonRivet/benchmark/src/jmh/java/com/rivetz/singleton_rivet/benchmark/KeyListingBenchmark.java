@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.benchmark;
+
+import com.rivetz.api.RivetKeyTypes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.util.List;
+
+/**
+ * Listing the key names of each type, with different numbers of keys
+ */
+public class KeyListingBenchmark extends CryptoState {
+
+    @Param({"10", "100", "1000"})
+    public int keyCount;
+
+    @Setup
+    public void setUpKeys() {
+        for (int i = 0; i < keyCount; i++) {
+            RivetKeyTypes type = i % 2 == 0 ? RivetKeyTypes.NISTP256 : RivetKeyTypes.AES256_CGM;
+            crypto.createKey("bench-key-" + i, type).join();
+        }
+    }
+
+    @Benchmark
+    public List<List<String>> listEcKeys() {
+        return fanOut(() -> crypto.getKeyNamesOf(RivetKeyTypes.NISTP256));
+    }
+
+    @Benchmark
+    public List<List<String>> listAllKeys() {
+        return fanOut(() -> crypto.getKeyNamesOf(RivetKeyTypes.NISTP256)
+                .thenCombine(crypto.getKeyNamesOf(RivetKeyTypes.AES256_CGM), (ec, aes) -> {
+                    ec.addAll(aes);
+                    return ec;
+                }));
+    }
+}
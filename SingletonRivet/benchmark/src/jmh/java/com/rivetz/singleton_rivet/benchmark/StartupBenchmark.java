@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.benchmark;
+
+import com.rivetz.api.RivetKeyTypes;
+import com.rivetz.singleton_rivet.core.StartupGraph;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The startup queries run one after another, as the samples used to, and as a
+ * {@code StartupGraph} where the independent queries overlap
+ */
+public class StartupBenchmark extends CryptoState {
+
+    // DevicePropertyIds is in the bridge AAR, which isn't on a JVM classpath. The fake answers any id.
+    private static final String DRT_PROPERTY = "drtSupported";
+
+    private static final StartupGraph.Key<String> DRT_SUPPORTED = StartupGraph.key("drtSupported");
+    private static final StartupGraph.Key<List<String>> EC_KEYS = StartupGraph.key("ecKeys");
+    private static final StartupGraph.Key<List<String>> AES_KEYS = StartupGraph.key("aesKeys");
+
+    private ExecutorService executor;
+
+    @Setup
+    public void setUpExecutor() {
+        executor = Executors.newFixedThreadPool(2);
+
+        for (int i = 0; i < 20; i++) {
+            crypto.createKey("startup-key-" + i, i % 2 == 0 ? RivetKeyTypes.NISTP256 : RivetKeyTypes.AES256_CGM).join();
+        }
+    }
+
+    @TearDown
+    public void tearDownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public List<Integer> serial() {
+        return fanOut(() -> CompletableFuture.supplyAsync(() -> {
+            String drt = crypto.getDeviceProperty(DRT_PROPERTY).join();
+            List<String> ecKeys = crypto.getKeyNamesOf(RivetKeyTypes.NISTP256).join();
+            List<String> aesKeys = crypto.getKeyNamesOf(RivetKeyTypes.AES256_CGM).join();
+            return drt.length() + ecKeys.size() + aesKeys.size();
+        }, executor));
+    }
+
+    @Benchmark
+    public List<Integer> graph() {
+        return fanOut(() -> {
+            StartupGraph graph = new StartupGraph(executor)
+                    .add(DRT_SUPPORTED, results -> crypto.getDeviceProperty(DRT_PROPERTY))
+                    .add(EC_KEYS, results -> crypto.getKeyNamesOf(RivetKeyTypes.NISTP256))
+                    .add(AES_KEYS, results -> crypto.getKeyNamesOf(RivetKeyTypes.AES256_CGM));
+            return graph.start().thenApply(done -> graph.resultOrNull(DRT_SUPPORTED).length()
+                    + graph.resultOrNull(EC_KEYS).size() + graph.resultOrNull(AES_KEYS).size());
+        });
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.benchmark;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.rivetz.api.EncryptResult;
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetErrors;
+import com.rivetz.api.RivetHashTypes;
+import com.rivetz.api.RivetKeyTypes;
+import com.rivetz.api.RivetRuntimeException;
+import com.rivetz.api.Signature;
+import com.rivetz.singleton_rivet.core.CryptoMetrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * An in-process {@code RivetCrypto} for running the client code without a device
+ *
+ * The operations are done with the JCA software providers: AES-GCM for the AES keys, ECDSA
+ * for the NIST P-256 keys and {@code MessageDigest} for hashing, so results can be checked the
+ * same way as results from the Rivet. Each call is delayed by a {@code LatencyModel} to
+ * simulate the IPC and TEE round trip, and can be made to fail with a chosen error at a chosen
+ * rate. The randomness is seeded, so a run can be repeated.
+ *
+ * Every {@code RivetCrypto} call the samples make is simulated:
+ * <ul>
+ *     <li>{@code hash}, {@code encrypt}, {@code decrypt}, {@code sign} and {@code verify}</li>
+ *     <li>{@code createKey}, {@code deleteKey}, {@code getKeyNamesOf}, {@code getKeyDescriptor}
+ *     and {@code getPublicKey}. Usage rules given to {@code createKey} are ignored.</li>
+ *     <li>{@code getDeviceProperty}, which returns the configured value or {@code "false"}</li>
+ *     <li>{@code confirm}, which always approves</li>
+ * </ul>
+ * A call of any other method fails with an {@code UnsupportedOperationException} that names it.
+ */
+public final class FakeRivetCrypto implements InvocationHandler {
+
+    private static final int GCM_IV_BYTES = 12;
+    private static final int GCM_TAG_BITS = 128;
+
+    /**
+     * Configures a fake
+     */
+    public static final class Builder {
+        private final ScheduledExecutorService scheduler;
+        private LatencyModel defaultLatency = LatencyModel.none();
+        private final Map<CryptoMetrics.Operation, LatencyModel> latencies = new EnumMap<>(CryptoMetrics.Operation.class);
+        private final Map<CryptoMetrics.Operation, Double> failureRates = new EnumMap<>(CryptoMetrics.Operation.class);
+        private final Map<CryptoMetrics.Operation, RivetErrors> failureErrors = new EnumMap<>(CryptoMetrics.Operation.class);
+        private final Map<String, String> deviceProperties = new HashMap<>();
+        private long seed = 1L;
+
+        /**
+         * @param scheduler completes the delayed calls
+         */
+        public Builder(@NonNull ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        /** Set the latency of every operation without its own model */
+        public @NonNull Builder latency(@NonNull LatencyModel latency) {
+            defaultLatency = latency;
+            return this;
+        }
+
+        /** Set the latency of one operation */
+        public @NonNull Builder latency(@NonNull CryptoMetrics.Operation operation, @NonNull LatencyModel latency) {
+            latencies.put(operation, latency);
+            return this;
+        }
+
+        /**
+         * Make an operation fail some of the time
+         *
+         * @param operation the operation
+         * @param rate the fraction of calls that fail, from 0 to 1
+         * @param error the error the calls fail with
+         */
+        public @NonNull Builder failures(@NonNull CryptoMetrics.Operation operation, double rate, @NonNull RivetErrors error) {
+            failureRates.put(operation, rate);
+            failureErrors.put(operation, error);
+            return this;
+        }
+
+        /** Set the value returned for a device property */
+        public @NonNull Builder deviceProperty(@NonNull String id, @NonNull String value) {
+            deviceProperties.put(id, value);
+            return this;
+        }
+
+        /** Set the seed for the latencies and failures */
+        public @NonNull Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public @NonNull RivetCrypto build() {
+            return (RivetCrypto) Proxy.newProxyInstance(RivetCrypto.class.getClassLoader(),
+                    new Class<?>[] { RivetCrypto.class }, new FakeRivetCrypto(this));
+        }
+    }
+
+    // A key held by the fake
+    private static final class FakeKey {
+        final RivetKeyTypes type;
+        final SecretKey secretKey;
+        final KeyPair keyPair;
+
+        FakeKey(@NonNull RivetKeyTypes type, @Nullable SecretKey secretKey, @Nullable KeyPair keyPair) {
+            this.type = type;
+            this.secretKey = secretKey;
+            this.keyPair = keyPair;
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final LatencyModel defaultLatency;
+    private final Map<CryptoMetrics.Operation, LatencyModel> latencies;
+    private final Map<CryptoMetrics.Operation, Double> failureRates;
+    private final Map<CryptoMetrics.Operation, RivetErrors> failureErrors;
+    private final Map<String, String> deviceProperties;
+    private final Random random;
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final Map<String, FakeKey> keys = new ConcurrentHashMap<>();
+
+    private FakeRivetCrypto(@NonNull Builder builder) {
+        scheduler = builder.scheduler;
+        defaultLatency = builder.defaultLatency;
+        latencies = new EnumMap<>(builder.latencies);
+        failureRates = new EnumMap<>(builder.failureRates);
+        failureErrors = new EnumMap<>(builder.failureErrors);
+        deviceProperties = new HashMap<>(builder.deviceProperties);
+        random = new Random(builder.seed);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "FakeRivetCrypto";
+            }
+        }
+
+        CryptoMetrics.Operation operation = CryptoMetrics.Operation.of(method.getName());
+        return call(operation, () -> perform(operation, method, args));
+    }
+
+    // Run an operation after its simulated latency, failing it at the configured rate
+    private <T> CompletableFuture<T> call(@NonNull CryptoMetrics.Operation operation, @NonNull Callable<T> work) {
+        long delayNanos;
+        boolean fail;
+        synchronized (random) {
+            delayNanos = latencies.getOrDefault(operation, defaultLatency).nextNanos(random);
+            fail = random.nextDouble() < failureRates.getOrDefault(operation, 0.0);
+        }
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable complete = () -> {
+            if (fail) {
+                result.completeExceptionally(new RivetRuntimeException(failureErrors.get(operation)));
+                return;
+            }
+            try {
+                result.complete(work.call());
+            }
+            catch (Exception ex) {
+                result.completeExceptionally(ex);
+            }
+        };
+
+        if (delayNanos <= 0) {
+            complete.run();
+        }
+        else {
+            scheduler.schedule(complete, delayNanos, TimeUnit.NANOSECONDS);
+        }
+        return result;
+    }
+
+    private Object perform(@NonNull CryptoMetrics.Operation operation, @NonNull Method method,
+                           @Nullable Object[] args) throws GeneralSecurityException {
+        switch (operation) {
+            case HASH:
+                return MessageDigest.getInstance(digestAlgorithm((RivetHashTypes) args[0])).digest((byte[]) args[1]);
+            case ENCRYPT:
+                return encrypt(key((String) args[0]), (byte[]) args[1]);
+            case DECRYPT:
+                return decrypt(key((String) args[0]), (EncryptResult) args[1]);
+            case SIGN:
+                return sign(key((String) args[0]), (byte[]) args[1], (RivetHashTypes) args[2]);
+            case VERIFY:
+                return verify(key((String) args[0]), (byte[]) args[1], (RivetHashTypes) args[2], (Signature) args[3]);
+            case CREATE_KEY:
+                createKey((String) args[0], (RivetKeyTypes) args[1]);
+                return null;
+            case DELETE_KEY:
+                boolean deleted = keys.remove((String) args[0]) != null;
+                return resultType(method) == Boolean.class ? deleted : null;
+            case GET_KEY_NAMES:
+                return keyNamesOf((RivetKeyTypes) args[0]);
+            case GET_KEY_DESCRIPTOR:
+                return RivetTypes.keyDescriptor((String) args[0], key((String) args[0]).type);
+            case GET_PUBLIC_KEY:
+                return publicKey(key((String) args[0]));
+            case GET_DEVICE_PROPERTY:
+                return deviceProperties.getOrDefault((String) args[0], "false");
+            case CONFIRM:
+                return true;
+            default:
+                throw new UnsupportedOperationException("FakeRivetCrypto doesn't simulate " + method.getName());
+        }
+    }
+
+    private @NonNull FakeKey key(@NonNull String name) {
+        FakeKey key = keys.get(name);
+        if (key == null) {
+            throw new RivetRuntimeException(RivetErrors.UNEXPECTED_EXCEPTION);
+        }
+        return key;
+    }
+
+    private void createKey(@NonNull String name, @NonNull RivetKeyTypes type) throws GeneralSecurityException {
+        SecretKey secretKey = null;
+        KeyPair keyPair = null;
+
+        if (type.name().startsWith("AES")) {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(256, secureRandom);
+            secretKey = generator.generateKey();
+        }
+        else {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"), secureRandom);
+            keyPair = generator.generateKeyPair();
+        }
+
+        if (keys.putIfAbsent(name, new FakeKey(type, secretKey, keyPair)) != null) {
+            throw new RivetRuntimeException(RivetErrors.UNEXPECTED_EXCEPTION);
+        }
+    }
+
+    private @NonNull List<String> keyNamesOf(@NonNull RivetKeyTypes type) {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, FakeKey> entry : keys.entrySet()) {
+            if (entry.getValue().type == type) {
+                names.add(entry.getKey());
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    // The X.509 SubjectPublicKeyInfo of an EC key. An AES key has no public half, the call fails
+    // as it does for a missing key.
+    private @NonNull byte[] publicKey(@NonNull FakeKey key) {
+        if (key.keyPair == null) {
+            throw new RivetRuntimeException(RivetErrors.UNEXPECTED_EXCEPTION);
+        }
+        return key.keyPair.getPublic().getEncoded();
+    }
+
+    private @NonNull EncryptResult encrypt(@NonNull FakeKey key, @NonNull byte[] data) throws GeneralSecurityException {
+        byte[] iv = new byte[GCM_IV_BYTES];
+        secureRandom.nextBytes(iv);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key.secretKey, new GCMParameterSpec(GCM_TAG_BITS, iv));
+        return RivetTypes.encryptResult(cipher.doFinal(data), iv);
+    }
+
+    private @NonNull byte[] decrypt(@NonNull FakeKey key, @NonNull EncryptResult encrypted) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key.secretKey, new GCMParameterSpec(GCM_TAG_BITS, RivetTypes.iv(encrypted)));
+        return cipher.doFinal(encrypted.getCipherText());
+    }
+
+    private @NonNull Signature sign(@NonNull FakeKey key, @NonNull byte[] data, @NonNull RivetHashTypes hashType)
+            throws GeneralSecurityException {
+        java.security.Signature signer = java.security.Signature.getInstance(signatureAlgorithm(hashType));
+        signer.initSign(key.keyPair.getPrivate(), secureRandom);
+        signer.update(data);
+        return RivetTypes.signature(signer.sign());
+    }
+
+    private boolean verify(@NonNull FakeKey key, @NonNull byte[] data, @NonNull RivetHashTypes hashType,
+                           @NonNull Signature signature) throws GeneralSecurityException {
+        java.security.Signature verifier = java.security.Signature.getInstance(signatureAlgorithm(hashType));
+        verifier.initVerify(key.keyPair.getPublic());
+        verifier.update(data);
+        return verifier.verify(RivetTypes.der(signature));
+    }
+
+    // The JCA digest name of a Rivet hash type, SHA256 is SHA-256
+    private static @NonNull String digestAlgorithm(@NonNull RivetHashTypes hashType) {
+        String name = hashType.name();
+        return name.startsWith("SHA") && !name.startsWith("SHA-") ? "SHA-" + name.substring(3) : name;
+    }
+
+    // The JCA ECDSA name of a Rivet hash type, SHA256 is SHA256withECDSA
+    private static @NonNull String signatureAlgorithm(@NonNull RivetHashTypes hashType) {
+        return hashType.name().replace("-", "") + "withECDSA";
+    }
+
+    // The type a method's future completes with
+    private static @Nullable Type resultType(@NonNull Method method) {
+        Type type = method.getGenericReturnType();
+        return type instanceof ParameterizedType ? ((ParameterizedType) type).getActualTypeArguments()[0] : null;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.benchmark;
+
+import android.support.annotation.NonNull;
+
+import java.util.Random;
+
+/**
+ * A distribution of simulated Rivet call latencies
+ *
+ * A real call crosses the binder to the Rivet service and usually into the TEE. The
+ * {@code FakeRivetCrypto} samples one of these models for each call to simulate that delay.
+ */
+public interface LatencyModel {
+
+    /**
+     * Sample a latency
+     *
+     * @param random the source of randomness, seeded by the fake so runs are repeatable
+     * @return the latency in nanoseconds
+     */
+    long nextNanos(@NonNull Random random);
+
+    /**
+     * @return a model where every call completes immediately, on the calling thread
+     */
+    static @NonNull LatencyModel none() {
+        return random -> 0L;
+    }
+
+    /**
+     * @param micros the latency of every call
+     * @return a model where every call takes the same time
+     */
+    static @NonNull LatencyModel fixed(long micros) {
+        return random -> micros * 1000L;
+    }
+
+    /**
+     * @param minMicros the shortest latency
+     * @param maxMicros the longest latency
+     * @return a model with latencies spread evenly between the bounds
+     */
+    static @NonNull LatencyModel uniform(long minMicros, long maxMicros) {
+        return random -> (minMicros + (long) (random.nextDouble() * (maxMicros - minMicros))) * 1000L;
+    }
+
+    /**
+     * A long tailed model, which is what IPC and TEE latencies look like in practice
+     *
+     * @param medianMicros the median latency
+     * @param sigma the spread, 0.5 gives a p99 of about three times the median
+     * @return a log-normal model
+     */
+    static @NonNull LatencyModel logNormal(long medianMicros, double sigma) {
+        return random -> (long) (medianMicros * 1000L * Math.exp(sigma * random.nextGaussian()));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.benchmark;
+
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.EncryptResult;
+import com.rivetz.api.RivetKeyDescriptor;
+import com.rivetz.api.RivetKeyTypes;
+import com.rivetz.api.Signature;
+
+/**
+ * Builds and reads the RivetzJ result types for the fake
+ *
+ * The fake has to produce the same result objects as the Rivet. Keeping the construction here
+ * means only this class changes if the RivetzJ types change.
+ */
+final class RivetTypes {
+
+    private RivetTypes() {
+    }
+
+    static @NonNull EncryptResult encryptResult(@NonNull byte[] cipherText, @NonNull byte[] iv) {
+        return new EncryptResult(cipherText, iv);
+    }
+
+    static @NonNull byte[] iv(@NonNull EncryptResult result) {
+        return result.getIV();
+    }
+
+    static @NonNull Signature signature(@NonNull byte[] der) {
+        return new Signature(der);
+    }
+
+    static @NonNull byte[] der(@NonNull Signature signature) {
+        return signature.getBytes();
+    }
+
+    static @NonNull RivetKeyDescriptor keyDescriptor(@NonNull String name, @NonNull RivetKeyTypes type) {
+        return new RivetKeyDescriptor(name, type);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.benchmark;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetHashTypes;
+import com.rivetz.api.RivetKeyDescriptor;
+import com.rivetz.api.RivetKeyTypes;
+import com.rivetz.api.RivetRuntimeException;
+import com.rivetz.api.Signature;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FakeRivetCryptoTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final RivetCrypto crypto = new FakeRivetCrypto.Builder(scheduler).build();
+
+    @After
+    public void shutDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void describesAKey() {
+        crypto.createKey("signer", RivetKeyTypes.NISTP256).join();
+
+        RivetKeyDescriptor descriptor = crypto.getKeyDescriptor("signer").join();
+
+        assertEquals("signer", descriptor.getName());
+        assertEquals(RivetKeyTypes.NISTP256, descriptor.getKeyType());
+    }
+
+    @Test
+    public void exportsAPublicKeyThatVerifiesItsSignatures() throws Exception {
+        byte[] data = "receipt".getBytes(StandardCharsets.UTF_8);
+        crypto.createKey("signer", RivetKeyTypes.NISTP256).join();
+        Signature signature = crypto.sign("signer", data, RivetHashTypes.SHA256).join();
+
+        byte[] encoded = crypto.getPublicKey("signer").join();
+
+        PublicKey publicKey = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(encoded));
+        java.security.Signature verifier = java.security.Signature.getInstance("SHA256withECDSA");
+        verifier.initVerify(publicKey);
+        verifier.update(data);
+        assertTrue(verifier.verify(signature.getBytes()));
+    }
+
+    @Test
+    public void failsToExportASymmetricKey() {
+        crypto.createKey("wrapper", RivetKeyTypes.AES256_CGM).join();
+
+        try {
+            crypto.getPublicKey("wrapper").join();
+            fail("An AES key has no public key");
+        }
+        catch (CompletionException ex) {
+            assertTrue(ex.getCause() instanceof RivetRuntimeException);
+        }
+    }
+
+    @Test
+    public void failsToDescribeAMissingKey() {
+        try {
+            crypto.getKeyDescriptor("missing").join();
+            fail("The key doesn't exist");
+        }
+        catch (CompletionException ex) {
+            assertTrue(ex.getCause() instanceof RivetRuntimeException);
+        }
+    }
+}
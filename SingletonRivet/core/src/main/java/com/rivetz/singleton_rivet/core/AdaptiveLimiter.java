@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+/**
+ * A limit on the Rivet calls in flight that adapts to the latency of the device
+ *
+ * How many calls the TEE can serve at once varies a lot between devices, so any fixed limit is
+ * too low on some and too high on others. Too high, and calls queue inside the Rivet service:
+ * every call gets slower, and the service may fail with {@code REMOTE_EXCEPTION}.
+ *
+ * The limiter compares the recent latency with the lowest latency seen over a window of calls,
+ * which is how fast a call is when nothing is queued. While the recent latency is within the
+ * tolerance of it, the limit grows by about its square root, probing for more capacity. When
+ * calls get slower than that, the limit shrinks in proportion, and an overload error cuts it by
+ * a fixed factor. Samples taken while less than half of the limit is in use say nothing about
+ * capacity, and don't raise it.
+ *
+ * The lowest latency is allowed to rise a little after each window of calls, so the limiter
+ * follows a device that becomes slower, for example when it is thermally throttled.
+ *
+ * This is the gradient approach used by concurrency limiters for RPC services.
+ */
+public final class AdaptiveLimiter {
+
+    /**
+     * Builds a limiter
+     */
+    public static final class Builder {
+        private int initialLimit = 4;
+        private int minLimit = 1;
+        private int maxLimit = 64;
+        private double tolerance = 1.5;
+        private double smoothing = 0.2;
+        private double backoff = 0.9;
+        private int window = 100;
+
+        /** @param initialLimit the limit before any calls are measured. The default is 4. */
+        public @NonNull Builder initialLimit(int initialLimit) {
+            this.initialLimit = initialLimit;
+            return this;
+        }
+
+        /** @param minLimit the lowest the limit goes. The default is 1. */
+        public @NonNull Builder minLimit(int minLimit) {
+            this.minLimit = minLimit;
+            return this;
+        }
+
+        /** @param maxLimit the highest the limit goes. The default is 64. */
+        public @NonNull Builder maxLimit(int maxLimit) {
+            this.maxLimit = maxLimit;
+            return this;
+        }
+
+        /**
+         * @param tolerance how much slower than average a call can be before the limit shrinks.
+         *                  The default is 1.5.
+         */
+        public @NonNull Builder tolerance(double tolerance) {
+            this.tolerance = tolerance;
+            return this;
+        }
+
+        /** @param smoothing the weight of each new limit, from 0 to 1. The default is 0.2. */
+        public @NonNull Builder smoothing(double smoothing) {
+            this.smoothing = smoothing;
+            return this;
+        }
+
+        /** @param backoff the factor the limit is cut by on an overload. The default is 0.9. */
+        public @NonNull Builder backoff(double backoff) {
+            this.backoff = backoff;
+            return this;
+        }
+
+        /** @param window the number of calls the lowest latency is taken over. The default is 100. */
+        public @NonNull Builder window(int window) {
+            this.window = window;
+            return this;
+        }
+
+        public @NonNull AdaptiveLimiter build() {
+            if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+                throw new IllegalArgumentException("Need 1 <= minLimit <= initialLimit <= maxLimit");
+            }
+            if (tolerance < 1 || smoothing <= 0 || smoothing > 1 || backoff <= 0 || backoff >= 1 || window < 1) {
+                throw new IllegalArgumentException("Invalid limiter tuning");
+            }
+            return new AdaptiveLimiter(this);
+        }
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double smoothing;
+    private final double backoff;
+    private final int window;
+
+    // Guarded by this
+    private double limit;
+    private double recentNanos = 0;
+    private long baselineNanos = Long.MAX_VALUE;
+    private long windowMinNanos = Long.MAX_VALUE;
+    private int windowCount = 0;
+    private long samples = 0;
+    private long overloads = 0;
+
+    private AdaptiveLimiter(@NonNull Builder builder) {
+        this.minLimit = builder.minLimit;
+        this.maxLimit = builder.maxLimit;
+        this.tolerance = builder.tolerance;
+        this.smoothing = builder.smoothing;
+        this.backoff = builder.backoff;
+        this.window = builder.window;
+        this.limit = builder.initialLimit;
+    }
+
+    /**
+     * @return the number of calls currently allowed in flight
+     */
+    @AnyThread
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Record a completed call
+     *
+     * @param latencyNanos the time from starting the call to its result
+     * @param inFlight the number of calls in flight when it started, including itself
+     * @param overloaded true if the call failed because the service was overloaded
+     */
+    @AnyThread
+    public synchronized void onSample(long latencyNanos, int inFlight, boolean overloaded) {
+        samples++;
+
+        if (overloaded) {
+            overloads++;
+            limit = Math.max(minLimit, limit * backoff);
+            return;
+        }
+
+        // The recent latency follows the last few calls. The baseline is the lowest latency
+        // seen. At the end of each window it may rise towards the lowest of the window, by at
+        // most one percent, so a queue that builds up isn't mistaken for a slower device.
+        recentNanos = recentNanos == 0 ? latencyNanos : recentNanos + (latencyNanos - recentNanos) * 0.5;
+        baselineNanos = Math.min(baselineNanos, latencyNanos);
+        windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+        if (++windowCount == window) {
+            baselineNanos = Math.min(windowMinNanos, baselineNanos + baselineNanos / 100);
+            windowMinNanos = Long.MAX_VALUE;
+            windowCount = 0;
+        }
+
+        if (inFlight < limit / 2) {
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * baselineNanos / Math.max(recentNanos, 1)));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        limit = limit * (1 - smoothing) + newLimit * smoothing;
+        limit = Math.max(minLimit, Math.min(maxLimit, limit));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "limit=" + (int) limit
+                + " latency=" + (long) recentNanos / 1000 + "us"
+                + " baseline=" + (samples > 0 ? baselineNanos / 1000 : 0) + "us"
+                + " samples=" + samples
+                + " overloads=" + overloads;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetHashTypes;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Hashes many inputs through the Rivet with a bounded number of calls in flight
+ *
+ * Hashing tens of thousands of small records one call at a time leaves the Rivet idle between
+ * round trips, while starting them all at once floods the service and every queue in front of
+ * it. The hasher submits each call to a {@code PriorityDispatcher}, which keeps the calls of
+ * its priority class within the class limit and starts the next one as each completes. Sharing
+ * the app's dispatcher also keeps a batch behind the calls a user is waiting on.
+ *
+ * Requests for the same input and hash type are coalesced by a {@code SingleFlight}: while one
+ * is queued or in flight, another request for it shares its call. Inputs are copied when
+ * submitted, so the caller may reuse its buffers.
+ */
+public final class BatchHasher {
+
+    // The identity of a request: the hash type and the input bytes
+    private static final class Key {
+        final RivetHashTypes type;
+        final ByteBuffer input;
+
+        Key(@NonNull RivetHashTypes type, @NonNull byte[] input) {
+            this.type = type;
+            this.input = ByteBuffer.wrap(input);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && type == ((Key) other).type && input.equals(((Key) other).input);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + input.hashCode();
+        }
+    }
+
+    private final RivetCrypto crypto;
+    private final PriorityDispatcher dispatcher;
+    private final PriorityDispatcher.Priority priority;
+    private final SingleFlight<Key, byte[]> flights = new SingleFlight<>();
+
+    /**
+     * @param crypto the crypto interface, which mustn't already be wrapped by the dispatcher
+     * @param dispatcher bounds the calls in flight
+     * @param priority the priority class of the hash calls, whose limit in the dispatcher is
+     *                 the most calls the hasher has in flight
+     */
+    public BatchHasher(@NonNull RivetCrypto crypto, @NonNull PriorityDispatcher dispatcher,
+                       @NonNull PriorityDispatcher.Priority priority) {
+        this.crypto = crypto;
+        this.dispatcher = dispatcher;
+        this.priority = priority;
+    }
+
+    /**
+     * Hash one input
+     *
+     * @param type the hash type
+     * @param input the input
+     * @return a future with the hash
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<byte[]> hash(@NonNull RivetHashTypes type, @NonNull byte[] input) {
+        // Each caller gets its own copy of a shared hash
+        return submit(type, input).thenApply(byte[]::clone);
+    }
+
+    /**
+     * Hash many inputs
+     *
+     * @param type the hash type
+     * @param inputs the inputs
+     * @return a future with the hashes in the order of the inputs, or the first error
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<List<byte[]>> hashAll(@NonNull RivetHashTypes type, @NonNull List<byte[]> inputs) {
+        List<CompletableFuture<byte[]>> results = new ArrayList<>(inputs.size());
+        for (byte[] input : inputs) {
+            results.add(submit(type, input));
+        }
+
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<byte[]> hashes = new ArrayList<>(results.size());
+            for (CompletableFuture<byte[]> result : results) {
+                hashes.add(result.join().clone());
+            }
+            return hashes;
+        });
+    }
+
+    /**
+     * @return the number of distinct requests queued or in flight
+     */
+    @AnyThread
+    public int getOutstanding() {
+        return flights.getInFlight();
+    }
+
+    // Join the outstanding request for the input, or queue a new one
+    private @NonNull CompletableFuture<byte[]> submit(@NonNull RivetHashTypes type, @NonNull byte[] input) {
+        return flights.run(new Key(type, input.clone()),
+                key -> dispatcher.submit(priority, () -> crypto.hash(key.type, key.input.array())));
+    }
+}
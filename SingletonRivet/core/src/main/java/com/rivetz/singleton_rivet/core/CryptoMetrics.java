@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.rivetz.api.RivetErrors;
+import com.rivetz.api.RivetKeyTypes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency, payload size and error counts of the Rivet operations
+ *
+ * Latencies and payload sizes are kept in a histogram for each operation and key type. Errors
+ * are counted for each operation and {@code RivetErrors} code. Recording doesn't allocate once
+ * the histograms for an operation and key type exist, they are created the first time that
+ * combination is recorded.
+ */
+public final class CryptoMetrics {
+
+    /**
+     * The Rivet operations that are measured
+     */
+    public enum Operation {
+        HASH,
+        ENCRYPT,
+        DECRYPT,
+        SIGN,
+        VERIFY,
+        CREATE_KEY,
+        DELETE_KEY,
+        GET_KEY_NAMES,
+        GET_KEY_DESCRIPTOR,
+        GET_PUBLIC_KEY,
+        GET_DEVICE_PROPERTY,
+        CONFIRM,
+        OTHER;
+
+        /**
+         * Get the operation of a {@code RivetCrypto} method
+         *
+         * @param methodName the name of the method
+         * @return the operation, or {@code OTHER} for methods that aren't measured separately
+         */
+        public static @NonNull Operation of(@NonNull String methodName) {
+            Operation operation = BY_METHOD.get(methodName);
+            return operation != null ? operation : OTHER;
+        }
+    }
+
+    // The operation of each RivetCrypto method, by method name
+    private static final Map<String, Operation> BY_METHOD = new HashMap<>();
+
+    static {
+        BY_METHOD.put("hash", Operation.HASH);
+        BY_METHOD.put("encrypt", Operation.ENCRYPT);
+        BY_METHOD.put("decrypt", Operation.DECRYPT);
+        BY_METHOD.put("sign", Operation.SIGN);
+        BY_METHOD.put("verify", Operation.VERIFY);
+        BY_METHOD.put("createKey", Operation.CREATE_KEY);
+        BY_METHOD.put("deleteKey", Operation.DELETE_KEY);
+        BY_METHOD.put("getKeyNamesOf", Operation.GET_KEY_NAMES);
+        BY_METHOD.put("getKeyDescriptor", Operation.GET_KEY_DESCRIPTOR);
+        BY_METHOD.put("getPublicKey", Operation.GET_PUBLIC_KEY);
+        BY_METHOD.put("getDeviceProperty", Operation.GET_DEVICE_PROPERTY);
+        BY_METHOD.put("confirm", Operation.CONFIRM);
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final RivetKeyTypes[] KEY_TYPES = RivetKeyTypes.values();
+    private static final RivetErrors[] ERRORS = RivetErrors.values();
+
+    // An extra slot for operations without a key type, and for errors that aren't RivetErrors
+    private static final int KEY_TYPE_SLOTS = KEY_TYPES.length + 1;
+    private static final int ERROR_SLOTS = ERRORS.length + 1;
+
+    private final AtomicReferenceArray<LogLinearHistogram> latencies =
+            new AtomicReferenceArray<>(OPERATIONS.length * KEY_TYPE_SLOTS);
+    private final AtomicReferenceArray<LogLinearHistogram> payloads =
+            new AtomicReferenceArray<>(OPERATIONS.length * KEY_TYPE_SLOTS);
+    private final AtomicLongArray errors = new AtomicLongArray(OPERATIONS.length * ERROR_SLOTS);
+
+    /**
+     * Record a completed operation
+     *
+     * @param operation the operation
+     * @param keyType the type of key used, or null if none or not known
+     * @param latencyNanos the time from the call until the result
+     * @param payloadBytes the size of the data passed in, or a negative value if there is none
+     * @param error the error code if the operation failed with a Rivet error, or null
+     * @param failed true if the operation failed
+     */
+    @AnyThread
+    public void record(@NonNull Operation operation, @Nullable RivetKeyTypes keyType, long latencyNanos,
+                       long payloadBytes, @Nullable RivetErrors error, boolean failed) {
+        int slot = operation.ordinal() * KEY_TYPE_SLOTS + (keyType == null ? KEY_TYPES.length : keyType.ordinal());
+
+        histogram(latencies, slot).record(latencyNanos);
+        if (payloadBytes >= 0) {
+            histogram(payloads, slot).record(payloadBytes);
+        }
+        if (failed) {
+            errors.incrementAndGet(operation.ordinal() * ERROR_SLOTS + (error == null ? ERRORS.length : error.ordinal()));
+        }
+    }
+
+    /**
+     * Copy the current metrics
+     *
+     * @return the stats of each operation and key type that has been recorded
+     */
+    @AnyThread
+    public @NonNull Snapshot snapshot() {
+        List<OperationStats> stats = new ArrayList<>();
+
+        for (Operation operation : OPERATIONS) {
+            Map<RivetErrors, Long> rivetErrors = new EnumMap<>(RivetErrors.class);
+            for (RivetErrors error : ERRORS) {
+                long count = errors.get(operation.ordinal() * ERROR_SLOTS + error.ordinal());
+                if (count > 0) {
+                    rivetErrors.put(error, count);
+                }
+            }
+            long otherErrors = errors.get(operation.ordinal() * ERROR_SLOTS + ERRORS.length);
+
+            for (int type = 0; type < KEY_TYPE_SLOTS; type++) {
+                int slot = operation.ordinal() * KEY_TYPE_SLOTS + type;
+                LogLinearHistogram latency = latencies.get(slot);
+                if (latency != null) {
+                    LogLinearHistogram payload = payloads.get(slot);
+                    stats.add(new OperationStats(operation, type < KEY_TYPES.length ? KEY_TYPES[type] : null,
+                            latency.snapshot(), payload != null ? payload.snapshot() : null));
+                }
+            }
+
+            if (!rivetErrors.isEmpty() || otherErrors > 0) {
+                stats.add(new OperationStats(operation, rivetErrors, otherErrors));
+            }
+        }
+
+        return new Snapshot(stats);
+    }
+
+    private static LogLinearHistogram histogram(AtomicReferenceArray<LogLinearHistogram> histograms, int slot) {
+        LogLinearHistogram histogram = histograms.get(slot);
+        if (histogram == null) {
+            histograms.compareAndSet(slot, null, new LogLinearHistogram());
+            histogram = histograms.get(slot);
+        }
+        return histogram;
+    }
+
+    /**
+     * The metrics of every operation at one point in time
+     */
+    public static final class Snapshot {
+        private final List<OperationStats> stats;
+
+        Snapshot(@NonNull List<OperationStats> stats) {
+            this.stats = Collections.unmodifiableList(stats);
+        }
+
+        /**
+         * @return the latency and payload stats of each operation and key type, and the error
+         * counts of each operation, in operation order
+         */
+        public @NonNull List<OperationStats> getStats() {
+            return stats;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (OperationStats stat : stats) {
+                sb.append(stat).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The stats of one operation, either the latency and payloads for a key type, or the
+     * error counts.
+     */
+    public static final class OperationStats {
+        private final Operation operation;
+        private final RivetKeyTypes keyType;
+        private final LogLinearHistogram.Snapshot latency;
+        private final LogLinearHistogram.Snapshot payload;
+        private final Map<RivetErrors, Long> errors;
+        private final long otherErrors;
+
+        OperationStats(@NonNull Operation operation, @Nullable RivetKeyTypes keyType,
+                       @NonNull LogLinearHistogram.Snapshot latency, @Nullable LogLinearHistogram.Snapshot payload) {
+            this.operation = operation;
+            this.keyType = keyType;
+            this.latency = latency;
+            this.payload = payload;
+            this.errors = Collections.emptyMap();
+            this.otherErrors = 0;
+        }
+
+        OperationStats(@NonNull Operation operation, @NonNull Map<RivetErrors, Long> errors, long otherErrors) {
+            this.operation = operation;
+            this.keyType = null;
+            this.latency = null;
+            this.payload = null;
+            this.errors = Collections.unmodifiableMap(errors);
+            this.otherErrors = otherErrors;
+        }
+
+        public @NonNull Operation getOperation() {
+            return operation;
+        }
+
+        /** @return the key type, or null for operations without a key type and for error counts */
+        public @Nullable RivetKeyTypes getKeyType() {
+            return keyType;
+        }
+
+        /** @return the latency in nanoseconds, or null for error counts */
+        public @Nullable LogLinearHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        /** @return the payload size in bytes, or null if the operation has no payload */
+        public @Nullable LogLinearHistogram.Snapshot getPayload() {
+            return payload;
+        }
+
+        /** @return the number of failures with each Rivet error */
+        public @NonNull Map<RivetErrors, Long> getErrors() {
+            return errors;
+        }
+
+        /** @return the number of failures that weren't Rivet errors */
+        public long getOtherErrors() {
+            return otherErrors;
+        }
+
+        @Override
+        public String toString() {
+            if (latency == null) {
+                return operation + " errors " + errors + (otherErrors > 0 ? " other=" + otherErrors : "");
+            }
+
+            StringBuilder sb = new StringBuilder()
+                    .append(operation);
+            if (keyType != null) {
+                sb.append('/').append(keyType);
+            }
+            sb.append(" n=").append(latency.getCount())
+                    .append(" p50=").append(latency.getPercentile(50) / 1000).append("us")
+                    .append(" p90=").append(latency.getPercentile(90) / 1000).append("us")
+                    .append(" p99=").append(latency.getPercentile(99) / 1000).append("us")
+                    .append(" max=").append(latency.getMax() / 1000).append("us");
+            if (payload != null) {
+                sb.append(" bytes p50=").append(payload.getPercentile(50))
+                        .append(" max=").append(payload.getMax());
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetHashTypes;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides for each hash whether it is computed by the Rivet or in process
+ *
+ * A hash of data that isn't secret gains nothing from the TEE but a round trip over IPC. The
+ * router asks a policy, with the call site and the class of the data, where each hash should be
+ * computed. In process hashes use {@code MessageDigest}, which gives the same bytes as the
+ * Rivet for the same hash type. A hash type with no {@code MessageDigest} algorithm always goes
+ * to the Rivet.
+ *
+ * Sensitive data always goes to the Rivet. The policy only decides the route of public data, and
+ * the default one hashes it all in process. A call site can be routed one way regardless of the
+ * policy, which also only applies to its public data.
+ *
+ * A small in process hash is computed on the calling thread. A larger one runs on the executor
+ * over a copy of the data, so the caller may reuse its buffer as soon as the call returns.
+ *
+ * A router built with a {@code MemoizingHasher} answers repeated hashes that go to the Rivet
+ * from the cache. The cache only keeps a keyed fingerprint of each input, so sensitive data is
+ * cached too.
+ */
+public final class HashRouter {
+
+    /**
+     * How sensitive the hashed data is
+     */
+    public enum DataClass {
+        /** Data that may be seen by anything in the app process */
+        PUBLIC,
+        /** Data that should only be handled by the TEE */
+        SENSITIVE
+    }
+
+    /**
+     * Where a hash is computed
+     */
+    public enum Route {
+        IN_PROCESS,
+        TEE
+    }
+
+    /**
+     * Chooses the route of a hash of public data
+     */
+    public interface Policy {
+        /**
+         * @param site the call site
+         * @param dataClass the class of the data, always {@code PUBLIC} when the router asks
+         * @param hashType the hash type
+         * @param payloadBytes the size of the data
+         * @return the route
+         */
+        @NonNull Route route(@NonNull String site, @NonNull DataClass dataClass,
+                             @NonNull RivetHashTypes hashType, int payloadBytes);
+    }
+
+    /**
+     * Hashes public data in process, and anything else in the Rivet
+     */
+    public static final Policy BY_DATA_CLASS = (site, dataClass, hashType, payloadBytes) ->
+            dataClass == DataClass.PUBLIC ? Route.IN_PROCESS : Route.TEE;
+
+    /**
+     * Builds a router
+     */
+    public static final class Builder {
+        private Policy policy = BY_DATA_CLASS;
+        private final Map<String, Route> sites = new HashMap<>();
+        private Executor executor = Runnable::run;
+        private MemoizingHasher memo = null;
+
+        /**
+         * @param policy chooses the route of each hash. The default is {@code BY_DATA_CLASS}.
+         */
+        public @NonNull Builder policy(@NonNull Policy policy) {
+            this.policy = policy;
+            return this;
+        }
+
+        /**
+         * @param site a call site
+         * @param route the route of every hash of public data from the site, whatever the policy
+         *              says
+         */
+        public @NonNull Builder route(@NonNull String site, @NonNull Route route) {
+            sites.put(site, route);
+            return this;
+        }
+
+        /**
+         * @param executor runs the in process hashes larger than {@code INLINE_DIGEST_BYTES}. The
+         *                 default runs them on the calling thread.
+         */
+        public @NonNull Builder executor(@NonNull Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * @param memo caches the hashes routed to the Rivet. By default nothing is cached.
+         */
+        public @NonNull Builder memo(@NonNull MemoizingHasher memo) {
+            this.memo = memo;
+            return this;
+        }
+
+        public @NonNull HashRouter build() {
+            return new HashRouter(this);
+        }
+    }
+
+    /**
+     * The largest in process hash computed on the calling thread. Handing a digest this small to
+     * the executor costs more than the digest.
+     */
+    public static final int INLINE_DIGEST_BYTES = 16 * 1024;
+
+    private static final RivetHashTypes[] HASH_TYPES = RivetHashTypes.values();
+
+    private final Policy policy;
+    private final Map<String, Route> sites;
+    private final Executor executor;
+    private final MemoizingHasher memo;
+
+    // The JCA algorithm of each hash type, missing if the platform doesn't have one
+    private final Map<RivetHashTypes, String> algorithms = new EnumMap<>(RivetHashTypes.class);
+
+    // The number of hashes of each type that took each route
+    private final AtomicLongArray routed = new AtomicLongArray(HASH_TYPES.length * Route.values().length);
+
+    private HashRouter(@NonNull Builder builder) {
+        this.policy = builder.policy;
+        this.sites = new HashMap<>(builder.sites);
+        this.executor = builder.executor;
+        this.memo = builder.memo;
+        for (RivetHashTypes hashType : HASH_TYPES) {
+            String algorithm = algorithmOf(hashType);
+            if (algorithm != null) {
+                algorithms.put(hashType, algorithm);
+            }
+        }
+    }
+
+    /**
+     * Hash some data
+     *
+     * @param crypto the crypto interface, used for the hashes routed to the TEE
+     * @param site the call site
+     * @param dataClass the class of the data
+     * @param hashType the hash type
+     * @param data the data
+     * @return a future with the hash
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<byte[]> hash(@NonNull RivetCrypto crypto, @NonNull String site,
+                                                   @NonNull DataClass dataClass, @NonNull RivetHashTypes hashType,
+                                                   @NonNull byte[] data) {
+        Route route = route(site, dataClass, hashType, data.length);
+        routed.incrementAndGet(hashType.ordinal() * Route.values().length + route.ordinal());
+
+        if (route == Route.TEE) {
+            return memo != null ? memo.hash(crypto, hashType, data) : crypto.hash(hashType, data);
+        }
+
+        String algorithm = algorithms.get(hashType);
+        if (data.length <= INLINE_DIGEST_BYTES) {
+            CompletableFuture<byte[]> result = new CompletableFuture<>();
+            try {
+                result.complete(digest(algorithm, data));
+            }
+            catch (RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+            return result;
+        }
+
+        // The caller may change its buffer once this returns, before the executor gets to it
+        byte[] copy = data.clone();
+        return CompletableFuture.supplyAsync(() -> digest(algorithm, copy), executor);
+    }
+
+    /**
+     * Wrap a crypto interface so its hashes from one call site are routed
+     *
+     * @param crypto the crypto interface
+     * @param site the call site
+     * @param dataClass the class of the data hashed at the site
+     * @return a crypto interface that routes each hash and passes the other calls on
+     */
+    @AnyThread
+    public @NonNull RivetCrypto wrap(@NonNull RivetCrypto crypto, @NonNull String site, @NonNull DataClass dataClass) {
+        return (RivetCrypto) Proxy.newProxyInstance(RivetCrypto.class.getClassLoader(),
+                new Class<?>[] { RivetCrypto.class }, new Routing(crypto, site, dataClass));
+    }
+
+    /**
+     * @param hashType a hash type
+     * @param route a route
+     * @return the number of hashes of the type that took the route
+     */
+    @AnyThread
+    public long getRouted(@NonNull RivetHashTypes hashType, @NonNull Route route) {
+        return routed.get(hashType.ordinal() * Route.values().length + route.ordinal());
+    }
+
+    /**
+     * @param site the call site
+     * @param dataClass the class of the data
+     * @param hashType the hash type
+     * @param payloadBytes the size of the data
+     * @return where such a hash is computed
+     */
+    @AnyThread
+    public @NonNull Route route(@NonNull String site, @NonNull DataClass dataClass,
+                                @NonNull RivetHashTypes hashType, int payloadBytes) {
+        if (dataClass == DataClass.SENSITIVE || !algorithms.containsKey(hashType)) {
+            return Route.TEE;
+        }
+        Route route = sites.get(site);
+        return route != null ? route : policy.route(site, dataClass, hashType, payloadBytes);
+    }
+
+    private static @NonNull byte[] digest(@NonNull String algorithm, @NonNull byte[] data) {
+        try {
+            return MessageDigest.getInstance(algorithm).digest(data);
+        }
+        catch (NoSuchAlgorithmException ex) {
+            // The algorithm was found when the router was built
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // The JCA digest name of a Rivet hash type, SHA256 is SHA-256, or null if there is none
+    private static @Nullable String algorithmOf(@NonNull RivetHashTypes hashType) {
+        String name = hashType.name();
+        String algorithm = name.startsWith("SHA") && !name.startsWith("SHA-") ? "SHA-" + name.substring(3) : name;
+        try {
+            MessageDigest.getInstance(algorithm);
+            return algorithm;
+        }
+        catch (NoSuchAlgorithmException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Routes the hashes, and passes the other calls straight on
+     */
+    private final class Routing implements InvocationHandler {
+        private final RivetCrypto crypto;
+        private final String site;
+        private final DataClass dataClass;
+
+        Routing(@NonNull RivetCrypto crypto, @NonNull String site, @NonNull DataClass dataClass) {
+            this.crypto = crypto;
+            this.site = site;
+            this.dataClass = dataClass;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "Routed(" + site + ", " + dataClass + ", " + crypto + ")";
+                }
+            }
+
+            if (method.getName().equals("hash") && args != null && args.length == 2
+                    && args[0] instanceof RivetHashTypes && args[1] instanceof byte[]) {
+                return hash(crypto, site, dataClass, (RivetHashTypes) args[0], (byte[]) args[1]);
+            }
+
+            try {
+                return method.invoke(crypto, args);
+            }
+            catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+}
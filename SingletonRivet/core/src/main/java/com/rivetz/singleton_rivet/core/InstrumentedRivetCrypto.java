@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.rivetz.api.EncryptResult;
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetErrors;
+import com.rivetz.api.RivetHashTypes;
+import com.rivetz.api.RivetKeyDescriptor;
+import com.rivetz.api.RivetKeyTypes;
+import com.rivetz.api.RivetRules;
+import com.rivetz.api.RivetRuntimeException;
+import com.rivetz.api.Signature;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@code RivetCrypto} that records the latency of every call in {@code CryptoMetrics}
+ *
+ * The wrapper implements the whole {@code RivetCrypto} interface, so it can be used anywhere
+ * the crypto interface from the Rivet is used. Each call is passed to the Rivet unchanged, and
+ * its latency, payload size and result are recorded when the returned future completes.
+ *
+ * Operations that name a key are recorded against the key type when it is known. The type of a
+ * key is learned when the key is created or listed through the wrapper, for up to
+ * {@code MAX_KEY_TYPES} keys. Operations on keys beyond that are recorded without a key type.
+ *
+ * The completion callbacks are allocated up front and reused, so a call through the wrapper
+ * doesn't allocate, apart from the dependent stage {@code whenComplete()} creates. More than
+ * {@code RECORDERS} calls in flight at once allocate a callback each for the extra calls.
+ */
+public final class InstrumentedRivetCrypto implements RivetCrypto {
+
+    // The callbacks kept for reuse, enough for the calls the Rivet runs at once
+    private static final int RECORDERS = 64;
+
+    // The most keys whose type is remembered
+    private static final int MAX_KEY_TYPES = 1024;
+
+    private final RivetCrypto crypto;
+    private final CryptoMetrics metrics;
+    private final Map<String, RivetKeyTypes> keyTypes = new ConcurrentHashMap<>();
+    private final ArrayBlockingQueue<Recorder> recorders = new ArrayBlockingQueue<>(RECORDERS);
+
+    private InstrumentedRivetCrypto(@NonNull RivetCrypto crypto, @NonNull CryptoMetrics metrics) {
+        this.crypto = crypto;
+        this.metrics = metrics;
+        for (int i = 0; i < RECORDERS; i++) {
+            recorders.add(new Recorder());
+        }
+    }
+
+    /**
+     * Wrap a crypto interface
+     *
+     * @param crypto the crypto interface from the Rivet
+     * @param metrics where the calls are recorded
+     * @return a crypto interface that records each call and passes it on
+     */
+    @AnyThread
+    public static @NonNull RivetCrypto wrap(@NonNull RivetCrypto crypto, @NonNull CryptoMetrics metrics) {
+        return new InstrumentedRivetCrypto(crypto, metrics);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> hash(RivetHashTypes type, byte[] data) {
+        Recorder recorder = start(CryptoMetrics.Operation.HASH, null, lengthOf(data), null);
+        try {
+            return watch(recorder, crypto.hash(type, data));
+        }
+        catch (RuntimeException ex) {
+            throw fail(recorder, ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<EncryptResult> encrypt(String keyName, byte[] data) {
+        Recorder recorder = start(CryptoMetrics.Operation.ENCRYPT, keyTypeOf(keyName), lengthOf(data), keyName);
+        try {
+            return watch(recorder, crypto.encrypt(keyName, data));
+        }
+        catch (RuntimeException ex) {
+            throw fail(recorder, ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> decrypt(String keyName, EncryptResult encrypted) {
+        long payloadBytes = encrypted != null ? lengthOf(encrypted.getCipherText()) : -1;
+        Recorder recorder = start(CryptoMetrics.Operation.DECRYPT, keyTypeOf(keyName), payloadBytes, keyName);
+        try {
+            return watch(recorder, crypto.decrypt(keyName, encrypted));
+        }
+        catch (RuntimeException ex) {
+            throw fail(recorder, ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Signature> sign(String keyName, byte[] data, RivetHashTypes type) {
+        Recorder recorder = start(CryptoMetrics.Operation.SIGN, keyTypeOf(keyName), lengthOf(data), keyName);
+        try {
+            return watch(recorder, crypto.sign(keyName, data, type));
+        }
+        catch (RuntimeException ex) {
+            throw fail(recorder, ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> verify(String keyName, byte[] data, RivetHashTypes type, Signature signature) {
+        Recorder recorder = start(CryptoMetrics.Operation.VERIFY, keyTypeOf(keyName), lengthOf(data), keyName);
+        try {
+            return watch(recorder, crypto.verify(keyName, data, type, signature));
+        }
+        catch (RuntimeException ex) {
+            throw fail(recorder, ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> createKey(String keyName, RivetKeyTypes type, RivetRules... rules) {
+        Recorder recorder = start(CryptoMetrics.Operation.CREATE_KEY, type, -1, keyName);
+        try {
+            return watch(recorder, crypto.createKey(keyName, type, rules));
+        }
+        catch (RuntimeException ex) {
+            throw fail(recorder, ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteKey(String keyName) {
+        Recorder recorder = start(CryptoMetrics.Operation.DELETE_KEY, keyTypeOf(keyName), -1, keyName);
+        try {
+            return watch(recorder, crypto.deleteKey(keyName));
+        }
+        catch (RuntimeException ex) {
+            throw fail(recorder, ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<RivetKeyDescriptor> getKeyDescriptor(String keyName) {
+        Recorder recorder = start(CryptoMetrics.Operation.GET_KEY_DESCRIPTOR, keyTypeOf(keyName), -1, keyName);
+        try {
+            return watch(recorder, crypto.getKeyDescriptor(keyName));
+        }
+        catch (RuntimeException ex) {
+            throw fail(recorder, ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getKeyNamesOf(RivetKeyTypes type) {
+        Recorder recorder = start(CryptoMetrics.Operation.GET_KEY_NAMES, type, -1, null);
+        try {
+            return watch(recorder, crypto.getKeyNamesOf(type));
+        }
+        catch (RuntimeException ex) {
+            throw fail(recorder, ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> getDeviceProperty(String property) {
+        Recorder recorder = start(CryptoMetrics.Operation.GET_DEVICE_PROPERTY, null, -1, null);
+        try {
+            return watch(recorder, crypto.getDeviceProperty(property));
+        }
+        catch (RuntimeException ex) {
+            throw fail(recorder, ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> confirm(String message) {
+        Recorder recorder = start(CryptoMetrics.Operation.CONFIRM, null, -1, null);
+        try {
+            return watch(recorder, crypto.confirm(message));
+        }
+        catch (RuntimeException ex) {
+            throw fail(recorder, ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getPublicKey(String keyName) {
+        Recorder recorder = start(CryptoMetrics.Operation.GET_PUBLIC_KEY, keyTypeOf(keyName), -1, keyName);
+        try {
+            return watch(recorder, crypto.getPublicKey(keyName));
+        }
+        catch (RuntimeException ex) {
+            throw fail(recorder, ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Instrumented(" + crypto + ")";
+    }
+
+    // Take a callback for a call that is about to start, and note the start time
+    private @NonNull Recorder start(@NonNull CryptoMetrics.Operation operation, @Nullable RivetKeyTypes keyType,
+                                    long payloadBytes, @Nullable String keyName) {
+        Recorder recorder = recorders.poll();
+        if (recorder == null) {
+            recorder = new Recorder();
+        }
+        recorder.operation = operation;
+        recorder.keyType = keyType;
+        recorder.payloadBytes = payloadBytes;
+        recorder.keyName = keyName;
+        recorder.start = System.nanoTime();
+        return recorder;
+    }
+
+    // The caller gets the Rivet's future itself, the callback only observes it
+    private static <T> CompletableFuture<T> watch(@NonNull Recorder recorder, @NonNull CompletableFuture<T> result) {
+        result.whenComplete(recorder);
+        return result;
+    }
+
+    // Record a call that threw before returning a future
+    private @NonNull RuntimeException fail(@NonNull Recorder recorder, @NonNull RuntimeException ex) {
+        recorder.accept(null, ex);
+        return ex;
+    }
+
+    private @Nullable RivetKeyTypes keyTypeOf(@Nullable String keyName) {
+        return keyName != null ? keyTypes.get(keyName) : null;
+    }
+
+    private void learnKeyType(@NonNull String keyName, @NonNull RivetKeyTypes type) {
+        if (keyTypes.size() < MAX_KEY_TYPES || keyTypes.containsKey(keyName)) {
+            keyTypes.put(keyName, type);
+        }
+    }
+
+    private static long lengthOf(@Nullable byte[] data) {
+        return data != null ? data.length : -1;
+    }
+
+    // The Rivet error a call failed with, or null if it didn't fail with a Rivet error
+    private static @Nullable RivetErrors errorOf(@Nullable Throwable th) {
+        while ((th instanceof CompletionException || th instanceof ExecutionException) && th.getCause() != null) {
+            th = th.getCause();
+        }
+        return th instanceof RivetRuntimeException ? ((RivetRuntimeException) th).getError() : null;
+    }
+
+    /**
+     * Records one call when it completes, then goes back to be reused
+     */
+    private final class Recorder implements BiConsumer<Object, Throwable> {
+        // Set by start() before the callback is registered, which publishes them to the thread
+        // that completes the call
+        CryptoMetrics.Operation operation;
+        RivetKeyTypes keyType;
+        String keyName;
+        long payloadBytes;
+        long start;
+
+        @Override
+        public void accept(Object value, Throwable th) {
+            metrics.record(operation, keyType, System.nanoTime() - start, payloadBytes, errorOf(th), th != null);
+            if (th == null) {
+                learnKeyTypes(value);
+            }
+
+            keyName = null;
+            recorders.offer(this);
+        }
+
+        // Remember the types of keys that were created or listed, and forget deleted keys
+        private void learnKeyTypes(Object value) {
+            if (operation == CryptoMetrics.Operation.CREATE_KEY && keyName != null && keyType != null) {
+                learnKeyType(keyName, keyType);
+            }
+            else if (operation == CryptoMetrics.Operation.GET_KEY_NAMES && value instanceof List && keyType != null) {
+                List<?> names = (List<?>) value;
+                for (int i = 0; i < names.size(); i++) {
+                    learnKeyType((String) names.get(i), keyType);
+                }
+            }
+            else if (operation == CryptoMetrics.Operation.DELETE_KEY && keyName != null) {
+                keyTypes.remove(keyName);
+            }
+        }
+    }
+}
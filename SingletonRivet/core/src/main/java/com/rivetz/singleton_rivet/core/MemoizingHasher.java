@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetHashTypes;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Remembers the hashes of recent inputs
+ *
+ * Concurrent requests for the same hash type and input share one call to the Rivet through a
+ * {@code SingleFlight}, and a completed hash is kept in an LRU cache, so hashing the same identifier again costs a map
+ * lookup. The cache is bounded by the bytes of the fingerprints and hashes it holds. Failed
+ * calls aren't cached.
+ *
+ * Entries are keyed by a fingerprint of the input, an HMAC-SHA256 under a random key made for
+ * this cache, so no copy of the input is kept. The fingerprint isn't the hash of the input, so
+ * computing it doesn't hash in process what was meant to be hashed by the Rivet, and it can't
+ * be matched against guessed inputs without the cache's key.
+ */
+public final class MemoizingHasher {
+
+    private static final String FINGERPRINT_ALGORITHM = "HmacSHA256";
+    private static final int FINGERPRINT_KEY_BYTES = 32;
+
+    // What is charged to the budget for each entry on top of its fingerprint and hash
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    // The identity of a hash: the hash type and the fingerprint of the input
+    private static final class Key {
+        final RivetHashTypes type;
+        final byte[] fingerprint;
+        final int hashCode;
+
+        Key(@NonNull RivetHashTypes type, @NonNull byte[] fingerprint) {
+            this.type = type;
+            this.fingerprint = fingerprint;
+            this.hashCode = 31 * type.hashCode() + Arrays.hashCode(fingerprint);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hashCode == key.hashCode && type == key.type && Arrays.equals(fingerprint, key.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * The cache counters at one point in time
+     */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long shared;
+        private final long evictions;
+        private final int entries;
+        private final long bytes;
+
+        Stats(long hits, long misses, long shared, long evictions, int entries, long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.shared = shared;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+        }
+
+        /** @return the requests answered from the cache */
+        public long getHits() {
+            return hits;
+        }
+
+        /** @return the requests that called the Rivet */
+        public long getMisses() {
+            return misses;
+        }
+
+        /** @return the requests that joined a call already in flight */
+        public long getShared() {
+            return shared;
+        }
+
+        /** @return the entries dropped to stay within the budget */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        /** @return the bytes charged to the budget */
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + " misses=" + misses + " shared=" + shared + " evictions=" + evictions
+                    + " entries=" + entries + " bytes=" + bytes;
+        }
+    }
+
+    private final long maxBytes;
+
+    // Mac.getInstance walks the providers, so each thread keeps a Mac keyed for this cache
+    private final ThreadLocal<Mac> macs;
+
+    private final SingleFlight<Key, byte[]> flights = new SingleFlight<>();
+
+    // Guarded by this
+    private final LinkedHashMap<Key, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxBytes the most bytes of fingerprints and hashes to keep
+     */
+    public MemoizingHasher(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be at least 1");
+        }
+        this.maxBytes = maxBytes;
+
+        byte[] secret = new byte[FINGERPRINT_KEY_BYTES];
+        new SecureRandom().nextBytes(secret);
+        SecretKeySpec fingerprintKey = new SecretKeySpec(secret, FINGERPRINT_ALGORITHM);
+        Arrays.fill(secret, (byte) 0);
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(FINGERPRINT_ALGORITHM);
+                mac.init(fingerprintKey);
+                return mac;
+            }
+            catch (GeneralSecurityException ex) {
+                // Every Java platform has HmacSHA256
+                throw new IllegalStateException(ex);
+            }
+        });
+    }
+
+    /**
+     * Hash some data, or get its hash from the cache
+     *
+     * @param crypto the crypto interface, used when the hash isn't cached or in flight
+     * @param hashType the hash type
+     * @param data the data, only read before this returns
+     * @return a future with the hash
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<byte[]> hash(@NonNull RivetCrypto crypto, @NonNull RivetHashTypes hashType,
+                                                   @NonNull byte[] data) {
+        Key key = new Key(hashType, macs.get().doFinal(data));
+        synchronized (this) {
+            byte[] cached = cache.get(key);
+            if (cached != null) {
+                hits++;
+                return CompletableFuture.completedFuture(cached.clone());
+            }
+        }
+
+        // The Rivet gets its own copy, so the caller may reuse its buffer once this returns.
+        // The hash is cached before the flight ends, so there's no gap where a request for it
+        // finds neither.
+        return flights.run(key, k -> crypto.hash(hashType, data.clone()).thenApply(hash -> {
+            if (hash != null) {
+                synchronized (this) {
+                    put(k, hash.clone());
+                }
+            }
+            return hash;
+        })).thenApply(byte[]::clone);
+    }
+
+    /**
+     * @return the current counters
+     */
+    @AnyThread
+    public synchronized @NonNull Stats getStats() {
+        return new Stats(hits, flights.getStarted(), flights.getShared(), evictions, cache.size(), bytes);
+    }
+
+    /**
+     * Drop every cached hash. Calls in flight still complete, and are cached.
+     */
+    @AnyThread
+    public synchronized void clear() {
+        cache.clear();
+        bytes = 0;
+    }
+
+    // Add an entry and evict the least recently used ones until the cache is within budget.
+    // An entry larger than the whole budget isn't kept.
+    private void put(@NonNull Key key, @NonNull byte[] hash) {
+        long size = sizeOf(key, hash);
+        if (size > maxBytes) {
+            return;
+        }
+
+        byte[] previous = cache.put(key, hash);
+        if (previous != null) {
+            bytes -= sizeOf(key, previous);
+        }
+        bytes += size;
+
+        Iterator<Map.Entry<Key, byte[]>> eldest = cache.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<Key, byte[]> entry = eldest.next();
+            bytes -= sizeOf(entry.getKey(), entry.getValue());
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private static long sizeOf(@NonNull Key key, @NonNull byte[] hash) {
+        return key.fingerprint.length + hash.length + ENTRY_OVERHEAD_BYTES;
+    }
+}
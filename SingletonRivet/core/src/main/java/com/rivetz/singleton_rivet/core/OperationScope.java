@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.RivetCrypto;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Ties the Rivet calls of a component, such as an activity, to its lifetime
+ *
+ * Calls made through a crypto interface wrapped by the scope return futures the scope owns.
+ * When the component is destroyed it closes the scope. Each pending call is then cancelled:
+ * when the calls are dispatched by a {@code PriorityDispatcher}, a call still waiting in the
+ * queue is removed and never made, and a call already in flight has its result dropped.
+ *
+ * The futures the scope returned are left incomplete when it is closed, so callbacks chained
+ * on them never run, and once the scope lets go of them the callbacks, and whatever they
+ * reference, can be collected. Don't block on a future from a scope that may be closed.
+ */
+public final class OperationScope implements AutoCloseable {
+
+    // A pending future and the source it is waiting on
+    private static final class Pending {
+        final CompletableFuture<?> source;
+        final boolean cancelSource;
+
+        Pending(@NonNull CompletableFuture<?> source, boolean cancelSource) {
+            this.source = source;
+            this.cancelSource = cancelSource;
+        }
+    }
+
+    // Guarded by this
+    private final Set<Pending> pending = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean closed = false;
+
+    /**
+     * Wrap a crypto interface so the calls made through it belong to this scope
+     *
+     * @param crypto the crypto interface
+     * @return a crypto interface whose calls are cancelled when the scope is closed. After
+     * that, its calls aren't passed on and their futures never complete.
+     */
+    @AnyThread
+    public @NonNull RivetCrypto wrap(@NonNull RivetCrypto crypto) {
+        return (RivetCrypto) Proxy.newProxyInstance(RivetCrypto.class.getClassLoader(),
+                new Class<?>[] { RivetCrypto.class }, new Scoped(crypto));
+    }
+
+    /**
+     * Deliver the result of a future only while this scope is open
+     *
+     * The future itself isn't cancelled when the scope is closed, since it may be shared with
+     * other components.
+     *
+     * @param future a future
+     * @return a future that completes with it, unless the scope has been closed by then
+     */
+    @AnyThread
+    public @NonNull <T> CompletableFuture<T> track(@NonNull CompletableFuture<T> future) {
+        return scoped(future, false);
+    }
+
+    /**
+     * @return the number of calls and futures of this scope that haven't completed
+     */
+    @AnyThread
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * @return true if the scope has been closed
+     */
+    @AnyThread
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Cancel the pending calls and drop the callbacks on the futures of this scope
+     */
+    @AnyThread
+    @Override
+    public void close() {
+        Pending[] dropped;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            dropped = pending.toArray(new Pending[0]);
+            pending.clear();
+        }
+
+        // Cancelling outside the lock, since the sources complete on this thread
+        for (Pending entry : dropped) {
+            if (entry.cancelSource) {
+                entry.source.cancel(false);
+            }
+        }
+    }
+
+    private @NonNull <T> CompletableFuture<T> scoped(@NonNull CompletableFuture<T> source, boolean cancelSource) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Pending entry = new Pending(source, cancelSource);
+        synchronized (this) {
+            if (closed) {
+                if (cancelSource) {
+                    source.cancel(false);
+                }
+                return result;
+            }
+            pending.add(entry);
+        }
+
+        source.whenComplete((value, th) -> {
+            synchronized (this) {
+                if (!pending.remove(entry)) {
+                    // The scope was closed, drop the result
+                    return;
+                }
+            }
+            if (th != null) {
+                result.completeExceptionally(th);
+            }
+            else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Scopes the calls that return a future, and passes the others straight on
+     */
+    private final class Scoped implements InvocationHandler {
+        private final RivetCrypto crypto;
+
+        Scoped(@NonNull RivetCrypto crypto) {
+            this.crypto = crypto;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "Scoped(" + crypto + ")";
+                }
+            }
+
+            if (method.getReturnType() == CompletableFuture.class && isClosed()) {
+                return new CompletableFuture<>();
+            }
+
+            Object result;
+            try {
+                result = method.invoke(crypto, args);
+            }
+            catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+
+            return result instanceof CompletableFuture ? scoped((CompletableFuture<?>) result, true) : result;
+        }
+    }
+}
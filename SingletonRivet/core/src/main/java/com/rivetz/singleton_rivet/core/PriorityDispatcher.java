@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetErrors;
+import com.rivetz.api.RivetRuntimeException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Orders the calls to the Rivet by priority
+ *
+ * Every call shares one connection to the Rivet service, so a bulk job such as re-encrypting
+ * stored data or provisioning keys would otherwise hold up a call the user is waiting on. The
+ * dispatcher limits the calls in flight, in total and for each priority class, and when a slot
+ * frees up it starts the waiting call with the highest priority. Some of the total is kept for
+ * interactive calls, so a tap never waits for a slot behind background work.
+ *
+ * A call that has waited gains one priority class for each aging interval, so bulk work still
+ * makes progress while interactive calls keep arriving. Within a class, calls start in the
+ * order they were submitted.
+ *
+ * With an {@code AdaptiveLimiter}, the total limit follows the limiter, which is told the
+ * latency of every call, and is capped at {@code maxInFlight}.
+ *
+ * Cancelling the future of a call that hasn't started removes it from the queue, and the call
+ * is never made. A call that has started runs to the end, but its result is dropped.
+ */
+public final class PriorityDispatcher {
+
+    /**
+     * The priority classes, highest first
+     */
+    public enum Priority {
+        /** Calls a user is waiting on */
+        INTERACTIVE,
+        /** Calls made as part of normal app work */
+        NORMAL,
+        /** Background work that can wait */
+        BULK
+    }
+
+    /**
+     * Builds a dispatcher
+     */
+    public static final class Builder {
+        private int maxInFlight = 4;
+        private final Map<Priority, Integer> maxInFlightOf = new EnumMap<>(Priority.class);
+        private long agingMillis = 500;
+        private int interactiveReserve = 1;
+        private AdaptiveLimiter limiter = null;
+
+        /**
+         * @param maxInFlight the most calls in flight at once, of all classes. The default is 4.
+         */
+        public @NonNull Builder maxInFlight(int maxInFlight) {
+            if (maxInFlight < 1) {
+                throw new IllegalArgumentException("maxInFlight must be at least 1");
+            }
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * @param priority a priority class
+         * @param maxInFlight the most calls of the class in flight at once. The default is the
+         *                    total limit.
+         */
+        public @NonNull Builder maxInFlight(@NonNull Priority priority, int maxInFlight) {
+            if (maxInFlight < 1) {
+                throw new IllegalArgumentException("maxInFlight must be at least 1");
+            }
+            maxInFlightOf.put(priority, maxInFlight);
+            return this;
+        }
+
+        /**
+         * @param agingMillis how long a call waits to gain one priority class. The default is
+         *                    500 ms.
+         */
+        public @NonNull Builder agingMillis(long agingMillis) {
+            if (agingMillis < 1) {
+                throw new IllegalArgumentException("agingMillis must be at least 1");
+            }
+            this.agingMillis = agingMillis;
+            return this;
+        }
+
+        /**
+         * @param slots how many slots of the total limit only interactive calls may use. The
+         *              other classes together always get at least one. The default is 1.
+         */
+        public @NonNull Builder interactiveReserve(int slots) {
+            if (slots < 0) {
+                throw new IllegalArgumentException("interactiveReserve can't be negative");
+            }
+            this.interactiveReserve = slots;
+            return this;
+        }
+
+        /**
+         * @param limiter adapts the total limit to the latency of the calls
+         */
+        public @NonNull Builder limiter(@NonNull AdaptiveLimiter limiter) {
+            this.limiter = limiter;
+            return this;
+        }
+
+        public @NonNull PriorityDispatcher build() {
+            return new PriorityDispatcher(this);
+        }
+    }
+
+    /**
+     * A call waiting to start
+     */
+    private static final class Task<T> {
+        final Supplier<CompletableFuture<T>> call;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final long submittedNanos = System.nanoTime();
+
+        Task(@NonNull Supplier<CompletableFuture<T>> call) {
+            this.call = call;
+        }
+    }
+
+    private final int maxInFlight;
+    private final Map<Priority, Integer> maxInFlightOf = new EnumMap<>(Priority.class);
+    private final long agingNanos;
+    private final int interactiveReserve;
+    private final AdaptiveLimiter limiter;
+
+    // Guarded by this
+    private final Map<Priority, ArrayDeque<Task<?>>> waiting = new EnumMap<>(Priority.class);
+    private final Map<Priority, Integer> inFlightOf = new EnumMap<>(Priority.class);
+    private int inFlight = 0;
+    private boolean dispatching = false;
+
+    private PriorityDispatcher(@NonNull Builder builder) {
+        this.maxInFlight = builder.maxInFlight;
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(builder.agingMillis);
+        this.interactiveReserve = builder.interactiveReserve;
+        this.limiter = builder.limiter;
+        for (Priority priority : Priority.values()) {
+            Integer max = builder.maxInFlightOf.get(priority);
+            maxInFlightOf.put(priority, max != null ? Math.min(max, maxInFlight) : maxInFlight);
+            waiting.put(priority, new ArrayDeque<>());
+            inFlightOf.put(priority, 0);
+        }
+    }
+
+    /**
+     * Start a call when its turn comes
+     *
+     * @param priority the priority class of the call
+     * @param call starts the call
+     * @return a future with the result of the call. Cancelling it before the call starts
+     * takes the call out of the queue.
+     */
+    @AnyThread
+    public @NonNull <T> CompletableFuture<T> submit(@NonNull Priority priority,
+                                                    @NonNull Supplier<CompletableFuture<T>> call) {
+        Task<T> task = new Task<>(call);
+        synchronized (this) {
+            waiting.get(priority).addLast(task);
+        }
+        task.result.whenComplete((value, th) -> {
+            if (task.result.isCancelled()) {
+                dequeue(priority, task);
+            }
+        });
+        dispatch();
+        return task.result;
+    }
+
+    /**
+     * Wrap a crypto interface so every call made through it is dispatched with one priority
+     *
+     * Don't wrap an interface that is already wrapped by a dispatcher, as each call would then
+     * take two slots.
+     *
+     * @param crypto the crypto interface
+     * @param priority the priority class of its calls
+     * @return a crypto interface that dispatches each call and passes it on
+     */
+    @AnyThread
+    public @NonNull RivetCrypto wrap(@NonNull RivetCrypto crypto, @NonNull Priority priority) {
+        return (RivetCrypto) Proxy.newProxyInstance(RivetCrypto.class.getClassLoader(),
+                new Class<?>[] { RivetCrypto.class }, new Dispatching(crypto, priority));
+    }
+
+    /**
+     * @param priority a priority class
+     * @return the number of its calls waiting to start
+     */
+    @AnyThread
+    public synchronized int getWaiting(@NonNull Priority priority) {
+        return waiting.get(priority).size();
+    }
+
+    /**
+     * @param priority a priority class
+     * @return the number of its calls in flight
+     */
+    @AnyThread
+    public synchronized int getInFlight(@NonNull Priority priority) {
+        return inFlightOf.get(priority);
+    }
+
+    // Drop a cancelled call from the queue, if it hasn't been taken off it to start
+    private synchronized void dequeue(@NonNull Priority priority, @NonNull Task<?> task) {
+        waiting.get(priority).remove(task);
+    }
+
+    // Start as many waiting calls as the limits allow. The calls are started outside the lock,
+    // and only one thread dispatches at a time: a call that completes while another thread is
+    // dispatching, or on the dispatching thread itself, leaves the next start to that loop.
+    // Otherwise calls that complete as soon as they are made, as they all do once the service
+    // has disconnected, would dispatch from inside each other's callbacks, one stack frame
+    // deeper for every waiting call.
+    private void dispatch() {
+        synchronized (this) {
+            if (dispatching) {
+                return;
+            }
+            dispatching = true;
+        }
+
+        while (true) {
+            Task<?> task;
+            Priority priority;
+            int started;
+            synchronized (this) {
+                priority = next();
+                if (priority == null) {
+                    dispatching = false;
+                    return;
+                }
+                task = waiting.get(priority).removeFirst();
+                started = ++inFlight;
+                inFlightOf.put(priority, inFlightOf.get(priority) + 1);
+            }
+            start(task, priority, started);
+        }
+    }
+
+    // The class whose first waiting call has the best aged priority, or null if nothing can
+    // start. Ties go to the call that has waited longest.
+    private @Nullable Priority next() {
+        int limit = limiter != null ? Math.min(maxInFlight, limiter.getLimit()) : maxInFlight;
+        if (inFlight >= limit) {
+            return null;
+        }
+
+        // The classes other than interactive share what is left after the reserve
+        int othersLimit = Math.max(1, limit - interactiveReserve);
+        boolean othersFull = inFlight - inFlightOf.get(Priority.INTERACTIVE) >= othersLimit;
+
+        long now = System.nanoTime();
+        Priority best = null;
+        long bestRank = Long.MAX_VALUE;
+        long bestSubmitted = Long.MAX_VALUE;
+        for (Priority priority : Priority.values()) {
+            Task<?> head = waiting.get(priority).peekFirst();
+            if (head == null || inFlightOf.get(priority) >= maxInFlightOf.get(priority)
+                    || (priority != Priority.INTERACTIVE && othersFull)) {
+                continue;
+            }
+
+            long rank = priority.ordinal() - (now - head.submittedNanos) / agingNanos;
+            if (rank < bestRank || (rank == bestRank && head.submittedNanos - bestSubmitted < 0)) {
+                best = priority;
+                bestRank = rank;
+                bestSubmitted = head.submittedNanos;
+            }
+        }
+        return best;
+    }
+
+    private <T> void start(@NonNull Task<T> task, @NonNull Priority priority, int started) {
+        long startNanos = System.nanoTime();
+        CompletableFuture<T> call;
+        if (task.result.isCancelled()) {
+            // Cancelled between leaving the queue and starting, give the slot back
+            synchronized (this) {
+                inFlight--;
+                inFlightOf.put(priority, inFlightOf.get(priority) - 1);
+            }
+            return;
+        }
+        try {
+            call = task.call.get();
+        }
+        catch (RuntimeException ex) {
+            call = new CompletableFuture<>();
+            call.completeExceptionally(ex);
+        }
+
+        call.whenComplete((value, th) -> {
+            if (limiter != null) {
+                limiter.onSample(System.nanoTime() - startNanos, started, isOverload(th));
+            }
+            synchronized (this) {
+                inFlight--;
+                inFlightOf.put(priority, inFlightOf.get(priority) - 1);
+            }
+            dispatch();
+
+            if (th != null) {
+                task.result.completeExceptionally(th);
+            }
+            else {
+                task.result.complete(value);
+            }
+        });
+    }
+
+    // The Rivet service reports that it can't take more calls as a remote exception
+    private static boolean isOverload(@Nullable Throwable th) {
+        while (th instanceof CompletionException && th.getCause() != null) {
+            th = th.getCause();
+        }
+        return th instanceof RivetRuntimeException
+                && ((RivetRuntimeException) th).getError() == RivetErrors.REMOTE_EXCEPTION;
+    }
+
+    /**
+     * Dispatches the calls that return a future, and passes the others straight on
+     */
+    private final class Dispatching implements InvocationHandler {
+        private final RivetCrypto crypto;
+        private final Priority priority;
+
+        Dispatching(@NonNull RivetCrypto crypto, @NonNull Priority priority) {
+            this.crypto = crypto;
+            this.priority = priority;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "Dispatched(" + priority + ", " + crypto + ")";
+                }
+            }
+
+            if (method.getReturnType() != CompletableFuture.class) {
+                try {
+                    return method.invoke(crypto, args);
+                }
+                catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            }
+
+            return submit(priority, () -> invokeAsync(method, args));
+        }
+
+        // Call the crypto interface, with an exception it throws returned as a failed future
+        @SuppressWarnings("unchecked")
+        private @NonNull CompletableFuture<Object> invokeAsync(@NonNull Method method, Object[] args) {
+            try {
+                return (CompletableFuture<Object>) method.invoke(crypto, args);
+            }
+            catch (InvocationTargetException ex) {
+                CompletableFuture<Object> failed = new CompletableFuture<>();
+                failed.completeExceptionally(ex.getCause());
+                return failed;
+            }
+            catch (IllegalAccessException ex) {
+                CompletableFuture<Object> failed = new CompletableFuture<>();
+                failed.completeExceptionally(ex);
+                return failed;
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The application wide thread pools
+ *
+ * All background work in the app runs on one of these pools instead of on threads created for
+ * a single task. Each pool has a fixed upper bound on its threads, so repeated activity
+ * creation, such as rotating the screen, queues work instead of creating more threads.
+ * The startup and interactive queues are unbounded, because that work is never optional. The
+ * bulk queue is bounded, so a producer that runs ahead of it is rejected rather than filling
+ * memory.
+ *
+ * <ul>
+ *     <li>{@code startup()} runs the startup tasks.</li>
+ *     <li>{@code interactive()} runs in process crypto work a user is waiting on.</li>
+ *     <li>{@code bulk()} runs background work, such as storing what was read from the Rivet,
+ *     at a lower thread priority.</li>
+ *     <li>{@code scheduler()} runs delayed and periodic tasks, such as timeouts.</li>
+ * </ul>
+ *
+ * The threads are named after their pool, and any exception that escapes a task is passed
+ * to the handler given to the constructor.
+ */
+public final class RivetSchedulers {
+
+    /**
+     * A snapshot of the state of a pool
+     */
+    public static final class Stats {
+        private final String name;
+        private final int poolSize;
+        private final int activeCount;
+        private final int queueDepth;
+        private final long completedCount;
+        private final long rejectedCount;
+
+        Stats(@NonNull String name, @NonNull ThreadPoolExecutor pool, long rejectedCount) {
+            this.name = name;
+            this.poolSize = pool.getPoolSize();
+            this.activeCount = pool.getActiveCount();
+            this.queueDepth = pool.getQueue().size();
+            this.completedCount = pool.getCompletedTaskCount();
+            this.rejectedCount = rejectedCount;
+        }
+
+        public @NonNull String getName() {
+            return name;
+        }
+
+        /** @return the number of threads in the pool */
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        /** @return the number of threads running a task */
+        public int getActiveCount() {
+            return activeCount;
+        }
+
+        /** @return the number of tasks waiting for a thread */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /** @return the number of tasks that have completed */
+        public long getCompletedCount() {
+            return completedCount;
+        }
+
+        /** @return the number of tasks rejected, because the queue was full or the pool was shut down */
+        public long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{threads=" + poolSize + ", active=" + activeCount + ", queued=" + queueDepth
+                    + ", completed=" + completedCount + ", rejected=" + rejectedCount + "}";
+        }
+    }
+
+    // Idle threads above the core size are released after this long
+    private static final long KEEP_ALIVE_SECONDS = 30L;
+
+    // The most tasks the bulk pool will queue before rejecting more
+    private static final int BULK_QUEUE_CAPACITY = 1024;
+
+    private final Thread.UncaughtExceptionHandler exceptionHandler;
+    private final Pool startup;
+    private final Pool interactive;
+    private final Pool bulk;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * Create the pools, sized for the number of processors
+     *
+     * @param exceptionHandler called with any exception that escapes a task
+     */
+    public RivetSchedulers(@NonNull Thread.UncaughtExceptionHandler exceptionHandler) {
+        this(exceptionHandler, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create the pools, sized for a number of processors
+     *
+     * @param exceptionHandler called with any exception that escapes a task
+     * @param processors the number of processors to size the pools for
+     */
+    public RivetSchedulers(@NonNull Thread.UncaughtExceptionHandler exceptionHandler, int processors) {
+        this.exceptionHandler = exceptionHandler;
+
+        // Startup tasks mostly wait on the Rivet, a couple of threads is enough
+        startup = new Pool("rivet-startup", 2, new LinkedBlockingQueue<>(), Thread.NORM_PRIORITY);
+
+        // Interactive work should never wait behind other interactive work for long
+        interactive = new Pool("rivet-interactive", Math.max(2, processors / 2),
+                new LinkedBlockingQueue<>(), Thread.NORM_PRIORITY);
+
+        // Bulk work leaves a processor free for the UI, and is bounded so a runaway
+        // producer is told to slow down
+        bulk = new Pool("rivet-bulk", Math.max(1, processors - 1),
+                new ArrayBlockingQueue<>(BULK_QUEUE_CAPACITY), Thread.MIN_PRIORITY);
+
+        scheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("rivet-scheduler", Thread.NORM_PRIORITY));
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /** @return the executor for startup tasks */
+    @AnyThread
+    public @NonNull Executor startup() {
+        return startup.executor;
+    }
+
+    /** @return the executor for in process crypto work the user is waiting on */
+    @AnyThread
+    public @NonNull Executor interactive() {
+        return interactive.executor;
+    }
+
+    /**
+     * @return the executor for background work. It throws {@code RejectedExecutionException}
+     * when {@code BULK_QUEUE_CAPACITY} tasks are already waiting.
+     */
+    @AnyThread
+    public @NonNull Executor bulk() {
+        return bulk.executor;
+    }
+
+    /** @return the scheduler for delayed and periodic tasks */
+    @AnyThread
+    public @NonNull ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Get a snapshot of the state of each pool
+     *
+     * @return the startup, interactive and bulk pool stats, in that order
+     */
+    @AnyThread
+    public @NonNull Stats[] getStats() {
+        return new Stats[] { startup.stats(), interactive.stats(), bulk.stats() };
+    }
+
+    /**
+     * Stop accepting tasks. Tasks already queued are still run.
+     */
+    @AnyThread
+    public void shutdown() {
+        startup.executor.shutdown();
+        interactive.executor.shutdown();
+        bulk.executor.shutdown();
+        scheduler.shutdown();
+    }
+
+    /**
+     * A bounded thread pool that counts the tasks it rejects
+     */
+    private final class Pool implements RejectedExecutionHandler {
+        final String name;
+        final ThreadPoolExecutor executor;
+        final AtomicLong rejected = new AtomicLong();
+
+        Pool(@NonNull String name, int threads, @NonNull BlockingQueue<Runnable> queue, int priority) {
+            this.name = name;
+
+            // Threads are created up to the limit as tasks arrive, and released when idle
+            executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    queue, new NamedThreadFactory(name, priority), this);
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        Stats stats() {
+            return new Stats(name, executor, rejected.get());
+        }
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor pool) {
+            rejected.incrementAndGet();
+            if (pool.isShutdown()) {
+                throw new RejectedExecutionException(name + " rejected a task, because the pool was shut down");
+            }
+            throw new RejectedExecutionException(name + " rejected a task, because the queue was full with "
+                    + pool.getQueue().size() + " tasks");
+        }
+    }
+
+    /**
+     * Names each thread after its pool, and reports uncaught exceptions to the handler
+     */
+    private final class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final int priority;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(@NonNull String name, int priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable task) {
+            Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            thread.setUncaughtExceptionHandler(exceptionHandler);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetErrors;
+import com.rivetz.api.RivetRuntimeException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps one paired Rivet session alive for the whole application
+ *
+ * Each screen that uses the Rivet acquires the session when it is created and releases it when
+ * it is destroyed. The service binding and the pairing are kept while any screen holds the
+ * session, so moving from one screen to the next doesn't rebind and re-pair. When the last screen
+ * releases the session, it is kept for an idle timeout before the device is unpaired, which
+ * covers the gap between one activity finishing and the next one starting.
+ *
+ * The idle timeout only starts once pairing has settled, since the user may take a while to
+ * accept it, and only a session that paired is unpaired. A session that was torn down is paired
+ * again the next time it is acquired.
+ */
+public class RivetSessionManager {
+
+    /**
+     * The Rivet operations the manager needs, provided by the platform support object
+     */
+    public interface Binding {
+        /**
+         * Pair with the Rivet
+         *
+         * @return true if paired, false if the user declined, or an exception on error
+         */
+        @NonNull CompletableFuture<Boolean> pair();
+
+        /**
+         * @return the crypto interface for a paired Rivet
+         */
+        @NonNull RivetCrypto getRivetCrypto();
+
+        /**
+         * Unpair and release the service connection
+         */
+        void unpair();
+    }
+
+    private final Binding binding;
+    private final ScheduledExecutorService scheduler;
+    private final long idleTimeoutMillis;
+
+    private int refCount = 0;
+    private CompletableFuture<RivetCrypto> session = null;
+    private ScheduledFuture<?> pendingTeardown = null;
+
+    /**
+     * @param binding the pairing operations
+     * @param scheduler the scheduler used for the idle timeout
+     * @param idleTimeoutMillis how long an unused session is kept before it is torn down
+     */
+    public RivetSessionManager(@NonNull Binding binding, @NonNull ScheduledExecutorService scheduler,
+                               long idleTimeoutMillis) {
+        this.binding = binding;
+        this.scheduler = scheduler;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Pair the session without holding a reference to it. Used at startup, before any screen
+     * needs the Rivet. If nothing acquires the session, it is torn down after the idle timeout.
+     *
+     * @return a future with the crypto interface, or an exception if pairing failed or was
+     * declined
+     */
+    @AnyThread
+    public synchronized @NonNull CompletableFuture<RivetCrypto> pair() {
+        CompletableFuture<RivetCrypto> current = connect();
+        current.thenRun(this::scheduleTeardownIfIdle);
+        return current;
+    }
+
+    /**
+     * Acquire a reference to the session, pairing again if it was torn down
+     *
+     * Every call must be matched by a call to {@code release()}, even if pairing failed.
+     *
+     * @return a future with the crypto interface, or an exception if pairing failed or was
+     * declined
+     */
+    @AnyThread
+    public synchronized @NonNull CompletableFuture<RivetCrypto> acquire() {
+        refCount++;
+        cancelTeardown();
+        return connect();
+    }
+
+    /**
+     * Release a reference to the session. The last release starts the idle timeout, or if
+     * pairing is still in flight, starts it once pairing settles.
+     */
+    @AnyThread
+    public synchronized void release() {
+        if (refCount == 0) {
+            throw new IllegalStateException("Session released more times than it was acquired");
+        }
+        refCount--;
+        scheduleTeardownIfIdle();
+    }
+
+    /**
+     * Get the crypto interface if the session is paired, without acquiring it
+     *
+     * @return the crypto interface, or null if the session isn't paired
+     */
+    @AnyThread
+    public synchronized @Nullable RivetCrypto getRivetCrypto() {
+        if (session != null && session.isDone() && !session.isCompletedExceptionally()) {
+            return session.join();
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of references currently held
+     */
+    @AnyThread
+    public synchronized int getRefCount() {
+        return refCount;
+    }
+
+    /**
+     * Tear the session down now, whether or not it is in use. A pairing in flight is unpaired
+     * as soon as it succeeds.
+     */
+    @AnyThread
+    public synchronized void shutdown() {
+        cancelTeardown();
+        teardown();
+    }
+
+    // Reuse the current session or pairing attempt, or start pairing
+    private CompletableFuture<RivetCrypto> connect() {
+        if (session == null || session.isCompletedExceptionally()) {
+            CompletableFuture<RivetCrypto> attempt;
+            try {
+                attempt = binding.pair().thenApply(paired -> {
+                    // A declined pairing is because of the user, not an actual error
+                    if (!paired) {
+                        throw new RivetRuntimeException(RivetErrors.USER_CANCELED);
+                    }
+                    return binding.getRivetCrypto();
+                });
+            }
+            catch (RivetRuntimeException ex) {
+                attempt = new CompletableFuture<>();
+                attempt.completeExceptionally(ex);
+            }
+            session = attempt;
+        }
+        return session;
+    }
+
+    private synchronized void scheduleTeardownIfIdle() {
+        if (refCount == 0 && pendingTeardown == null && session != null) {
+            if (!session.isDone()) {
+                // Tearing down now would unpair in the middle of pairing, so wait for it
+                CompletableFuture<RivetCrypto> pairing = session;
+                pairing.whenComplete((crypto, th) -> scheduleTeardownIfIdle(pairing));
+                return;
+            }
+            pendingTeardown = scheduler.schedule(this::teardownIfIdle, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void scheduleTeardownIfIdle(@NonNull CompletableFuture<RivetCrypto> pairing) {
+        // The session may have been shut down and paired again while this one was in flight
+        if (session == pairing) {
+            scheduleTeardownIfIdle();
+        }
+    }
+
+    private synchronized void teardownIfIdle() {
+        pendingTeardown = null;
+        if (refCount == 0) {
+            teardown();
+        }
+    }
+
+    private void cancelTeardown() {
+        if (pendingTeardown != null) {
+            pendingTeardown.cancel(false);
+            pendingTeardown = null;
+        }
+    }
+
+    private void teardown() {
+        if (session != null) {
+            // A pairing that failed or was declined left nothing to unpair
+            CompletableFuture<RivetCrypto> ended = session;
+            session = null;
+            ended.thenRun(this::unpairUnlessPairedAgain);
+        }
+    }
+
+    // A pairing that completes after it was torn down is unpaired, unless the session was
+    // acquired again in the meantime and is now using the binding
+    private synchronized void unpairUnlessPairedAgain() {
+        if (session == null) {
+            binding.unpair();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Shares one call between concurrent requests for the same key
+ *
+ * The first request for a key starts the call, and every request for the key that arrives
+ * before the call completes gets the same future. Once the call completes, the next request
+ * starts a new one, so results aren't kept: that is up to the caller, which can store the value
+ * before the call's future completes.
+ *
+ * The shared future is returned as is, so a caller that hands it on should give each of its
+ * own callers a dependent future, or cancelling one would cancel the call for all of them.
+ *
+ * @param <K> the key, which must have value equality
+ * @param <V> the result of a call
+ */
+public final class SingleFlight<K, V> {
+
+    // Guarded by this
+    private final Map<K, CompletableFuture<V>> flights = new HashMap<>();
+    private long started = 0;
+    private long shared = 0;
+
+    /**
+     * Join the call in flight for a key, or start one
+     *
+     * @param key the key
+     * @param call starts the call for the key. It is made outside any lock, since it may
+     *             complete on the calling thread.
+     * @return the shared future of the call
+     */
+    @AnyThread
+    public @NonNull CompletableFuture<V> run(@NonNull K key, @NonNull Function<K, CompletableFuture<V>> call) {
+        CompletableFuture<V> flight;
+        synchronized (this) {
+            flight = flights.get(key);
+            if (flight != null) {
+                shared++;
+                return flight;
+            }
+            started++;
+            flight = new CompletableFuture<>();
+            flights.put(key, flight);
+        }
+
+        CompletableFuture<V> result = flight;
+        CompletableFuture<V> attempt;
+        try {
+            attempt = call.apply(key);
+        }
+        catch (RuntimeException ex) {
+            attempt = new CompletableFuture<>();
+            attempt.completeExceptionally(ex);
+        }
+
+        // The key is released before the result completes, so a request made from a callback
+        // of the result starts a new call rather than joining the finished one
+        attempt.whenComplete((value, th) -> {
+            synchronized (this) {
+                flights.remove(key);
+            }
+            if (th != null) {
+                result.completeExceptionally(th);
+            }
+            else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return the number of keys with a call in flight
+     */
+    @AnyThread
+    public synchronized int getInFlight() {
+        return flights.size();
+    }
+
+    /**
+     * @return the number of calls started
+     */
+    @AnyThread
+    public synchronized long getStarted() {
+        return started;
+    }
+
+    /**
+     * @return the number of requests that joined a call in flight
+     */
+    @AnyThread
+    public synchronized long getShared() {
+        return shared;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * A small dependency graph of asynchronous startup tasks
+ *
+ * Each task names the tasks it depends on, and is started as soon as all of them have completed.
+ * Tasks that only depend on pairing, such as querying device properties and listing keys, will
+ * run concurrently instead of waiting on each other. The time spent in each task is recorded so
+ * the cost of each startup phase can be logged or reported.
+ *
+ * Tasks must be added after the tasks they depend on, which keeps the graph acyclic. If a task
+ * fails, every task that depends on it fails with the same cause and the tasks that don't depend
+ * on it are unaffected.
+ */
+public final class StartupGraph {
+
+    /**
+     * A typed handle for the result of a task
+     *
+     * @param <T> the type of value the task produces
+     */
+    public static final class Key<T> {
+        private final String name;
+
+        private Key(@NonNull String name) {
+            this.name = name;
+        }
+
+        public @NonNull String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * The results of completed tasks, passed to each task so it can use the values
+     * produced by its dependencies.
+     */
+    public interface Results {
+        /**
+         * Get the result of a completed task
+         *
+         * @param key the task key, which must be one of the dependencies of the calling task
+         * @return the value the task completed with
+         */
+        <T> T get(@NonNull Key<T> key);
+    }
+
+    /**
+     * The timing of a single task, relative to the start of the graph
+     */
+    public static final class PhaseTiming {
+        private final String name;
+        private final long startOffsetNanos;
+        private final long durationNanos;
+        private final boolean succeeded;
+
+        PhaseTiming(@NonNull String name, long startOffsetNanos, long durationNanos, boolean succeeded) {
+            this.name = name;
+            this.startOffsetNanos = startOffsetNanos;
+            this.durationNanos = durationNanos;
+            this.succeeded = succeeded;
+        }
+
+        public @NonNull String getName() {
+            return name;
+        }
+
+        /** @return the time from the start of the graph until the task started, in milliseconds */
+        public long getStartOffsetMillis() {
+            return startOffsetNanos / 1_000_000L;
+        }
+
+        /** @return the time the task took to complete, in milliseconds */
+        public long getDurationMillis() {
+            return durationNanos / 1_000_000L;
+        }
+
+        public boolean isSucceeded() {
+            return succeeded;
+        }
+
+        @Override
+        public String toString() {
+            return name + " +" + getStartOffsetMillis() + "ms " + getDurationMillis() + "ms"
+                    + (succeeded ? "" : " (failed)");
+        }
+    }
+
+    private static final class Node<T> {
+        final Key<T> key;
+        final Function<Results, CompletableFuture<T>> task;
+        final List<Key<?>> dependencies;
+
+        Node(Key<T> key, Function<Results, CompletableFuture<T>> task, List<Key<?>> dependencies) {
+            this.key = key;
+            this.task = task;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private final Executor executor;
+    private final Map<Key<?>, Node<?>> nodes = new LinkedHashMap<>();
+    private final Map<Key<?>, CompletableFuture<?>> futures = new ConcurrentHashMap<>();
+    private final Map<String, PhaseTiming> timings = new ConcurrentHashMap<>();
+    private long startNanos;
+    private boolean started = false;
+
+    /**
+     * @param executor the executor that runs each task once its dependencies complete
+     */
+    public StartupGraph(@NonNull Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Create a key for a task result
+     *
+     * @param name the task name, used for the phase timings
+     */
+    public static @NonNull <T> Key<T> key(@NonNull String name) {
+        return new Key<>(name);
+    }
+
+    /**
+     * Add a task to the graph
+     *
+     * @param key the key the task result is stored under
+     * @param task the task, which returns a future for its result
+     * @param dependencies the tasks that must complete before this one starts
+     * @return this graph, so tasks can be chained
+     */
+    public synchronized @NonNull <T> StartupGraph add(@NonNull Key<T> key,
+                                                      @NonNull Function<Results, CompletableFuture<T>> task,
+                                                      @NonNull Key<?>... dependencies) {
+        if (started) {
+            throw new IllegalStateException("Tasks can't be added after the graph has started");
+        }
+        if (nodes.containsKey(key)) {
+            throw new IllegalArgumentException("Duplicate startup task " + key);
+        }
+        for (Key<?> dependency : dependencies) {
+            if (!nodes.containsKey(dependency)) {
+                throw new IllegalArgumentException(key + " depends on " + dependency + ", which must be added first");
+            }
+        }
+
+        List<Key<?>> deps = new ArrayList<>(dependencies.length);
+        Collections.addAll(deps, dependencies);
+        nodes.put(key, new Node<>(key, task, deps));
+        return this;
+    }
+
+    /**
+     * Start all of the tasks. Tasks without dependencies are started immediately.
+     *
+     * @return a future that completes when every task has completed. If any task failed, it
+     * completes exceptionally with the cause of the task that failed first.
+     */
+    @AnyThread
+    public synchronized @NonNull CompletableFuture<Void> start() {
+        if (started) {
+            throw new IllegalStateException("The graph has already been started");
+        }
+        started = true;
+        startNanos = System.nanoTime();
+
+        for (Node<?> node : nodes.values()) {
+            futures.put(node.key, schedule(node));
+        }
+
+        // allOf reports the failure of whichever future it looks at first, so record the
+        // failures as they happen. The tasks that depend on a failed task fail with its cause,
+        // after it.
+        CompletableFuture<Void> all = new CompletableFuture<>();
+        AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        AtomicInteger remaining = new AtomicInteger(futures.size());
+        if (futures.isEmpty()) {
+            all.complete(null);
+        }
+        for (CompletableFuture<?> future : futures.values()) {
+            future.whenComplete((value, th) -> {
+                if (th != null) {
+                    firstFailure.compareAndSet(null,
+                            th instanceof CompletionException && th.getCause() != null ? th.getCause() : th);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    Throwable failure = firstFailure.get();
+                    if (failure != null) {
+                        all.completeExceptionally(failure);
+                    }
+                    else {
+                        all.complete(null);
+                    }
+                }
+            });
+        }
+        return all;
+    }
+
+    /**
+     * Get the future for a single task, so a caller can act on it without waiting for the
+     * whole graph.
+     *
+     * @param key the task key
+     * @return the future for the task result
+     */
+    @AnyThread
+    @SuppressWarnings("unchecked")
+    public @NonNull <T> CompletableFuture<T> future(@NonNull Key<T> key) {
+        CompletableFuture<?> future = futures.get(key);
+        if (future == null) {
+            throw new IllegalArgumentException("Unknown or unstarted startup task " + key);
+        }
+        return (CompletableFuture<T>) future;
+    }
+
+    /**
+     * Get the result of a task if it completed successfully
+     *
+     * @param key the task key
+     * @return the result, or null if the task failed or hasn't completed
+     */
+    @AnyThread
+    public @Nullable <T> T resultOrNull(@NonNull Key<T> key) {
+        CompletableFuture<T> future = future(key);
+        if (future.isDone() && !future.isCompletedExceptionally()) {
+            return future.join();
+        }
+        return null;
+    }
+
+    /**
+     * Get the timings of the completed tasks, in the order the tasks were added
+     *
+     * @return a list of the tasks that have completed so far
+     */
+    @AnyThread
+    public @NonNull List<PhaseTiming> getTimings() {
+        List<PhaseTiming> result = new ArrayList<>();
+        for (Key<?> key : nodes.keySet()) {
+            PhaseTiming timing = timings.get(key.getName());
+            if (timing != null) {
+                result.add(timing);
+            }
+        }
+        return result;
+    }
+
+    private <T> CompletableFuture<T> schedule(Node<T> node) {
+        CompletableFuture<?>[] deps = new CompletableFuture<?>[node.dependencies.size()];
+        for (int i = 0; i < deps.length; i++) {
+            deps[i] = futures.get(node.dependencies.get(i));
+        }
+
+        Results results = this::resultOf;
+
+        return CompletableFuture.allOf(deps).thenComposeAsync(ignored -> {
+            long taskStart = System.nanoTime();
+            CompletableFuture<T> taskFuture;
+            try {
+                taskFuture = node.task.apply(results);
+            }
+            catch (RuntimeException ex) {
+                taskFuture = new CompletableFuture<>();
+                taskFuture.completeExceptionally(ex);
+            }
+
+            return taskFuture.whenComplete((value, th) -> timings.put(node.key.getName(),
+                    new PhaseTiming(node.key.getName(), taskStart - startNanos,
+                            System.nanoTime() - taskStart, th == null)));
+        }, executor);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T resultOf(Key<T> key) {
+        CompletableFuture<?> future = futures.get(key);
+        if (future == null || !future.isDone()) {
+            throw new IllegalStateException(key + " has not completed");
+        }
+        return (T) future.join();
+    }
+}
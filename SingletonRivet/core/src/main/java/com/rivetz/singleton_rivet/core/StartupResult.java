@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetKeyTypes;
+import com.rivetz.api.RivetRuntimeException;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of the Rivet startup
+ *
+ * Collects everything the startup learns about the Rivet in one immutable object, instead of
+ * leaving it in separate fields that are set as each step completes. A result is either a
+ * success, with the crypto interface and the device state, or a failure holding the first cause.
+ */
+public final class StartupResult {
+    private final RivetCrypto crypto;
+    private final boolean drtSupported;
+    private final Map<RivetKeyTypes, List<String>> keyNames;
+    private final RivetRuntimeException failReason;
+    private final List<StartupGraph.PhaseTiming> timings;
+
+    private StartupResult(@Nullable RivetCrypto crypto, boolean drtSupported,
+                          @NonNull Map<RivetKeyTypes, List<String>> keyNames,
+                          @Nullable RivetRuntimeException failReason,
+                          @NonNull List<StartupGraph.PhaseTiming> timings) {
+        this.crypto = crypto;
+        this.drtSupported = drtSupported;
+        this.keyNames = keyNames;
+        this.failReason = failReason;
+        this.timings = Collections.unmodifiableList(timings);
+    }
+
+    /**
+     * Create a successful result
+     *
+     * @param crypto the paired crypto interface
+     * @param drtSupported true if Dual Root of Trust is supported
+     * @param keyNames the names of the existing keys of each type. Types that couldn't be
+     *                 listed are left out.
+     * @param timings the time taken by each startup phase
+     */
+    public static @NonNull StartupResult success(@NonNull RivetCrypto crypto, boolean drtSupported,
+                                                 @NonNull Map<RivetKeyTypes, List<String>> keyNames,
+                                                 @NonNull List<StartupGraph.PhaseTiming> timings) {
+        Map<RivetKeyTypes, List<String>> copy = new EnumMap<>(RivetKeyTypes.class);
+        for (Map.Entry<RivetKeyTypes, List<String>> entry : keyNames.entrySet()) {
+            copy.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+        }
+        return new StartupResult(crypto, drtSupported, Collections.unmodifiableMap(copy), null, timings);
+    }
+
+    /**
+     * Create a failed result
+     *
+     * @param failReason the first cause of the failure
+     * @param timings the time taken by each startup phase that completed
+     */
+    public static @NonNull StartupResult failure(@NonNull RivetRuntimeException failReason,
+                                                 @NonNull List<StartupGraph.PhaseTiming> timings) {
+        return new StartupResult(null, false, Collections.emptyMap(), failReason, timings);
+    }
+
+    /**
+     * @return true if the Rivet was paired and the startup completed
+     */
+    public boolean isPaired() {
+        return failReason == null;
+    }
+
+    /**
+     * @return the crypto interface, or null if the startup failed
+     */
+    public @Nullable RivetCrypto getCrypto() {
+        return crypto;
+    }
+
+    /**
+     * @return true if Dual Root of Trust is supported
+     */
+    public boolean isDrtSupported() {
+        return drtSupported;
+    }
+
+    /**
+     * Get the names of the keys of a type that existed at startup
+     *
+     * @param type the key type
+     * @return the key names, or an empty list if there are none or they couldn't be listed
+     */
+    public @NonNull List<String> getKeyNames(@NonNull RivetKeyTypes type) {
+        List<String> names = keyNames.get(type);
+        return names != null ? names : Collections.emptyList();
+    }
+
+    /**
+     * Check if a key existed at startup
+     *
+     * @param type the key type
+     * @param name the key name
+     * @return true if the key exists
+     */
+    public boolean hasKey(@NonNull RivetKeyTypes type, @NonNull String name) {
+        return getKeyNames(type).contains(name);
+    }
+
+    /**
+     * @return the first cause of a failed startup, or null if it succeeded
+     */
+    public @Nullable RivetRuntimeException getFailReason() {
+        return failReason;
+    }
+
+    /**
+     * @return the timing of each startup phase, in the order they were defined
+     */
+    public @NonNull List<StartupGraph.PhaseTiming> getTimings() {
+        return timings;
+    }
+}
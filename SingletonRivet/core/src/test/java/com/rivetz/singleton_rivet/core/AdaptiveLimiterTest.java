@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveLimiterTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static AdaptiveLimiter limiter() {
+        return new AdaptiveLimiter.Builder().initialLimit(4).maxLimit(32).build();
+    }
+
+    // Complete calls at the given latency, each with the limit in use
+    private static void run(AdaptiveLimiter limiter, long latencyNanos, int calls) {
+        for (int i = 0; i < calls; i++) {
+            limiter.onSample(latencyNanos, limiter.getLimit(), false);
+        }
+    }
+
+    @Test
+    public void growsWhileLatencyHolds() {
+        AdaptiveLimiter limiter = limiter();
+        run(limiter, FAST, 200);
+        assertEquals(32, limiter.getLimit());
+    }
+
+    @Test
+    public void doesNotGrowWhenLittleIsInUse() {
+        AdaptiveLimiter limiter = limiter();
+        for (int i = 0; i < 200; i++) {
+            limiter.onSample(FAST, 1, false);
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void shrinksWhenCallsQueue() {
+        AdaptiveLimiter limiter = limiter();
+        run(limiter, FAST, 200);
+
+        // Calls now take ten times as long as when nothing was queued
+        run(limiter, FAST * 10, 50);
+        assertTrue("limit " + limiter.getLimit(), limiter.getLimit() < 16);
+    }
+
+    @Test
+    public void backsOffOnOverload() {
+        AdaptiveLimiter limiter = limiter();
+        run(limiter, FAST, 200);
+
+        limiter.onSample(FAST, 32, true);
+        assertEquals(28, limiter.getLimit());
+        for (int i = 0; i < 100; i++) {
+            limiter.onSample(FAST, 32, true);
+        }
+        assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    public void followsSlowerDevice() {
+        AdaptiveLimiter limiter = limiter();
+        run(limiter, FAST, 200);
+
+        // After throttling every call is twice as slow, but none is queued. The baseline
+        // catches up, and the limit grows back.
+        run(limiter, FAST * 2, 10_000);
+        assertEquals(32, limiter.getLimit());
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetHashTypes;
+import com.rivetz.singleton_rivet.core.PriorityDispatcher.Priority;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchHasherTest {
+
+    private static final int INPUTS = 50_000;
+
+    private static BatchHasher hasher(RivetCrypto crypto, int maxInFlight) {
+        PriorityDispatcher dispatcher = new PriorityDispatcher.Builder()
+                .maxInFlight(maxInFlight)
+                .interactiveReserve(0)
+                .build();
+        return new BatchHasher(crypto, dispatcher, Priority.BULK);
+    }
+
+    private static List<byte[]> inputs(int count) {
+        List<byte[]> inputs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            inputs.add(ByteBuffer.allocate(4).putInt(i).array());
+        }
+        return inputs;
+    }
+
+    @Test
+    public void hashesManyInputsThatCompleteInline() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        BatchHasher hasher = hasher(TestCrypto.inline(calls), 8);
+        List<byte[]> inputs = inputs(INPUTS);
+
+        List<byte[]> hashes = hasher.hashAll(RivetHashTypes.SHA256, inputs).get(30, TimeUnit.SECONDS);
+
+        assertEquals(INPUTS, hashes.size());
+        for (int i = 0; i < INPUTS; i++) {
+            assertArrayEquals(TestCrypto.digest(RivetHashTypes.SHA256, inputs.get(i)), hashes.get(i));
+        }
+        assertEquals(INPUTS, calls.get());
+        assertEquals(0, hasher.getOutstanding());
+    }
+
+    @Test
+    public void failsManyInputsThatFailInline() throws Exception {
+        BatchHasher hasher = hasher(TestCrypto.failing(), 8);
+        List<CompletableFuture<byte[]>> results = new ArrayList<>();
+        for (byte[] input : inputs(INPUTS)) {
+            results.add(hasher.hash(RivetHashTypes.SHA256, input));
+        }
+
+        for (CompletableFuture<byte[]> result : results) {
+            assertTrue(result.isCompletedExceptionally());
+        }
+        try {
+            hasher.hashAll(RivetHashTypes.SHA256, inputs(10)).join();
+            fail();
+        }
+        catch (CompletionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(0, hasher.getOutstanding());
+    }
+
+    @Test
+    public void coalescesDuplicateInputs() throws Exception {
+        CompletableFuture<byte[]> blocked = new CompletableFuture<>();
+        int[] calls = new int[1];
+        BatchHasher hasher = hasher(TestCrypto.hashing((type, data) -> {
+            calls[0]++;
+            return blocked;
+        }), 1);
+
+        CompletableFuture<byte[]> first = hasher.hash(RivetHashTypes.SHA256, new byte[] { 1 });
+        CompletableFuture<byte[]> second = hasher.hash(RivetHashTypes.SHA256, new byte[] { 1 });
+        assertEquals(1, calls[0]);
+        assertEquals(1, hasher.getOutstanding());
+
+        blocked.complete(new byte[] { 9 });
+        assertArrayEquals(new byte[] { 9 }, first.get());
+        assertArrayEquals(new byte[] { 9 }, second.get());
+    }
+
+    @Test
+    public void keepsTheCallsInFlightWithinThePriorityLimit() throws Exception {
+        List<CompletableFuture<byte[]>> calls = new ArrayList<>();
+        PriorityDispatcher dispatcher = new PriorityDispatcher.Builder()
+                .maxInFlight(8)
+                .maxInFlight(Priority.BULK, 3)
+                .build();
+        BatchHasher hasher = new BatchHasher(TestCrypto.hashing((type, data) -> {
+            CompletableFuture<byte[]> call = new CompletableFuture<>();
+            calls.add(call);
+            return call;
+        }), dispatcher, Priority.BULK);
+
+        CompletableFuture<List<byte[]>> hashes = hasher.hashAll(RivetHashTypes.SHA256, inputs(10));
+        assertEquals(3, calls.size());
+        assertEquals(10, hasher.getOutstanding());
+
+        // Each completed call lets the next one start
+        for (int i = 0; i < 10; i++) {
+            calls.get(i).complete(new byte[] { (byte) i });
+            assertEquals(Math.min(10, i + 4), calls.size());
+        }
+        assertEquals(10, hashes.get().size());
+        assertEquals(0, hasher.getOutstanding());
+    }
+}
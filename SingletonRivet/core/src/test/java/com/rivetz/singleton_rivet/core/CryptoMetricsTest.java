@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import com.rivetz.api.RivetErrors;
+import com.rivetz.api.RivetKeyTypes;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CryptoMetricsTest {
+
+    @Test
+    public void operationsAreFoundByMethodName() {
+        assertEquals(CryptoMetrics.Operation.GET_KEY_NAMES, CryptoMetrics.Operation.of("getKeyNamesOf"));
+        assertEquals(CryptoMetrics.Operation.OTHER, CryptoMetrics.Operation.of("toString"));
+    }
+
+    @Test
+    public void latencyIsKeptPerOperationAndKeyType() {
+        CryptoMetrics metrics = new CryptoMetrics();
+        metrics.record(CryptoMetrics.Operation.SIGN, RivetKeyTypes.NISTP256, 2000, 32, null, false);
+        metrics.record(CryptoMetrics.Operation.SIGN, RivetKeyTypes.NISTP256, 4000, 64, null, false);
+        metrics.record(CryptoMetrics.Operation.SIGN, null, 1000, -1, null, false);
+
+        List<CryptoMetrics.OperationStats> stats = metrics.snapshot().getStats();
+        assertEquals(2, stats.size());
+
+        CryptoMetrics.OperationStats typed = stats.get(0);
+        assertEquals(CryptoMetrics.Operation.SIGN, typed.getOperation());
+        assertEquals(RivetKeyTypes.NISTP256, typed.getKeyType());
+        assertEquals(2, typed.getLatency().getCount());
+        assertEquals(4000, typed.getLatency().getMax());
+        assertEquals(64, typed.getPayload().getMax());
+
+        // A call without a payload has no payload histogram
+        CryptoMetrics.OperationStats untyped = stats.get(1);
+        assertNull(untyped.getKeyType());
+        assertEquals(1, untyped.getLatency().getCount());
+        assertNull(untyped.getPayload());
+    }
+
+    @Test
+    public void failuresAreCountedByError() {
+        CryptoMetrics metrics = new CryptoMetrics();
+        metrics.record(CryptoMetrics.Operation.DECRYPT, RivetKeyTypes.AES256_CGM, 10, 16, RivetErrors.USER_CANCELED, true);
+        metrics.record(CryptoMetrics.Operation.DECRYPT, RivetKeyTypes.AES256_CGM, 10, 16, RivetErrors.USER_CANCELED, true);
+        metrics.record(CryptoMetrics.Operation.DECRYPT, RivetKeyTypes.AES256_CGM, 10, 16, null, true);
+
+        List<CryptoMetrics.OperationStats> stats = metrics.snapshot().getStats();
+        assertEquals(2, stats.size());
+        assertEquals(3, stats.get(0).getLatency().getCount());
+
+        CryptoMetrics.OperationStats errors = stats.get(1);
+        assertNull(errors.getLatency());
+        assertEquals(Collections.singletonMap(RivetErrors.USER_CANCELED, 2L), errors.getErrors());
+        assertEquals(1, errors.getOtherErrors());
+        assertTrue(errors.toString().contains("other=1"));
+    }
+
+    @Test
+    public void snapshotIsACopy() {
+        CryptoMetrics metrics = new CryptoMetrics();
+        metrics.record(CryptoMetrics.Operation.HASH, null, 100, 10, null, false);
+        CryptoMetrics.Snapshot snapshot = metrics.snapshot();
+
+        metrics.record(CryptoMetrics.Operation.HASH, null, 100, 10, null, false);
+
+        assertEquals(1, snapshot.getStats().get(0).getLatency().getCount());
+        assertEquals(2, metrics.snapshot().getStats().get(0).getLatency().getCount());
+    }
+}
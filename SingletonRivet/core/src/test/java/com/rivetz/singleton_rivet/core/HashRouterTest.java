@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetHashTypes;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashRouterTest {
+
+    private static final byte[] DATA = "account-42".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void hashesPublicDataInProcess() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        HashRouter router = new HashRouter.Builder().build();
+
+        byte[] hash = router.hash(TestCrypto.inline(calls), "site", HashRouter.DataClass.PUBLIC,
+                RivetHashTypes.SHA256, DATA).get();
+
+        assertArrayEquals(TestCrypto.digest(RivetHashTypes.SHA256, DATA), hash);
+        assertEquals(0, calls.get());
+        assertEquals(1, router.getRouted(RivetHashTypes.SHA256, HashRouter.Route.IN_PROCESS));
+    }
+
+    @Test
+    public void memoizesPublicDataRoutedToTheRivet() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        RivetCrypto crypto = TestCrypto.inline(calls);
+        MemoizingHasher memo = new MemoizingHasher(4096);
+        HashRouter router = new HashRouter.Builder().route("site", HashRouter.Route.TEE).memo(memo).build();
+
+        for (int i = 0; i < 3; i++) {
+            byte[] hash = router.hash(crypto, "site", HashRouter.DataClass.PUBLIC, RivetHashTypes.SHA256, DATA).get();
+            assertArrayEquals(TestCrypto.digest(RivetHashTypes.SHA256, DATA), hash);
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(2, memo.getStats().getHits());
+    }
+
+    @Test
+    public void memoizesSensitiveDataByFingerprint() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        MemoizingHasher memo = new MemoizingHasher(4096);
+        RivetCrypto crypto = new HashRouter.Builder().memo(memo).build()
+                .wrap(TestCrypto.inline(calls), "site", HashRouter.DataClass.SENSITIVE);
+
+        for (int i = 0; i < 3; i++) {
+            byte[] hash = crypto.hash(RivetHashTypes.SHA256, DATA).get();
+            assertArrayEquals(TestCrypto.digest(RivetHashTypes.SHA256, DATA), hash);
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(2, memo.getStats().getHits());
+        assertEquals(1, memo.getStats().getEntries());
+    }
+
+    @Test
+    public void neverHashesSensitiveDataInProcess() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        HashRouter router = new HashRouter.Builder()
+                .policy((site, dataClass, hashType, payloadBytes) -> HashRouter.Route.IN_PROCESS)
+                .route("site", HashRouter.Route.IN_PROCESS)
+                .build();
+
+        router.hash(TestCrypto.inline(calls), "site", HashRouter.DataClass.SENSITIVE, RivetHashTypes.SHA256, DATA)
+                .get();
+
+        assertEquals(1, calls.get());
+        assertEquals(HashRouter.Route.TEE,
+                router.route("site", HashRouter.DataClass.SENSITIVE, RivetHashTypes.SHA256, DATA.length));
+        assertEquals(1, router.getRouted(RivetHashTypes.SHA256, HashRouter.Route.TEE));
+    }
+
+    @Test
+    public void hashesSmallDataOnTheCallingThread() {
+        List<Runnable> tasks = new ArrayList<>();
+        HashRouter router = new HashRouter.Builder().executor(tasks::add).build();
+
+        CompletableFuture<byte[]> hash = router.hash(TestCrypto.failing(), "site", HashRouter.DataClass.PUBLIC,
+                RivetHashTypes.SHA256, DATA);
+
+        assertTrue(hash.isDone());
+        assertTrue(tasks.isEmpty());
+        assertArrayEquals(TestCrypto.digest(RivetHashTypes.SHA256, DATA), hash.join());
+    }
+
+    @Test
+    public void hashesACopyOfLargeData() throws Exception {
+        List<Runnable> tasks = new ArrayList<>();
+        HashRouter router = new HashRouter.Builder().executor(tasks::add).build();
+        byte[] data = new byte[HashRouter.INLINE_DIGEST_BYTES + 1];
+        byte[] expected = TestCrypto.digest(RivetHashTypes.SHA256, data);
+
+        CompletableFuture<byte[]> hash = router.hash(TestCrypto.failing(), "site", HashRouter.DataClass.PUBLIC,
+                RivetHashTypes.SHA256, data);
+        // The caller reuses its buffer before the executor runs the hash
+        Arrays.fill(data, (byte) 1);
+        assertFalse(hash.isDone());
+        tasks.forEach(Runnable::run);
+
+        assertArrayEquals(expected, hash.get());
+    }
+}
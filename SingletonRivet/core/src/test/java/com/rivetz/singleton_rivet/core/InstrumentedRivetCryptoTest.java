@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetErrors;
+import com.rivetz.api.RivetKeyTypes;
+import com.rivetz.api.RivetRuntimeException;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InstrumentedRivetCryptoTest {
+
+    @Test
+    public void recordsWhenTheCallCompletes() {
+        CryptoMetrics metrics = new CryptoMetrics();
+        CompletableFuture<byte[]> hashed = new CompletableFuture<>();
+        RivetCrypto crypto = InstrumentedRivetCrypto.wrap(TestCrypto.hashing((type, data) -> hashed), metrics);
+
+        assertSame(hashed, crypto.hash(null, new byte[100]));
+        assertEquals(0, metrics.snapshot().getStats().size());
+
+        hashed.complete(new byte[32]);
+        CryptoMetrics.OperationStats stats = metrics.snapshot().getStats().get(0);
+        assertEquals(CryptoMetrics.Operation.HASH, stats.getOperation());
+        assertEquals(1, stats.getLatency().getCount());
+        assertEquals(100, stats.getPayload().getMax());
+    }
+
+    @Test
+    public void learnsKeyTypesFromListings() {
+        CryptoMetrics metrics = new CryptoMetrics();
+        RivetCrypto crypto = InstrumentedRivetCrypto.wrap(TestCrypto.answering("getKeyNamesOf",
+                args -> CompletableFuture.completedFuture(Arrays.asList("a", "b"))), metrics);
+        crypto.getKeyNamesOf(RivetKeyTypes.ECDH).join();
+
+        // A call on a listed key is recorded against its type, even when it throws
+        try {
+            crypto.deleteKey("a");
+            fail("TestCrypto answers only getKeyNamesOf");
+        }
+        catch (UnsupportedOperationException expected) {
+            // Recorded as a failure that isn't a Rivet error
+        }
+
+        // Sorted by operation, DELETE_KEY comes before GET_KEY_NAMES
+        List<CryptoMetrics.OperationStats> stats = metrics.snapshot().getStats();
+        assertEquals(CryptoMetrics.Operation.DELETE_KEY, stats.get(0).getOperation());
+        assertEquals(RivetKeyTypes.ECDH, stats.get(0).getKeyType());
+        assertEquals(1, stats.get(1).getOtherErrors());
+        assertEquals(CryptoMetrics.Operation.GET_KEY_NAMES, stats.get(2).getOperation());
+    }
+
+    @Test
+    public void countsRivetErrorsOfManyCalls() {
+        CryptoMetrics metrics = new CryptoMetrics();
+        RivetCrypto crypto = InstrumentedRivetCrypto.wrap(TestCrypto.hashing((type, data) -> {
+            CompletableFuture<byte[]> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new RivetRuntimeException(RivetErrors.NOT_PAIRED));
+            return failed;
+        }), metrics);
+
+        // More calls than there are reusable callbacks
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(crypto.hash(null, new byte[1]).isCompletedExceptionally());
+        }
+
+        CryptoMetrics.OperationStats errors = metrics.snapshot().getStats().get(1);
+        assertEquals(Long.valueOf(1000), errors.getErrors().get(RivetErrors.NOT_PAIRED));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import com.rivetz.api.RivetHashTypes;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MemoizingHasherTest {
+
+    private static byte[] input(int i) {
+        return ByteBuffer.allocate(4).putInt(i).array();
+    }
+
+    @Test
+    public void answersRepeatedInputsFromTheCache() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        MemoizingHasher memo = new MemoizingHasher(4096);
+
+        for (int i = 0; i < 3; i++) {
+            byte[] hash = memo.hash(TestCrypto.inline(calls), RivetHashTypes.SHA256, input(7)).get();
+            assertArrayEquals(TestCrypto.digest(RivetHashTypes.SHA256, input(7)), hash);
+        }
+        memo.hash(TestCrypto.inline(calls), RivetHashTypes.SHA512, input(7)).get();
+
+        assertEquals(2, calls.get());
+        assertEquals(2, memo.getStats().getHits());
+        assertEquals(2, memo.getStats().getMisses());
+        assertEquals(2, memo.getStats().getEntries());
+    }
+
+    @Test
+    public void sharesACallInFlight() throws Exception {
+        CompletableFuture<byte[]> blocked = new CompletableFuture<>();
+        AtomicInteger calls = new AtomicInteger();
+        MemoizingHasher memo = new MemoizingHasher(4096);
+        byte[] data = input(1);
+        CompletableFuture<byte[]> first = memo.hash(TestCrypto.hashing((type, in) -> {
+            calls.incrementAndGet();
+            return blocked;
+        }), RivetHashTypes.SHA256, data);
+        // The caller may reuse its buffer once the call returns
+        data[3] = 2;
+        CompletableFuture<byte[]> second = memo.hash(TestCrypto.failing(), RivetHashTypes.SHA256, input(1));
+
+        blocked.complete(new byte[] { 9 });
+        assertArrayEquals(new byte[] { 9 }, first.get());
+        assertArrayEquals(new byte[] { 9 }, second.get());
+        assertEquals(1, calls.get());
+        assertEquals(1, memo.getStats().getShared());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedToStayInBudget() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        // Room for two entries of a 32 byte fingerprint, a 32 byte hash and the overhead
+        MemoizingHasher memo = new MemoizingHasher(2 * (32 + 32 + 64));
+
+        memo.hash(TestCrypto.inline(calls), RivetHashTypes.SHA256, input(1)).get();
+        memo.hash(TestCrypto.inline(calls), RivetHashTypes.SHA256, input(2)).get();
+        memo.hash(TestCrypto.inline(calls), RivetHashTypes.SHA256, input(1)).get();
+        memo.hash(TestCrypto.inline(calls), RivetHashTypes.SHA256, input(3)).get();
+        memo.hash(TestCrypto.inline(calls), RivetHashTypes.SHA256, input(1)).get();
+
+        assertEquals(3, calls.get());
+        assertEquals(1, memo.getStats().getEvictions());
+        assertEquals(2, memo.getStats().getEntries());
+        assertEquals(2 * (32 + 32 + 64), memo.getStats().getBytes());
+    }
+
+    @Test
+    public void doesNotCacheFailures() {
+        MemoizingHasher memo = new MemoizingHasher(4096);
+
+        assertTrue(memo.hash(TestCrypto.failing(), RivetHashTypes.SHA256, input(1)).isCompletedExceptionally());
+        assertTrue(memo.hash(TestCrypto.failing(), RivetHashTypes.SHA256, input(1)).isCompletedExceptionally());
+
+        assertEquals(2, memo.getStats().getMisses());
+        assertEquals(0, memo.getStats().getEntries());
+    }
+}
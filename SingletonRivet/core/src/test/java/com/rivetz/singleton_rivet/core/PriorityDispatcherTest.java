@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import com.rivetz.singleton_rivet.core.PriorityDispatcher.Priority;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PriorityDispatcherTest {
+
+    private static final int CALLS = 50_000;
+
+    private static <T> CompletableFuture<T> failed(Throwable th) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(th);
+        return future;
+    }
+
+    @Test
+    public void runsManyCallsThatCompleteInline() throws Exception {
+        PriorityDispatcher dispatcher = new PriorityDispatcher.Builder().maxInFlight(4).build();
+        CompletableFuture<Void> blocked = new CompletableFuture<>();
+        CompletableFuture<Void> first = dispatcher.submit(Priority.NORMAL, () -> blocked);
+
+        // Queue everything behind the blocked call, then let the whole queue drain inline
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < CALLS; i++) {
+            int value = i;
+            results.add(dispatcher.submit(Priority.BULK, () -> CompletableFuture.completedFuture(value)));
+        }
+        blocked.complete(null);
+
+        first.get(30, TimeUnit.SECONDS);
+        for (int i = 0; i < CALLS; i++) {
+            assertEquals(i, (int) results.get(i).get(30, TimeUnit.SECONDS));
+        }
+        assertEquals(0, dispatcher.getInFlight(Priority.BULK));
+        assertEquals(0, dispatcher.getWaiting(Priority.BULK));
+    }
+
+    @Test
+    public void runsManyCallsThatFailInline() throws Exception {
+        PriorityDispatcher dispatcher = new PriorityDispatcher.Builder().maxInFlight(1).build();
+        CompletableFuture<Void> blocked = new CompletableFuture<>();
+        dispatcher.submit(Priority.NORMAL, () -> blocked);
+
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (int i = 0; i < CALLS; i++) {
+            results.add(dispatcher.submit(Priority.NORMAL,
+                    () -> failed(new IllegalStateException("disconnected"))));
+        }
+        blocked.complete(null);
+
+        for (CompletableFuture<Void> result : results) {
+            assertTrue(result.isCompletedExceptionally());
+        }
+        assertEquals(0, dispatcher.getInFlight(Priority.NORMAL));
+        assertEquals(0, dispatcher.getWaiting(Priority.NORMAL));
+    }
+
+    @Test
+    public void cancelledCallIsNeverMade() throws Exception {
+        PriorityDispatcher dispatcher = new PriorityDispatcher.Builder().maxInFlight(1).build();
+        CompletableFuture<Void> blocked = new CompletableFuture<>();
+        dispatcher.submit(Priority.NORMAL, () -> blocked);
+
+        AtomicInteger made = new AtomicInteger();
+        CompletableFuture<Void> cancelled = dispatcher.submit(Priority.NORMAL, () -> {
+            made.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        });
+        CompletableFuture<Void> next = dispatcher.submit(Priority.NORMAL, () -> {
+            made.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        });
+        assertEquals(2, dispatcher.getWaiting(Priority.NORMAL));
+
+        assertTrue(cancelled.cancel(false));
+        assertEquals(1, dispatcher.getWaiting(Priority.NORMAL));
+        blocked.complete(null);
+
+        next.get(5, TimeUnit.SECONDS);
+        assertEquals(1, made.get());
+        assertEquals(0, dispatcher.getInFlight(Priority.NORMAL));
+    }
+
+    @Test
+    public void higherPriorityStartsFirst() throws Exception {
+        PriorityDispatcher dispatcher = new PriorityDispatcher.Builder()
+                .maxInFlight(1)
+                .interactiveReserve(0)
+                .agingMillis(TimeUnit.HOURS.toMillis(1))
+                .build();
+        CompletableFuture<Void> blocked = new CompletableFuture<>();
+        dispatcher.submit(Priority.NORMAL, () -> blocked);
+
+        List<Priority> order = new ArrayList<>();
+        dispatcher.submit(Priority.BULK, () -> record(order, Priority.BULK));
+        dispatcher.submit(Priority.NORMAL, () -> record(order, Priority.NORMAL));
+        CompletableFuture<Void> last =
+                dispatcher.submit(Priority.INTERACTIVE, () -> record(order, Priority.INTERACTIVE));
+        blocked.complete(null);
+        last.get(5, TimeUnit.SECONDS);
+
+        assertEquals(Priority.INTERACTIVE, order.get(0));
+        assertEquals(Priority.NORMAL, order.get(1));
+        assertEquals(Priority.BULK, order.get(2));
+    }
+
+    @Test
+    public void waitingBulkCallIsNotStarved() throws Exception {
+        PriorityDispatcher dispatcher = new PriorityDispatcher.Builder()
+                .maxInFlight(1)
+                .interactiveReserve(0)
+                .agingMillis(1)
+                .build();
+        CompletableFuture<Void> blocked = new CompletableFuture<>();
+        dispatcher.submit(Priority.NORMAL, () -> blocked);
+
+        List<Priority> order = new ArrayList<>();
+        dispatcher.submit(Priority.BULK, () -> record(order, Priority.BULK));
+        // Long enough for the bulk call to age past the interactive class
+        Thread.sleep(20);
+        dispatcher.submit(Priority.INTERACTIVE, () -> record(order, Priority.INTERACTIVE));
+        blocked.complete(null);
+
+        assertEquals(Priority.BULK, order.get(0));
+        assertEquals(Priority.INTERACTIVE, order.get(1));
+    }
+
+    @Test
+    public void interactiveCallGetsReservedSlot() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter.Builder().initialLimit(4).maxLimit(32).build();
+        PriorityDispatcher dispatcher = new PriorityDispatcher.Builder()
+                .maxInFlight(32)
+                .maxInFlight(Priority.BULK, 16)
+                .interactiveReserve(1)
+                .limiter(limiter)
+                .build();
+
+        List<CompletableFuture<Void>> bulk = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            CompletableFuture<Void> call = new CompletableFuture<>();
+            bulk.add(call);
+            dispatcher.submit(Priority.BULK, () -> call);
+        }
+        // Of the 4 slots the limiter allows, bulk work only gets 3
+        assertEquals(3, dispatcher.getInFlight(Priority.BULK));
+
+        CompletableFuture<Void> tap = new CompletableFuture<>();
+        dispatcher.submit(Priority.INTERACTIVE, () -> tap);
+        assertEquals(1, dispatcher.getInFlight(Priority.INTERACTIVE));
+        assertFalse(tap.isDone());
+
+        tap.complete(null);
+        for (CompletableFuture<Void> call : bulk) {
+            call.complete(null);
+        }
+        assertEquals(0, dispatcher.getInFlight(Priority.BULK));
+        assertEquals(0, dispatcher.getWaiting(Priority.BULK));
+    }
+
+    private static CompletableFuture<Void> record(List<Priority> order, Priority priority) {
+        order.add(priority);
+        return CompletableFuture.completedFuture(null);
+    }
+}
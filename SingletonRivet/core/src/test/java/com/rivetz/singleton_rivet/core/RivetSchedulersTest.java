@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RivetSchedulersTest {
+
+    @Test
+    public void bulkRejectsOnceItsQueueIsFull() throws Exception {
+        // Two processors give the bulk pool one thread
+        RivetSchedulers schedulers = new RivetSchedulers((thread, th) -> { }, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(1);
+        try {
+            schedulers.bulk().execute(() -> {
+                running.countDown();
+                awaitQuietly(release);
+            });
+            running.await();
+
+            int queued = 0;
+            try {
+                while (true) {
+                    schedulers.bulk().execute(() -> { });
+                    queued++;
+                }
+            }
+            catch (RejectedExecutionException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().contains("queue was full"));
+            }
+
+            assertEquals(1024, queued);
+            RivetSchedulers.Stats bulk = schedulers.getStats()[2];
+            assertEquals("rivet-bulk", bulk.getName());
+            assertEquals(1024, bulk.getQueueDepth());
+            assertEquals(1, bulk.getRejectedCount());
+        }
+        finally {
+            release.countDown();
+            schedulers.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectsAfterShutdown() {
+        RivetSchedulers schedulers = new RivetSchedulers((thread, th) -> { }, 2);
+        schedulers.shutdown();
+
+        try {
+            schedulers.interactive().execute(() -> { });
+            fail("A shut down pool accepted a task");
+        }
+        catch (RejectedExecutionException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("shut down"));
+        }
+        assertEquals(1, schedulers.getStats()[1].getRejectedCount());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
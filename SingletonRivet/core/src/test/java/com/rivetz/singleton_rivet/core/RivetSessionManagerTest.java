@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetErrors;
+import com.rivetz.api.RivetRuntimeException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RivetSessionManagerTest {
+
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Pairs when the test completes the pairing, and counts the unpairs
+     */
+    private static final class FakeBinding implements RivetSessionManager.Binding {
+        final RivetCrypto crypto = TestCrypto.failing();
+        final List<CompletableFuture<Boolean>> pairs = new ArrayList<>();
+        final Semaphore unpaired = new Semaphore(0);
+
+        @Override
+        public synchronized @NonNull CompletableFuture<Boolean> pair() {
+            CompletableFuture<Boolean> pair = new CompletableFuture<>();
+            pairs.add(pair);
+            return pair;
+        }
+
+        @Override
+        public @NonNull RivetCrypto getRivetCrypto() {
+            return crypto;
+        }
+
+        @Override
+        public void unpair() {
+            unpaired.release();
+        }
+
+        synchronized int pairCount() {
+            return pairs.size();
+        }
+
+        synchronized CompletableFuture<Boolean> lastPair() {
+            return pairs.get(pairs.size() - 1);
+        }
+    }
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final FakeBinding binding = new FakeBinding();
+
+    @After
+    public void stopScheduler() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void sharesOnePairingBetweenScreens() throws Exception {
+        RivetSessionManager manager = new RivetSessionManager(binding, scheduler, NEVER);
+
+        CompletableFuture<RivetCrypto> first = manager.acquire();
+        CompletableFuture<RivetCrypto> second = manager.acquire();
+        binding.lastPair().complete(true);
+
+        assertEquals(1, binding.pairCount());
+        assertSame(binding.crypto, first.get());
+        assertSame(binding.crypto, second.get());
+        assertSame(binding.crypto, manager.getRivetCrypto());
+        assertEquals(2, manager.getRefCount());
+    }
+
+    @Test
+    public void keepsTheSessionBetweenScreens() throws Exception {
+        RivetSessionManager manager = new RivetSessionManager(binding, scheduler, NEVER);
+        manager.acquire();
+        binding.lastPair().complete(true);
+
+        manager.release();
+        manager.acquire().get();
+
+        assertEquals(1, binding.pairCount());
+        assertEquals(0, binding.unpaired.availablePermits());
+    }
+
+    @Test
+    public void tearsDownAnIdleSessionAndPairsAgain() throws Exception {
+        RivetSessionManager manager = new RivetSessionManager(binding, scheduler, 10);
+        manager.acquire();
+        binding.lastPair().complete(true);
+        manager.release();
+
+        assertTrue(binding.unpaired.tryAcquire(5, TimeUnit.SECONDS));
+        assertNull(manager.getRivetCrypto());
+
+        CompletableFuture<RivetCrypto> again = manager.acquire();
+        assertEquals(2, binding.pairCount());
+        binding.lastPair().complete(true);
+        assertSame(binding.crypto, again.get());
+    }
+
+    @Test
+    public void reportsADeclinedPairingAsACancel() throws Exception {
+        RivetSessionManager manager = new RivetSessionManager(binding, scheduler, NEVER);
+        CompletableFuture<RivetCrypto> session = manager.acquire();
+        binding.lastPair().complete(false);
+
+        try {
+            session.get();
+            fail();
+        }
+        catch (ExecutionException expected) {
+            assertEquals(RivetErrors.USER_CANCELED, ((RivetRuntimeException) expected.getCause()).getError());
+        }
+        assertNull(manager.getRivetCrypto());
+    }
+
+    @Test
+    public void pairsAgainAfterAFailure() throws Exception {
+        RivetSessionManager manager = new RivetSessionManager(binding, scheduler, NEVER);
+        manager.acquire();
+        binding.lastPair().completeExceptionally(new IllegalStateException("disconnected"));
+        manager.release();
+
+        CompletableFuture<RivetCrypto> again = manager.acquire();
+        binding.lastPair().complete(true);
+
+        assertEquals(2, binding.pairCount());
+        assertSame(binding.crypto, again.get());
+    }
+
+    @Test
+    public void tearsDownAStartupPairingNothingAcquired() throws Exception {
+        RivetSessionManager manager = new RivetSessionManager(binding, scheduler, 10);
+        CompletableFuture<RivetCrypto> session = manager.pair();
+        assertFalse(session.isDone());
+        binding.lastPair().complete(true);
+
+        assertSame(binding.crypto, session.get());
+        assertTrue(binding.unpaired.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals(0, manager.getRefCount());
+    }
+
+    @Test
+    public void waitsForAPairingInFlightBeforeTheIdleTimeout() throws Exception {
+        RivetSessionManager manager = new RivetSessionManager(binding, scheduler, 10);
+        CompletableFuture<RivetCrypto> session = manager.acquire();
+        manager.release();
+
+        // The user is still looking at the pairing prompt
+        assertFalse(binding.unpaired.tryAcquire(200, TimeUnit.MILLISECONDS));
+        binding.lastPair().complete(true);
+
+        assertSame(binding.crypto, session.get());
+        assertTrue(binding.unpaired.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals(1, binding.pairCount());
+    }
+
+    @Test
+    public void doesNotUnpairASessionThatNeverPaired() throws Exception {
+        RivetSessionManager manager = new RivetSessionManager(binding, scheduler, 10);
+        manager.acquire();
+        binding.lastPair().complete(false);
+        manager.release();
+        manager.shutdown();
+
+        assertFalse(binding.unpaired.tryAcquire(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void unpairsAPairingShutDownInFlightOnceItSucceeds() throws Exception {
+        RivetSessionManager manager = new RivetSessionManager(binding, scheduler, NEVER);
+        manager.acquire();
+        manager.shutdown();
+        assertEquals(0, binding.unpaired.availablePermits());
+
+        binding.lastPair().complete(true);
+        assertEquals(1, binding.unpaired.availablePermits());
+    }
+
+    @Test
+    public void keepsABindingPairedAgainAfterAShutdown() throws Exception {
+        RivetSessionManager manager = new RivetSessionManager(binding, scheduler, NEVER);
+        manager.acquire();
+        CompletableFuture<Boolean> first = binding.lastPair();
+        manager.shutdown();
+        CompletableFuture<RivetCrypto> again = manager.acquire();
+
+        first.complete(true);
+        binding.lastPair().complete(true);
+
+        assertSame(binding.crypto, again.get());
+        assertEquals(0, binding.unpaired.availablePermits());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsAnUnmatchedRelease() {
+        new RivetSessionManager(binding, scheduler, NEVER).release();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SingleFlightTest {
+
+    @Test
+    public void sharesTheCallInFlight() throws Exception {
+        SingleFlight<String, Integer> flights = new SingleFlight<>();
+        CompletableFuture<Integer> call = new CompletableFuture<>();
+        AtomicInteger calls = new AtomicInteger();
+
+        CompletableFuture<Integer> first = flights.run("key", key -> {
+            calls.incrementAndGet();
+            return call;
+        });
+        CompletableFuture<Integer> second = flights.run("key", key -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture(2);
+        });
+        assertSame(first, second);
+        assertEquals(1, flights.getInFlight());
+
+        call.complete(1);
+        assertEquals(1, (int) second.get());
+        assertEquals(1, calls.get());
+        assertEquals(1, flights.getStarted());
+        assertEquals(1, flights.getShared());
+        assertEquals(0, flights.getInFlight());
+    }
+
+    @Test
+    public void startsANewCallOnceTheLastOneCompletes() throws Exception {
+        SingleFlight<String, Integer> flights = new SingleFlight<>();
+
+        assertEquals(1, (int) flights.run("key", key -> CompletableFuture.completedFuture(1)).get());
+        assertEquals(2, (int) flights.run("key", key -> CompletableFuture.completedFuture(2)).get());
+        assertEquals(2, flights.getStarted());
+        assertEquals(0, flights.getShared());
+    }
+
+    @Test
+    public void releasesTheKeyOfACallThatThrows() {
+        SingleFlight<String, Integer> flights = new SingleFlight<>();
+
+        CompletableFuture<Integer> failed = flights.run("key", key -> {
+            throw new IllegalStateException("disconnected");
+        });
+
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(0, flights.getInFlight());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StartupGraphTest {
+
+    private static final StartupGraph.Key<String> PAIR = StartupGraph.key("pair");
+    private static final StartupGraph.Key<Integer> FIRST = StartupGraph.key("first");
+    private static final StartupGraph.Key<Integer> SECOND = StartupGraph.key("second");
+
+    @Test
+    public void startsATaskOnceItsDependenciesComplete() throws Exception {
+        CompletableFuture<String> pair = new CompletableFuture<>();
+        StartupGraph graph = new StartupGraph(Runnable::run)
+                .add(PAIR, results -> pair)
+                .add(FIRST, results -> CompletableFuture.completedFuture(results.get(PAIR).length()), PAIR);
+
+        CompletableFuture<Void> all = graph.start();
+        assertFalse(graph.future(FIRST).isDone());
+
+        pair.complete("paired");
+        all.get();
+        assertEquals(6, (int) graph.resultOrNull(FIRST));
+        assertEquals(2, graph.getTimings().size());
+        assertEquals("pair", graph.getTimings().get(0).getName());
+    }
+
+    @Test
+    public void runsTasksWithTheSameDependencyAtTheSameTime() throws Exception {
+        List<String> started = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Integer> first = new CompletableFuture<>();
+        StartupGraph graph = new StartupGraph(Runnable::run)
+                .add(PAIR, results -> CompletableFuture.completedFuture("paired"))
+                .add(FIRST, results -> {
+                    started.add("first");
+                    return first;
+                }, PAIR)
+                .add(SECOND, results -> {
+                    started.add("second");
+                    return CompletableFuture.completedFuture(2);
+                }, PAIR);
+
+        CompletableFuture<Void> all = graph.start();
+
+        // The second task didn't wait for the first one
+        assertEquals(2, started.size());
+        assertFalse(all.isDone());
+        first.complete(1);
+        all.get();
+    }
+
+    @Test
+    public void failsOnlyTheTasksThatDependOnAFailedTask() throws Exception {
+        IllegalStateException declined = new IllegalStateException("declined");
+        StartupGraph graph = new StartupGraph(Runnable::run)
+                .add(PAIR, results -> {
+                    throw declined;
+                })
+                .add(FIRST, results -> CompletableFuture.completedFuture(1))
+                .add(SECOND, results -> CompletableFuture.completedFuture(2), PAIR);
+
+        try {
+            graph.start().get();
+            fail();
+        }
+        catch (ExecutionException expected) {
+            assertSame(declined, expected.getCause());
+        }
+        assertEquals(1, (int) graph.resultOrNull(FIRST));
+        assertNull(graph.resultOrNull(SECOND));
+        assertTrue(graph.future(SECOND).isCompletedExceptionally());
+    }
+
+    @Test
+    public void reportsTheTaskThatFailedFirst() throws Exception {
+        CompletableFuture<Integer> first = new CompletableFuture<>();
+        CompletableFuture<Integer> second = new CompletableFuture<>();
+        StartupGraph graph = new StartupGraph(Runnable::run)
+                .add(FIRST, results -> first)
+                .add(SECOND, results -> second);
+        CompletableFuture<Void> all = graph.start();
+
+        IllegalStateException early = new IllegalStateException("early");
+        second.completeExceptionally(early);
+        assertFalse(all.isDone());
+        first.completeExceptionally(new IllegalStateException("late"));
+
+        try {
+            all.get();
+            fail();
+        }
+        catch (ExecutionException expected) {
+            assertSame(early, expected.getCause());
+        }
+    }
+
+    @Test
+    public void completesAnEmptyGraph() {
+        assertTrue(new StartupGraph(Runnable::run).start().isDone());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsADependencyAddedLater() {
+        new StartupGraph(Runnable::run).add(FIRST, results -> CompletableFuture.completedFuture(1), PAIR);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsATaskAddedAfterTheStart() {
+        StartupGraph graph = new StartupGraph(Runnable::run);
+        graph.start();
+        graph.add(FIRST, results -> CompletableFuture.completedFuture(1));
+    }
+}
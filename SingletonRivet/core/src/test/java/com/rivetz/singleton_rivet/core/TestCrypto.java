@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.singleton_rivet.core;
+
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetHashTypes;
+
+import java.lang.reflect.Proxy;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * {@code RivetCrypto} interfaces for the unit tests that implement only the calls a test needs
+ */
+final class TestCrypto {
+
+    private TestCrypto() {
+    }
+
+    /**
+     * @param methodName the call to implement
+     * @param answer answers each such call from its arguments
+     * @return a crypto interface whose other calls throw
+     */
+    static @NonNull RivetCrypto answering(@NonNull String methodName, @NonNull Function<Object[], Object> answer) {
+        return (RivetCrypto) Proxy.newProxyInstance(RivetCrypto.class.getClassLoader(),
+                new Class<?>[] { RivetCrypto.class }, (proxy, method, args) -> {
+                    if (!method.getName().equals(methodName)) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    return answer.apply(args);
+                });
+    }
+
+    /**
+     * @param hash answers each hash call
+     * @return a crypto interface whose other calls throw
+     */
+    static @NonNull RivetCrypto hashing(@NonNull BiFunction<RivetHashTypes, byte[], CompletableFuture<byte[]>> hash) {
+        return answering("hash", args -> hash.apply((RivetHashTypes) args[0], (byte[]) args[1]));
+    }
+
+    /**
+     * Hashes that complete before the call returns, as a cached result does. This is the case
+     * that exposes re-entrant completion handling.
+     *
+     * @param calls counts the calls
+     */
+    static @NonNull RivetCrypto inline(@NonNull AtomicInteger calls) {
+        return hashing((type, data) -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture(digest(type, data));
+        });
+    }
+
+    /**
+     * Hashes that fail before the call returns, as every call does after the service
+     * disconnects
+     */
+    static @NonNull RivetCrypto failing() {
+        return hashing((type, data) -> {
+            CompletableFuture<byte[]> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("disconnected"));
+            return failed;
+        });
+    }
+
+    static @NonNull byte[] digest(@NonNull RivetHashTypes type, @NonNull byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-" + type.name().substring(3)).digest(data);
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
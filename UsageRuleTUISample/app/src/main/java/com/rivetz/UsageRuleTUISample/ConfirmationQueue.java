@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.UsageRuleTUISample;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetErrors;
+import com.rivetz.api.RivetRuntimeException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Asks the user to approve operations on the TUI, without blocking the caller
+ *
+ * An operation is submitted with a description and the call that performs it. Operations
+ * submitted close together are gathered into one batch and the user is asked once, on the
+ * TUI, to approve the whole batch. If the user approves, every operation in the batch is
+ * started at once. If the user declines, none of them run and each one fails with
+ * {@code RivetErrors.USER_CANCELED}.
+ *
+ * Only one prompt is shown at a time. Operations submitted while the user is looking at a
+ * prompt wait for the next one.
+ *
+ * Approving a prompt also opens a confirmation session for each key and class of operation in
+ * the batch. While a session is open, operations submitted after the approval that it covers
+ * run without a prompt. Operations that were already waiting when the user answered weren't
+ * shown to the user, so they still wait for the next prompt even if a session covers them.
+ */
+final class ConfirmationQueue {
+
+    /**
+     * An operation waiting for approval
+     */
+    private static final class Pending<T> {
+        final String keyName;
+        final ConfirmationSessions.Operation operationClass;
+        final int uses;
+        final String description;
+        final Supplier<CompletableFuture<T>> operation;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Pending(@NonNull String keyName, @NonNull ConfirmationSessions.Operation operationClass, int uses,
+                @NonNull String description, @NonNull Supplier<CompletableFuture<T>> operation) {
+            this.keyName = keyName;
+            this.operationClass = operationClass;
+            this.uses = uses;
+            this.description = description;
+            this.operation = operation;
+        }
+
+        void run() {
+            try {
+                operation.get().whenComplete((value, th) -> {
+                    if (th != null) {
+                        result.completeExceptionally(th);
+                    }
+                    else {
+                        result.complete(value);
+                    }
+                });
+            }
+            catch (RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+        }
+    }
+
+    private final RivetCrypto crypto;
+    private final ConfirmationSessions sessions;
+    private final ScheduledExecutorService scheduler;
+    private final long gatherMillis;
+    private final int maxBatch;
+
+    // Guarded by this
+    private final List<Pending<?>> waiting = new ArrayList<>();
+    private boolean promptScheduled = false;
+    private boolean prompting = false;
+    private boolean closed = false;
+
+    /**
+     * @param crypto the paired crypto interface
+     * @param sessions the confirmation sessions opened by approvals
+     * @param scheduler runs the gathering delay
+     * @param gatherMillis how long to wait for more operations before asking the user
+     * @param maxBatch the most operations to approve with one prompt
+     */
+    ConfirmationQueue(@NonNull RivetCrypto crypto, @NonNull ConfirmationSessions sessions,
+                      @NonNull ScheduledExecutorService scheduler, long gatherMillis, int maxBatch) {
+        this.crypto = crypto;
+        this.sessions = sessions;
+        this.scheduler = scheduler;
+        this.gatherMillis = gatherMillis;
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * Run an operation once the user approves it, or at once if a session covers it
+     *
+     * @param keyName the key the operation uses
+     * @param operationClass the class of the operation
+     * @param description what the operation does, shown on the TUI
+     * @param operation starts the operation
+     * @return a future with the result of the operation. It fails with
+     * {@code RivetErrors.USER_CANCELED} if the user declines.
+     */
+    @AnyThread
+    @NonNull <T> CompletableFuture<T> submit(@NonNull String keyName,
+                                             @NonNull ConfirmationSessions.Operation operationClass,
+                                             @NonNull String description,
+                                             @NonNull Supplier<CompletableFuture<T>> operation) {
+        return enqueue(new Pending<>(keyName, operationClass, 1, description, operation));
+    }
+
+    /**
+     * Run several operations with a single approval, without waiting for others to gather
+     *
+     * The operations take one use each from a session, and only run without a prompt if the
+     * session has enough uses left for all of them.
+     *
+     * @param keyName the key the operations use
+     * @param operationClass the class of the operations
+     * @param description what the operations do as a whole, shown on the TUI
+     * @param operations start each operation
+     * @return a future with the results, in order. It fails if any of the operations fails, or
+     * with {@code RivetErrors.USER_CANCELED} if the user declines.
+     */
+    @AnyThread
+    @NonNull <T> CompletableFuture<List<T>> submitAll(@NonNull String keyName,
+                                                      @NonNull ConfirmationSessions.Operation operationClass,
+                                                      @NonNull String description,
+                                                      @NonNull List<Supplier<CompletableFuture<T>>> operations) {
+        return enqueue(new Pending<>(keyName, operationClass, operations.size(), description, () -> {
+            List<CompletableFuture<T>> started = new ArrayList<>();
+            for (Supplier<CompletableFuture<T>> operation : operations) {
+                started.add(operation.get());
+            }
+            return CompletableFuture.allOf(started.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+                List<T> results = new ArrayList<>();
+                for (CompletableFuture<T> future : started) {
+                    results.add(future.join());
+                }
+                return Collections.unmodifiableList(results);
+            });
+        }));
+    }
+
+    /**
+     * Cancel every operation that hasn't been approved yet, and refuse new ones
+     *
+     * Operations in a prompt the user is looking at are cancelled when the user answers it.
+     */
+    @AnyThread
+    void close() {
+        List<Pending<?>> cancelled;
+        synchronized (this) {
+            closed = true;
+            cancelled = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        for (Pending<?> pending : cancelled) {
+            pending.result.completeExceptionally(new CancellationException("The confirmation queue is closed"));
+        }
+    }
+
+    private @NonNull <T> CompletableFuture<T> enqueue(@NonNull Pending<T> pending) {
+        boolean authorized;
+        synchronized (this) {
+            if (closed) {
+                pending.result.completeExceptionally(new CancellationException("The confirmation queue is closed"));
+                return pending.result;
+            }
+            authorized = sessions.tryUse(pending.keyName, pending.operationClass, pending.uses);
+            if (!authorized) {
+                waiting.add(pending);
+            }
+        }
+
+        if (authorized) {
+            pending.run();
+        }
+        else {
+            schedulePrompt();
+        }
+        return pending.result;
+    }
+
+    // Wait a little for more operations, unless the batch is already full
+    private void schedulePrompt() {
+        synchronized (this) {
+            if (prompting || promptScheduled || waiting.isEmpty()) {
+                return;
+            }
+            promptScheduled = true;
+        }
+
+        long delay = waitingCount() >= maxBatch ? 0 : gatherMillis;
+        scheduler.schedule(this::prompt, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void prompt() {
+        List<Pending<?>> batch;
+        synchronized (this) {
+            promptScheduled = false;
+            if (prompting || waiting.isEmpty()) {
+                return;
+            }
+            prompting = true;
+
+            List<Pending<?>> head = waiting.subList(0, Math.min(maxBatch, waiting.size()));
+            batch = new ArrayList<>(head);
+            head.clear();
+        }
+
+        CompletableFuture<Boolean> confirmation;
+        try {
+            confirmation = crypto.confirm(messageFor(batch));
+        }
+        catch (RuntimeException ex) {
+            confirmation = new CompletableFuture<>();
+            confirmation.completeExceptionally(ex);
+        }
+
+        confirmation.whenComplete((approved, th) -> {
+            // The prompt can't be taken off the TUI, so if the queue was closed meanwhile the
+            // answer is ignored and the batch is cancelled like the operations still waiting
+            boolean wasClosed;
+            synchronized (this) {
+                wasClosed = closed;
+            }
+            if (wasClosed) {
+                for (Pending<?> pending : batch) {
+                    pending.result.completeExceptionally(
+                            new CancellationException("The confirmation queue is closed"));
+                }
+                return;
+            }
+
+            boolean wasApproved = th == null && Boolean.TRUE.equals(approved);
+            if (wasApproved) {
+                Map<ConfirmationSessions.Operation, Set<String>> granted =
+                        new EnumMap<>(ConfirmationSessions.Operation.class);
+                for (Pending<?> pending : batch) {
+                    Set<String> keyNames = granted.computeIfAbsent(pending.operationClass, op -> new HashSet<>());
+                    if (keyNames.add(pending.keyName)) {
+                        sessions.grant(pending.keyName, pending.operationClass);
+                    }
+                }
+            }
+
+            for (Pending<?> pending : batch) {
+                if (th != null) {
+                    pending.result.completeExceptionally(th);
+                }
+                else if (wasApproved) {
+                    pending.run();
+                }
+                else {
+                    pending.result.completeExceptionally(new RivetRuntimeException(RivetErrors.USER_CANCELED));
+                }
+            }
+
+            // Operations that arrived during the prompt weren't on it, so they get their own
+            synchronized (this) {
+                prompting = false;
+            }
+            schedulePrompt();
+        });
+    }
+
+    private synchronized int waitingCount() {
+        return waiting.size();
+    }
+
+    // One operation is described as it is. A batch is counted, and as many descriptions as fit
+    // on the TUI are listed. The user is told what else the approval allows.
+    private @NonNull String messageFor(@NonNull List<Pending<?>> batch) {
+        StringBuilder message = new StringBuilder();
+        if (batch.size() == 1) {
+            message.append(batch.get(0).description);
+        }
+        else {
+            message.append("Approve ").append(batch.size()).append(" operations?");
+            int listed = Math.min(batch.size(), 3);
+            for (int i = 0; i < listed; i++) {
+                message.append('\n').append(batch.get(i).description);
+            }
+            if (listed < batch.size()) {
+                message.append("\n+").append(batch.size() - listed).append(" more");
+            }
+        }
+
+        if (sessions.getMaxOperations() > 0) {
+            message.append("\nAllows ").append(sessions.getMaxOperations()).append(" more in the next ")
+                    .append(sessions.getWindowSeconds()).append("s");
+        }
+        return message.toString();
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.rivetz.UsageRuleTUISample;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Confirmation sessions for keys that require TUI confirmation
+ *
+ * When the user approves an operation on the TUI, a session is opened for that key and class
+ * of operation. The session authorizes a limited number of further operations, within a
+ * limited time, without asking again. Sessions are kept only in this process, and are revoked
+ * when the activity leaves the foreground so an approval can't be used while the user isn't
+ * looking.
+ *
+ * Every change to a session is written to an audit log, which keeps the most recent events.
+ */
+final class ConfirmationSessions {
+
+    /**
+     * A class of operation. A session covers one class only, so approving an encryption
+     * doesn't authorize a decryption.
+     */
+    enum Operation {
+        ENCRYPT,
+        DECRYPT
+    }
+
+    /**
+     * What happened to a session
+     */
+    enum Event {
+        GRANTED,
+        USED,
+        EXHAUSTED,
+        EXPIRED,
+        REVOKED
+    }
+
+    /**
+     * One entry in the audit log
+     */
+    static final class AuditEntry {
+        private final long timeMillis;
+        private final String keyName;
+        private final Operation operation;
+        private final Event event;
+        private final String detail;
+
+        AuditEntry(@NonNull String keyName, @NonNull Operation operation, @NonNull Event event,
+                   @NonNull String detail) {
+            this.timeMillis = System.currentTimeMillis();
+            this.keyName = keyName;
+            this.operation = operation;
+            this.event = event;
+            this.detail = detail;
+        }
+
+        long getTimeMillis() {
+            return timeMillis;
+        }
+
+        @NonNull String getKeyName() {
+            return keyName;
+        }
+
+        @NonNull Operation getOperation() {
+            return operation;
+        }
+
+        @NonNull Event getEvent() {
+            return event;
+        }
+
+        @Override
+        public @NonNull String toString() {
+            return timeMillis + " " + keyName + " " + operation + " " + event + (detail.isEmpty() ? "" : " " + detail);
+        }
+    }
+
+    /**
+     * The open session of one key and operation class
+     */
+    private static final class Session {
+        final long expiresAtNanos;
+        int remaining;
+
+        Session(long expiresAtNanos, int remaining) {
+            this.expiresAtNanos = expiresAtNanos;
+            this.remaining = remaining;
+        }
+    }
+
+    private static final int AUDIT_LOG_SIZE = 100;
+
+    private final int maxOperations;
+    private final long windowMillis;
+
+    // Open sessions by operation class and key name. Guarded by this.
+    private final Map<Operation, Map<String, Session>> sessions = new EnumMap<>(Operation.class);
+    private final Deque<AuditEntry> auditLog = new ArrayDeque<>();
+
+    /**
+     * @param maxOperations the most operations a session authorizes after the approval
+     * @param windowMillis how long a session lasts after the approval
+     */
+    ConfirmationSessions(int maxOperations, long windowMillis) {
+        this.maxOperations = maxOperations;
+        this.windowMillis = windowMillis;
+        for (Operation operation : Operation.values()) {
+            sessions.put(operation, new HashMap<>());
+        }
+    }
+
+    /**
+     * @return the most operations a session authorizes
+     */
+    int getMaxOperations() {
+        return maxOperations;
+    }
+
+    /**
+     * @return how long a session lasts, in seconds
+     */
+    long getWindowSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(windowMillis);
+    }
+
+    /**
+     * Open a session after the user approved an operation, replacing any open one
+     *
+     * @param keyName the key the user approved
+     * @param operation the class of operation the user approved
+     */
+    @AnyThread
+    synchronized void grant(@NonNull String keyName, @NonNull Operation operation) {
+        long expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        sessions.get(operation).put(keyName, new Session(expiresAtNanos, maxOperations));
+        log(keyName, operation, Event.GRANTED, maxOperations + " operations, " + getWindowSeconds() + "s");
+    }
+
+    /**
+     * Authorize operations with an open session
+     *
+     * @param keyName the key
+     * @param operation the class of operation
+     * @param uses the number of operations
+     * @return true if a session authorized them and took the uses, false if the user needs
+     * to be asked
+     */
+    @AnyThread
+    synchronized boolean tryUse(@NonNull String keyName, @NonNull Operation operation, int uses) {
+        Map<String, Session> open = sessions.get(operation);
+        Session session = open.get(keyName);
+        if (session == null) {
+            return false;
+        }
+
+        if (System.nanoTime() - session.expiresAtNanos >= 0) {
+            open.remove(keyName);
+            log(keyName, operation, Event.EXPIRED, "");
+            return false;
+        }
+
+        if (session.remaining < uses) {
+            return false;
+        }
+
+        session.remaining -= uses;
+        log(keyName, operation, Event.USED, uses + " used, " + session.remaining + " left");
+        if (session.remaining == 0) {
+            open.remove(keyName);
+            log(keyName, operation, Event.EXHAUSTED, "");
+        }
+        return true;
+    }
+
+    /**
+     * Revoke the sessions of a key, for example when it is deleted or created again
+     *
+     * @param keyName the key
+     * @param reason why, for the audit log
+     */
+    @AnyThread
+    synchronized void revoke(@NonNull String keyName, @NonNull String reason) {
+        for (Operation operation : Operation.values()) {
+            if (sessions.get(operation).remove(keyName) != null) {
+                log(keyName, operation, Event.REVOKED, reason);
+            }
+        }
+    }
+
+    /**
+     * Revoke every session, for example when the activity is paused
+     *
+     * @param reason why, for the audit log
+     */
+    @AnyThread
+    synchronized void revokeAll(@NonNull String reason) {
+        for (Map.Entry<Operation, Map<String, Session>> entry : sessions.entrySet()) {
+            for (String keyName : entry.getValue().keySet()) {
+                log(keyName, entry.getKey(), Event.REVOKED, reason);
+            }
+            entry.getValue().clear();
+        }
+    }
+
+    /**
+     * @return the most recent session events, oldest first
+     */
+    @AnyThread
+    synchronized @NonNull List<AuditEntry> getAuditLog() {
+        return new ArrayList<>(auditLog);
+    }
+
+    private void log(@NonNull String keyName, @NonNull Operation operation, @NonNull Event event,
+                     @NonNull String detail) {
+        if (auditLog.size() == AUDIT_LOG_SIZE) {
+            auditLog.removeFirst();
+        }
+        auditLog.addLast(new AuditEntry(keyName, operation, event, detail));
+    }
+}
@@ -31,8 +31,17 @@
 
 package com.rivetz.UsageRuleTUISample;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Supplier;
 
 import android.os.Bundle;
 import android.support.v7.app.AlertDialog;
@@ -51,7 +60,9 @@ import com.rivetz.api.RivetRuntimeException;
 import com.rivetz.api.SPID;
 import com.rivetz.bridge.DevicePropertyIds;
 import com.rivetz.bridge.RivetApiActivity;
+import com.rivetz.keys.KeyInventory;
 import com.rivetz.UsageRuleTUISample.R;
+import com.rivetz.codec.HexCodec;
 
 import static com.rivetz.api.RivetRules.REQUIRE_DUAL_ROOT;
 import static com.rivetz.api.RivetRules.REQUIRE_TUI_CONFIRM;
@@ -74,8 +85,36 @@ public class MainActivity extends RivetApiActivity {
     private static boolean pairSuccess = false; /** true if the Rivet is paired */
     private static boolean drtSupported = false; /** true if Dual Root of Trust is supported */
     private static boolean hasKey = false; /** true if the activity key exists */
+
+    // The keys of the Rivet, listed at startup and updated by creates and deletes made through
+    // the crypto interface below
+    private static final KeyInventory KEYS = new KeyInventory();
     private EncryptResult encryptedText = null; /** The encrypted text that will be generated in this sample */
 
+    // Where doStartup() runs. A recreated activity reuses the thread instead of starting one.
+    private static final ExecutorService STARTUP_EXECUTOR =
+            Executors.newSingleThreadExecutor(task -> new Thread(task, "rivet-startup"));
+
+    // The queued or running startup of this instance
+    private Future<?> startup = null;
+
+    // Gathers the operations waiting for TUI approval, so one prompt can approve several
+    private static final ScheduledExecutorService CONFIRM_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(task -> new Thread(task, "tui-confirm"));
+    private static final long CONFIRM_GATHER_MS = 250;
+    private static final int CONFIRM_MAX_BATCH = 16;
+    private static final int BATCH_RECORDS = 10;
+
+    // An approval allows a few more operations of the same kind on the key for a short time.
+    // The sessions end when the activity leaves the foreground.
+    private static final int SESSION_MAX_OPERATIONS = 20;
+    private static final long SESSION_WINDOW_MS = 60_000L;
+    private final ConfirmationSessions sessions = new ConfirmationSessions(SESSION_MAX_OPERATIONS, SESSION_WINDOW_MS);
+
+    // Runs operations once the user approves them. Created on the startup thread and used on
+    // the UI thread.
+    private volatile ConfirmationQueue confirmations = null;
+
     @Override
     public void onCreate(@NonNull Bundle savedInstanceState) {
 
@@ -98,8 +137,29 @@ public class MainActivity extends RivetApiActivity {
         // Now there will be a delay running the startup in the background. Entertain the user...
         findViewById(R.id.loading).setVisibility(View.VISIBLE);
 
-        // Put all of the high latency, asynchronous work on a background thread
-        new Thread(this::doStartup).start();
+        // The startup blocks on pairing and the Rivet, so it runs on its own thread
+        startup = STARTUP_EXECUTOR.submit(this::doStartup);
+    }
+
+    @Override
+    public void onPause() {
+        // Don't let an approval be used while the user isn't looking at the app
+        sessions.revokeAll("paused");
+        super.onPause();
+    }
+
+    @Override
+    public void onDestroy() {
+        // Don't let a startup that is still pairing block the startup of the next instance
+        if (startup != null) {
+            startup.cancel(true);
+        }
+
+        // Operations that haven't been approved yet are dropped with the activity
+        if (confirmations != null) {
+            confirmations.close();
+        }
+        super.onDestroy();
     }
 
     /**
@@ -116,6 +176,7 @@ public class MainActivity extends RivetApiActivity {
      * {@code hasKey} is set true if the key name defined in the activity exists
      */
     private void doStartup() {
+        CompletableFuture<KeyInventory> keysListed = null;
         Exception reason = null;
 
         // Pair with the SPID, block until it completes
@@ -129,6 +190,11 @@ public class MainActivity extends RivetApiActivity {
             reason = ex;
         }
 
+        // The startup was cancelled. Don't create a confirmation queue nobody will close.
+        if (isDestroyed()) {
+            return;
+        }
+
         if (reason != null) {
 
             // If the error is that the Rivet isn't installed, the user was sent to the PlayStore,
@@ -153,7 +219,12 @@ public class MainActivity extends RivetApiActivity {
             // The Rivet is paired, get an instance of the crypto interface
             // NOTE: This method could throw a RivetRuntimeException(), but only
             // for not being paired, so it doesn't need a try/catch
-            crypto = getRivetCrypto();
+            crypto = KEYS.track(getRivetCrypto());
+            confirmations = new ConfirmationQueue(crypto, sessions, CONFIRM_EXECUTOR, CONFIRM_GATHER_MS, CONFIRM_MAX_BATCH);
+
+            // Start listing the keys now. It only depends on pairing, so it can run
+            // while DRT support is being checked
+            keysListed = KEYS.refresh(crypto, RivetKeyTypes.AES256_CGM);
 
             try {
                 // Check if DRT is supported, block until it completes
@@ -172,13 +243,11 @@ public class MainActivity extends RivetApiActivity {
             }
         }
 
-        // If we have the crypto instance, check for the key
-        if (crypto != null) {
+        // If the key listing was started, check for the key
+        if (keysListed != null) {
             try {
-                List<String> keyNames = crypto.getKeyNamesOf(RivetKeyTypes.AES256_CGM).get();
-                if (keyNames.contains(KEY_NAME)) {
-                    hasKey = true;
-                }
+                keysListed.get();
+                hasKey = KEYS.contains(RivetKeyTypes.AES256_CGM, KEY_NAME);
             }
             catch (ExecutionException ex) {
                 reason = ex;
@@ -192,7 +261,9 @@ public class MainActivity extends RivetApiActivity {
         }
 
         // Now update the UI with the results
-        runOnUiThread(this::startupComplete);
+        if (!isDestroyed()) {
+            runOnUiThread(this::startupComplete);
+        }
     }
 
     /**
@@ -255,6 +326,9 @@ public class MainActivity extends RivetApiActivity {
      * @param thrown null for success, or the error exception.
      */
     private void createKeyComplete(Void v, @Nullable Throwable thrown){
+        // Approvals given for an earlier key of the same name don't carry over
+        sessions.revoke(KEY_NAME, "key created");
+
         if (thrown == null){
             // No exception means the key has been created
             hasKey = true;
@@ -284,14 +358,45 @@ public class MainActivity extends RivetApiActivity {
         // Disable the encryption button
         makeUnclickable(findViewById(R.id.encrypt));
 
-        // Use TUI confirmation for encryption
-        if(TUIConfirm("Encrypt this message?")) {
-            crypto.encrypt(KEY_NAME, payload.getText().toString().getBytes()).whenComplete(this::encryptComplete);
-        }
-        else {
-            // Re-enable the encryption
-            makeClickable(findViewById(R.id.encrypt));
+        // Use TUI confirmation for encryption. The click handler returns at once, the
+        // encryption starts when the user approves it on the TUI.
+        byte[] data = payload.getText().toString().getBytes();
+        confirmations.submit(KEY_NAME, ConfirmationSessions.Operation.ENCRYPT, "Encrypt this message?",
+                () -> crypto.encrypt(KEY_NAME, data))
+                .whenComplete(this::encryptComplete);
+    }
+
+    /**
+     * Encrypt several copies of the payload, approved with a single TUI prompt
+     *
+     * @param v The Android View.
+     */
+    @SuppressWarnings("unused")
+    public void encryptBatch(@NonNull View v) {
+        // Disable all the UI for a bit
+        setUiDisabled();
+
+        EditText payload = findViewById(R.id.encryptText);
+        String text = payload.getText().toString();
+
+        List<Supplier<CompletableFuture<EncryptResult>>> records = new ArrayList<>();
+        for (int i = 0; i < BATCH_RECORDS; i++) {
+            byte[] record = (i + ": " + text).getBytes(StandardCharsets.UTF_8);
+            records.add(() -> crypto.encrypt(KEY_NAME, record));
         }
+
+        confirmations.submitAll(KEY_NAME, ConfirmationSessions.Operation.ENCRYPT,
+                "Encrypt " + BATCH_RECORDS + " records?", records).whenComplete((results, thrown) -> {
+            if (thrown == null) {
+                // Keep the last one, so it can be decrypted
+                encryptedText = results.get(results.size() - 1);
+                alertFromBgThread("Encrypted " + results.size() + " records with one approval");
+            }
+            else {
+                alertFromBgThread(describe(thrown));
+            }
+            runOnUiThread(this::sethasKeyUI);
+        });
     }
 
     /**
@@ -310,13 +415,13 @@ public class MainActivity extends RivetApiActivity {
 
 
             //noinspection ConstantConditions
-            alertFromBgThread("Your text has been encrypted to " + bytesToHex(e.getCipherText()));
+            alertFromBgThread("Your text has been encrypted to " + HexCodec.encode(e.getCipherText()));
         }
         else {
-            alertFromBgThread(thrown.getMessage());
+            alertFromBgThread(describe(thrown));
         }
-        //Allow decryption
-        runOnUiThread(() -> makeClickable(findViewById(R.id.decrypt)));
+        // Allow decryption, and encryption again if it failed
+        runOnUiThread(this::sethasKeyUI);
     }
 
     /**
@@ -328,16 +433,11 @@ public class MainActivity extends RivetApiActivity {
         // Disable all the UI for a bit
         setUiDisabled();
 
-        // Use TUI confirmation for decryption
-        if(TUIConfirm("Decrypt this message?")) {
-            crypto.decrypt(KEY_NAME, encryptedText).whenComplete(this::decryptComplete);
-            // Disable the decryption button
-            makeUnclickable(findViewById(R.id.decrypt));
-        }
-        else {
-            // Re-enable the decryption
-            makeClickable(findViewById(R.id.decrypt));
-        }
+        // Use TUI confirmation for decryption, without waiting for the user here
+        EncryptResult toDecrypt = encryptedText;
+        confirmations.submit(KEY_NAME, ConfirmationSessions.Operation.DECRYPT, "Decrypt this message?",
+                () -> crypto.decrypt(KEY_NAME, toDecrypt))
+                .whenComplete(this::decryptComplete);
     }
 
     /**
@@ -350,33 +450,28 @@ public class MainActivity extends RivetApiActivity {
     private void decryptComplete(@Nullable byte[] decrypted, @Nullable Throwable thrown) {
         if (decrypted != null) {
             alertFromBgThread("Your text has been decrypted: " + new String(decrypted));
-            runOnUiThread(this::sethasKeyUI);
         }
         else {
             //noinspection ConstantConditions
-            alertFromBgThread(thrown.getMessage());
+            alertFromBgThread(describe(thrown));
         }
         // Allow encryption
-        makeClickable(findViewById(R.id.encrypt));
-
+        runOnUiThread(this::sethasKeyUI);
     }
 
     /**
-     * Confirm an operation using the TUI
+     * Describe why an operation failed, with a declined confirmation told apart from errors
      *
-     * @param message the message to be displayed on the TUI screen
+     * @param thrown the exception the operation completed with
+     * @return the message for the user
      */
-    private boolean TUIConfirm(String message){
-        boolean b;
-        try{
-            b = crypto.confirm(message).get();
-        }
-        catch (Exception e){
-            alertFromBgThread(e.getMessage());
-            b = false;
+    private static @NonNull String describe(@NonNull Throwable thrown) {
+        Throwable cause = thrown instanceof CompletionException && thrown.getCause() != null ? thrown.getCause() : thrown;
+        if (cause instanceof RivetRuntimeException
+                && ((RivetRuntimeException) cause).getError() == RivetErrors.USER_CANCELED) {
+            return "The operation was declined";
         }
-
-        return b;
+        return String.valueOf(cause.getMessage());
     }
 
     /**
@@ -388,13 +483,18 @@ public class MainActivity extends RivetApiActivity {
         makeUnclickable(findViewById(R.id.createKey));
         makeUnclickable(findViewById(R.id.decrypt));
         makeUnclickable(findViewById(R.id.encrypt));
+        makeUnclickable(findViewById(R.id.encryptBatch));
     }
 
 
     private void sethasKeyUI(){
         if(hasKey){
             makeClickable(findViewById(R.id.encrypt));
+            makeClickable(findViewById(R.id.encryptBatch));
             makeUnclickable(findViewById(R.id.createKey));
+            if (encryptedText != null) {
+                makeClickable(findViewById(R.id.decrypt));
+            }
         }
         else {
             makeClickable(findViewById(R.id.createKey));
@@ -412,7 +512,12 @@ public class MainActivity extends RivetApiActivity {
      * @param text the message to be shown to the user
      */
     private void alertFromBgThread(@NonNull String text) {
-        runOnUiThread(()-> alertFromUiThread(text));
+        runOnUiThread(()->{
+            // A destroyed activity can't show a dialog
+            if (!isDestroyed()) {
+                alertFromUiThread(text);
+            }
+        });
     }
 
     /**
@@ -449,16 +554,4 @@ public class MainActivity extends RivetApiActivity {
         button.setAlpha(1f);
         button.setClickable(true);
     }
-
-    /**
-     *Convert a byte array to hexadecimals
-     */
-    public static @NonNull String bytesToHex(@NonNull byte[] in) {
-        final StringBuilder sb = new StringBuilder(in.length * 2);
-        for (byte b : in) {
-            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
-            sb.append(Character.forDigit(b & 0xF, 16));
-        }
-        return sb.toString();
-    }
 }
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.UsageRuleTUISample;
+
+import com.rivetz.api.RivetCrypto;
+import com.rivetz.api.RivetErrors;
+import com.rivetz.api.RivetRuntimeException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConfirmationQueueTest {
+
+    private static final long GATHER_MILLIS = 20;
+    private static final int SESSION_OPERATIONS = 5;
+
+    /**
+     * A prompt shown on the fake TUI, answered by the test
+     */
+    private static final class Prompt {
+        final String message;
+        final CompletableFuture<Boolean> answer = new CompletableFuture<>();
+
+        Prompt(String message) {
+            this.message = message;
+        }
+    }
+
+    private final BlockingQueue<Prompt> prompts = new LinkedBlockingQueue<>();
+    private ScheduledExecutorService scheduler;
+    private ConfirmationQueue queue;
+
+    @Before
+    public void setUp() {
+        RivetCrypto crypto = (RivetCrypto) Proxy.newProxyInstance(RivetCrypto.class.getClassLoader(),
+                new Class<?>[] { RivetCrypto.class }, (proxy, method, args) -> {
+                    if (!method.getName().equals("confirm")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    Prompt prompt = new Prompt((String) args[0]);
+                    prompts.add(prompt);
+                    return prompt.answer;
+                });
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        ConfirmationSessions sessions = new ConfirmationSessions(SESSION_OPERATIONS, 60_000);
+        queue = new ConfirmationQueue(crypto, sessions, scheduler, GATHER_MILLIS, 16);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    // An operation that counts how often it was started and returns its description
+    private CompletableFuture<String> submit(String keyName, String description, AtomicInteger started) {
+        Supplier<CompletableFuture<String>> operation = () -> {
+            started.incrementAndGet();
+            return CompletableFuture.completedFuture(description);
+        };
+        return queue.submit(keyName, ConfirmationSessions.Operation.ENCRYPT, description, operation);
+    }
+
+    private Prompt nextPrompt() throws InterruptedException {
+        Prompt prompt = prompts.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No prompt was shown", prompt);
+        return prompt;
+    }
+
+    private static Throwable failure(CompletableFuture<?> result) throws Exception {
+        try {
+            result.get(5, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException ex) {
+            return ex.getCause();
+        }
+        catch (CancellationException ex) {
+            return ex;
+        }
+        fail("The operation succeeded");
+        return null;
+    }
+
+    @Test
+    public void approvalRunsTheWholeBatch() throws Exception {
+        AtomicInteger started = new AtomicInteger();
+        CompletableFuture<String> first = submit("key", "Encrypt one", started);
+        CompletableFuture<String> second = submit("key", "Encrypt two", started);
+
+        Prompt prompt = nextPrompt();
+        assertTrue(prompt.message, prompt.message.startsWith("Approve 2 operations?"));
+        assertTrue(prompt.message, prompt.message.contains("Encrypt one"));
+        assertTrue(prompt.message, prompt.message.contains("Encrypt two"));
+        assertEquals(0, started.get());
+
+        prompt.answer.complete(true);
+        assertEquals("Encrypt one", first.get(5, TimeUnit.SECONDS));
+        assertEquals("Encrypt two", second.get(5, TimeUnit.SECONDS));
+        assertEquals(2, started.get());
+        assertNull(prompts.poll(GATHER_MILLIS * 5, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void declineFailsTheBatchWithoutRunningIt() throws Exception {
+        AtomicInteger started = new AtomicInteger();
+        List<CompletableFuture<String>> results = Arrays.asList(
+                submit("key", "Encrypt one", started), submit("other", "Encrypt two", started));
+
+        nextPrompt().answer.complete(false);
+        for (CompletableFuture<String> result : results) {
+            Throwable th = failure(result);
+            assertTrue(String.valueOf(th), th instanceof RivetRuntimeException);
+            assertEquals(RivetErrors.USER_CANCELED, ((RivetRuntimeException) th).getError());
+        }
+        assertEquals(0, started.get());
+    }
+
+    @Test
+    public void operationArrivingDuringPromptWaitsForTheNext() throws Exception {
+        AtomicInteger started = new AtomicInteger();
+        CompletableFuture<String> first = submit("key", "Encrypt one", started);
+        Prompt firstPrompt = nextPrompt();
+
+        CompletableFuture<String> second = submit("other", "Encrypt two", started);
+        assertNull("Only one prompt is shown at a time", prompts.poll(GATHER_MILLIS * 5, TimeUnit.MILLISECONDS));
+        assertFalse(second.isDone());
+
+        firstPrompt.answer.complete(true);
+        assertEquals("Encrypt one", first.get(5, TimeUnit.SECONDS));
+        assertEquals(1, started.get());
+
+        Prompt secondPrompt = nextPrompt();
+        assertTrue(secondPrompt.message, secondPrompt.message.startsWith("Encrypt two"));
+        secondPrompt.answer.complete(true);
+        assertEquals("Encrypt two", second.get(5, TimeUnit.SECONDS));
+        assertEquals(2, started.get());
+    }
+
+    @Test
+    public void closeDuringPromptCancelsEverything() throws Exception {
+        AtomicInteger started = new AtomicInteger();
+        CompletableFuture<String> shown = submit("key", "Encrypt one", started);
+        Prompt prompt = nextPrompt();
+        CompletableFuture<String> waiting = submit("other", "Encrypt two", started);
+
+        queue.close();
+        assertTrue(failure(waiting) instanceof CancellationException);
+        assertFalse(shown.isDone());
+
+        // An approval that comes after the close doesn't run the batch
+        prompt.answer.complete(true);
+        assertTrue(failure(shown) instanceof CancellationException);
+        assertTrue(failure(submit("key", "Encrypt three", started)) instanceof CancellationException);
+        assertEquals(0, started.get());
+        assertNull(prompts.poll(GATHER_MILLIS * 5, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void sessionRunsLaterOperationsWithoutPrompt() throws Exception {
+        AtomicInteger started = new AtomicInteger();
+        CompletableFuture<String> first = submit("key", "Encrypt one", started);
+        nextPrompt().answer.complete(true);
+        assertEquals("Encrypt one", first.get(5, TimeUnit.SECONDS));
+
+        CompletableFuture<String> second = submit("key", "Encrypt two", started);
+        assertEquals("Encrypt two", second.get(5, TimeUnit.SECONDS));
+        assertEquals(2, started.get());
+        assertNull(prompts.poll(GATHER_MILLIS * 5, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void coveredOperationArrivingDuringPromptIsStillPrompted() throws Exception {
+        AtomicInteger started = new AtomicInteger();
+        CompletableFuture<String> first = submit("key", "Encrypt one", started);
+        Prompt firstPrompt = nextPrompt();
+        CompletableFuture<String> second = submit("key", "Encrypt two", started);
+
+        // The session the approval opens covers the second operation, but the user never saw it
+        firstPrompt.answer.complete(true);
+        assertEquals("Encrypt one", first.get(5, TimeUnit.SECONDS));
+        Prompt secondPrompt = nextPrompt();
+        assertTrue(secondPrompt.message, secondPrompt.message.startsWith("Encrypt two"));
+        assertFalse(second.isDone());
+        assertEquals(1, started.get());
+
+        secondPrompt.answer.complete(true);
+        assertEquals("Encrypt two", second.get(5, TimeUnit.SECONDS));
+    }
+}
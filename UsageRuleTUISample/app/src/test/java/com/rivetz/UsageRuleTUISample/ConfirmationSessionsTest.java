@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2019 Rivetz Corp.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of RIVETZ CORP. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.rivetz.UsageRuleTUISample;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConfirmationSessionsTest {
+
+    private static final ConfirmationSessions.Operation ENCRYPT = ConfirmationSessions.Operation.ENCRYPT;
+    private static final ConfirmationSessions.Operation DECRYPT = ConfirmationSessions.Operation.DECRYPT;
+
+    private static ConfirmationSessions.Event lastEvent(ConfirmationSessions sessions) {
+        List<ConfirmationSessions.AuditEntry> log = sessions.getAuditLog();
+        return log.get(log.size() - 1).getEvent();
+    }
+
+    @Test
+    public void noSessionUntilGranted() {
+        ConfirmationSessions sessions = new ConfirmationSessions(3, 60_000);
+        assertFalse(sessions.tryUse("key", ENCRYPT, 1));
+
+        sessions.grant("key", ENCRYPT);
+        assertTrue(sessions.tryUse("key", ENCRYPT, 1));
+        assertFalse("A session covers one class of operation", sessions.tryUse("key", DECRYPT, 1));
+        assertFalse("A session covers one key", sessions.tryUse("other", ENCRYPT, 1));
+    }
+
+    @Test
+    public void sessionExpires() throws Exception {
+        ConfirmationSessions sessions = new ConfirmationSessions(3, 50);
+        sessions.grant("key", ENCRYPT);
+        assertTrue(sessions.tryUse("key", ENCRYPT, 1));
+
+        Thread.sleep(100);
+        assertFalse(sessions.tryUse("key", ENCRYPT, 1));
+        assertEquals(ConfirmationSessions.Event.EXPIRED, lastEvent(sessions));
+    }
+
+    @Test
+    public void sessionIsExhausted() {
+        ConfirmationSessions sessions = new ConfirmationSessions(2, 60_000);
+        sessions.grant("key", ENCRYPT);
+        assertTrue(sessions.tryUse("key", ENCRYPT, 1));
+        assertTrue(sessions.tryUse("key", ENCRYPT, 1));
+        assertEquals(ConfirmationSessions.Event.EXHAUSTED, lastEvent(sessions));
+        assertFalse(sessions.tryUse("key", ENCRYPT, 1));
+    }
+
+    @Test
+    public void moreUsesThanRemainingTakeNone() {
+        ConfirmationSessions sessions = new ConfirmationSessions(3, 60_000);
+        sessions.grant("key", ENCRYPT);
+        assertFalse(sessions.tryUse("key", ENCRYPT, 4));
+        assertEquals(ConfirmationSessions.Event.GRANTED, lastEvent(sessions));
+
+        assertTrue(sessions.tryUse("key", ENCRYPT, 3));
+        assertEquals(ConfirmationSessions.Event.EXHAUSTED, lastEvent(sessions));
+    }
+
+    @Test
+    public void grantReplacesOpenSession() {
+        ConfirmationSessions sessions = new ConfirmationSessions(2, 60_000);
+        sessions.grant("key", ENCRYPT);
+        assertTrue(sessions.tryUse("key", ENCRYPT, 1));
+
+        sessions.grant("key", ENCRYPT);
+        assertTrue(sessions.tryUse("key", ENCRYPT, 2));
+    }
+
+    @Test
+    public void revokeAllClosesEverySession() {
+        ConfirmationSessions sessions = new ConfirmationSessions(3, 60_000);
+        sessions.grant("key", ENCRYPT);
+        sessions.grant("key", DECRYPT);
+        sessions.grant("other", ENCRYPT);
+
+        sessions.revokeAll("paused");
+        assertFalse(sessions.tryUse("key", ENCRYPT, 1));
+        assertFalse(sessions.tryUse("key", DECRYPT, 1));
+        assertFalse(sessions.tryUse("other", ENCRYPT, 1));
+
+        int revoked = 0;
+        for (ConfirmationSessions.AuditEntry entry : sessions.getAuditLog()) {
+            if (entry.getEvent() == ConfirmationSessions.Event.REVOKED) {
+                revoked++;
+            }
+        }
+        assertEquals(3, revoked);
+    }
+
+    @Test
+    public void revokeClosesOneKey() {
+        ConfirmationSessions sessions = new ConfirmationSessions(3, 60_000);
+        sessions.grant("key", ENCRYPT);
+        sessions.grant("other", ENCRYPT);
+
+        sessions.revoke("key", "deleted");
+        assertFalse(sessions.tryUse("key", ENCRYPT, 1));
+        assertTrue(sessions.tryUse("other", ENCRYPT, 1));
+    }
+}